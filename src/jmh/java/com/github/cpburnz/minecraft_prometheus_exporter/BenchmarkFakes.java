@@ -0,0 +1,231 @@
+package com.github.cpburnz.minecraft_prometheus_exporter;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import com.mojang.authlib.GameProfile;
+import net.minecraft.SharedConstants;
+import net.minecraft.core.registries.BuiltInRegistries;
+import net.minecraft.core.registries.Registries;
+import net.minecraft.resources.ResourceKey;
+import net.minecraft.resources.ResourceLocation;
+import net.minecraft.server.Bootstrap;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.server.level.ServerChunkCache;
+import net.minecraft.server.level.ServerLevel;
+import net.minecraft.server.level.ServerPlayer;
+import net.minecraft.server.players.PlayerList;
+import net.minecraft.world.entity.Entity;
+import net.minecraft.world.entity.EntityType;
+import net.minecraft.world.level.Level;
+
+/**
+ * The BenchmarkFakes class builds the fake Minecraft server, dimensions,
+ * entities and players used by the benchmarks. The fakes are Mockito mocks so
+ * that the benchmarks do not need a running Minecraft server. The mocks are
+ * stub-only, so they do not record the millions of calls made on them, which
+ * would otherwise grow the heap and be measured along with the exporter.
+ */
+public final class BenchmarkFakes {
+
+	/**
+	 * Whether the Minecraft registries have been bootstrapped.
+	 */
+	private static boolean is_bootstrapped;
+
+	/**
+	 * This class cannot be instantiated.
+	 */
+	private BenchmarkFakes() {
+		// Empty.
+	}
+
+	/**
+	 * Bootstrap the Minecraft registries. This is required before using entity
+	 * types.
+	 */
+	public static synchronized void bootstrap() {
+		if (!is_bootstrapped) {
+			SharedConstants.tryDetectVersion();
+			Bootstrap.bootStrap();
+			is_bootstrapped = true;
+		}
+	}
+
+	/**
+	 * Create a new server config with the Minecraft collector enabled.
+	 *
+	 * @param entities Whether collecting metrics about entities is enabled.
+	 * @return The server config.
+	 */
+	public static ServerConfig newConfig(boolean entities) {
+		ServerConfig config = new ServerConfig();
+		config.collector_exporter = false;
+		config.collector_jvm = false;
+		config.collector_mc = true;
+		config.collector_mc_census = false;
+		config.collector_mc_census_budget_us = 500;
+		config.collector_mc_census_interval_s = 60;
+		config.collector_mc_chunks = false;
+		config.collector_mc_dimension_tick_errors = ServerConfig.TickErrorPolicy.IGNORE;
+		config.collector_mc_entities = entities;
+		config.collector_mc_entities_census = ServerConfig.EntityCensusMode.TYPE;
+		config.collector_mc_event_listeners = false;
+		config.collector_mc_event_listeners_interval = 10;
+		config.collector_mc_event_listeners_max_samples = 2000;
+		config.collector_mc_event_listeners_top = 10;
+		config.collector_mc_gc_ticks = false;
+		config.collector_mc_gc_ticks_slow_ms = 100;
+		config.collector_mc_mod_ticks = false;
+		config.collector_mc_mod_ticks_interval = 20;
+		config.collector_mc_mod_ticks_top = 10;
+		config.collector_mc_network = false;
+		config.collector_mc_network_top = 10;
+		config.collector_mc_players = ServerConfig.PlayerMode.LIST;
+		config.collector_mc_players_max = 50;
+		config.collector_mc_series_max = 2000;
+		config.collector_mc_snapshot_budget_us = 1000;
+		config.collector_mc_snapshot_chunks_s = 0;
+		config.collector_mc_snapshot_entities_s = 0;
+		config.collector_mc_snapshot_players_s = 0;
+		config.collector_mc_task_queues = false;
+		config.collector_mc_tick_buckets = new double[] {
+			0.01, 0.025, 0.05, 0.10, 0.25, 0.5, 1.0
+		};
+		config.collector_mc_tick_history = false;
+		config.collector_mc_tick_history_hours = 1;
+		config.collector_mc_tick_native_histograms = false;
+		config.collector_mc_tick_percentiles = false;
+		config.collector_mc_tick_percentiles_window = 60;
+		config.collector_mc_tick_phases = false;
+		config.collector_mc_tick_rates = true;
+		config.collector_mc_tick_resources = false;
+		return config;
+	}
+
+	/**
+	 * Create a new custom dimension.
+	 *
+	 * @param index The dimension index.
+	 * @return The dimension.
+	 */
+	public static ResourceKey<Level> newDimension(int index) {
+		return ResourceKey.create(
+			Registries.DIMENSION,
+			ResourceLocation.fromNamespaceAndPath("benchmark", "dim_" + index)
+		);
+	}
+
+	/**
+	 * Create new entities spread over the registered entity types. Entities of
+	 * the same type share a single mock.
+	 *
+	 * @param count The number of entities.
+	 * @return The entities.
+	 */
+	public static List<Entity> newEntities(int count) {
+		// Create one mock per entity type.
+		ArrayList<Entity> types = new ArrayList<>();
+		for (EntityType<?> type : BuiltInRegistries.ENTITY_TYPE) {
+			if (type != EntityType.PLAYER) {
+				Entity entity = stub(Entity.class);
+				when(entity.getType()).then(invocation -> type);
+				types.add(entity);
+			}
+		}
+
+		ArrayList<Entity> entities = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			entities.add(types.get(i % types.size()));
+		}
+		return entities;
+	}
+
+	/**
+	 * Create a new dimension (world).
+	 *
+	 * @param dim The dimension.
+	 * @param entities The entities in the dimension.
+	 * @param chunks The number of loaded chunks.
+	 * @return The dimension.
+	 */
+	public static ServerLevel newLevel(
+		ResourceKey<Level> dim, List<Entity> entities, int chunks
+	) {
+		ServerChunkCache chunk_source = stub(ServerChunkCache.class);
+		when(chunk_source.getLoadedChunksCount()).thenReturn(chunks);
+
+		ServerLevel world = stub(ServerLevel.class);
+		when(world.dimension()).thenReturn(dim);
+		when(world.getAllEntities()).then(invocation -> entities);
+		when(world.getChunkSource()).thenReturn(chunk_source);
+		return world;
+	}
+
+	/**
+	 * Create new dimensions (worlds) with the entities spread evenly over them.
+	 *
+	 * @param count The number of dimensions.
+	 * @param entities The total number of entities.
+	 * @return The dimensions.
+	 */
+	public static List<ServerLevel> newLevels(int count, int entities) {
+		List<Entity> dim_entities = newEntities(entities / count);
+		ArrayList<ServerLevel> worlds = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			worlds.add(newLevel(newDimension(i), dim_entities, 400));
+		}
+		return worlds;
+	}
+
+	/**
+	 * Create new players.
+	 *
+	 * @param count The number of players.
+	 * @return The players.
+	 */
+	public static List<ServerPlayer> newPlayers(int count) {
+		ArrayList<ServerPlayer> players = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			GameProfile profile = new GameProfile(UUID.randomUUID(), "player_" + i);
+			ServerPlayer player = stub(ServerPlayer.class);
+			when(player.getGameProfile()).thenReturn(profile);
+			players.add(player);
+		}
+		return players;
+	}
+
+	/**
+	 * Create a new Minecraft server.
+	 *
+	 * @param worlds The dimensions.
+	 * @param players The players.
+	 * @return The Minecraft server.
+	 */
+	public static MinecraftServer newServer(
+		List<ServerLevel> worlds, List<ServerPlayer> players
+	) {
+		PlayerList player_list = stub(PlayerList.class);
+		when(player_list.getPlayers()).thenReturn(players);
+
+		MinecraftServer mc_server = stub(MinecraftServer.class);
+		when(mc_server.getAllLevels()).then(invocation -> worlds);
+		when(mc_server.getPlayerList()).thenReturn(player_list);
+		return mc_server;
+	}
+
+	/**
+	 * Create a new stub-only mock, which does not record its calls.
+	 *
+	 * @param type The class to mock.
+	 * @return The mock.
+	 */
+	private static <T> T stub(Class<T> type) {
+		return mock(type, withSettings().stubOnly());
+	}
+}
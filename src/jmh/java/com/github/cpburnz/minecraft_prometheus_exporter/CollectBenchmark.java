@@ -0,0 +1,151 @@
+package com.github.cpburnz.minecraft_prometheus_exporter;
+
+import java.io.CharArrayWriter;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import net.minecraft.server.level.ServerLevel;
+import net.minecraft.world.entity.Entity;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.prometheus.client.Collector.MetricFamilySamples;
+import io.prometheus.client.exporter.common.TextFormat;
+
+/**
+ * The CollectBenchmark class benchmarks collecting the Minecraft metrics, and
+ * writing them in the text exposition format, as is done on each scrape.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@Fork(1)
+@Measurement(iterations = 5, time = 2)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 2)
+public class CollectBenchmark {
+
+	/**
+	 * The collector to benchmark.
+	 */
+	private MinecraftCollector collector;
+
+	/**
+	 * The number of dimensions.
+	 */
+	@Param({"3", "40"})
+	public int dim_count;
+
+	/**
+	 * The total number of entities over all dimensions.
+	 */
+	@Param({"1000", "60000", "200000"})
+	public int entity_count;
+
+	/**
+	 * An entity to add and remove from the first dimension.
+	 */
+	private Entity entity;
+
+	/**
+	 * The number of players.
+	 */
+	@Param({"1", "100", "500"})
+	public int player_count;
+
+	/**
+	 * The samples from the last collection to write.
+	 */
+	private List<MetricFamilySamples> samples;
+
+	/**
+	 * The first dimension.
+	 */
+	private ServerLevel world;
+
+	/**
+	 * The reused output buffer for the text exposition.
+	 */
+	private CharArrayWriter writer;
+
+	/**
+	 * Setup the collector.
+	 */
+	@Setup
+	public void setup() {
+		BenchmarkFakes.bootstrap();
+		List<ServerLevel> worlds = BenchmarkFakes.newLevels(
+			this.dim_count, this.entity_count
+		);
+		this.collector = new MinecraftCollector(
+			BenchmarkFakes.newConfig(true),
+			BenchmarkFakes.newServer(
+				worlds, BenchmarkFakes.newPlayers(this.player_count)
+			),
+			null
+		);
+		this.entity = BenchmarkFakes.newEntities(1).get(0);
+		this.samples = this.collector.collect();
+		this.world = worlds.get(0);
+		this.writer = new CharArrayWriter(1 << 20);
+	}
+
+	/**
+	 * Benchmark collecting the metrics.
+	 *
+	 * @return The collected samples.
+	 */
+	@Benchmark
+	public List<MetricFamilySamples> collect() {
+		return this.collector.collect();
+	}
+
+	/**
+	 * Benchmark an entity joining and leaving a dimension.
+	 */
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.NANOSECONDS)
+	public void entityJoinLeave() {
+		this.collector.onEntityJoin(this.world, this.entity);
+		this.collector.onEntityLeave(this.world, this.entity);
+	}
+
+	/**
+	 * Benchmark collecting the metrics, and writing them in the text exposition
+	 * format.
+	 *
+	 * @return The number of characters written.
+	 * @throws IOException Never.
+	 */
+	@Benchmark
+	public int scrape() throws IOException {
+		this.writer.reset();
+		TextFormat.write004(
+			this.writer, Collections.enumeration(this.collector.collect())
+		);
+		return this.writer.size();
+	}
+
+	/**
+	 * Benchmark writing the collected samples in the text exposition format.
+	 *
+	 * @return The number of characters written.
+	 * @throws IOException Never.
+	 */
+	@Benchmark
+	public int writeText() throws IOException {
+		this.writer.reset();
+		TextFormat.write004(this.writer, Collections.enumeration(this.samples));
+		return this.writer.size();
+	}
+}
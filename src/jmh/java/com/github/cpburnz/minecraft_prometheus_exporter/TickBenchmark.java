@@ -0,0 +1,103 @@
+package com.github.cpburnz.minecraft_prometheus_exporter;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import net.minecraft.resources.ResourceKey;
+import net.minecraft.world.level.Level;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The TickBenchmark class benchmarks the server and dimension tick hooks which
+ * run on the server thread.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@Fork(1)
+@Measurement(iterations = 5, time = 1)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 1)
+public class TickBenchmark {
+
+	/**
+	 * The collector to benchmark.
+	 */
+	private MinecraftCollector collector;
+
+	/**
+	 * The number of dimensions.
+	 */
+	@Param({"3", "10", "100"})
+	public int dim_count;
+
+	/**
+	 * The dimensions.
+	 */
+	private ResourceKey<Level>[] dims;
+
+	/**
+	 * Whether recording high-resolution tick percentiles is enabled.
+	 */
+	@Param({"false", "true"})
+	public boolean tick_percentiles;
+
+	/**
+	 * Setup the collector.
+	 */
+	@Setup
+	@SuppressWarnings("unchecked")
+	public void setup() {
+		this.dims = (ResourceKey<Level>[]) new ResourceKey<?>[this.dim_count];
+		for (int i = 0; i < this.dim_count; i++) {
+			this.dims[i] = BenchmarkFakes.newDimension(i);
+		}
+
+		ServerConfig config = BenchmarkFakes.newConfig(false);
+		config.collector_mc_tick_percentiles = this.tick_percentiles;
+		this.collector = new MinecraftCollector(
+			config, BenchmarkFakes.newServer(List.of(), List.of()), null
+		);
+	}
+
+	/**
+	 * Benchmark a single dimension tick.
+	 */
+	@Benchmark
+	public void dimensionTick() {
+		ResourceKey<Level> dim = this.dims[this.dim_count - 1];
+		this.collector.startDimensionTick(dim);
+		this.collector.stopDimensionTick(dim);
+	}
+
+	/**
+	 * Benchmark a server tick with a tick of every dimension.
+	 */
+	@Benchmark
+	public void fullTick() {
+		this.collector.startServerTick();
+		for (ResourceKey<Level> dim : this.dims) {
+			this.collector.startDimensionTick(dim);
+			this.collector.stopDimensionTick(dim);
+		}
+		this.collector.stopServerTick();
+	}
+
+	/**
+	 * Benchmark a server tick.
+	 */
+	@Benchmark
+	public void serverTick() {
+		this.collector.startServerTick();
+		this.collector.stopServerTick();
+	}
+}
@@ -0,0 +1,502 @@
+package com.github.cpburnz.minecraft_prometheus_exporter;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import it.unimi.dsi.fastutil.longs.Long2LongMap;
+import it.unimi.dsi.fastutil.longs.Long2LongOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ObjectIterator;
+import net.minecraft.resources.ResourceKey;
+import net.minecraft.server.level.DistanceManager;
+import net.minecraft.server.level.ServerLevel;
+import net.minecraft.server.level.Ticket;
+import net.minecraft.server.level.TicketType;
+import net.minecraft.util.SortedArraySet;
+import net.minecraft.world.level.ChunkPos;
+import net.minecraft.world.level.Level;
+
+import io.prometheus.client.Collector.MetricFamilySamples;
+import io.prometheus.client.CounterMetricFamily;
+import io.prometheus.client.GaugeMetricFamily;
+import io.prometheus.client.Histogram;
+
+/**
+ * The ChunkTracker class records the chunk lifecycle of each dimension (world)
+ * from the Forge chunk events: chunks read from and saved to disk, chunks
+ * reaching FULL status (loaded), freshly generated chunks and unloaded chunks.
+ *
+ * <p>The time from reading a chunk from disk to it reaching FULL status is
+ * recorded in a histogram. Freshly generated chunks are not read from disk, so
+ * there is no event marking when they were requested and they are only
+ * counted.</p>
+ *
+ * <p>The chunks holding each ticket type are counted periodically on the
+ * server thread since the ticket map is not safe to read from the scrape
+ * thread.</p>
+ */
+public class ChunkTracker {
+
+	/**
+	 * The histogram buckets to use for the chunk load times (in seconds).
+	 */
+	private static final double[] LOAD_BUCKETS = new double[] {
+		0.005,
+		0.01,
+		0.025,
+		0.05,
+		0.1,
+		0.25,
+		0.5,
+		1.0,
+		2.5,
+		5.0,
+		10.0,
+	};
+
+	/**
+	 * The number of nanoseconds in a second.
+	 */
+	private static final double NANOSECONDS_PER_SECOND = 1e9;
+
+	/**
+	 * The maximum number of chunks read from disk waiting to reach FULL status
+	 * per dimension. Chunks read for their neighbors (e.g., for lighting) may
+	 * never reach FULL status, so the oldest are dropped past this.
+	 */
+	private static final int PENDING_MAX = 1 << 14;
+
+	/**
+	 * How long a chunk read from disk can wait to reach FULL status before it is
+	 * dropped once the pending chunks are full (in nanoseconds).
+	 */
+	private static final long PENDING_TIMEOUT_NS = TimeUnit.SECONDS.toNanos(60);
+
+	/**
+	 * The interval to count the chunks by ticket type at (in nanoseconds).
+	 */
+	private static final long TICKET_INTERVAL_NS = TimeUnit.SECONDS.toNanos(5);
+
+	/**
+	 * Maps each dimension to its chunk stats.
+	 */
+	private final ConcurrentHashMap<ResourceKey<Level>, DimensionChunks> dim_chunks;
+
+	/**
+	 * Histogram metrics for the time from reading a chunk from disk to it
+	 * reaching FULL status.
+	 */
+	private final Histogram load_seconds;
+
+	/**
+	 * When the chunks were last counted by ticket type (in nanoseconds).
+	 */
+	private long ticket_sample_ns;
+
+	/**
+	 * Constructs the instance.
+	 */
+	public ChunkTracker() {
+		this.dim_chunks = new ConcurrentHashMap<>(3);
+		this.load_seconds = Histogram.build()
+			.buckets(LOAD_BUCKETS)
+			.name("mc_dimension_chunk_read_to_full_seconds")
+			.labelNames("id", "name")
+			.help("Stats on the time from reading a chunk from disk to it reaching FULL status.")
+			.create();
+		this.ticket_sample_ns = System.nanoTime() - TICKET_INTERVAL_NS;
+	}
+
+	/**
+	 * Get the metrics.
+	 *
+	 * @param metrics The metrics to add the chunk metrics to.
+	 */
+	public void collect(List<MetricFamilySamples> metrics) {
+		CounterMetricFamily loads = newLoadsMetric();
+		CounterMetricFamily generations = newGenerationsMetric();
+		CounterMetricFamily unloads = newUnloadsMetric();
+		CounterMetricFamily reads = newReadsMetric();
+		CounterMetricFamily saves = newSavesMetric();
+		GaugeMetricFamily tickets = newTicketsMetric();
+		for (DimensionChunks chunks : this.dim_chunks.values()) {
+			loads.addMetric(chunks.labels, chunks.loads.sum());
+			generations.addMetric(chunks.labels, chunks.generations.sum());
+			unloads.addMetric(chunks.labels, chunks.unloads.sum());
+			reads.addMetric(chunks.labels, chunks.reads.sum());
+			saves.addMetric(chunks.labels, chunks.saves.sum());
+			for (TicketCount count : chunks.ticket_counts) {
+				tickets.addMetric(count.labels(), count.chunks());
+			}
+		}
+
+		metrics.add(loads);
+		metrics.add(generations);
+		metrics.add(unloads);
+		metrics.add(reads);
+		metrics.add(saves);
+		metrics.addAll(this.load_seconds.collect());
+		metrics.add(tickets);
+	}
+
+	/**
+	 * Count the chunks of the dimension by ticket type. This must be called on
+	 * the server thread.
+	 *
+	 * @param world The dimension.
+	 * @param chunks The dimension chunk stats.
+	 */
+	private static void countTickets(ServerLevel world, DimensionChunks chunks) {
+		DistanceManager manager = world.getChunkSource().distanceManager;
+		IdentityHashMap<TicketType<?>, int[]> counts = new IdentityHashMap<>();
+		for (SortedArraySet<Ticket<?>> chunk_tickets : manager.tickets.values()) {
+			// Count each chunk once per ticket type.
+			int index = 0;
+			for (Ticket<?> ticket : chunk_tickets) {
+				TicketType<?> type = ticket.getType();
+				if (!hasTicketType(chunk_tickets, type, index)) {
+					counts.computeIfAbsent(type, k -> new int[1])[0]++;
+				}
+				index++;
+			}
+		}
+
+		ArrayList<TicketCount> ticket_counts = new ArrayList<>(counts.size());
+		for (Map.Entry<TicketType<?>, int[]> entry : counts.entrySet()) {
+			List<String> labels = List.of(
+				chunks.labels.get(0), chunks.labels.get(1), entry.getKey().toString()
+			);
+			ticket_counts.add(new TicketCount(labels, entry.getValue()[0]));
+		}
+		chunks.ticket_counts = ticket_counts;
+	}
+
+	/**
+	 * Get the metric descriptions.
+	 *
+	 * @param descs The metric descriptions to add to.
+	 */
+	public void describe(List<MetricFamilySamples> descs) {
+		descs.add(newLoadsMetric());
+		descs.add(newGenerationsMetric());
+		descs.add(newUnloadsMetric());
+		descs.add(newReadsMetric());
+		descs.add(newSavesMetric());
+		descs.addAll(this.load_seconds.describe());
+		descs.add(newTicketsMetric());
+	}
+
+	/**
+	 * Get the chunk stats for the dimension, creating them if they do not exist.
+	 *
+	 * @param dim The dimension.
+	 * @return The dimension chunk stats.
+	 */
+	private DimensionChunks getOrCreateChunks(ResourceKey<Level> dim) {
+		DimensionChunks chunks = this.dim_chunks.get(dim);
+		if (chunks == null) {
+			chunks = this.dim_chunks.computeIfAbsent(
+				dim, k -> new DimensionChunks(k, this.load_seconds)
+			);
+		}
+		return chunks;
+	}
+
+	/**
+	 * Get whether a ticket before the index has the ticket type.
+	 *
+	 * @param tickets The chunk tickets.
+	 * @param type The ticket type.
+	 * @param end The index to stop at.
+	 * @return Whether the ticket type was seen.
+	 */
+	private static boolean hasTicketType(
+		SortedArraySet<Ticket<?>> tickets, TicketType<?> type, int end
+	) {
+		int index = 0;
+		for (Ticket<?> ticket : tickets) {
+			if (index++ >= end) {
+				return false;
+			} else if (ticket.getType() == type) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Create a new metric for the freshly generated chunks.
+	 *
+	 * @return The chunk generations metric.
+	 */
+	private static CounterMetricFamily newGenerationsMetric() {
+		return new CounterMetricFamily(
+			"mc_dimension_chunk_generations_total",
+			"The number of freshly generated chunks which reached FULL status.",
+			List.of("id", "name")
+		);
+	}
+
+	/**
+	 * Create a new metric for the chunk loads.
+	 *
+	 * @return The chunk loads metric.
+	 */
+	private static CounterMetricFamily newLoadsMetric() {
+		return new CounterMetricFamily(
+			"mc_dimension_chunk_loads_total",
+			"The number of chunks which reached FULL status (were loaded).",
+			List.of("id", "name")
+		);
+	}
+
+	/**
+	 * Create a new metric for the chunk reads.
+	 *
+	 * @return The chunk reads metric.
+	 */
+	private static CounterMetricFamily newReadsMetric() {
+		return new CounterMetricFamily(
+			"mc_dimension_chunk_reads_total",
+			"The number of chunks read from disk at any status.",
+			List.of("id", "name")
+		);
+	}
+
+	/**
+	 * Create a new metric for the chunk saves.
+	 *
+	 * @return The chunk saves metric.
+	 */
+	private static CounterMetricFamily newSavesMetric() {
+		return new CounterMetricFamily(
+			"mc_dimension_chunk_saves_total",
+			"The number of chunks saved to disk.",
+			List.of("id", "name")
+		);
+	}
+
+	/**
+	 * Create a new metric for the chunks by ticket type.
+	 *
+	 * @return The chunk tickets metric.
+	 */
+	private static GaugeMetricFamily newTicketsMetric() {
+		return new GaugeMetricFamily(
+			"mc_dimension_chunk_tickets",
+			"The number of chunks holding a ticket of each type.",
+			List.of("id", "name", "type")
+		);
+	}
+
+	/**
+	 * Create a new metric for the chunk unloads.
+	 *
+	 * @return The chunk unloads metric.
+	 */
+	private static CounterMetricFamily newUnloadsMetric() {
+		return new CounterMetricFamily(
+			"mc_dimension_chunk_unloads_total",
+			"The number of chunks unloaded.",
+			List.of("id", "name")
+		);
+	}
+
+	/**
+	 * Record when a chunk reaches FULL status.
+	 *
+	 * @param world The dimension.
+	 * @param pos The chunk position.
+	 * @param is_new Whether the chunk was freshly generated.
+	 */
+	public void onChunkLoad(ServerLevel world, ChunkPos pos, boolean is_new) {
+		DimensionChunks chunks = this.getOrCreateChunks(world.dimension());
+		chunks.loads.increment();
+		if (is_new) {
+			chunks.generations.increment();
+		}
+
+		long read_ns;
+		synchronized (chunks.pending) {
+			read_ns = chunks.pending.remove(pos.toLong());
+		}
+		if (read_ns != -1) {
+			chunks.load_seconds.observe(
+				(System.nanoTime() - read_ns) / NANOSECONDS_PER_SECOND
+			);
+		}
+	}
+
+	/**
+	 * Record when a chunk is read from disk.
+	 *
+	 * @param world The dimension.
+	 * @param pos The chunk position.
+	 */
+	public void onChunkRead(ServerLevel world, ChunkPos pos) {
+		DimensionChunks chunks = this.getOrCreateChunks(world.dimension());
+		chunks.reads.increment();
+
+		long now_ns = System.nanoTime();
+		synchronized (chunks.pending) {
+			if (chunks.pending.size() >= PENDING_MAX) {
+				prunePending(chunks.pending, now_ns);
+			}
+			chunks.pending.putIfAbsent(pos.toLong(), now_ns);
+		}
+	}
+
+	/**
+	 * Record when a chunk is saved to disk.
+	 *
+	 * @param world The dimension.
+	 */
+	public void onChunkSave(ServerLevel world) {
+		this.getOrCreateChunks(world.dimension()).saves.increment();
+	}
+
+	/**
+	 * Record when a chunk is unloaded.
+	 *
+	 * @param world The dimension.
+	 */
+	public void onChunkUnload(ServerLevel world) {
+		this.getOrCreateChunks(world.dimension()).unloads.increment();
+	}
+
+	/**
+	 * Drop the chunks which have waited too long to reach FULL status. If none
+	 * have, drop all of them to keep the pending chunks bounded.
+	 *
+	 * @param pending The pending chunks.
+	 * @param now_ns The current time (in nanoseconds).
+	 */
+	private static void prunePending(Long2LongOpenHashMap pending, long now_ns) {
+		ObjectIterator<Long2LongMap.Entry> iter = pending.long2LongEntrySet().fastIterator();
+		while (iter.hasNext()) {
+			if (now_ns - iter.next().getLongValue() > PENDING_TIMEOUT_NS) {
+				iter.remove();
+			}
+		}
+		if (pending.size() >= PENDING_MAX) {
+			pending.clear();
+		}
+	}
+
+	/**
+	 * Forget the chunk stats for an unloaded dimension.
+	 *
+	 * @param dim The dimension.
+	 */
+	public void removeDimension(ResourceKey<Level> dim) {
+		DimensionChunks chunks = this.dim_chunks.remove(dim);
+		if (chunks != null) {
+			this.load_seconds.remove(chunks.labels.get(0), chunks.labels.get(1));
+		}
+	}
+
+	/**
+	 * Count the chunks by ticket type once the interval has passed. This must be
+	 * called on the server thread.
+	 *
+	 * @param worlds The dimensions.
+	 * @param now_ns The current time (in nanoseconds).
+	 */
+	public void sampleTickets(Iterable<ServerLevel> worlds, long now_ns) {
+		if (now_ns - this.ticket_sample_ns < TICKET_INTERVAL_NS) {
+			return;
+		}
+
+		this.ticket_sample_ns = now_ns;
+		for (ServerLevel world : worlds) {
+			countTickets(world, this.getOrCreateChunks(world.dimension()));
+		}
+	}
+
+	/**
+	 * The DimensionChunks class holds the chunk stats of a dimension.
+	 */
+	private static class DimensionChunks {
+
+		/**
+		 * The number of freshly generated chunks.
+		 */
+		public final LongAdder generations;
+
+		/**
+		 * The dimension metric labels: id and name.
+		 */
+		public final List<String> labels;
+
+		/**
+		 * The histogram child for the chunk load times.
+		 */
+		public final Histogram.Child load_seconds;
+
+		/**
+		 * The number of chunks which reached FULL status.
+		 */
+		public final LongAdder loads;
+
+		/**
+		 * Maps each chunk read from disk waiting to reach FULL status to when it
+		 * was read (in nanoseconds).
+		 */
+		public final Long2LongOpenHashMap pending;
+
+		/**
+		 * The number of chunks read from disk.
+		 */
+		public final LongAdder reads;
+
+		/**
+		 * The number of chunks saved to disk.
+		 */
+		public final LongAdder saves;
+
+		/**
+		 * The latest chunk counts by ticket type.
+		 */
+		public volatile List<TicketCount> ticket_counts;
+
+		/**
+		 * The number of chunks unloaded.
+		 */
+		public final LongAdder unloads;
+
+		/**
+		 * Constructs the instance.
+		 *
+		 * @param dim The dimension.
+		 * @param load_seconds Histogram metrics for the chunk load times.
+		 */
+		public DimensionChunks(ResourceKey<Level> dim, Histogram load_seconds) {
+			String id_str = Integer.toString(MinecraftCollector.getDimensionId(dim));
+			String name = dim.location().getPath();
+			this.generations = new LongAdder();
+			this.labels = List.of(id_str, name);
+			this.load_seconds = load_seconds.labels(id_str, name);
+			this.loads = new LongAdder();
+			this.pending = new Long2LongOpenHashMap();
+			this.pending.defaultReturnValue(-1);
+			this.reads = new LongAdder();
+			this.saves = new LongAdder();
+			this.ticket_counts = List.of();
+			this.unloads = new LongAdder();
+		}
+	}
+
+	/**
+	 * The TicketCount record holds the number of chunks holding a ticket type.
+	 *
+	 * @param labels The metric labels: id, name and type.
+	 * @param chunks The number of chunks.
+	 */
+	private record TicketCount(List<String> labels, int chunks) {
+		// Empty.
+	}
+}
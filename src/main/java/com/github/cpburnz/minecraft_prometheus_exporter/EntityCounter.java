@@ -0,0 +1,330 @@
+package com.github.cpburnz.minecraft_prometheus_exporter;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import net.minecraft.core.registries.BuiltInRegistries;
+import net.minecraft.resources.ResourceKey;
+import net.minecraft.resources.ResourceLocation;
+import net.minecraft.server.level.ServerLevel;
+import net.minecraft.world.entity.Entity;
+import net.minecraft.world.entity.EntityType;
+import net.minecraft.world.level.Level;
+
+import io.prometheus.client.GaugeMetricFamily;
+
+/**
+ * The EntityCounter class keeps the number of entities in each dimension
+ * (world) by type up to date as entities join and leave the dimensions. This
+ * allows the entity metrics to be collected without walking every entity on
+ * each scrape.
+ *
+ * <p>The counts for each dimension are stored in an array indexed by the
+ * entity type registry id. A dimension is only ever updated by the thread
+ * ticking it, and the scrape thread only reads the counts. A scrape may see
+ * slightly stale counts, but never a torn value.</p>
+ */
+public class EntityCounter {
+
+	/**
+	 * Maps each dimension to its entity counts.
+	 */
+	private final ConcurrentHashMap<ResourceKey<Level>, DimensionCounts> dim_counts;
+
+	/**
+	 * How to group the entity types.
+	 */
+	private final ServerConfig.EntityCensusMode mode;
+
+	/**
+	 * The number of registered entity types. The entity type registry is frozen
+	 * once the server starts so this cannot change.
+	 */
+	private final int type_count;
+
+	/**
+	 * Maps each entity type registry id to the registry id of the first entity
+	 * type in its group. Entity types from different mods can share the same
+	 * display name, and must be exported as a single series.
+	 */
+	private final int[] type_groups;
+
+	/**
+	 * The interned mod namespace of each entity type indexed by entity type
+	 * registry id.
+	 */
+	private final String[] type_mods;
+
+	/**
+	 * The interned label of each entity type indexed by entity type registry id.
+	 * This is either the display name or the registry path depending on the
+	 * census mode.
+	 */
+	private final String[] type_names;
+
+	/**
+	 * Constructs the instance.
+	 *
+	 * <p>This must be called on the server thread since it resolves the display
+	 * names of the entity types.</p>
+	 *
+	 * @param mode How to group the entity types.
+	 */
+	public EntityCounter(ServerConfig.EntityCensusMode mode) {
+		this.dim_counts = new ConcurrentHashMap<>(3);
+		this.mode = mode;
+		this.type_count = BuiltInRegistries.ENTITY_TYPE.size();
+		this.type_groups = new int[this.type_count];
+		this.type_mods = new String[this.type_count];
+		this.type_names = new String[this.type_count];
+
+		// Resolve the labels of the entity types.
+		HashMap<String, Integer> groups = new HashMap<>();
+		for (int type_id = 0; type_id < this.type_count; type_id++) {
+			EntityType<?> type = BuiltInRegistries.ENTITY_TYPE.byId(type_id);
+			ResourceLocation key = BuiltInRegistries.ENTITY_TYPE.getKey(type);
+			this.type_mods[type_id] = key.getNamespace().intern();
+
+			if (mode == ServerConfig.EntityCensusMode.NAME) {
+				String name = type.getDescription().getString().intern();
+				Integer group = groups.putIfAbsent(name, type_id);
+				this.type_names[type_id] = name;
+				this.type_groups[type_id] = group != null ? group : type_id;
+			} else {
+				this.type_names[type_id] = key.getPath().intern();
+				this.type_groups[type_id] = type_id;
+			}
+		}
+	}
+
+	/**
+	 * Record when an entity joins a dimension.
+	 *
+	 * @param world The dimension.
+	 * @param entity The entity.
+	 */
+	public void addEntity(ServerLevel world, Entity entity) {
+		int type_id = this.getTypeId(entity);
+		if (type_id >= 0) {
+			DimensionCounts dim_counts = this.getOrCreateCounts(world.dimension());
+			dim_counts.counts[type_id]++;
+			dim_counts.total++;
+		}
+	}
+
+	/**
+	 * Add the entity totals of the dimension to the metric.
+	 *
+	 * @param metric The entities total metric.
+	 * @param dim The dimension.
+	 */
+	public void addMetrics(GaugeMetricFamily metric, ResourceKey<Level> dim) {
+		DimensionCounts dim_counts = this.dim_counts.get(dim);
+		if (dim_counts == null) {
+			return;
+		}
+
+		// Sum the counts of each group.
+		int[] counts = dim_counts.counts;
+		int[] totals = counts;
+		if (this.mode == ServerConfig.EntityCensusMode.NAME) {
+			totals = new int[this.type_count];
+			for (int type_id = 0; type_id < this.type_count; type_id++) {
+				totals[this.type_groups[type_id]] += counts[type_id];
+			}
+		}
+
+		// Record metrics.
+		for (int type_id = 0; type_id < this.type_count; type_id++) {
+			int total = totals[type_id];
+			if (total > 0) {
+				metric.addMetric(this.getLabels(dim_counts, type_id), total);
+			}
+		}
+	}
+
+	/**
+	 * Get the metric label names for the census mode.
+	 *
+	 * @param mode How the entity types are grouped.
+	 * @return The metric label names.
+	 */
+	public static List<String> getLabelNames(ServerConfig.EntityCensusMode mode) {
+		if (mode == ServerConfig.EntityCensusMode.NAME) {
+			return List.of("dim", "dim_id", "type");
+		} else {
+			return List.of("dim", "dim_id", "mod", "type");
+		}
+	}
+
+	/**
+	 * Get the metric labels for the entity type in the dimension. The labels are
+	 * built once per dimension and type.
+	 *
+	 * @param dim_counts The dimension counts.
+	 * @param type_id The entity type registry id.
+	 * @return The metric labels.
+	 */
+	private List<String> getLabels(DimensionCounts dim_counts, int type_id) {
+		List<String> labels = dim_counts.labels[type_id];
+		if (labels == null) {
+			// NOTICE: Concurrent scrapes may both build the labels, which is
+			// harmless since they are equal.
+			if (this.mode == ServerConfig.EntityCensusMode.NAME) {
+				labels = List.of(
+					dim_counts.dim, dim_counts.dim_id_str, this.type_names[type_id]
+				);
+			} else {
+				labels = List.of(
+					dim_counts.dim,
+					dim_counts.dim_id_str,
+					this.type_mods[type_id],
+					this.type_names[type_id]
+				);
+			}
+			dim_counts.labels[type_id] = labels;
+		}
+		return labels;
+	}
+
+	/**
+	 * Get the entity counts for the dimension, creating them if they do not
+	 * exist.
+	 *
+	 * @param dim The dimension.
+	 * @return The entity counts.
+	 */
+	private DimensionCounts getOrCreateCounts(ResourceKey<Level> dim) {
+		DimensionCounts counts = this.dim_counts.get(dim);
+		if (counts == null) {
+			counts = this.dim_counts.computeIfAbsent(
+				dim, k -> new DimensionCounts(k, this.type_count)
+			);
+		}
+		return counts;
+	}
+
+	/**
+	 * Get the total entity count of the dimension. This does not allocate, so it
+	 * can be called from the tick hooks.
+	 *
+	 * @param dim The dimension.
+	 * @return The entity count.
+	 */
+	public int getTotal(ResourceKey<Level> dim) {
+		DimensionCounts dim_counts = this.dim_counts.get(dim);
+		return dim_counts != null ? dim_counts.total : 0;
+	}
+
+	/**
+	 * Get the entity type registry id to count the entity under.
+	 *
+	 * @param entity The entity.
+	 * @return The entity type registry id, or -1 if the entity is not counted.
+	 */
+	private int getTypeId(Entity entity) {
+		EntityType<?> type = entity.getType();
+		if (type == EntityType.PLAYER) {
+			// Players are exported separately.
+			return -1;
+		}
+
+		int type_id = BuiltInRegistries.ENTITY_TYPE.getId(type);
+		if (type_id < 0 || type_id >= this.type_count) {
+			// This should not happen since the registry is frozen.
+			return -1;
+		}
+		return type_id;
+	}
+
+	/**
+	 * Forget the entity counts for an unloaded dimension.
+	 *
+	 * @param dim The dimension.
+	 */
+	public void removeDimension(ResourceKey<Level> dim) {
+		this.dim_counts.remove(dim);
+	}
+
+	/**
+	 * Record when an entity leaves a dimension.
+	 *
+	 * @param world The dimension.
+	 * @param entity The entity.
+	 */
+	public void removeEntity(ServerLevel world, Entity entity) {
+		int type_id = this.getTypeId(entity);
+		if (type_id >= 0) {
+			DimensionCounts dim_counts = this.dim_counts.get(world.dimension());
+			if (dim_counts != null && dim_counts.counts[type_id] > 0) {
+				dim_counts.counts[type_id]--;
+				dim_counts.total--;
+			}
+		}
+	}
+
+	/**
+	 * Count the entities already in the dimensions. This must be called on the
+	 * server thread before any join or leave events are recorded.
+	 *
+	 * @param worlds The dimensions.
+	 */
+	public void seed(Iterable<ServerLevel> worlds) {
+		for (ServerLevel world : worlds) {
+			DimensionCounts dim_counts = this.getOrCreateCounts(world.dimension());
+			for (Entity entity : world.getAllEntities()) {
+				int type_id = this.getTypeId(entity);
+				if (type_id >= 0) {
+					dim_counts.counts[type_id]++;
+					dim_counts.total++;
+				}
+			}
+		}
+	}
+
+	/**
+	 * The DimensionCounts class holds the entity counts of a dimension.
+	 */
+	private static class DimensionCounts {
+
+		/**
+		 * The entity counts indexed by entity type registry id.
+		 */
+		public final int[] counts;
+
+		/**
+		 * The dimension name.
+		 */
+		public final String dim;
+
+		/**
+		 * The dimension id.
+		 */
+		public final String dim_id_str;
+
+		/**
+		 * The cached metric labels indexed by entity type registry id.
+		 */
+		public final List<String>[] labels;
+
+		/**
+		 * The total entity count.
+		 */
+		public int total;
+
+		/**
+		 * Constructs the instance.
+		 *
+		 * @param dim The dimension.
+		 * @param type_count The number of registered entity types.
+		 */
+		@SuppressWarnings("unchecked")
+		public DimensionCounts(ResourceKey<Level> dim, int type_count) {
+			this.counts = new int[type_count];
+			this.dim = dim.location().getPath();
+			this.dim_id_str = Integer.toString(MinecraftCollector.getDimensionId(dim));
+			this.labels = (List<String>[]) new List<?>[type_count];
+		}
+	}
+}
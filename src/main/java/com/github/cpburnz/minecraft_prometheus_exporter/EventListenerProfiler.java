@@ -0,0 +1,655 @@
+package com.github.cpburnz.minecraft_prometheus_exporter;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import javax.annotation.Nullable;
+
+import net.minecraftforge.event.TickEvent;
+import net.minecraftforge.event.entity.EntityJoinLevelEvent;
+import net.minecraftforge.event.entity.EntityLeaveLevelEvent;
+import net.minecraftforge.event.entity.living.LivingEvent;
+import net.minecraftforge.event.level.ChunkEvent;
+import net.minecraftforge.eventbus.ListenerList;
+import net.minecraftforge.eventbus.api.Event;
+import net.minecraftforge.eventbus.api.EventListenerHelper;
+import net.minecraftforge.eventbus.api.EventPriority;
+import net.minecraftforge.eventbus.api.IEventBus;
+import net.minecraftforge.eventbus.api.IEventListener;
+import net.minecraftforge.fml.ModList;
+import net.minecraftforge.forgespi.language.IModFileInfo;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import io.prometheus.client.Collector.MetricFamilySamples;
+import io.prometheus.client.CounterMetricFamily;
+
+/**
+ * The EventListenerProfiler class times the listeners of the hot events on the
+ * Forge event bus (e.g., ticks and entities joining a level), and attributes
+ * them to the mods which registered them.
+ *
+ * <p>Each listener registered when this is installed is replaced with a
+ * wrapper at the same priority and in the same order. A wrapper only times one
+ * in every N calls of its listener on average, with a random gap between the
+ * timed calls, and each timed call is scaled up by the calls since the last
+ * one to estimate the total. The number of calls timed per second across all
+ * listeners is capped, so the overhead is bounded however busy the events are.
+ * Past the cap, a call which is due is not timed, and its calls are carried to
+ * the next timed call of its listener.</p>
+ *
+ * <p>The event bus has no API to intercept its listeners, so the bus id and
+ * the owners of the listeners are read from the bus by reflection. If the bus
+ * does not have them, the listeners are left as they are.</p>
+ */
+public class EventListenerProfiler {
+
+	/**
+	 * The logger to use.
+	 */
+	private static final Logger LOG = LogManager.getLogger();
+
+	/**
+	 * The events whose listeners are timed.
+	 */
+	private static final List<Class<? extends Event>> EVENTS = List.of(
+		ChunkEvent.Load.class,
+		ChunkEvent.Unload.class,
+		EntityJoinLevelEvent.class,
+		EntityLeaveLevelEvent.class,
+		LivingEvent.LivingTickEvent.class,
+		TickEvent.LevelTickEvent.class,
+		TickEvent.PlayerTickEvent.class,
+		TickEvent.ServerTickEvent.class
+	);
+
+	/**
+	 * The number of nanoseconds in a second.
+	 */
+	private static final double NANOSECONDS_PER_SECOND = 1e9;
+
+	/**
+	 * The length of the window the timed calls are capped over (in
+	 * nanoseconds).
+	 */
+	private static final long WINDOW_NS = 1_000_000_000L;
+
+	/**
+	 * The event bus id, or -1 when not installed.
+	 */
+	private int bus_id;
+
+	/**
+	 * Time one in every N calls of each listener.
+	 */
+	private final int interval;
+
+	/**
+	 * Maps each owner of listeners on the bus (an object, class or consumer) to
+	 * its listeners, or {@code null} when not installed.
+	 */
+	@Nullable
+	private Map<Object, List<IEventListener>> listener_owners;
+
+	/**
+	 * The maximum number of calls to time per second.
+	 */
+	private final int max_samples;
+
+	/**
+	 * Maps each module name to the id of the mod it contains.
+	 */
+	private final Map<String, String> module_mods;
+
+	/**
+	 * The calls not timed because of the cap.
+	 */
+	private final LongAdder skipped;
+
+	/**
+	 * The maximum number of listeners to export the times of.
+	 */
+	private final int top;
+
+	/**
+	 * The calls timed in the current window.
+	 */
+	private final AtomicInteger window_samples;
+
+	/**
+	 * When the current window started (in nanoseconds).
+	 */
+	private volatile long window_start_ns;
+
+	/**
+	 * The installed listener wrappers.
+	 */
+	private final List<TimedListener> wrappers;
+
+	/**
+	 * Constructs the instance.
+	 *
+	 * @param interval Time one in every N calls of each listener.
+	 * @param max_samples The maximum number of calls to time per second.
+	 * @param top The maximum number of listeners to export the times of.
+	 */
+	public EventListenerProfiler(int interval, int max_samples, int top) {
+		this.bus_id = -1;
+		this.interval = interval;
+		this.max_samples = max_samples;
+		this.module_mods = getModuleMods();
+		this.skipped = new LongAdder();
+		this.top = top;
+		this.window_samples = new AtomicInteger();
+		this.window_start_ns = System.nanoTime();
+		this.wrappers = Collections.synchronizedList(new ArrayList<>());
+	}
+
+	/**
+	 * Get the event listener metrics.
+	 *
+	 * @param metrics The metrics to add the event listener metrics to.
+	 */
+	public void collect(List<MetricFamilySamples> metrics) {
+		// Sum the listeners by event and mod, and by listener.
+		HashMap<List<String>, double[]> mod_totals = new HashMap<>();
+		HashMap<List<String>, Double> listener_seconds = new HashMap<>();
+		synchronized (this.wrappers) {
+			for (TimedListener wrapper : this.wrappers) {
+				double seconds = wrapper.sampled_ns.sum() / NANOSECONDS_PER_SECOND;
+				double[] totals = mod_totals.computeIfAbsent(
+					List.of(wrapper.event, wrapper.mod), k -> new double[2]
+				);
+				totals[0] += seconds;
+				totals[1] += wrapper.calls.sum();
+				listener_seconds.merge(
+					List.of(wrapper.event, wrapper.listener, wrapper.mod),
+					seconds,
+					Double::sum
+				);
+			}
+		}
+
+		CounterMetricFamily seconds = newSecondsMetric();
+		CounterMetricFamily calls = newCallsMetric();
+		for (Map.Entry<List<String>, double[]> entry : mod_totals.entrySet()) {
+			seconds.addMetric(entry.getKey(), entry.getValue()[0]);
+			calls.addMetric(entry.getKey(), entry.getValue()[1]);
+		}
+		metrics.add(seconds);
+		metrics.add(calls);
+
+		CounterMetricFamily top_seconds = newTopSecondsMetric();
+		if (this.top > 0) {
+			ArrayList<Map.Entry<List<String>, Double>> entries = new ArrayList<>(
+				listener_seconds.entrySet()
+			);
+			entries.sort(Map.Entry.<List<String>, Double>comparingByValue().reversed());
+			int count = Math.min(this.top, entries.size());
+			for (int i = 0; i < count; i++) {
+				Map.Entry<List<String>, Double> entry = entries.get(i);
+				top_seconds.addMetric(entry.getKey(), entry.getValue());
+			}
+		}
+		metrics.add(top_seconds);
+
+		CounterMetricFamily skipped = newSkippedMetric();
+		skipped.addMetric(List.of(), this.skipped.sum());
+		metrics.add(skipped);
+	}
+
+	/**
+	 * Get the event listener metric descriptions.
+	 *
+	 * @param descs The metric descriptions to add to.
+	 */
+	public void describe(List<MetricFamilySamples> descs) {
+		descs.add(newSecondsMetric());
+		descs.add(newCallsMetric());
+		descs.add(newTopSecondsMetric());
+		descs.add(newSkippedMetric());
+	}
+
+	/**
+	 * Get the label of an event.
+	 *
+	 * @param event The event class.
+	 * @return The event label (e.g., "TickEvent.ServerTickEvent").
+	 */
+	private static String getEventLabel(Class<?> event) {
+		String name = event.getName();
+		return name.substring(name.lastIndexOf('.') + 1).replace('$', '.');
+	}
+
+	/**
+	 * Get the label of the class of a listener.
+	 *
+	 * @param owner_class The class which registered the listener.
+	 * @return The listener label.
+	 */
+	private static String getListenerLabel(Class<?> owner_class) {
+		String name = owner_class.getName();
+		int lambda = name.indexOf("$$Lambda");
+		return lambda != -1 ? name.substring(0, lambda) : name;
+	}
+
+	/**
+	 * Get the mod which owns a class.
+	 *
+	 * @param owner_class The class.
+	 * @return The mod id, or the module name when it is not a mod.
+	 */
+	private String getMod(Class<?> owner_class) {
+		String module = owner_class.getModule().getName();
+		if (module == null) {
+			return "unknown";
+		}
+		return this.module_mods.getOrDefault(module, module);
+	}
+
+	/**
+	 * Map each module name to the id of the mod it contains.
+	 *
+	 * @return The mod ids by module name.
+	 */
+	private static Map<String, String> getModuleMods() {
+		HashMap<String, String> module_mods = new HashMap<>();
+		for (IModFileInfo file : ModList.get().getModFiles()) {
+			if (!file.getMods().isEmpty()) {
+				module_mods.put(file.moduleName(), file.getMods().get(0).getModId());
+			}
+		}
+		return module_mods;
+	}
+
+	/**
+	 * Replace the listeners of the events with timed wrappers. This must be
+	 * called on the server thread.
+	 *
+	 * @param bus The event bus.
+	 */
+	@SuppressWarnings("unchecked")
+	public void install(IEventBus bus) {
+		// NOTICE: These are private fields of the event bus. The bus id selects the
+		// listeners of the bus from each listener list, and the listener owners are
+		// used to unregister a listener.
+		int bus_id;
+		Map<Object, List<IEventListener>> listener_owners;
+		try {
+			Field bus_id_field = bus.getClass().getDeclaredField("busID");
+			bus_id_field.setAccessible(true);
+			bus_id = bus_id_field.getInt(bus);
+
+			Field listeners_field = bus.getClass().getDeclaredField("listeners");
+			listeners_field.setAccessible(true);
+			listener_owners = (Map<Object, List<IEventListener>>)listeners_field.get(bus);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			LOG.warn("Failed to access the event bus, not timing event listeners.", e);
+			return;
+		}
+		this.bus_id = bus_id;
+		this.listener_owners = listener_owners;
+
+		// Find the owner of each listener.
+		IdentityHashMap<IEventListener, Object> owners = new IdentityHashMap<>();
+		for (Map.Entry<Object, List<IEventListener>> entry : listener_owners.entrySet()) {
+			synchronized (entry.getValue()) {
+				for (IEventListener listener : entry.getValue()) {
+					owners.put(listener, entry.getKey());
+				}
+			}
+		}
+
+		for (Class<? extends Event> event : EVENTS) {
+			this.wrapEvent(event, owners);
+		}
+		LOG.debug("Timing {} event listeners.", this.wrappers.size());
+	}
+
+	/**
+	 * Create a new metric for the calls of the listeners.
+	 *
+	 * @return The calls metric.
+	 */
+	private static CounterMetricFamily newCallsMetric() {
+		return new CounterMetricFamily(
+			"mc_event_listener_calls_total",
+			"The number of calls of the event listeners by event and mod, counted "
+			+ "up to the last call of each listener due to be timed.",
+			List.of("event", "mod")
+		);
+	}
+
+	/**
+	 * Create a new metric for the time spent in the listeners.
+	 *
+	 * @return The seconds metric.
+	 */
+	private static CounterMetricFamily newSecondsMetric() {
+		return new CounterMetricFamily(
+			"mc_event_listener_seconds_total",
+			"The estimated time spent in the event listeners by event and mod (in "
+			+ "seconds).",
+			List.of("event", "mod")
+		);
+	}
+
+	/**
+	 * Create a new metric for the calls not timed because of the cap.
+	 *
+	 * @return The skipped metric.
+	 */
+	private static CounterMetricFamily newSkippedMetric() {
+		return new CounterMetricFamily(
+			"mc_exporter_event_listener_samples_skipped_total",
+			"The number of event listener calls which were due to be timed, but "
+			+ "were not because of the cap on timed calls per second.",
+			List.of()
+		);
+	}
+
+	/**
+	 * Create a new metric for the time spent in the slowest listeners.
+	 *
+	 * @return The top seconds metric.
+	 */
+	private static CounterMetricFamily newTopSecondsMetric() {
+		return new CounterMetricFamily(
+			"mc_event_listener_top_seconds_total",
+			"The estimated time spent in the slowest event listeners (in seconds).",
+			List.of("event", "listener", "mod")
+		);
+	}
+
+	/**
+	 * Replace a listener in its owner's listener list on the bus, so the owner
+	 * can still unregister it.
+	 *
+	 * @param owner The owner of the listener.
+	 * @param old_listener The listener to replace.
+	 * @param new_listener The listener to replace it with.
+	 * @return Whether the listener was replaced.
+	 */
+	private boolean replaceOwned(
+		Object owner, IEventListener old_listener, IEventListener new_listener
+	) {
+		List<IEventListener> owned = this.listener_owners.get(owner);
+		if (owned == null) {
+			return false;
+		}
+		synchronized (owned) {
+			for (int i = 0; i < owned.size(); i++) {
+				if (owned.get(i) == old_listener) {
+					owned.set(i, new_listener);
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Record when a listener call is due to be timed.
+	 *
+	 * @return When the call started (in nanoseconds), or -1 when over the cap.
+	 */
+	private long startSample() {
+		long now_ns = System.nanoTime();
+		if (now_ns - this.window_start_ns >= WINDOW_NS) {
+			// NOTICE: Racing threads may both start a new window. This only lets a
+			// few more calls be timed.
+			this.window_start_ns = now_ns;
+			this.window_samples.set(0);
+		}
+		if (this.window_samples.incrementAndGet() > this.max_samples) {
+			this.skipped.increment();
+			return -1;
+		}
+		return now_ns;
+	}
+
+	/**
+	 * Restore the listeners which are still registered. This must be called on
+	 * the server thread.
+	 */
+	public void uninstall() {
+		if (this.bus_id == -1) {
+			return;
+		}
+
+		ArrayList<TimedListener> wrappers;
+		synchronized (this.wrappers) {
+			wrappers = new ArrayList<>(this.wrappers);
+		}
+
+		// NOTICE: A listener unregistered by its owner is no longer in the owner's
+		// list, and must not be restored. Every wrapper is removed before the
+		// listeners are added back so that they keep their order.
+		ArrayList<TimedListener> restore = new ArrayList<>(wrappers.size());
+		for (TimedListener wrapper : wrappers) {
+			if (this.replaceOwned(wrapper.owner, wrapper, wrapper.delegate)) {
+				wrapper.list.unregister(this.bus_id, wrapper);
+				restore.add(wrapper);
+			}
+		}
+		for (TimedListener wrapper : restore) {
+			wrapper.list.register(this.bus_id, wrapper.priority, wrapper.delegate);
+		}
+		this.bus_id = -1;
+		this.listener_owners = null;
+	}
+
+	/**
+	 * Replace the listeners of an event with timed wrappers. The listeners
+	 * inherited from the parent event are left to the parent.
+	 *
+	 * @param event The event class.
+	 * @param owners The owner of each listener.
+	 */
+	private void wrapEvent(
+		Class<? extends Event> event, Map<IEventListener, Object> owners
+	) {
+		ListenerList list = EventListenerHelper.getListenerList(event);
+		Set<IEventListener> inherited = Collections.newSetFromMap(new IdentityHashMap<>());
+		Collections.addAll(
+			inherited,
+			EventListenerHelper.getListenerList(event.getSuperclass()).getListeners(this.bus_id)
+		);
+
+		// Find the listeners of the event with their priority. The priority markers
+		// precede the listeners of each priority.
+		String event_label = getEventLabel(event);
+		EventPriority priority = EventPriority.HIGHEST;
+		ArrayList<TimedListener> wrappers = new ArrayList<>();
+		for (IEventListener listener : list.getListeners(this.bus_id)) {
+			if (listener instanceof EventPriority marker) {
+				priority = marker;
+				continue;
+			}
+			Object owner = owners.get(listener);
+			if (owner == null || inherited.contains(listener)) {
+				continue;
+			}
+			Class<?> owner_class = owner instanceof Class<?> cls ? cls : owner.getClass();
+			wrappers.add(new TimedListener(
+				listener,
+				event_label,
+				getListenerLabel(owner_class),
+				list,
+				this.getMod(owner_class),
+				owner,
+				priority
+			));
+		}
+
+		// NOTICE: Every listener of the event is removed before the wrappers are
+		// added so that the listeners keep their order within each priority.
+		for (TimedListener wrapper : wrappers) {
+			list.unregister(this.bus_id, wrapper.delegate);
+		}
+		for (TimedListener wrapper : wrappers) {
+			list.register(this.bus_id, wrapper.priority, wrapper);
+			this.replaceOwned(wrapper.owner, wrapper.delegate, wrapper);
+		}
+		this.wrappers.addAll(wrappers);
+	}
+
+	/**
+	 * The TimedListener class wraps an event listener to time a sample of its
+	 * calls.
+	 */
+	private class TimedListener implements IEventListener {
+
+		/**
+		 * The calls of the listener, counted up to the last call due to be timed.
+		 */
+		private final LongAdder calls;
+
+		/**
+		 * The calls until the next timed call. Races between threads posting the
+		 * event at once only shift the sample.
+		 */
+		private int countdown;
+
+		/**
+		 * The calls from the last call due to be timed to the next.
+		 */
+		private int gap;
+
+		/**
+		 * The wrapped listener.
+		 */
+		private final IEventListener delegate;
+
+		/**
+		 * The event label.
+		 */
+		private final String event;
+
+		/**
+		 * The listener list of the event.
+		 */
+		private final ListenerList list;
+
+		/**
+		 * The listener label.
+		 */
+		private final String listener;
+
+		/**
+		 * The mod which registered the listener.
+		 */
+		private final String mod;
+
+		/**
+		 * The owner of the listener on the bus.
+		 */
+		private final Object owner;
+
+		/**
+		 * The priority of the listener.
+		 */
+		private final EventPriority priority;
+
+		/**
+		 * The time spent in the timed calls, each scaled up by the calls since the
+		 * last timed call (in nanoseconds).
+		 */
+		private final LongAdder sampled_ns;
+
+		/**
+		 * The calls since the last timed call, up to the last call due to be
+		 * timed.
+		 */
+		private int untimed;
+
+		/**
+		 * Constructs the instance.
+		 *
+		 * @param delegate The wrapped listener.
+		 * @param event The event label.
+		 * @param listener The listener label.
+		 * @param list The listener list of the event.
+		 * @param mod The mod which registered the listener.
+		 * @param owner The owner of the listener on the bus.
+		 * @param priority The priority of the listener.
+		 */
+		private TimedListener(
+			IEventListener delegate,
+			String event,
+			String listener,
+			ListenerList list,
+			String mod,
+			Object owner,
+			EventPriority priority
+		) {
+			this.calls = new LongAdder();
+			this.delegate = delegate;
+			this.event = event;
+			this.list = list;
+			this.listener = listener;
+			this.mod = mod;
+			this.owner = owner;
+			this.priority = priority;
+			this.sampled_ns = new LongAdder();
+			this.untimed = 0;
+
+			// Spread the timed calls of the listeners of an event.
+			this.gap = ThreadLocalRandom.current().nextInt(interval) + 1;
+			this.countdown = this.gap;
+		}
+
+		/**
+		 * Call the listener, and time it when due.
+		 *
+		 * @param event The event.
+		 */
+		@Override
+		public void invoke(Event event) {
+			if (--this.countdown > 0) {
+				this.delegate.invoke(event);
+				return;
+			}
+			this.calls.add(this.gap);
+			long untimed = this.untimed + this.gap;
+
+			// Pick the gap to the next timed call uniformly from 1 to 2N - 1, which
+			// averages N, so calls made in a fixed pattern are not always or never
+			// timed.
+			this.gap = ThreadLocalRandom.current().nextInt(2 * interval - 1) + 1;
+			this.countdown = this.gap;
+
+			long start_ns = startSample();
+			if (start_ns == -1) {
+				// Carry the calls to the next timed call.
+				this.untimed = (int)Math.min(untimed, Integer.MAX_VALUE);
+				this.delegate.invoke(event);
+				return;
+			}
+			this.untimed = 0;
+			try {
+				this.delegate.invoke(event);
+			} finally {
+				this.sampled_ns.add((System.nanoTime() - start_ns) * untimed);
+			}
+		}
+
+		/**
+		 * Describe the wrapped listener.
+		 *
+		 * @return The description.
+		 */
+		@Override
+		public String toString() {
+			return this.delegate.toString();
+		}
+	}
+}
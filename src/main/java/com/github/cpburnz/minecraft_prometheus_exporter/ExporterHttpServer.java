@@ -0,0 +1,475 @@
+package com.github.cpburnz.minecraft_prometheus_exporter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPOutputStream;
+import javax.annotation.Nullable;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import io.prometheus.client.CollectorRegistry;
+
+/**
+ * The ExporterHttpServer class serves the metrics over HTTP with a short-lived
+ * response cache. This is used instead of the Prometheus HTTPServer when the
+ * scrape cache is enabled.
+ *
+ * <p>The serialized response for each content type is kept for the cache TTL
+ * in both plain and gzip form. Scrapes which arrive while the response is
+ * being collected wait for that collection to finish instead of starting their
+ * own.</p>
+ */
+public class ExporterHttpServer implements Closeable {
+
+	/**
+	 * The logger to use.
+	 */
+	private static final Logger LOG = LogManager.getLogger();
+
+	/**
+	 * The number of threads to handle requests with. This matches the
+	 * Prometheus HTTPServer.
+	 */
+	private static final int THREAD_COUNT = 5;
+
+	/**
+	 * The cache TTL (in nanoseconds).
+	 */
+	private final long cache_ttl_ns;
+
+	/**
+	 * Maps each content type to its response cache.
+	 */
+	private final ConcurrentHashMap<String, ResponseCache> caches;
+
+	/**
+	 * The executor handling requests.
+	 */
+	private final ExecutorService executor;
+
+	/**
+	 * The JDK HTTP server.
+	 */
+	private final HttpServer http_server;
+
+	/**
+	 * The registry to export.
+	 */
+	private final CollectorRegistry registry;
+
+	/**
+	 * The exporter overhead stats. This is only set when collecting metrics
+	 * about the exporter is enabled.
+	 */
+	@Nullable
+	private final ExporterStats stats;
+
+	/**
+	 * Constructs the instance, and starts the HTTP server.
+	 *
+	 * @param address The IP address to listen on.
+	 * @param port The TCP port to listen on.
+	 * @param registry The registry to export.
+	 * @param cache_ttl_ms The cache TTL (in milliseconds).
+	 * @param stats The exporter overhead stats to record the scrapes in.
+	 * @param history_handler The handler for the tick history.
+	 * @throws IOException When the HTTP server cannot be bound.
+	 */
+	public ExporterHttpServer(
+		String address,
+		int port,
+		CollectorRegistry registry,
+		int cache_ttl_ms,
+		@Nullable ExporterStats stats,
+		HttpHandler history_handler
+	) throws IOException {
+		this.cache_ttl_ns = cache_ttl_ms * 1_000_000L;
+		this.caches = new ConcurrentHashMap<>(2);
+		this.registry = registry;
+		this.stats = stats;
+
+		// WARNING: Make sure the HTTP server threads are daemonized, otherwise the
+		// Minecraft server process will not properly terminate.
+		this.executor = Executors.newFixedThreadPool(THREAD_COUNT, runnable -> {
+			Thread thread = new Thread(runnable, "prometheus-exporter-http");
+			thread.setDaemon(true);
+			return thread;
+		});
+
+		this.http_server = HttpServer.create(new InetSocketAddress(address, port), 3);
+		HttpHandler metrics_handler = this::handleMetrics;
+		this.http_server.createContext("/", metrics_handler);
+		this.http_server.createContext("/metrics", metrics_handler);
+		this.http_server.createContext("/-/healthy", this::handleHealthy);
+		this.http_server.createContext("/history", history_handler);
+		this.http_server.setExecutor(this.executor);
+		this.http_server.start();
+	}
+
+	/**
+	 * Get whether the client accepts a gzip response.
+	 *
+	 * @param exchange The HTTP exchange.
+	 * @return Whether gzip is accepted.
+	 */
+	static boolean acceptsGzip(HttpExchange exchange) {
+		List<String> encodings = exchange.getRequestHeaders().get("Accept-Encoding");
+		if (encodings != null) {
+			for (String encoding : encodings) {
+				for (String part : encoding.split(",")) {
+					if (part.trim().equalsIgnoreCase("gzip")) {
+						return true;
+					}
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Stop the HTTP server.
+	 */
+	@Override
+	public void close() {
+		this.http_server.stop(0);
+		this.executor.shutdownNow();
+	}
+
+	/**
+	 * Serialize the registry.
+	 *
+	 * @param content_type The content type to serialize.
+	 * @param names The metric names to include, or an empty list for all.
+	 * @return The serialized response.
+	 * @throws IOException When the metrics cannot be serialized.
+	 */
+	private byte[] collectResponse(
+		String content_type, List<String> names
+	) throws IOException {
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream(1 << 16);
+		if (names.isEmpty()) {
+			ProtobufFormat.writeFormat(
+				content_type, buffer, this.registry.metricFamilySamples()
+			);
+		} else {
+			ProtobufFormat.writeFormat(
+				content_type,
+				buffer,
+				this.registry.filteredMetricFamilySamples(Set.copyOf(names))
+			);
+		}
+		return buffer.toByteArray();
+	}
+
+	/**
+	 * Compress the response.
+	 *
+	 * @param body The response.
+	 * @return The compressed response.
+	 */
+	private static byte[] gzip(byte[] body) {
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream(body.length / 4);
+		try (GZIPOutputStream gzip = new GZIPOutputStream(buffer)) {
+			gzip.write(body);
+		} catch (IOException e) {
+			// This cannot happen when writing to a byte array.
+			throw new IllegalStateException(e);
+		}
+		return buffer.toByteArray();
+	}
+
+	/**
+	 * Handle a health check request.
+	 *
+	 * @param exchange The HTTP exchange.
+	 * @throws IOException When the response cannot be sent.
+	 */
+	private void handleHealthy(HttpExchange exchange) throws IOException {
+		byte[] body = "Exporter is Healthy.".getBytes(StandardCharsets.UTF_8);
+		this.sendResponse(exchange, "text/plain; charset=utf-8", body, false);
+	}
+
+	/**
+	 * Handle a metrics request.
+	 *
+	 * @param exchange The HTTP exchange.
+	 * @throws IOException When the response cannot be sent.
+	 */
+	private void handleMetrics(HttpExchange exchange) throws IOException {
+		ExporterStats.Scrape scrape = this.stats != null ? this.stats.startScrape() : null;
+		long response_bytes = 0;
+		boolean is_sent = false;
+		try {
+			String content_type = ProtobufFormat.chooseContentType(
+				exchange.getRequestHeaders().getFirst("Accept")
+			);
+			boolean use_gzip = acceptsGzip(exchange);
+			List<String> names = parseNames(exchange.getRequestURI().getRawQuery());
+
+			byte[] body;
+			if (!names.isEmpty()) {
+				// Filtered scrapes are rare, so do not cache them.
+				body = this.collectResponse(content_type, names);
+				if (use_gzip) {
+					body = gzip(body);
+				}
+			} else {
+				ResponseCache cache = this.caches.computeIfAbsent(
+					content_type, ResponseCache::new
+				);
+				CachedResponse response = cache.get();
+				body = use_gzip ? response.getGzip() : response.plain;
+			}
+
+			// NOTICE: The response headers are sent by sendResponse(), so a failure
+			// from here on cannot be answered with an error status.
+			is_sent = true;
+			this.sendResponse(exchange, content_type, body, use_gzip);
+			if (!exchange.getRequestMethod().equals("HEAD")) {
+				response_bytes = body.length;
+			}
+		} catch (Exception e) {
+			LOG.error("Failed to serve metrics.", e);
+			if (!is_sent) {
+				exchange.sendResponseHeaders(500, -1);
+			}
+		} finally {
+			if (scrape != null) {
+				scrape.finish(response_bytes);
+			}
+			exchange.close();
+		}
+	}
+
+	/**
+	 * Parse the metric names to include from the query string.
+	 *
+	 * @param query The raw query string.
+	 * @return The metric names, or an empty list for all.
+	 */
+	static List<String> parseNames(@Nullable String query) {
+		if (query == null || query.isEmpty()) {
+			return List.of();
+		}
+
+		ArrayList<String> names = new ArrayList<>();
+		for (String pair : query.split("&")) {
+			int index = pair.indexOf('=');
+			if (index > 0) {
+				String key = URLDecoder.decode(
+					pair.substring(0, index), StandardCharsets.UTF_8
+				);
+				if (key.equals("name[]")) {
+					names.add(URLDecoder.decode(
+						pair.substring(index + 1), StandardCharsets.UTF_8
+					));
+				}
+			}
+		}
+		return names;
+	}
+
+	/**
+	 * Send the response.
+	 *
+	 * @param exchange The HTTP exchange.
+	 * @param content_type The content type.
+	 * @param body The response body.
+	 * @param is_gzip Whether the response body is compressed.
+	 * @throws IOException When the response cannot be sent.
+	 */
+	private void sendResponse(
+		HttpExchange exchange, String content_type, byte[] body, boolean is_gzip
+	) throws IOException {
+		exchange.getResponseHeaders().set("Content-Type", content_type);
+		if (is_gzip) {
+			exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+		}
+
+		if (exchange.getRequestMethod().equals("HEAD")) {
+			exchange.getResponseHeaders().set(
+				"Content-Length", Integer.toString(body.length)
+			);
+			exchange.sendResponseHeaders(200, -1);
+		} else {
+			exchange.sendResponseHeaders(200, body.length);
+			try (OutputStream output = exchange.getResponseBody()) {
+				output.write(body);
+			}
+		}
+	}
+
+	/**
+	 * The CachedResponse class holds a serialized response.
+	 */
+	private static class CachedResponse {
+
+		/**
+		 * When the response was collected (in nanoseconds).
+		 */
+		public final long created_ns;
+
+		/**
+		 * The compressed response. This is only compressed when first requested.
+		 */
+		@Nullable
+		private volatile byte[] gzip;
+
+		/**
+		 * The uncompressed response.
+		 */
+		public final byte[] plain;
+
+		/**
+		 * Constructs the instance.
+		 *
+		 * @param plain The uncompressed response.
+		 * @param created_ns When the response was collected (in nanoseconds).
+		 */
+		public CachedResponse(byte[] plain, long created_ns) {
+			this.created_ns = created_ns;
+			this.plain = plain;
+		}
+
+		/**
+		 * @return The compressed response.
+		 */
+		public byte[] getGzip() {
+			byte[] gzip = this.gzip;
+			if (gzip == null) {
+				synchronized (this) {
+					gzip = this.gzip;
+					if (gzip == null) {
+						gzip = ExporterHttpServer.gzip(this.plain);
+						this.gzip = gzip;
+					}
+				}
+			}
+			return gzip;
+		}
+	}
+
+	/**
+	 * The ResponseCache class caches the response of a content type, and
+	 * coalesces concurrent collections into one.
+	 */
+	private class ResponseCache {
+
+		/**
+		 * The content type.
+		 */
+		private final String content_type;
+
+		/**
+		 * The pending collection when one is running.
+		 */
+		@Nullable
+		private CompletableFuture<CachedResponse> pending;
+
+		/**
+		 * The latest response.
+		 */
+		@Nullable
+		private volatile CachedResponse response;
+
+		/**
+		 * Constructs the instance.
+		 *
+		 * @param content_type The content type.
+		 */
+		public ResponseCache(String content_type) {
+			this.content_type = content_type;
+		}
+
+		/**
+		 * Get the cached response, collecting a new one if it expired.
+		 *
+		 * @return The response.
+		 * @throws IOException When the metrics cannot be serialized.
+		 */
+		public CachedResponse get() throws IOException {
+			// Use the cached response while it is fresh.
+			CachedResponse response = this.response;
+			if (this.isFresh(response)) {
+				return response;
+			}
+
+			// Either start a collection, or join the pending one.
+			CompletableFuture<CachedResponse> pending;
+			boolean is_owner = false;
+			synchronized (this) {
+				response = this.response;
+				if (this.isFresh(response)) {
+					return response;
+				}
+
+				pending = this.pending;
+				if (pending == null) {
+					pending = new CompletableFuture<>();
+					this.pending = pending;
+					is_owner = true;
+				}
+			}
+
+			if (!is_owner) {
+				try {
+					return pending.join();
+				} catch (CompletionException e) {
+					throw new IOException("Pending collection failed.", e.getCause());
+				}
+			}
+
+			// Collect the response.
+			try {
+				byte[] plain = ExporterHttpServer.this.collectResponse(
+					this.content_type, List.of()
+				);
+				response = new CachedResponse(plain, System.nanoTime());
+				synchronized (this) {
+					this.response = response;
+					this.pending = null;
+				}
+				pending.complete(response);
+				return response;
+			} catch (Throwable e) {
+				// NOTICE: Errors (e.g., from a mod class) must also release the
+				// pending collection, or every later scrape would wait on it forever.
+				synchronized (this) {
+					this.pending = null;
+				}
+				pending.completeExceptionally(e);
+				throw e;
+			}
+		}
+
+		/**
+		 * Get whether the response is still fresh.
+		 *
+		 * @param response The response.
+		 * @return Whether the response can be used.
+		 */
+		private boolean isFresh(@Nullable CachedResponse response) {
+			return (
+				response != null
+				&& System.nanoTime() - response.created_ns < ExporterHttpServer.this.cache_ttl_ns
+			);
+		}
+	}
+}
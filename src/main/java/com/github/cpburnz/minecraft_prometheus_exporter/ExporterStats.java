@@ -0,0 +1,459 @@
+package com.github.cpburnz.minecraft_prometheus_exporter;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.sun.net.httpserver.HttpHandler;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.CounterMetricFamily;
+import io.prometheus.client.GaugeMetricFamily;
+
+/**
+ * The ExporterStats class records the overhead of the exporter itself: the
+ * time spent collecting each group of Minecraft metrics, the series emitted
+ * per metric, the time spent in the tick hooks on the server thread, and the
+ * duration, allocations and response size of each scrape.
+ *
+ * <p>Everything is recorded as a running total with adders, so recording does
+ * not allocate or contend. The scrapes are recorded by the exporter's own web
+ * servers, and by wrapping the metrics handler of the Prometheus HTTPServer
+ * with {@link #recordScrapes(HttpHandler)}.</p>
+ */
+public class ExporterStats extends Collector implements Collector.Describable {
+
+	/**
+	 * The number of nanoseconds in a second.
+	 */
+	private static final double NANOSECONDS_PER_SECOND = 1e9;
+
+	/**
+	 * Maps each collector to the time spent collecting it (in nanoseconds).
+	 */
+	private final ConcurrentHashMap<String, LongAdder> collect_ns;
+
+	/**
+	 * The time spent in the dimension tick hooks (in nanoseconds).
+	 */
+	private final LongAdder dim_hook_ns;
+
+	/**
+	 * Whether the allocations of any scrape were measured. The JVM does not
+	 * measure the allocations of virtual threads, so this stays false when the
+	 * scrapes are served on them.
+	 */
+	private volatile boolean is_allocated_measured;
+
+	/**
+	 * The bytes allocated by the scrapes.
+	 */
+	private final LongAdder scrape_allocated_bytes;
+
+	/**
+	 * The time spent serving the scrapes (in nanoseconds).
+	 */
+	private final LongAdder scrape_ns;
+
+	/**
+	 * The bytes of the scrape responses.
+	 */
+	private final LongAdder scrape_response_bytes;
+
+	/**
+	 * The number of scrapes served.
+	 */
+	private final LongAdder scrapes;
+
+	/**
+	 * The number of scrapes being served.
+	 */
+	private final AtomicInteger scrapes_in_flight;
+
+	/**
+	 * Maps each Minecraft metric to the series emitted by the last collection.
+	 */
+	private volatile Map<String, Integer> series;
+
+	/**
+	 * The time spent in the server tick hooks (in nanoseconds).
+	 */
+	private final LongAdder server_hook_ns;
+
+	/**
+	 * Constructs the instance.
+	 */
+	public ExporterStats() {
+		this.collect_ns = new ConcurrentHashMap<>();
+		this.dim_hook_ns = new LongAdder();
+		this.scrape_allocated_bytes = new LongAdder();
+		this.scrape_ns = new LongAdder();
+		this.scrape_response_bytes = new LongAdder();
+		this.scrapes = new LongAdder();
+		this.scrapes_in_flight = new AtomicInteger();
+		this.series = Map.of();
+		this.server_hook_ns = new LongAdder();
+	}
+
+	/**
+	 * Return the exporter metrics.
+	 *
+	 * @return The exporter metrics.
+	 */
+	@Override
+	public List<MetricFamilySamples> collect() {
+		CounterMetricFamily collect_seconds = newCollectSecondsMetric();
+		for (Map.Entry<String, LongAdder> entry : this.collect_ns.entrySet()) {
+			collect_seconds.addMetric(
+				List.of(entry.getKey()), entry.getValue().sum() / NANOSECONDS_PER_SECOND
+			);
+		}
+
+		GaugeMetricFamily series = newSeriesMetric();
+		for (Map.Entry<String, Integer> entry : this.series.entrySet()) {
+			series.addMetric(List.of(entry.getKey()), entry.getValue());
+		}
+
+		CounterMetricFamily hook_seconds = newTickHookSecondsMetric();
+		hook_seconds.addMetric(
+			List.of("dimension"), this.dim_hook_ns.sum() / NANOSECONDS_PER_SECOND
+		);
+		hook_seconds.addMetric(
+			List.of("server"), this.server_hook_ns.sum() / NANOSECONDS_PER_SECOND
+		);
+
+		CounterMetricFamily scrapes = newScrapesMetric();
+		scrapes.addMetric(List.of(), this.scrapes.sum());
+
+		GaugeMetricFamily in_flight = newScrapesInFlightMetric();
+		in_flight.addMetric(List.of(), this.scrapes_in_flight.get());
+
+		CounterMetricFamily scrape_seconds = newScrapeSecondsMetric();
+		scrape_seconds.addMetric(List.of(), this.scrape_ns.sum() / NANOSECONDS_PER_SECOND);
+
+		CounterMetricFamily response = newScrapeResponseMetric();
+		response.addMetric(List.of(), this.scrape_response_bytes.sum());
+
+		ArrayList<MetricFamilySamples> metrics = new ArrayList<>(8);
+		metrics.add(collect_seconds);
+		metrics.add(series);
+		metrics.add(hook_seconds);
+		metrics.add(scrapes);
+		metrics.add(in_flight);
+		metrics.add(scrape_seconds);
+
+		// Omit the allocations rather than export a constant 0 when they cannot
+		// be measured.
+		if (this.is_allocated_measured) {
+			CounterMetricFamily allocated = newScrapeAllocatedMetric();
+			allocated.addMetric(List.of(), this.scrape_allocated_bytes.sum());
+			metrics.add(allocated);
+		}
+
+		metrics.add(response);
+		return metrics;
+	}
+
+	/**
+	 * Return the exporter metric descriptions.
+	 *
+	 * @return The metric descriptions.
+	 */
+	@Override
+	public List<MetricFamilySamples> describe() {
+		return List.of(
+			newCollectSecondsMetric(),
+			newSeriesMetric(),
+			newTickHookSecondsMetric(),
+			newScrapesMetric(),
+			newScrapesInFlightMetric(),
+			newScrapeSecondsMetric(),
+			newScrapeAllocatedMetric(),
+			newScrapeResponseMetric()
+		);
+	}
+
+	/**
+	 * Create a new metric for the time spent collecting each collector.
+	 *
+	 * @return The collect seconds metric.
+	 */
+	private static CounterMetricFamily newCollectSecondsMetric() {
+		return new CounterMetricFamily(
+			"mc_exporter_collect_seconds_total",
+			"The time spent collecting the Minecraft metrics by collector (in "
+			+ "seconds).",
+			List.of("collector")
+		);
+	}
+
+	/**
+	 * Create a new metric for the bytes allocated by the scrapes.
+	 *
+	 * @return The scrape allocated metric.
+	 */
+	private static CounterMetricFamily newScrapeAllocatedMetric() {
+		return new CounterMetricFamily(
+			"mc_exporter_scrape_allocated_bytes_total",
+			"The heap bytes allocated while serving the scrapes.",
+			List.of()
+		);
+	}
+
+	/**
+	 * Create a new metric for the bytes of the scrape responses.
+	 *
+	 * @return The scrape response metric.
+	 */
+	private static CounterMetricFamily newScrapeResponseMetric() {
+		return new CounterMetricFamily(
+			"mc_exporter_scrape_response_bytes_total",
+			"The bytes of the scrape responses as sent (after compression).",
+			List.of()
+		);
+	}
+
+	/**
+	 * Create a new metric for the time spent serving the scrapes.
+	 *
+	 * @return The scrape seconds metric.
+	 */
+	private static CounterMetricFamily newScrapeSecondsMetric() {
+		return new CounterMetricFamily(
+			"mc_exporter_scrape_seconds_total",
+			"The time spent serving the scrapes (in seconds).",
+			List.of()
+		);
+	}
+
+	/**
+	 * Create a new metric for the scrapes being served.
+	 *
+	 * @return The scrapes in flight metric.
+	 */
+	private static GaugeMetricFamily newScrapesInFlightMetric() {
+		return new GaugeMetricFamily(
+			"mc_exporter_scrapes_in_flight",
+			"The number of scrapes being served, including this one.",
+			List.of()
+		);
+	}
+
+	/**
+	 * Create a new metric for the scrapes served.
+	 *
+	 * @return The scrapes metric.
+	 */
+	private static CounterMetricFamily newScrapesMetric() {
+		return new CounterMetricFamily(
+			"mc_exporter_scrapes_total",
+			"The number of scrapes served.",
+			List.of()
+		);
+	}
+
+	/**
+	 * Create a new metric for the series emitted per Minecraft metric.
+	 *
+	 * @return The series metric.
+	 */
+	private static GaugeMetricFamily newSeriesMetric() {
+		return new GaugeMetricFamily(
+			"mc_exporter_series",
+			"The number of series emitted by the last collection of each Minecraft "
+			+ "metric.",
+			List.of("metric")
+		);
+	}
+
+	/**
+	 * Create a new metric for the time spent in the tick hooks.
+	 *
+	 * @return The tick hook seconds metric.
+	 */
+	private static CounterMetricFamily newTickHookSecondsMetric() {
+		return new CounterMetricFamily(
+			"mc_exporter_tick_hook_seconds_total",
+			"The time spent in the exporter tick hooks by hook (in seconds).",
+			List.of("hook")
+		);
+	}
+
+	/**
+	 * Record the time spent collecting a collector.
+	 *
+	 * @param collector The collector name.
+	 * @param duration_ns The duration (in nanoseconds).
+	 */
+	public void recordCollect(String collector, long duration_ns) {
+		LongAdder total = this.collect_ns.get(collector);
+		if (total == null) {
+			total = this.collect_ns.computeIfAbsent(collector, k -> new LongAdder());
+		}
+		total.add(duration_ns);
+	}
+
+	/**
+	 * Record the time spent in a dimension tick hook.
+	 *
+	 * @param duration_ns The duration (in nanoseconds).
+	 */
+	public void recordDimensionHook(long duration_ns) {
+		this.dim_hook_ns.add(duration_ns);
+	}
+
+	/**
+	 * Wrap a handler serving the metrics to record its scrapes.
+	 *
+	 * @param handler The handler.
+	 * @return The recording handler.
+	 */
+	public HttpHandler recordScrapes(HttpHandler handler) {
+		return exchange -> {
+			Scrape scrape = this.startScrape();
+			CountingStream counter = new CountingStream(exchange.getResponseBody());
+			exchange.setStreams(null, counter);
+			try {
+				handler.handle(exchange);
+			} finally {
+				scrape.finish(counter.count);
+			}
+		};
+	}
+
+	/**
+	 * Record the series emitted by a collection.
+	 *
+	 * @param metrics The collected metrics.
+	 */
+	public void recordSeries(List<MetricFamilySamples> metrics) {
+		HashMap<String, Integer> series = new HashMap<>(metrics.size());
+		for (MetricFamilySamples family : metrics) {
+			series.merge(family.name, family.samples.size(), Integer::sum);
+		}
+		this.series = series;
+	}
+
+	/**
+	 * Record the time spent in a server tick hook.
+	 *
+	 * @param duration_ns The duration (in nanoseconds).
+	 */
+	public void recordServerHook(long duration_ns) {
+		this.server_hook_ns.add(duration_ns);
+	}
+
+	/**
+	 * Record when a scrape begins. This must be finished on the same thread.
+	 *
+	 * @return The scrape.
+	 */
+	public Scrape startScrape() {
+		this.scrapes_in_flight.incrementAndGet();
+		return new Scrape(
+			System.nanoTime(), TickResourceRecorder.getCurrentThreadAllocatedBytes()
+		);
+	}
+
+	/**
+	 * The CountingStream class counts the bytes written to a response.
+	 */
+	private static class CountingStream extends FilterOutputStream {
+
+		/**
+		 * The number of bytes written.
+		 */
+		public long count;
+
+		/**
+		 * Constructs the instance.
+		 *
+		 * @param output The output to write to.
+		 */
+		public CountingStream(OutputStream output) {
+			super(output);
+		}
+
+		/**
+		 * Write a byte.
+		 *
+		 * @param b The byte.
+		 * @throws IOException When the data cannot be written.
+		 */
+		@Override
+		public void write(int b) throws IOException {
+			this.out.write(b);
+			this.count++;
+		}
+
+		/**
+		 * Write the bytes.
+		 *
+		 * @param b The bytes.
+		 * @param off The start offset.
+		 * @param len The number of bytes.
+		 * @throws IOException When the data cannot be written.
+		 */
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			this.out.write(b, off, len);
+			this.count += len;
+		}
+	}
+
+	/**
+	 * The Scrape class holds the state of a scrape being served.
+	 */
+	public class Scrape {
+
+		/**
+		 * The bytes allocated by the thread when the scrape started, or -1 if not
+		 * supported.
+		 */
+		private final long start_allocated_bytes;
+
+		/**
+		 * When the scrape started (in nanoseconds).
+		 */
+		private final long start_ns;
+
+		/**
+		 * Constructs the instance.
+		 *
+		 * @param start_ns When the scrape started (in nanoseconds).
+		 * @param start_allocated_bytes The bytes allocated by the thread when the
+		 * scrape started.
+		 */
+		private Scrape(long start_ns, long start_allocated_bytes) {
+			this.start_allocated_bytes = start_allocated_bytes;
+			this.start_ns = start_ns;
+		}
+
+		/**
+		 * Record when the scrape ends.
+		 *
+		 * @param response_bytes The bytes of the response.
+		 */
+		public void finish(long response_bytes) {
+			ExporterStats stats = ExporterStats.this;
+			stats.scrape_ns.add(System.nanoTime() - this.start_ns);
+			stats.scrape_response_bytes.add(response_bytes);
+			stats.scrapes.increment();
+			stats.scrapes_in_flight.decrementAndGet();
+
+			// NOTICE: The JVM may not measure the allocations of virtual threads.
+			long allocated_bytes = TickResourceRecorder.getCurrentThreadAllocatedBytes();
+			if (this.start_allocated_bytes >= 0 && allocated_bytes >= 0) {
+				stats.scrape_allocated_bytes.add(allocated_bytes - this.start_allocated_bytes);
+				stats.is_allocated_measured = true;
+			}
+		}
+	}
+}
@@ -0,0 +1,429 @@
+package com.github.cpburnz.minecraft_prometheus_exporter;
+
+import java.io.Closeable;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+import com.sun.management.GcInfo;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import io.prometheus.client.Collector.MetricFamilySamples;
+import io.prometheus.client.Counter;
+import io.prometheus.client.CounterMetricFamily;
+import io.prometheus.client.GaugeMetricFamily;
+import io.prometheus.client.Histogram;
+
+/**
+ * The GcTickCorrelator class matches the garbage collection (GC) pauses of the
+ * JVM against the server ticks, to tell whether a slow tick was caused by a GC
+ * pause or by the game.
+ *
+ * <p>The JVM notifies each GC on its own thread after the GC ends, which may
+ * be after the tick it paused. The notification handler only queues the pause
+ * on a lock-free queue. The tick hook records each tick window in a ring owned
+ * by the server thread, matches the queued pauses against the recent ticks,
+ * and settles a tick once it is old enough that no notification for it is
+ * still expected.</p>
+ *
+ * <p>Only the collectors which stop the application are matched. The cycles of
+ * the concurrent collectors (e.g., "G1 Concurrent GC" or "ZGC Cycles") run
+ * alongside the ticks.</p>
+ */
+public class GcTickCorrelator implements Closeable {
+
+	/**
+	 * The logger to use.
+	 */
+	private static final Logger LOG = LogManager.getLogger();
+
+	/**
+	 * The histogram buckets to use for the GC time per tick (in seconds).
+	 */
+	private static final double[] GC_BUCKETS = new double[] {
+		0.001,
+		0.0025,
+		0.005,
+		0.01,
+		0.025,
+		0.05,
+		0.1,
+		0.25,
+		0.5,
+		1.0,
+	};
+
+	/**
+	 * The number of nanoseconds in a second.
+	 */
+	private static final double NANOSECONDS_PER_SECOND = 1e9;
+
+	/**
+	 * The number of recent ticks kept to match pauses against. Ticks pushed out
+	 * of the ring before they are old enough are settled early.
+	 */
+	private static final int RING_SIZE = 256;
+
+	/**
+	 * How long after a tick ends to wait for the notifications of its pauses
+	 * before settling it (in nanoseconds).
+	 */
+	private static final long SETTLE_NS = TimeUnit.SECONDS.toNanos(2);
+
+	/**
+	 * The GC beans which notify the pauses.
+	 */
+	private final List<NotificationEmitter> emitters;
+
+	/**
+	 * The notification handler registered with the GC beans.
+	 */
+	private final NotificationListener listener;
+
+	/**
+	 * The number of ticks recorded.
+	 */
+	private long next_tick;
+
+	/**
+	 * Counter metrics for the GC pauses within server ticks.
+	 */
+	private final Counter pause_count;
+
+	/**
+	 * The GC pauses waiting to be matched.
+	 */
+	private final ConcurrentLinkedQueue<Pause> pauses;
+
+	/**
+	 * The number of ticks settled.
+	 */
+	private long settled_ticks;
+
+	/**
+	 * The number of slow ticks which overlapped a GC pause. This is only written
+	 * by the server thread.
+	 */
+	private volatile long slow_gc_ticks;
+
+	/**
+	 * The minimum duration of a slow tick (in nanoseconds).
+	 */
+	private final long slow_ns;
+
+	/**
+	 * The number of slow ticks. This is only written by the server thread.
+	 */
+	private volatile long slow_ticks;
+
+	/**
+	 * When each recent tick ended (in nanoseconds) indexed by ring slot.
+	 */
+	private final long[] tick_end_ns;
+
+	/**
+	 * The GC pause time within each recent tick (in nanoseconds) indexed by ring
+	 * slot.
+	 */
+	private final long[] tick_gc_ns;
+
+	/**
+	 * Histogram metrics for the GC pause time within the server ticks.
+	 */
+	private final Histogram tick_gc_seconds;
+
+	/**
+	 * When each recent tick started (in nanoseconds) indexed by ring slot.
+	 */
+	private final long[] tick_start_ns;
+
+	/**
+	 * The offset from the JVM uptime to {@link System#nanoTime()} (in
+	 * nanoseconds).
+	 */
+	private final long uptime_offset_ns;
+
+	/**
+	 * Constructs the instance.
+	 *
+	 * @param slow_ms The minimum duration of a slow tick (in milliseconds).
+	 */
+	public GcTickCorrelator(int slow_ms) {
+		this.emitters = new ArrayList<>();
+		this.listener = this::onNotification;
+		this.pause_count = Counter.build()
+			.name("mc_server_tick_gc_pauses_total")
+			.labelNames("gc")
+			.help("The number of GC pauses which fell within a server tick.")
+			.create();
+		this.pauses = new ConcurrentLinkedQueue<>();
+		this.slow_ns = TimeUnit.MILLISECONDS.toNanos(slow_ms);
+		this.tick_end_ns = new long[RING_SIZE];
+		this.tick_gc_ns = new long[RING_SIZE];
+		this.tick_gc_seconds = Histogram.build()
+			.buckets(GC_BUCKETS)
+			.name("mc_server_tick_gc_seconds")
+			.help("Stats on the GC pause time within the server ticks which had one.")
+			.create();
+		this.tick_start_ns = new long[RING_SIZE];
+
+		// NOTICE: The GC times are in milliseconds since the JVM started.
+		this.uptime_offset_ns = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(
+			ManagementFactory.getRuntimeMXBean().getUptime()
+		);
+
+		for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+			if (bean instanceof NotificationEmitter emitter && !isConcurrent(bean.getName())) {
+				emitter.addNotificationListener(this.listener, null, null);
+				this.emitters.add(emitter);
+			}
+		}
+	}
+
+	/**
+	 * Stop listening to the GC beans.
+	 */
+	@Override
+	public void close() {
+		for (NotificationEmitter emitter : this.emitters) {
+			try {
+				emitter.removeNotificationListener(this.listener);
+			} catch (ListenerNotFoundException e) {
+				LOG.debug("GC listener was already removed.", e);
+			}
+		}
+		this.emitters.clear();
+	}
+
+	/**
+	 * Get the GC tick metrics.
+	 *
+	 * @param metrics The metrics to add the GC tick metrics to.
+	 */
+	public void collect(List<MetricFamilySamples> metrics) {
+		metrics.addAll(this.pause_count.collect());
+		metrics.addAll(this.tick_gc_seconds.collect());
+
+		// NOTICE: The slow GC ticks are read first since they are incremented
+		// after the slow ticks.
+		long slow_gc_ticks = this.slow_gc_ticks;
+		long slow_ticks = this.slow_ticks;
+		CounterMetricFamily slow = newSlowTicksMetric();
+		slow.addMetric(List.of(), slow_ticks);
+		metrics.add(slow);
+
+		CounterMetricFamily slow_gc = newSlowGcTicksMetric();
+		slow_gc.addMetric(List.of(), slow_gc_ticks);
+		metrics.add(slow_gc);
+
+		GaugeMetricFamily ratio = newSlowGcRatioMetric();
+		if (slow_ticks > 0) {
+			ratio.addMetric(List.of(), (double)slow_gc_ticks / slow_ticks);
+		}
+		metrics.add(ratio);
+	}
+
+	/**
+	 * Get the GC tick metric descriptions.
+	 *
+	 * @param descs The metric descriptions to add to.
+	 */
+	public void describe(List<MetricFamilySamples> descs) {
+		descs.addAll(this.pause_count.describe());
+		descs.addAll(this.tick_gc_seconds.describe());
+		descs.add(newSlowTicksMetric());
+		descs.add(newSlowGcTicksMetric());
+		descs.add(newSlowGcRatioMetric());
+	}
+
+	/**
+	 * Get whether a collector runs alongside the application rather than
+	 * pausing it.
+	 *
+	 * @param name The collector name.
+	 * @return Whether the collector is concurrent.
+	 */
+	private static boolean isConcurrent(String name) {
+		return name.contains("Concurrent") || name.contains("Cycles");
+	}
+
+	/**
+	 * Match the queued pauses against the recent ticks.
+	 */
+	private void matchPauses() {
+		Pause pause;
+		while ((pause = this.pauses.poll()) != null) {
+			boolean matched = false;
+			for (long tick = this.settled_ticks; tick < this.next_tick; tick++) {
+				int slot = (int)(tick % RING_SIZE);
+				long start_ns = this.tick_start_ns[slot];
+				long end_ns = this.tick_end_ns[slot];
+				if (pause.start_ns <= end_ns && pause.end_ns >= start_ns) {
+					long overlap_ns = Math.min(pause.end_ns, end_ns)
+						- Math.max(pause.start_ns, start_ns);
+					this.tick_gc_ns[slot] += Math.max(overlap_ns, 0);
+					matched = true;
+				}
+			}
+			if (matched) {
+				this.pause_count.labels(pause.gc).inc();
+			}
+		}
+	}
+
+	/**
+	 * Create a new metric for the fraction of slow ticks with a GC pause.
+	 *
+	 * @return The ratio metric.
+	 */
+	private static GaugeMetricFamily newSlowGcRatioMetric() {
+		return new GaugeMetricFamily(
+			"mc_server_slow_tick_gc_ratio",
+			"The fraction of the slow server ticks which overlapped a GC pause.",
+			List.of()
+		);
+	}
+
+	/**
+	 * Create a new metric for the slow ticks with a GC pause.
+	 *
+	 * @return The slow GC ticks metric.
+	 */
+	private static CounterMetricFamily newSlowGcTicksMetric() {
+		return new CounterMetricFamily(
+			"mc_server_slow_ticks_gc_total",
+			"The number of slow server ticks which overlapped a GC pause.",
+			List.of()
+		);
+	}
+
+	/**
+	 * Create a new metric for the slow ticks.
+	 *
+	 * @return The slow ticks metric.
+	 */
+	private static CounterMetricFamily newSlowTicksMetric() {
+		return new CounterMetricFamily(
+			"mc_server_slow_ticks_total",
+			"The number of server ticks longer than the slow tick threshold.",
+			List.of()
+		);
+	}
+
+	/**
+	 * Queue a GC pause. This is called on the JVM notification thread, so it
+	 * only adds to the lock-free queue.
+	 *
+	 * @param notification The notification.
+	 * @param handback Unused.
+	 */
+	private void onNotification(Notification notification, Object handback) {
+		if (!GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(
+			notification.getType()
+		)) {
+			return;
+		}
+
+		GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo.from(
+			(CompositeData)notification.getUserData()
+		);
+		GcInfo gc_info = info.getGcInfo();
+		long start_ns = this.uptime_offset_ns
+			+ TimeUnit.MILLISECONDS.toNanos(gc_info.getStartTime());
+		long end_ns = this.uptime_offset_ns
+			+ TimeUnit.MILLISECONDS.toNanos(gc_info.getEndTime());
+		this.pauses.add(new Pause(info.getGcName(), start_ns, end_ns));
+	}
+
+	/**
+	 * Record a server tick, match the queued pauses, and settle the old ticks.
+	 * This must be called on the server thread when the server tick stops.
+	 *
+	 * @param start_ns When the tick started (in nanoseconds).
+	 * @param end_ns When the tick ended (in nanoseconds).
+	 */
+	public void recordTick(long start_ns, long end_ns) {
+		if (this.next_tick - this.settled_ticks == RING_SIZE) {
+			this.settle();
+		}
+		int slot = (int)(this.next_tick % RING_SIZE);
+		this.tick_start_ns[slot] = start_ns;
+		this.tick_end_ns[slot] = end_ns;
+		this.tick_gc_ns[slot] = 0;
+		this.next_tick++;
+
+		this.matchPauses();
+
+		while (
+			this.settled_ticks < this.next_tick
+			&& end_ns - this.tick_end_ns[(int)(this.settled_ticks % RING_SIZE)] >= SETTLE_NS
+		) {
+			this.settle();
+		}
+	}
+
+	/**
+	 * Settle the oldest unsettled tick: record its GC pause time, and whether it
+	 * was slow.
+	 */
+	private void settle() {
+		int slot = (int)(this.settled_ticks % RING_SIZE);
+		long gc_ns = this.tick_gc_ns[slot];
+		if (gc_ns > 0) {
+			this.tick_gc_seconds.observe(gc_ns / NANOSECONDS_PER_SECOND);
+		}
+		if (this.tick_end_ns[slot] - this.tick_start_ns[slot] >= this.slow_ns) {
+			// NOTICE: These are only written by the server thread, so the increments
+			// do not need to be atomic.
+			this.slow_ticks++;
+			if (gc_ns > 0) {
+				this.slow_gc_ticks++;
+			}
+		}
+		this.settled_ticks++;
+	}
+
+	/**
+	 * The Pause class holds a GC pause waiting to be matched.
+	 */
+	private static class Pause {
+
+		/**
+		 * When the pause ended (in nanoseconds).
+		 */
+		public final long end_ns;
+
+		/**
+		 * The collector name.
+		 */
+		public final String gc;
+
+		/**
+		 * When the pause started (in nanoseconds).
+		 */
+		public final long start_ns;
+
+		/**
+		 * Constructs the instance.
+		 *
+		 * @param gc The collector name.
+		 * @param start_ns When the pause started (in nanoseconds).
+		 * @param end_ns When the pause ended (in nanoseconds).
+		 */
+		public Pause(String gc, long start_ns, long end_ns) {
+			this.end_ns = end_ns;
+			this.gc = gc;
+			this.start_ns = start_ns;
+		}
+	}
+}
@@ -1,21 +1,25 @@
 package com.github.cpburnz.minecraft_prometheus_exporter;
 
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import javax.annotation.Nullable;
 
-import com.mojang.authlib.GameProfile;
 import net.minecraft.resources.ResourceKey;
 import net.minecraft.server.MinecraftServer;
 import net.minecraft.server.level.ServerLevel;
 import net.minecraft.server.level.ServerPlayer;
 import net.minecraft.world.entity.Entity;
-import net.minecraft.world.entity.item.ItemEntity;
-import net.minecraft.world.entity.player.Player;
+import net.minecraft.world.level.ChunkPos;
 import net.minecraft.world.level.Level;
+import net.minecraftforge.common.MinecraftForge;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -27,7 +31,7 @@ import io.prometheus.client.Histogram;
  * The MinecraftCollector class collects stats from the Minecraft server for
  * export.
  */
-public class MinecraftCollector extends Collector implements Collector.Describable {
+public class MinecraftCollector extends Collector implements Collector.Describable, Closeable {
 
 	/**
 	 * The logger to use.
@@ -35,79 +39,453 @@ public class MinecraftCollector extends Collector implements Collector.Describab
 	private static final Logger LOG = LogManager.getLogger();
 
 	/**
-	 * The histogram buckets to use for ticks.
+	 * The number of nanoseconds in a second.
 	 */
-	private static final double[] TICK_BUCKETS = new double[] {
-		0.01,
-		0.025,
-		0.05,
-		0.10,
-		0.25,
+	private static final double NANOSECONDS_PER_SECOND = 1e9;
+
+	/**
+	 * The quantiles to export from the tick recorders.
+	 */
+	private static final double[] TICK_QUANTILES = new double[] {
 		0.5,
-		1.0,
+		0.9,
+		0.99,
+		0.999,
 	};
 
 	/**
-	 * The server configuration.
+	 * The labels of the quantiles to export from the tick recorders.
 	 */
-	private final ServerConfig config;
+	private static final List<String> TICK_QUANTILE_LABELS = List.of(
+		"0.5",
+		"0.9",
+		"0.99",
+		"0.999"
+	);
 
 	/**
-	 * Histogram metrics for dimension tick timing.
+	 * The chunk lifecycle stats. This is only set when collecting metrics about
+	 * chunks is enabled.
 	 */
-	private final Histogram dim_tick_seconds;
+	@Nullable
+	private final ChunkTracker chunk_tracker;
 
 	/**
-	 * Maps each dimension to its active timer when timing a dimension (world)
-	 * tick.
+	 * The server configuration.
+	 */
+	private final ServerConfig config;
+
+	/**
+	 * Maps each dimension to its slot used when timing a dimension (world) tick.
+	 * The slots are created when the dimension loads so that the tick hooks only
+	 * have to look them up. Resource keys are interned and use identity hash
+	 * codes, so the look up does not hash the dimension name.
 	 *
 	 * <p>Track each dimension separately in order to support multi-threading.
 	 * Minecraft (as of at least 1.20) still does not run server-side dimension
 	 * ticks in multiple threads. However, some mods do for their custom
 	 * dimensions (e.g., Vault Hunters).</p>
 	 */
-	private final ConcurrentHashMap<ResourceKey<Level>, Histogram.Timer> dim_tick_timers;
+	private final ConcurrentHashMap<ResourceKey<Level>, DimensionSlot> dim_slots;
+
+	/**
+	 * Histogram metrics for dimension tick timing.
+	 */
+	private final Histogram dim_tick_seconds;
+
+	/**
+	 * The entity counts per dimension by type. This is only set when collecting
+	 * metrics about entities is enabled.
+	 */
+	@Nullable
+	private final EntityCounter entity_counter;
+
+	/**
+	 * The profiler of the event listeners. This is only set when event listener
+	 * times are enabled.
+	 */
+	@Nullable
+	private final EventListenerProfiler event_listeners;
+
+	/**
+	 * The matcher of the GC pauses against the server ticks. This is only set
+	 * when GC tick correlation is enabled.
+	 */
+	@Nullable
+	private final GcTickCorrelator gc_ticks;
+
+	/**
+	 * The loaded chunk count of each dimension to record in the tick history
+	 * indexed by history dimension index. This is reused on each tick.
+	 */
+	private final int[] history_chunks;
+
+	/**
+	 * The entity count of each dimension to record in the tick history indexed
+	 * by history dimension index. This is reused on each tick.
+	 */
+	private final int[] history_entities;
 
 	/**
 	 * The Minecraft server.
 	 */
 	private final MinecraftServer mc_server;
 
+	/**
+	 * The sampler of the entity and block entity tick times by mod. This is only
+	 * set when mod tick times are enabled.
+	 */
+	@Nullable
+	private final ModTickSampler mod_ticks;
+
+	/**
+	 * The network I/O stats of the player connections. This is only set when
+	 * collecting metrics about the network is enabled.
+	 */
+	@Nullable
+	private final NetworkTracker network_tracker;
+
+	/**
+	 * The player metrics.
+	 */
+	private final PlayerTracker player_tracker;
+
+	/**
+	 * The series cap of each metric. This is only set when the series cap is
+	 * enabled.
+	 */
+	@Nullable
+	private final SeriesLimiter series_limiter;
+
+	/**
+	 * The loaded chunk counts read on the server thread.
+	 */
+	private final SnapshotScheduler.Source snapshot_chunks;
+
+	/**
+	 * The entity counts read on the server thread. This is only set when
+	 * collecting metrics about entities is enabled.
+	 */
+	@Nullable
+	private final SnapshotScheduler.Source snapshot_entities;
+
+	/**
+	 * The player list read on the server thread.
+	 */
+	private final SnapshotScheduler.Source snapshot_players;
+
+	/**
+	 * The scheduler reading the world state on the server thread.
+	 */
+	private final SnapshotScheduler snapshot_scheduler;
+
 	/**
 	 * Histogram metrics for server tick timing.
 	 */
 	private final Histogram server_tick_seconds;
 
 	/**
-	 * The active timer when timing a server tick.
+	 * The native histogram buckets for server tick timing. This is only set when
+	 * native histograms are enabled.
+	 */
+	@Nullable
+	private final NativeHistogram server_tick_native;
+
+	/**
+	 * The recorder for the server tick rates. This is only set when tick rates
+	 * are enabled.
+	 */
+	@Nullable
+	private final TickRateRecorder server_tick_rates;
+
+	/**
+	 * The high-resolution recorder for server tick timing. This is only set when
+	 * tick percentiles are enabled.
+	 */
+	@Nullable
+	private final TickRecorder server_tick_recorder;
+
+	/**
+	 * When the active server tick started (in nanoseconds), or -1 when not
+	 * timing a server tick.
+	 */
+	private long server_tick_start_ns;
+
+	/**
+	 * The exporter overhead stats. This is only set when collecting metrics
+	 * about the exporter is enabled.
+	 */
+	@Nullable
+	private final ExporterStats stats;
+
+	/**
+	 * The sampler of the server task queues and executors. This is only set when
+	 * task queues are enabled.
+	 */
+	@Nullable
+	private final TaskQueueTracker task_queues;
+
+	/**
+	 * The per-tick history. This is only set when the tick history is enabled.
+	 */
+	@Nullable
+	private final TickHistory tick_history;
+
+	/**
+	 * The profiler timing the phases of the dimension ticks, and finding the
+	 * entity and block entity ticks. This is only set when tick phases or mod
+	 * tick times are enabled.
+	 */
+	@Nullable
+	private final TickPhaseProfiler tick_phases;
+
+	/**
+	 * The recorder for the bytes allocated and CPU time per tick. This is only
+	 * set when tick resources are enabled and supported by the JVM.
+	 */
+	@Nullable
+	private final TickResourceRecorder tick_resources;
+
+	/**
+	 * The lag spike watchdog. This is only set when lag spike sampling is
+	 * enabled.
 	 */
 	@Nullable
-	private Histogram.Timer server_tick_timer;
+	private final TickWatchdog tick_watchdog;
+
+	/**
+	 * The time-sliced world census. This is only set when the world census is
+	 * enabled.
+	 */
+	@Nullable
+	private final WorldCensus world_census;
 
 	/**
 	 * Constructs the instance.
 	 *
 	 * @param config The mod configuration.
 	 * @param mc_server The Minecraft server.
+	 * @param stats The exporter overhead stats to record the collections in.
 	 */
-	public MinecraftCollector(ServerConfig config, MinecraftServer mc_server) {
+	public MinecraftCollector(
+		ServerConfig config, MinecraftServer mc_server, @Nullable ExporterStats stats
+	) {
 		this.config = config;
-		this.dim_tick_timers = new ConcurrentHashMap<>(3);
+		this.stats = stats;
+		this.dim_slots = new ConcurrentHashMap<>(3);
+		this.history_chunks = new int[TickHistory.MAX_DIMENSIONS];
+		this.history_entities = new int[TickHistory.MAX_DIMENSIONS];
 		this.mc_server = mc_server;
+		this.player_tracker = new PlayerTracker(
+			config.collector_mc_players, config.collector_mc_players_max
+		);
+		this.server_tick_start_ns = -1;
+
+		if (config.collector_mc_series_max > 0) {
+			this.series_limiter = new SeriesLimiter(config.collector_mc_series_max);
+		} else {
+			this.series_limiter = null;
+		}
+
+		if (config.collector_mc_tick_native_histograms) {
+			this.server_tick_native = new NativeHistogram();
+		} else {
+			this.server_tick_native = null;
+		}
+
+		if (config.collector_mc_mod_ticks) {
+			this.mod_ticks = new ModTickSampler(
+				config.collector_mc_mod_ticks_interval, config.collector_mc_mod_ticks_top
+			);
+		} else {
+			this.mod_ticks = null;
+		}
+
+		if (config.collector_mc_tick_phases || this.mod_ticks != null) {
+			this.tick_phases = new TickPhaseProfiler(
+				config.collector_mc_tick_phases, this.mod_ticks
+			);
+		} else {
+			this.tick_phases = null;
+		}
+
+		if (config.collector_mc_tick_rates) {
+			this.server_tick_rates = new TickRateRecorder();
+		} else {
+			this.server_tick_rates = null;
+		}
+
+		if (config.collector_mc_tick_resources && TickResourceRecorder.isSupported()) {
+			this.tick_resources = new TickResourceRecorder(
+				config.collector_mc_tick_buckets
+			);
+		} else {
+			if (config.collector_mc_tick_resources) {
+				LOG.warn("Tick resources are not supported by the JVM.");
+			}
+			this.tick_resources = null;
+		}
+
+		if (config.collector_mc_tick_spikes) {
+			this.tick_watchdog = new TickWatchdog(
+				mc_server.getRunningThread(),
+				mc_server.getServerDirectory().resolve("logs").resolve("tick-spikes"),
+				config.collector_mc_tick_spike_threshold_ms,
+				config.collector_mc_tick_spike_sample_rate,
+				config.collector_mc_tick_spike_frames,
+				config.collector_mc_tick_spike_files
+			);
+		} else {
+			this.tick_watchdog = null;
+		}
+
+		if (config.collector_mc_tick_percentiles) {
+			this.server_tick_recorder = new TickRecorder(
+				config.collector_mc_tick_percentiles_window
+			);
+		} else {
+			this.server_tick_recorder = null;
+		}
+
+		if (config.collector_mc_tick_history) {
+			this.tick_history = newTickHistory(
+				mc_server.getServerDirectory()
+					.resolve(PrometheusExporterMod.MOD_ID)
+					.resolve("tick_history.bin"),
+				config.collector_mc_tick_history_hours
+			);
+		} else {
+			this.tick_history = null;
+		}
+
+		if (config.collector_mc_census) {
+			this.world_census = new WorldCensus(
+				config.collector_mc_census_budget_us, config.collector_mc_census_interval_s
+			);
+		} else {
+			this.world_census = null;
+		}
+
+		if (config.collector_mc_gc_ticks) {
+			this.gc_ticks = new GcTickCorrelator(config.collector_mc_gc_ticks_slow_ms);
+		} else {
+			this.gc_ticks = null;
+		}
+
+		if (config.collector_mc_task_queues) {
+			this.task_queues = new TaskQueueTracker();
+		} else {
+			this.task_queues = null;
+		}
+
+		if (config.collector_mc_chunks) {
+			this.chunk_tracker = new ChunkTracker();
+		} else {
+			this.chunk_tracker = null;
+		}
+
+		// Setup network stats.
+		// - NOTICE: Players may already be connected when the collector is created
+		//   (e.g., opening a single player world to LAN).
+		if (config.collector_mc_network) {
+			this.network_tracker = new NetworkTracker(config.collector_mc_network_top);
+			for (ServerPlayer player : mc_server.getPlayerList().getPlayers()) {
+				this.network_tracker.addPlayer(player);
+			}
+		} else {
+			this.network_tracker = null;
+		}
+
+		// Setup entity counts.
+		// - NOTICE: The collector is created on the server thread after the
+		//   dimensions have loaded, so the entities already loaded must be counted
+		//   before join and leave events are recorded.
+		if (config.collector_mc_entities) {
+			this.entity_counter = new EntityCounter(config.collector_mc_entities_census);
+			this.entity_counter.seed(mc_server.getAllLevels());
+		} else {
+			this.entity_counter = null;
+		}
+
+		// Setup event listener times.
+		// - NOTICE: Only the listeners registered by now are timed.
+		if (config.collector_mc_event_listeners) {
+			this.event_listeners = new EventListenerProfiler(
+				config.collector_mc_event_listeners_interval,
+				config.collector_mc_event_listeners_max_samples,
+				config.collector_mc_event_listeners_top
+			);
+			this.event_listeners.install(MinecraftForge.EVENT_BUS);
+		} else {
+			this.event_listeners = null;
+		}
 
 		// Setup server metrics.
 		this.server_tick_seconds = Histogram.build()
-			.buckets(TICK_BUCKETS)
+			.buckets(config.collector_mc_tick_buckets)
 			.name("mc_server_tick_seconds")
 			.help("Stats on server tick times.")
 			.create();
 
 		this.dim_tick_seconds = Histogram.build()
-			.buckets(TICK_BUCKETS)
+			.buckets(config.collector_mc_tick_buckets)
 			.name("mc_dimension_tick_seconds")
 			.labelNames("id", "name")
 			.help("Stats on dimension tick times.")
 			.create();
+
+		// Setup dimension slots.
+		for (ServerLevel world : mc_server.getAllLevels()) {
+			this.onDimensionLoad(world);
+		}
+
+		// Setup the snapshots of the world state.
+		// - NOTICE: The sources are added last since their first reads may be
+		//   handed to the server as soon as they are scheduled.
+		this.snapshot_scheduler = new SnapshotScheduler(
+			mc_server, config.collector_mc_snapshot_budget_us
+		);
+		this.snapshot_players = this.snapshot_scheduler.add(
+			"players",
+			config.collector_mc_snapshot_players_s,
+			metrics -> this.player_tracker.collect(
+				metrics, this.mc_server.getPlayerList().getPlayers()
+			)
+		);
+		if (config.collector_mc_entities) {
+			this.snapshot_entities = this.snapshot_scheduler.add(
+				"entities",
+				config.collector_mc_snapshot_entities_s,
+				metrics -> metrics.add(this.collectEntitiesTotal())
+			);
+		} else {
+			this.snapshot_entities = null;
+		}
+		this.snapshot_chunks = this.snapshot_scheduler.add(
+			"chunks",
+			config.collector_mc_snapshot_chunks_s,
+			metrics -> metrics.add(this.collectDimensionChunksLoaded())
+		);
+	}
+
+	/**
+	 * Stop the background threads of the collector.
+	 */
+	@Override
+	public void close() {
+		this.snapshot_scheduler.close();
+		if (this.event_listeners != null) {
+			this.event_listeners.uninstall();
+		}
+		if (this.gc_ticks != null) {
+			this.gc_ticks.close();
+		}
+		if (this.tick_history != null) {
+			this.tick_history.close();
+		}
+		if (this.tick_watchdog != null) {
+			this.tick_watchdog.close();
+		}
 	}
 
 	/**
@@ -119,35 +497,83 @@ public class MinecraftCollector extends Collector implements Collector.Describab
 	public List<MetricFamilySamples> collect() {
 		try {
 			// Collect metrics.
-			MetricFamilySamples player_list = this.collectPlayerList();
-			List<MetricFamilySamples> server_ticks = this.server_tick_seconds.collect();
-			MetricFamilySamples dim_chunks_loaded = this.collectDimensionChunksLoaded();
-			List<MetricFamilySamples> dim_ticks = this.dim_tick_seconds.collect();
-
-			MetricFamilySamples entities = null;
-			int entities_init = 0;
-			if (this.config.collector_mc_entities) {
-				entities = collectEntitiesTotal();
-				entities_init = 1;
+			ArrayList<MetricFamilySamples> metrics = new ArrayList<>();
+			long start_ns = System.nanoTime();
+			this.snapshot_players.collect(metrics);
+			start_ns = this.recordCollect("players", start_ns);
+			if (this.network_tracker != null) {
+				this.network_tracker.collect(metrics);
+				start_ns = this.recordCollect("network", start_ns);
+			}
+			if (this.snapshot_entities != null) {
+				this.snapshot_entities.collect(metrics);
+				start_ns = this.recordCollect("entities", start_ns);
+			}
+			metrics.add(this.collectServerTickSeconds());
+			start_ns = this.recordCollect("server_tick", start_ns);
+			this.snapshot_chunks.collect(metrics);
+			start_ns = this.recordCollect("chunks_loaded", start_ns);
+			if (this.chunk_tracker != null) {
+				this.chunk_tracker.collect(metrics);
+				start_ns = this.recordCollect("chunks", start_ns);
+			}
+			metrics.add(this.collectDimensionTickSeconds());
+			start_ns = this.recordCollect("dimension_tick", start_ns);
+			if (this.tick_phases != null) {
+				this.tick_phases.collect(metrics);
+				start_ns = this.recordCollect("tick_phases", start_ns);
+			}
+			if (this.mod_ticks != null) {
+				this.mod_ticks.collect(metrics);
+				start_ns = this.recordCollect("mod_ticks", start_ns);
 			}
+			if (this.event_listeners != null) {
+				this.event_listeners.collect(metrics);
+				start_ns = this.recordCollect("event_listeners", start_ns);
+			}
+			if (this.gc_ticks != null) {
+				this.gc_ticks.collect(metrics);
+				start_ns = this.recordCollect("gc_ticks", start_ns);
+			}
+			if (this.server_tick_recorder != null) {
+				this.collectTickPercentiles(metrics);
+				start_ns = this.recordCollect("tick_percentiles", start_ns);
+			}
+			if (this.server_tick_rates != null) {
+				this.collectTickRates(metrics);
+				start_ns = this.recordCollect("tick_rates", start_ns);
+			}
+			if (this.tick_resources != null) {
+				this.tick_resources.collect(metrics);
+				start_ns = this.recordCollect("tick_resources", start_ns);
+			}
+			if (this.tick_watchdog != null) {
+				this.tick_watchdog.collect(metrics);
+				start_ns = this.recordCollect("tick_spikes", start_ns);
+			}
+			if (this.world_census != null) {
+				this.world_census.collect(metrics);
+				start_ns = this.recordCollect("census", start_ns);
+			}
+			if (this.task_queues != null) {
+				this.task_queues.collect(metrics);
+				start_ns = this.recordCollect("task_queues", start_ns);
+			}
+			this.snapshot_scheduler.collect(metrics);
+			start_ns = this.recordCollect("snapshots", start_ns);
 
-			// Aggregate metrics.
-			ArrayList<MetricFamilySamples> metrics = new ArrayList<>(
-				1 /* player_list */
-				+ entities_init
-				+ server_ticks.size()
-				+ 1 /* dim_chunks_loaded */
-				+ dim_ticks.size()
-			);
-			metrics.add(player_list);
-			if (entities != null) {
-				metrics.add(entities);
+			// Cap the series of each metric.
+			List<MetricFamilySamples> result = metrics;
+			if (this.series_limiter != null) {
+				result = this.series_limiter.limit(metrics);
+				this.series_limiter.collect(result);
+				this.recordCollect("series_limiter", start_ns);
 			}
-			metrics.addAll(server_ticks);
-			metrics.add(dim_chunks_loaded);
-			metrics.addAll(dim_ticks);
 
-			return metrics;
+			if (this.stats != null) {
+				this.stats.recordSeries(result);
+			}
+			return result;
 		} catch (Exception e) {
 			LOG.error("Failed to collect metrics.", e);
 			return Collections.emptyList();
@@ -162,80 +588,154 @@ public class MinecraftCollector extends Collector implements Collector.Describab
 	private GaugeMetricFamily collectDimensionChunksLoaded() {
 		GaugeMetricFamily metric = newDimensionChunksLoadedMetric();
 		for (ServerLevel world : this.mc_server.getAllLevels()) {
-			ResourceKey<Level> dim = world.dimension();
-			String id_str = Integer.toString(getDimensionId(dim));
-			String name = dim.location().getPath();
+			DimensionSlot slot = this.getDimensionSlot(world.dimension());
 			int loaded = world.getChunkSource().getLoadedChunksCount();
-			metric.addMetric(List.of(id_str, name), loaded);
+			metric.addMetric(slot.labels, loaded);
 		}
 		return metric;
 	}
 
+	/**
+	 * Get the dimension tick histogram, with the native buckets of each
+	 * dimension when native histograms are enabled.
+	 *
+	 * @return The dimension tick metric.
+	 */
+	private MetricFamilySamples collectDimensionTickSeconds() {
+		if (this.server_tick_native == null) {
+			return this.dim_tick_seconds.collect().get(0);
+		}
+
+		// NOTICE: The native buckets must be read before the classic histogram.
+		// The ticks are observed by the classic histogram first, so this way the
+		// native buckets never count more ticks than the classic count, which
+		// Prometheus would reject.
+		HashMap<List<String>, NativeHistogram.Snapshot> natives = new HashMap<>();
+		for (DimensionSlot slot : this.dim_slots.values()) {
+			if (slot.tick_native != null) {
+				natives.put(slot.labels, slot.tick_native.snapshot());
+			}
+		}
+		MetricFamilySamples classic = this.dim_tick_seconds.collect().get(0);
+		return new NativeHistogram.Samples(classic, natives);
+	}
+
 	/**
 	 * Get the entities per dimension.
 	 *
+	 * <p>The entities are counted as they join and leave each dimension, so
+	 * this only has to walk the entity types of each dimension rather than every
+	 * entity.</p>
+	 *
 	 * @return The entities total metric.
 	 */
 	private GaugeMetricFamily collectEntitiesTotal() {
-		// Aggregate stats.
-		HashMap<EntityKey, Integer> entity_totals = new HashMap<>();
+		GaugeMetricFamily metric = this.newEntitiesTotalMetric();
 		for (ServerLevel world : this.mc_server.getAllLevels()) {
-			// Get dimension info.
-			ResourceKey<Level> dim_resource = world.dimension();
-			int dim_id = getDimensionId(dim_resource);
-			String dim = dim_resource.location().getPath();
-
-			// Get entity info.
-			for (Entity entity : world.getAllEntities()) {
-				if (!(entity instanceof Player)) {
-					// Get entity type.
-					String entity_type;
-					if (entity instanceof ItemEntity) {
-						// Merge items. Do not count items individually by type.
-						entity_type = "Item";
-					} else {
-						entity_type = entity.getName().getString();
-					}
-
-					EntityKey entity_key = new EntityKey(dim, dim_id, entity_type);
-					entity_totals.merge(entity_key, 1, Integer::sum);
-				}
-			}
+			this.entity_counter.addMetrics(metric, world.dimension());
 		}
+		return metric;
+	}
 
-		// Record metrics.
-		GaugeMetricFamily metric = newEntitiesTotalMetric();
-		for (var entry : entity_totals.entrySet()) {
-			EntityKey entity_key = entry.getKey();
-			double total = entry.getValue();
-			String dim_id_str = Integer.toString(entity_key.dim_id);
-			metric.addMetric(
-				List.of(entity_key.dim, dim_id_str, entity_key.type), total
-			);
+	/**
+	 * Get the server tick histogram, with its native buckets when native
+	 * histograms are enabled.
+	 *
+	 * @return The server tick metric.
+	 */
+	private MetricFamilySamples collectServerTickSeconds() {
+		if (this.server_tick_native == null) {
+			return this.server_tick_seconds.collect().get(0);
 		}
-		return metric;
+
+		// NOTICE: The native buckets must be read before the classic histogram.
+		// See collectDimensionTickSeconds().
+		NativeHistogram.Snapshot snapshot = this.server_tick_native.snapshot();
+		MetricFamilySamples classic = this.server_tick_seconds.collect().get(0);
+		return new NativeHistogram.Samples(classic, Map.of(List.of(), snapshot));
 	}
 
 	/**
-	 * Get the active players.
+	 * Get the server and dimension tick percentiles over the recorder window.
 	 *
-	 * @return The player list metric.
+	 * @param metrics The metrics to add the tick percentile metrics to.
 	 */
-	private GaugeMetricFamily collectPlayerList() {
-		GaugeMetricFamily metric = newPlayerListMetric();
-		for (ServerPlayer player : this.mc_server.getPlayerList().getPlayers()) {
-			// Get player profile.
-			GameProfile profile = player.getGameProfile();
+	private void collectTickPercentiles(List<MetricFamilySamples> metrics) {
+		// Record server metrics.
+		GaugeMetricFamily server_quantiles = newServerTickPercentileMetric();
+		GaugeMetricFamily server_max = newServerTickMaxMetric();
+		TickRecorder.Snapshot snapshot = this.server_tick_recorder.snapshot();
+		for (int i = 0; i < TICK_QUANTILES.length; i++) {
+			server_quantiles.addMetric(
+				List.of(TICK_QUANTILE_LABELS.get(i)),
+				snapshot.getQuantileSeconds(TICK_QUANTILES[i])
+			);
+		}
+		server_max.addMetric(List.of(), snapshot.getMaxSeconds());
+
+		// Record dimension metrics.
+		GaugeMetricFamily dim_quantiles = newDimensionTickPercentileMetric();
+		GaugeMetricFamily dim_max = newDimensionTickMaxMetric();
+		for (DimensionSlot slot : this.dim_slots.values()) {
+			snapshot = slot.tick_recorder.snapshot();
+			String id_str = slot.labels.get(0);
+			for (int i = 0; i < TICK_QUANTILES.length; i++) {
+				dim_quantiles.addMetric(
+					List.of(id_str, slot.name, TICK_QUANTILE_LABELS.get(i)),
+					snapshot.getQuantileSeconds(TICK_QUANTILES[i])
+				);
+			}
+			dim_max.addMetric(slot.labels, snapshot.getMaxSeconds());
+		}
 
-			// Get player info.
-			// - NOTICE: Both "id" and "name" are required to be non-null, unlike in
-			//   Minecraft 1.19 and earlier.
-			String id_str = profile.getId().toString();
-			String name = profile.getName();
+		metrics.add(server_quantiles);
+		metrics.add(server_max);
+		metrics.add(dim_quantiles);
+		metrics.add(dim_max);
+	}
+
+	/**
+	 * Get the server and dimension ticks per second and milliseconds per tick
+	 * over each window.
+	 *
+	 * @param metrics The metrics to add the tick rate metrics to.
+	 */
+	private void collectTickRates(List<MetricFamilySamples> metrics) {
+		// Record server metrics.
+		GaugeMetricFamily server_tps = newServerTpsMetric();
+		GaugeMetricFamily server_mean = newServerMsptMeanMetric();
+		GaugeMetricFamily server_max = newServerMsptMaxMetric();
+		TickRateRecorder.Rates[] rates = this.server_tick_rates.snapshot();
+		for (int i = 0; i < rates.length; i++) {
+			List<String> labels = List.of(TickRateRecorder.WINDOW_LABELS[i]);
+			server_tps.addMetric(labels, rates[i].tps());
+			server_mean.addMetric(labels, rates[i].mean_mspt());
+			server_max.addMetric(labels, rates[i].max_mspt());
+		}
 
-			metric.addMetric(List.of(id_str, name), 1);
+		// Record dimension metrics.
+		GaugeMetricFamily dim_tps = newDimensionTpsMetric();
+		GaugeMetricFamily dim_mean = newDimensionMsptMeanMetric();
+		GaugeMetricFamily dim_max = newDimensionMsptMaxMetric();
+		for (DimensionSlot slot : this.dim_slots.values()) {
+			rates = slot.tick_rates.snapshot();
+			String id_str = slot.labels.get(0);
+			for (int i = 0; i < rates.length; i++) {
+				List<String> labels = List.of(
+					id_str, slot.name, TickRateRecorder.WINDOW_LABELS[i]
+				);
+				dim_tps.addMetric(labels, rates[i].tps());
+				dim_mean.addMetric(labels, rates[i].mean_mspt());
+				dim_max.addMetric(labels, rates[i].max_mspt());
+			}
 		}
-		return metric;
+
+		metrics.add(server_tps);
+		metrics.add(server_mean);
+		metrics.add(server_max);
+		metrics.add(dim_tps);
+		metrics.add(dim_mean);
+		metrics.add(dim_max);
 	}
 
 	/**
@@ -247,13 +747,61 @@ public class MinecraftCollector extends Collector implements Collector.Describab
 	public List<MetricFamilySamples> describe() {
 		// Aggregate metric descriptions.
 		ArrayList<MetricFamilySamples> descs = new ArrayList<>();
-		descs.add(newPlayerListMetric());
+		this.player_tracker.describe(descs);
+		if (this.network_tracker != null) {
+			this.network_tracker.describe(descs);
+		}
 		if (this.config.collector_mc_entities) {
-			descs.add(newEntitiesTotalMetric());
+			descs.add(this.newEntitiesTotalMetric());
 		}
 		descs.addAll(this.server_tick_seconds.describe());
 		descs.add(newDimensionChunksLoadedMetric());
+		if (this.chunk_tracker != null) {
+			this.chunk_tracker.describe(descs);
+		}
 		descs.addAll(this.dim_tick_seconds.describe());
+		if (this.tick_phases != null) {
+			this.tick_phases.describe(descs);
+		}
+		if (this.mod_ticks != null) {
+			this.mod_ticks.describe(descs);
+		}
+		if (this.event_listeners != null) {
+			this.event_listeners.describe(descs);
+		}
+		if (this.gc_ticks != null) {
+			this.gc_ticks.describe(descs);
+		}
+		if (this.server_tick_recorder != null) {
+			descs.add(newServerTickPercentileMetric());
+			descs.add(newServerTickMaxMetric());
+			descs.add(newDimensionTickPercentileMetric());
+			descs.add(newDimensionTickMaxMetric());
+		}
+		if (this.server_tick_rates != null) {
+			descs.add(newServerTpsMetric());
+			descs.add(newServerMsptMeanMetric());
+			descs.add(newServerMsptMaxMetric());
+			descs.add(newDimensionTpsMetric());
+			descs.add(newDimensionMsptMeanMetric());
+			descs.add(newDimensionMsptMaxMetric());
+		}
+		if (this.tick_resources != null) {
+			this.tick_resources.describe(descs);
+		}
+		if (this.tick_watchdog != null) {
+			TickWatchdog.describe(descs);
+		}
+		if (this.world_census != null) {
+			WorldCensus.describe(descs);
+		}
+		if (this.task_queues != null) {
+			this.task_queues.describe(descs);
+		}
+		this.snapshot_scheduler.describe(descs);
+		if (this.series_limiter != null) {
+			SeriesLimiter.describe(descs);
+		}
 		return descs;
 	}
 
@@ -268,7 +816,7 @@ public class MinecraftCollector extends Collector implements Collector.Describab
 	 *
 	 * @param dim The dimension.
 	 */
-	private static int getDimensionId(ResourceKey<Level> dim) {
+	static int getDimensionId(ResourceKey<Level> dim) {
 		if (dim.equals(Level.OVERWORLD)) {
 			return 0;
 		} else if (dim.equals(Level.END)) {
@@ -281,6 +829,44 @@ public class MinecraftCollector extends Collector implements Collector.Describab
 		}
 	}
 
+	/**
+	 * Get the slot for the dimension, creating it if the dimension was not seen
+	 * loading.
+	 *
+	 * @param dim The dimension.
+	 * @return The dimension slot.
+	 */
+	private DimensionSlot getDimensionSlot(ResourceKey<Level> dim) {
+		DimensionSlot slot = this.dim_slots.get(dim);
+		if (slot == null) {
+			slot = this.dim_slots.computeIfAbsent(dim, k -> new DimensionSlot(
+				k,
+				this.dim_tick_seconds,
+				this.server_tick_native != null ? new NativeHistogram() : null,
+				this.tick_phases,
+				this.server_tick_rates != null ? new TickRateRecorder() : null,
+				this.server_tick_recorder != null
+					? new TickRecorder(this.config.collector_mc_tick_percentiles_window)
+					: null,
+				this.tick_resources,
+				this.tick_history != null
+					? this.tick_history.addDimension(k.location().getPath())
+					: -1
+			));
+		}
+		return slot;
+	}
+
+	/**
+	 * Get the per-tick history.
+	 *
+	 * @return The tick history, or {@code null} when disabled.
+	 */
+	@Nullable
+	public TickHistory getTickHistory() {
+		return this.tick_history;
+	}
+
 	/**
 	 * Create a new metric for the dimension chunks loaded.
 	 *
@@ -294,29 +880,327 @@ public class MinecraftCollector extends Collector implements Collector.Describab
 		);
 	}
 
+	/**
+	 * Create a new metric for the longest dimension milliseconds per tick.
+	 *
+	 * @return The dimension MSPT max metric.
+	 */
+	private static GaugeMetricFamily newDimensionMsptMaxMetric() {
+		return new GaugeMetricFamily(
+			"mc_dimension_mspt_max",
+			"The longest dimension tick time (in milliseconds) over the window.",
+			List.of("id", "name", "window")
+		);
+	}
+
+	/**
+	 * Create a new metric for the mean dimension milliseconds per tick.
+	 *
+	 * @return The dimension MSPT mean metric.
+	 */
+	private static GaugeMetricFamily newDimensionMsptMeanMetric() {
+		return new GaugeMetricFamily(
+			"mc_dimension_mspt_mean",
+			"The mean dimension tick time (in milliseconds) over the window.",
+			List.of("id", "name", "window")
+		);
+	}
+
+	/**
+	 * Create a new metric for the longest dimension tick.
+	 *
+	 * @return The dimension tick max metric.
+	 */
+	private static GaugeMetricFamily newDimensionTickMaxMetric() {
+		return new GaugeMetricFamily(
+			"mc_dimension_tick_max_seconds",
+			"The longest dimension tick time within the window.",
+			List.of("id", "name")
+		);
+	}
+
+	/**
+	 * Create a new metric for the dimension tick percentiles.
+	 *
+	 * @return The dimension tick percentile metric.
+	 */
+	private static GaugeMetricFamily newDimensionTickPercentileMetric() {
+		return new GaugeMetricFamily(
+			"mc_dimension_tick_percentile_seconds",
+			"The dimension tick time percentiles within the window.",
+			List.of("id", "name", "quantile")
+		);
+	}
+
+	/**
+	 * Create a new metric for the dimension ticks per second.
+	 *
+	 * @return The dimension TPS metric.
+	 */
+	private static GaugeMetricFamily newDimensionTpsMetric() {
+		return new GaugeMetricFamily(
+			"mc_dimension_tps",
+			"The dimension ticks per second over the window.",
+			List.of("id", "name", "window")
+		);
+	}
+
 	/**
 	 * Create a new metric for the total entities.
 	 *
 	 * @return The entities total metric.
 	 */
-	private static GaugeMetricFamily newEntitiesTotalMetric() {
+	private GaugeMetricFamily newEntitiesTotalMetric() {
 		return new GaugeMetricFamily(
 			"mc_entities_total",
 			"The number of entities in each dimension by type.",
-			List.of("dim", "dim_id", "type")
+			EntityCounter.getLabelNames(this.config.collector_mc_entities_census)
 		);
 	}
 
 	/**
-	 * Create a new metric for the player list.
+	 * Create a new metric for the longest server milliseconds per tick.
 	 *
-	 * @return The player list metric.
+	 * @return The server MSPT max metric.
 	 */
-	private static GaugeMetricFamily newPlayerListMetric() {
+	private static GaugeMetricFamily newServerMsptMaxMetric() {
 		return new GaugeMetricFamily(
-			"mc_player_list",
-			"The players connected to the server.",
-			List.of("id", "name")
+			"mc_server_mspt_max",
+			"The longest server tick time (in milliseconds) over the window.",
+			List.of("window")
+		);
+	}
+
+	/**
+	 * Create a new metric for the mean server milliseconds per tick.
+	 *
+	 * @return The server MSPT mean metric.
+	 */
+	private static GaugeMetricFamily newServerMsptMeanMetric() {
+		return new GaugeMetricFamily(
+			"mc_server_mspt_mean",
+			"The mean server tick time (in milliseconds) over the window.",
+			List.of("window")
+		);
+	}
+
+	/**
+	 * Create a new metric for the longest server tick.
+	 *
+	 * @return The server tick max metric.
+	 */
+	private static GaugeMetricFamily newServerTickMaxMetric() {
+		return new GaugeMetricFamily(
+			"mc_server_tick_max_seconds",
+			"The longest server tick time within the window.",
+			List.of()
+		);
+	}
+
+	/**
+	 * Create a new metric for the server tick percentiles.
+	 *
+	 * @return The server tick percentile metric.
+	 */
+	private static GaugeMetricFamily newServerTickPercentileMetric() {
+		return new GaugeMetricFamily(
+			"mc_server_tick_percentile_seconds",
+			"The server tick time percentiles within the window.",
+			List.of("quantile")
+		);
+	}
+
+	/**
+	 * Create a new metric for the server ticks per second.
+	 *
+	 * @return The server TPS metric.
+	 */
+	private static GaugeMetricFamily newServerTpsMetric() {
+		return new GaugeMetricFamily(
+			"mc_server_tps",
+			"The server ticks per second over the window.",
+			List.of("window")
+		);
+	}
+
+	/**
+	 * Open the tick history.
+	 *
+	 * @param path The history file.
+	 * @param hours How many hours of ticks to keep.
+	 * @return The tick history, or {@code null} when it cannot be opened.
+	 */
+	@Nullable
+	private static TickHistory newTickHistory(Path path, int hours) {
+		try {
+			return new TickHistory(path, hours);
+		} catch (IOException e) {
+			LOG.error("Failed to open the tick history {}.", path, e);
+			return null;
+		}
+	}
+
+	/**
+	 * Record when a chunk reaches FULL status.
+	 *
+	 * @param world The dimension.
+	 * @param pos The chunk position.
+	 * @param is_new Whether the chunk was freshly generated.
+	 */
+	public void onChunkLoad(ServerLevel world, ChunkPos pos, boolean is_new) {
+		if (this.chunk_tracker != null) {
+			this.chunk_tracker.onChunkLoad(world, pos, is_new);
+		}
+	}
+
+	/**
+	 * Record when a chunk is read from disk.
+	 *
+	 * @param world The dimension.
+	 * @param pos The chunk position.
+	 */
+	public void onChunkRead(ServerLevel world, ChunkPos pos) {
+		if (this.chunk_tracker != null) {
+			this.chunk_tracker.onChunkRead(world, pos);
+		}
+	}
+
+	/**
+	 * Record when a chunk is saved to disk.
+	 *
+	 * @param world The dimension.
+	 */
+	public void onChunkSave(ServerLevel world) {
+		if (this.chunk_tracker != null) {
+			this.chunk_tracker.onChunkSave(world);
+		}
+	}
+
+	/**
+	 * Record when a chunk is unloaded.
+	 *
+	 * @param world The dimension.
+	 */
+	public void onChunkUnload(ServerLevel world) {
+		if (this.chunk_tracker != null) {
+			this.chunk_tracker.onChunkUnload(world);
+		}
+	}
+
+	/**
+	 * Record when a dimension (world) is loaded.
+	 *
+	 * @param world The dimension.
+	 */
+	public void onDimensionLoad(ServerLevel world) {
+		this.getDimensionSlot(world.dimension());
+	}
+
+	/**
+	 * Record when a dimension (world) is unloaded.
+	 *
+	 * @param world The dimension.
+	 */
+	public void onDimensionUnload(ServerLevel world) {
+		this.dim_slots.remove(world.dimension());
+		if (this.chunk_tracker != null) {
+			this.chunk_tracker.removeDimension(world.dimension());
+		}
+		if (this.entity_counter != null) {
+			this.entity_counter.removeDimension(world.dimension());
+		}
+	}
+
+	/**
+	 * Record when an entity joins a dimension.
+	 *
+	 * @param world The dimension.
+	 * @param entity The entity.
+	 */
+	public void onEntityJoin(ServerLevel world, Entity entity) {
+		if (this.entity_counter != null) {
+			this.entity_counter.addEntity(world, entity);
+		}
+	}
+
+	/**
+	 * Record when an entity leaves a dimension.
+	 *
+	 * @param world The dimension.
+	 * @param entity The entity.
+	 */
+	public void onEntityLeave(ServerLevel world, Entity entity) {
+		if (this.entity_counter != null) {
+			this.entity_counter.removeEntity(world, entity);
+		}
+	}
+
+	/**
+	 * Record when a player logs in.
+	 *
+	 * @param player The player.
+	 */
+	public void onPlayerLogin(ServerPlayer player) {
+		if (this.network_tracker != null) {
+			this.network_tracker.addPlayer(player);
+		}
+	}
+
+	/**
+	 * Record when a player logs out.
+	 *
+	 * @param player The player.
+	 */
+	public void onPlayerLogout(ServerPlayer player) {
+		if (this.network_tracker != null) {
+			this.network_tracker.removePlayer(player);
+		}
+		this.player_tracker.removePlayer(player);
+	}
+
+	/**
+	 * Record the time spent collecting a collector.
+	 *
+	 * @param collector The collector name.
+	 * @param start_ns When the collector started (in nanoseconds).
+	 * @return When the collector stopped (in nanoseconds), which is when the next
+	 * collector started.
+	 */
+	private long recordCollect(String collector, long start_ns) {
+		if (this.stats == null) {
+			return start_ns;
+		}
+		long now_ns = System.nanoTime();
+		this.stats.recordCollect(collector, now_ns - start_ns);
+		return now_ns;
+	}
+
+	/**
+	 * Record the server tick in the tick history.
+	 *
+	 * @param duration_ns The server tick duration (in nanoseconds).
+	 */
+	private void recordTickHistory(long duration_ns) {
+		int[] chunks = this.history_chunks;
+		int[] entities = this.history_entities;
+		Arrays.fill(chunks, 0);
+		Arrays.fill(entities, -1);
+		for (ServerLevel world : this.mc_server.getAllLevels()) {
+			DimensionSlot slot = this.dim_slots.get(world.dimension());
+			if (slot != null && slot.history_index >= 0) {
+				chunks[slot.history_index] = world.getChunkSource().getLoadedChunksCount();
+				if (this.entity_counter != null) {
+					entities[slot.history_index] = this.entity_counter.getTotal(world.dimension());
+				}
+			}
+		}
+
+		this.tick_history.record(
+			System.currentTimeMillis(),
+			duration_ns,
+			this.mc_server.getPlayerCount(),
+			entities,
+			chunks
 		);
 	}
 
@@ -326,45 +1210,62 @@ public class MinecraftCollector extends Collector implements Collector.Describab
 	 * @param dim The dimension.
 	 */
 	public void startDimensionTick(ResourceKey<Level> dim) {
-		// Get dimension name.
-		String name = dim.location().getPath();
+		long now_ns = System.nanoTime();
+		DimensionSlot slot = this.getDimensionSlot(dim);
 
 		// Check for forgotten timer.
-		Histogram.Timer timer = this.dim_tick_timers.get(dim);
-		if (timer != null) {
+		if (slot.tick_start_ns != -1) {
 			switch (this.config.collector_mc_dimension_tick_errors) {
 				case IGNORE -> {}  // Ignore error.
 				case LOG -> LOG.debug(
 					"Dimension {} tick started before stopping previous tick.",
-					name
+					slot.name
 				);
 				case STRICT -> throw new IllegalStateException(
-					"Dimension " + name + " tick started before stopping previous tick."
+					"Dimension " + slot.name + " tick started before stopping previous tick."
 				);
 			}
 
 			// Stop forgotten timer.
-			timer.close();
-			timer = null;
+			double seconds = (now_ns - slot.tick_start_ns) / NANOSECONDS_PER_SECOND;
+			slot.tick_seconds.observe(seconds);
+			if (slot.tick_native != null) {
+				slot.tick_native.observe(seconds);
+			}
 		}
 
 		// Start timer for tick.
-		String id_str = Integer.toString(getDimensionId(dim));
-		timer = this.dim_tick_seconds.labels(id_str, name).startTimer();
-		this.dim_tick_timers.put(dim, timer);
+		if (slot.tick_resources != null) {
+			slot.tick_resources.start();
+		}
+		if (slot.tick_phases != null) {
+			this.tick_phases.start(slot.tick_phases);
+		}
+		slot.tick_start_ns = now_ns;
 	}
 
 	/**
 	 * Record when a server tick begins.
 	 */
 	public void startServerTick() {
-		if (this.server_tick_timer != null) {
+		if (this.server_tick_start_ns != -1) {
 			throw new IllegalStateException(
 				"Server tick started before stopping previous tick."
 			);
 		}
 
-		this.server_tick_timer = this.server_tick_seconds.startTimer();
+		if (this.tick_resources != null) {
+			this.tick_resources.getServerSlot().start();
+		}
+		if (this.tick_phases != null) {
+			this.tick_phases.install(this.mc_server);
+		}
+
+		long now_ns = System.nanoTime();
+		this.server_tick_start_ns = now_ns;
+		if (this.tick_watchdog != null) {
+			this.tick_watchdog.arm(now_ns);
+		}
 	}
 
 	/**
@@ -373,20 +1274,20 @@ public class MinecraftCollector extends Collector implements Collector.Describab
 	 * @param dim The dimension.
 	 */
 	public void stopDimensionTick(ResourceKey<Level> dim) {
-		// Get dimension name.
-		String name = dim.location().getPath();
+		long now_ns = System.nanoTime();
+		DimensionSlot slot = this.getDimensionSlot(dim);
 
 		// Get active timer.
-		Histogram.Timer timer = this.dim_tick_timers.remove(dim);
-		if (timer == null) {
+		long start_ns = slot.tick_start_ns;
+		if (start_ns == -1) {
 			switch (this.config.collector_mc_dimension_tick_errors) {
 				case IGNORE -> {}  // Ignore error.
 				case LOG -> LOG.debug(
 					"Dimension {} tick stopped without an active tick.",
-					name
+					slot.name
 				);
 				case STRICT -> throw new IllegalStateException(
-					"Dimension " + name + " tick stopped without an active tick."
+					"Dimension " + slot.name + " tick stopped without an active tick."
 				);
 			}
 
@@ -395,31 +1296,204 @@ public class MinecraftCollector extends Collector implements Collector.Describab
 		}
 
 		// Record duration of tick.
-		timer.close();
+		long duration_ns = now_ns - start_ns;
+		slot.tick_start_ns = -1;
+		if (slot.tick_phases != null) {
+			this.tick_phases.stop(slot.tick_phases);
+		}
+		double seconds = duration_ns / NANOSECONDS_PER_SECOND;
+		slot.tick_seconds.observe(seconds);
+		if (slot.tick_native != null) {
+			slot.tick_native.observe(seconds);
+		}
+		if (slot.tick_rates != null) {
+			slot.tick_rates.record(now_ns, duration_ns);
+		}
+		if (slot.tick_recorder != null) {
+			slot.tick_recorder.record(now_ns, duration_ns);
+		}
+		if (slot.tick_resources != null) {
+			slot.tick_resources.stop(duration_ns);
+		}
+		if (this.tick_history != null && slot.history_index >= 0) {
+			this.tick_history.recordDimension(slot.history_index, duration_ns);
+		}
 	}
 
 	/**
 	 * Record when a server tick finishes.
 	 */
 	public void stopServerTick() {
-		if (this.server_tick_timer == null) {
+		long now_ns = System.nanoTime();
+		long start_ns = this.server_tick_start_ns;
+		if (start_ns == -1) {
 			throw new IllegalStateException(
 				"Server tick stopped without an active tick."
 			);
 		}
 
-		this.server_tick_timer.observeDuration();
-		this.server_tick_timer = null;
+		this.server_tick_start_ns = -1;
+		if (this.tick_watchdog != null) {
+			this.tick_watchdog.disarm();
+		}
+		if (this.tick_phases != null) {
+			this.tick_phases.uninstall(this.mc_server);
+		}
+
+		// Record duration of tick.
+		long duration_ns = now_ns - start_ns;
+		double seconds = duration_ns / NANOSECONDS_PER_SECOND;
+		this.server_tick_seconds.observe(seconds);
+		if (this.server_tick_native != null) {
+			this.server_tick_native.observe(seconds);
+		}
+		if (this.server_tick_rates != null) {
+			this.server_tick_rates.record(now_ns, duration_ns);
+		}
+		if (this.server_tick_recorder != null) {
+			this.server_tick_recorder.record(now_ns, duration_ns);
+		}
+		if (this.gc_ticks != null) {
+			this.gc_ticks.recordTick(start_ns, now_ns);
+		}
+		if (this.tick_resources != null) {
+			this.tick_resources.getServerSlot().stop(duration_ns);
+		}
+
+		// Count the chunks by ticket type after the dimensions ticked.
+		if (this.chunk_tracker != null) {
+			this.chunk_tracker.sampleTickets(this.mc_server.getAllLevels(), now_ns);
+		}
+
+		// Sample the backlog of the server and its executors.
+		if (this.task_queues != null) {
+			this.task_queues.sample(this.mc_server, now_ns);
+		}
+
+		// Record the tick along with the dimension ticks within it.
+		if (this.tick_history != null) {
+			this.recordTickHistory(duration_ns);
+		}
+
+		// Walk the next slice of the world census last so that its budget does
+		// not count toward the tick.
+		if (this.world_census != null) {
+			this.world_census.tick(this.mc_server.getAllLevels(), System.nanoTime());
+		}
 	}
 
 	/**
-	 * The EntityKey class is used to count entities per dimension.
-	 *
-	 * @param dim The dimension name.
-	 * @param dim_id The dimension id.
-	 * @param type The entity type.
+	 * The DimensionSlot class holds the state used to time the ticks of a
+	 * dimension. It is created once per dimension so that the tick hooks do not
+	 * allocate.
 	 */
-	private record EntityKey(String dim, int dim_id, String type) {
-		// Empty.
+	private static class DimensionSlot {
+
+		/**
+		 * The index of the dimension in the tick history, or -1 when not recorded.
+		 */
+		public final int history_index;
+
+		/**
+		 * The dimension metric labels: id and name.
+		 */
+		public final List<String> labels;
+
+		/**
+		 * The dimension name.
+		 */
+		public final String name;
+
+		/**
+		 * The native histogram buckets for the dimension tick timing. This is only
+		 * set when native histograms are enabled.
+		 */
+		@Nullable
+		public final NativeHistogram tick_native;
+
+		/**
+		 * The slot for the phase times per dimension tick. This is only set when
+		 * tick phases are enabled.
+		 */
+		@Nullable
+		public final TickPhaseProfiler.Slot tick_phases;
+
+		/**
+		 * The recorder for the dimension tick rates. This is only set when tick
+		 * rates are enabled.
+		 */
+		@Nullable
+		public final TickRateRecorder tick_rates;
+
+		/**
+		 * The high-resolution recorder for dimension tick timing. This is only set
+		 * when tick percentiles are enabled.
+		 */
+		@Nullable
+		public final TickRecorder tick_recorder;
+
+		/**
+		 * The slot for the bytes allocated and CPU time per dimension tick. This
+		 * is only set when tick resources are enabled.
+		 */
+		@Nullable
+		public final TickResourceRecorder.Slot tick_resources;
+
+		/**
+		 * The histogram child for the dimension tick timing.
+		 */
+		public final Histogram.Child tick_seconds;
+
+		/**
+		 * When the active dimension tick started (in nanoseconds), or -1 when not
+		 * timing a dimension tick. This is only accessed by the thread ticking the
+		 * dimension.
+		 */
+		public long tick_start_ns;
+
+		/**
+		 * Constructs the instance.
+		 *
+		 * @param dim The dimension.
+		 * @param dim_tick_seconds Histogram metrics for dimension tick timing.
+		 * @param tick_native The native histogram buckets for the dimension tick
+		 * timing, or {@code null} when disabled.
+		 * @param tick_phases The profiler for the phase times per tick, or
+		 * {@code null} when disabled.
+		 * @param tick_rates The recorder for the dimension tick rates, or
+		 * {@code null} when disabled.
+		 * @param tick_recorder The high-resolution recorder for dimension tick
+		 * timing, or {@code null} when disabled.
+		 * @param tick_resources The recorder for the bytes allocated and CPU time
+		 * per tick, or {@code null} when disabled.
+		 * @param history_index The index of the dimension in the tick history, or
+		 * -1 when not recorded.
+		 */
+		public DimensionSlot(
+			ResourceKey<Level> dim,
+			Histogram dim_tick_seconds,
+			@Nullable NativeHistogram tick_native,
+			@Nullable TickPhaseProfiler tick_phases,
+			@Nullable TickRateRecorder tick_rates,
+			@Nullable TickRecorder tick_recorder,
+			@Nullable TickResourceRecorder tick_resources,
+			int history_index
+		) {
+			String id_str = Integer.toString(getDimensionId(dim));
+			this.history_index = history_index;
+			this.name = dim.location().getPath();
+			this.labels = List.of(id_str, this.name);
+			this.tick_native = tick_native;
+			this.tick_phases = tick_phases != null
+				? tick_phases.newDimensionSlot(id_str, this.name)
+				: null;
+			this.tick_rates = tick_rates;
+			this.tick_recorder = tick_recorder;
+			this.tick_resources = tick_resources != null
+				? tick_resources.newDimensionSlot(id_str, this.name)
+				: null;
+			this.tick_seconds = dim_tick_seconds.labels(id_str, this.name);
+			this.tick_start_ns = -1;
+		}
 	}
 }
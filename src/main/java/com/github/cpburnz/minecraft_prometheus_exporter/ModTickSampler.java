@@ -0,0 +1,328 @@
+package com.github.cpburnz.minecraft_prometheus_exporter;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+import net.minecraft.core.registries.BuiltInRegistries;
+import net.minecraft.world.entity.EntityType;
+import net.minecraft.world.level.block.entity.BlockEntityType;
+
+import io.prometheus.client.Collector.MetricFamilySamples;
+import io.prometheus.client.CounterMetricFamily;
+
+/**
+ * The ModTickSampler class attributes the tick times of entities and block
+ * entities to the mods which register their types. The entities and block
+ * entities are only timed on one in every N server ticks on average, and the
+ * sampled times are scaled up by N to estimate the total. The gap between the
+ * timed ticks is random, so work done every few ticks (e.g., once a second) is
+ * neither always nor never timed.
+ *
+ * <p>The individual ticks are found by the {@link TickPhaseProfiler} from the
+ * sections pushed per entity and block entity. Each type is looked up by
+ * identity, and its registry id is only built once, when it is first seen. The
+ * counters are only written by the server thread.</p>
+ */
+public class ModTickSampler {
+
+	/**
+	 * The kind label of block entities.
+	 */
+	public static final String KIND_BLOCK_ENTITY = "block_entity";
+
+	/**
+	 * The kind label of entities.
+	 */
+	public static final String KIND_ENTITY = "entity";
+
+	/**
+	 * The number of nanoseconds in a second.
+	 */
+	private static final double NANOSECONDS_PER_SECOND = 1e9;
+
+	/**
+	 * Maps each block entity type to its counters. This is only used on the
+	 * server thread.
+	 */
+	private final IdentityHashMap<BlockEntityType<?>, TypeTicks> block_entity_ids;
+
+	/**
+	 * Maps each block entity type registry id to its counters.
+	 */
+	private final ConcurrentHashMap<String, TypeTicks> block_entity_types;
+
+	/**
+	 * The server ticks until the next sampled tick.
+	 */
+	private int countdown;
+
+	/**
+	 * Maps each entity type to its counters. This is only used on the server
+	 * thread.
+	 */
+	private final IdentityHashMap<EntityType<?>, TypeTicks> entity_ids;
+
+	/**
+	 * Maps each entity type registry id to its counters.
+	 */
+	private final ConcurrentHashMap<String, TypeTicks> entity_types;
+
+	/**
+	 * Time the entities and block entities on one in every N server ticks.
+	 */
+	private final int interval;
+
+	/**
+	 * The maximum number of types to export the tick times of.
+	 */
+	private final int top;
+
+	/**
+	 * Constructs the instance.
+	 *
+	 * @param interval Time the entities and block entities on one in every N
+	 * server ticks.
+	 * @param top The maximum number of types to export the tick times of.
+	 */
+	public ModTickSampler(int interval, int top) {
+		this.block_entity_ids = new IdentityHashMap<>();
+		this.block_entity_types = new ConcurrentHashMap<>();
+		this.countdown = 0;
+		this.entity_ids = new IdentityHashMap<>();
+		this.entity_types = new ConcurrentHashMap<>();
+		this.interval = interval;
+		this.top = top;
+	}
+
+	/**
+	 * Get the mod tick metrics.
+	 *
+	 * @param metrics The metrics to add the mod tick metrics to.
+	 */
+	public void collect(List<MetricFamilySamples> metrics) {
+		// Read each counter once, since the server thread keeps adding to them.
+		ArrayList<Map.Entry<TypeTicks, Long>> types = new ArrayList<>(
+			this.block_entity_types.size() + this.entity_types.size()
+		);
+		for (TypeTicks type : this.block_entity_types.values()) {
+			types.add(Map.entry(type, type.ns));
+		}
+		for (TypeTicks type : this.entity_types.values()) {
+			types.add(Map.entry(type, type.ns));
+		}
+
+		// Sum the types of each mod.
+		HashMap<List<String>, Long> mod_ns = new HashMap<>();
+		for (Map.Entry<TypeTicks, Long> entry : types) {
+			TypeTicks type = entry.getKey();
+			mod_ns.merge(List.of(type.kind, type.mod), entry.getValue(), Long::sum);
+		}
+
+		CounterMetricFamily mod_seconds = newModSecondsMetric();
+		for (Map.Entry<List<String>, Long> entry : mod_ns.entrySet()) {
+			mod_seconds.addMetric(entry.getKey(), this.toSeconds(entry.getValue()));
+		}
+		metrics.add(mod_seconds);
+
+		CounterMetricFamily type_seconds = newTypeSecondsMetric();
+		if (this.top > 0) {
+			types.sort(Map.Entry.<TypeTicks, Long>comparingByValue().reversed());
+			int count = Math.min(this.top, types.size());
+			for (int i = 0; i < count; i++) {
+				TypeTicks type = types.get(i).getKey();
+				type_seconds.addMetric(
+					List.of(type.kind, type.mod, type.type),
+					this.toSeconds(types.get(i).getValue())
+				);
+			}
+		}
+		metrics.add(type_seconds);
+	}
+
+	/**
+	 * Get the mod tick metric descriptions.
+	 *
+	 * @param descs The metric descriptions to add to.
+	 */
+	public void describe(List<MetricFamilySamples> descs) {
+		descs.add(newModSecondsMetric());
+		descs.add(newTypeSecondsMetric());
+	}
+
+	/**
+	 * Get the counters of a block entity type. This must be called on the server
+	 * thread.
+	 *
+	 * @param type The block entity type.
+	 * @return The type counters.
+	 */
+	public TypeTicks getBlockEntityType(BlockEntityType<?> type) {
+		TypeTicks ticks = this.block_entity_ids.get(type);
+		if (ticks == null) {
+			// NOTICE: This matches the lazy section name of a block entity tick.
+			ticks = this.getBlockEntityType(String.valueOf(BlockEntityType.getKey(type)));
+			this.block_entity_ids.put(type, ticks);
+		}
+		return ticks;
+	}
+
+	/**
+	 * Get the counters of a block entity type by name. This must be called on
+	 * the server thread.
+	 *
+	 * @param key The block entity type registry id.
+	 * @return The type counters.
+	 */
+	public TypeTicks getBlockEntityType(String key) {
+		TypeTicks type = this.block_entity_types.get(key);
+		if (type == null) {
+			type = new TypeTicks(KIND_BLOCK_ENTITY, key);
+			this.block_entity_types.put(key, type);
+		}
+		return type;
+	}
+
+	/**
+	 * Get the counters of an entity type. This must be called on the server
+	 * thread.
+	 *
+	 * @param type The entity type.
+	 * @return The type counters.
+	 */
+	public TypeTicks getEntityType(EntityType<?> type) {
+		TypeTicks ticks = this.entity_ids.get(type);
+		if (ticks == null) {
+			ticks = this.getEntityType(BuiltInRegistries.ENTITY_TYPE.getKey(type).toString());
+			this.entity_ids.put(type, ticks);
+		}
+		return ticks;
+	}
+
+	/**
+	 * Get the counters of an entity type by name. This must be called on the
+	 * server thread.
+	 *
+	 * @param key The entity type registry id.
+	 * @return The type counters.
+	 */
+	public TypeTicks getEntityType(String key) {
+		TypeTicks type = this.entity_types.get(key);
+		if (type == null) {
+			type = new TypeTicks(KIND_ENTITY, key);
+			this.entity_types.put(key, type);
+		}
+		return type;
+	}
+
+	/**
+	 * Create a new metric for the tick times by mod.
+	 *
+	 * @return The mod seconds metric.
+	 */
+	private static CounterMetricFamily newModSecondsMetric() {
+		return new CounterMetricFamily(
+			"mc_mod_tick_seconds_total",
+			"The estimated time spent ticking the entities and block entities of "
+			+ "each mod (in seconds).",
+			List.of("kind", "mod")
+		);
+	}
+
+	/**
+	 * Create a new metric for the tick times of the slowest types.
+	 *
+	 * @return The type seconds metric.
+	 */
+	private static CounterMetricFamily newTypeSecondsMetric() {
+		return new CounterMetricFamily(
+			"mc_mod_tick_type_seconds_total",
+			"The estimated time spent ticking the slowest entity and block entity "
+			+ "types (in seconds).",
+			List.of("kind", "mod", "type")
+		);
+	}
+
+	/**
+	 * Advance to the next server tick. This must be called on the server thread
+	 * when the server tick starts.
+	 *
+	 * @return Whether the entities and block entities are timed on this tick.
+	 */
+	public boolean nextTick() {
+		if (this.countdown > 0) {
+			this.countdown--;
+			return false;
+		}
+		// Pick the gap to the next timed tick uniformly from 1 to 2N - 1, which
+		// averages N.
+		this.countdown = ThreadLocalRandom.current().nextInt(2 * this.interval - 1);
+		return true;
+	}
+
+	/**
+	 * Convert a sampled time to the estimated total.
+	 *
+	 * @param sampled_ns The sampled time (in nanoseconds).
+	 * @return The estimated total (in seconds).
+	 */
+	private double toSeconds(long sampled_ns) {
+		return sampled_ns * (double)this.interval / NANOSECONDS_PER_SECOND;
+	}
+
+	/**
+	 * The TypeTicks class holds the sampled tick time of an entity or block
+	 * entity type.
+	 */
+	public static class TypeTicks {
+
+		/**
+		 * The kind label: "entity" or "block_entity".
+		 */
+		public final String kind;
+
+		/**
+		 * The mod namespace of the type.
+		 */
+		public final String mod;
+
+		/**
+		 * The sampled tick time (in nanoseconds). This is only written by the
+		 * server thread.
+		 */
+		private volatile long ns;
+
+		/**
+		 * The registry path of the type.
+		 */
+		public final String type;
+
+		/**
+		 * Constructs the instance.
+		 *
+		 * @param kind The kind label.
+		 * @param key The type registry id.
+		 */
+		private TypeTicks(String kind, String key) {
+			int colon = key.indexOf(':');
+			this.kind = kind;
+			this.mod = colon != -1 ? key.substring(0, colon) : "minecraft";
+			this.type = colon != -1 ? key.substring(colon + 1) : key;
+		}
+
+		/**
+		 * Add a sampled tick.
+		 *
+		 * @param duration_ns The duration (in nanoseconds).
+		 */
+		public void add(long duration_ns) {
+			// NOTICE: This is only written by the server thread, so the increment
+			// does not need to be atomic.
+			this.ns += duration_ns;
+		}
+	}
+}
@@ -0,0 +1,171 @@
+package com.github.cpburnz.minecraft_prometheus_exporter;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import javax.annotation.Nullable;
+
+import io.prometheus.client.Collector.MetricFamilySamples;
+
+/**
+ * The NativeHistogram class records observations into the exponential buckets
+ * of a Prometheus native (sparse) histogram. These are only exported by the
+ * protobuf format, alongside the classic buckets, count and sum of the same
+ * histogram.
+ *
+ * <p>The buckets use schema 3, so each bucket is about 9% wider than the
+ * previous one. Bucket {@code i} holds the values in {@code (2^((i-1)/8),
+ * 2^(i/8)]}. The buckets cover about 1 microsecond to 128 s, and values
+ * outside that range are counted in the first or last bucket.</p>
+ */
+public class NativeHistogram {
+
+	/**
+	 * The index of the last bucket: 2^7 = 128 s.
+	 */
+	private static final int MAX_INDEX = 56;
+
+	/**
+	 * The index of the first bucket: 2^-20 s, about 1 microsecond.
+	 */
+	private static final int MIN_INDEX = -160;
+
+	/**
+	 * The bucket resolution.
+	 */
+	public static final int SCHEMA = 3;
+
+	/**
+	 * Converts the natural log of a value to its bucket index.
+	 */
+	private static final double SCALE = (1 << SCHEMA) / Math.log(2);
+
+	/**
+	 * The count of each bucket, starting from {@link #MIN_INDEX}.
+	 */
+	private final AtomicLongArray buckets;
+
+	/**
+	 * The number of observations which are not positive.
+	 */
+	private final LongAdder zero_count;
+
+	/**
+	 * Constructs the instance.
+	 */
+	public NativeHistogram() {
+		this.buckets = new AtomicLongArray(MAX_INDEX - MIN_INDEX + 1);
+		this.zero_count = new LongAdder();
+	}
+
+	/**
+	 * Record an observation.
+	 *
+	 * @param value The value.
+	 */
+	public void observe(double value) {
+		if (value <= 0) {
+			this.zero_count.increment();
+			return;
+		}
+
+		int index = (int)Math.ceil(Math.log(value) * SCALE);
+		index = Math.max(MIN_INDEX, Math.min(MAX_INDEX, index));
+		this.buckets.incrementAndGet(index - MIN_INDEX);
+	}
+
+	/**
+	 * Get a snapshot of the buckets.
+	 *
+	 * @return The snapshot.
+	 */
+	public Snapshot snapshot() {
+		long[] counts = new long[this.buckets.length()];
+		for (int i = 0; i < counts.length; i++) {
+			counts[i] = this.buckets.get(i);
+		}
+		return new Snapshot(counts, MIN_INDEX, this.zero_count.sum());
+	}
+
+	/**
+	 * The Samples class adds the native buckets to the samples of a classic
+	 * histogram. The text formats only see the classic samples.
+	 */
+	public static class Samples extends MetricFamilySamples {
+
+		/**
+		 * Maps the label values of each series (excluding "le") to its native
+		 * buckets.
+		 */
+		private final Map<List<String>, Snapshot> natives;
+
+		/**
+		 * Constructs the instance.
+		 *
+		 * @param classic The classic histogram.
+		 * @param natives Maps the label values of each series (excluding "le") to
+		 * its native buckets.
+		 */
+		public Samples(MetricFamilySamples classic, Map<List<String>, Snapshot> natives) {
+			super(classic.name, classic.unit, classic.type, classic.help, classic.samples);
+			this.natives = natives;
+		}
+
+		/**
+		 * Get the native buckets of a series.
+		 *
+		 * @param label_values The label values of the series (excluding "le").
+		 * @return The native buckets, or {@code null} if the series has none.
+		 */
+		@Nullable
+		public Snapshot getNative(List<String> label_values) {
+			return this.natives.get(label_values);
+		}
+
+		/**
+		 * Replace the classic samples, keeping the native buckets.
+		 *
+		 * @param classic The classic histogram.
+		 * @return The new samples.
+		 */
+		public Samples withClassic(MetricFamilySamples classic) {
+			return new Samples(classic, this.natives);
+		}
+	}
+
+	/**
+	 * The Snapshot class holds the native buckets of a histogram at a point in
+	 * time.
+	 */
+	public static class Snapshot {
+
+		/**
+		 * The count of each bucket, starting from {@link #offset}.
+		 */
+		public final long[] counts;
+
+		/**
+		 * The index of the first bucket.
+		 */
+		public final int offset;
+
+		/**
+		 * The number of observations which are not positive.
+		 */
+		public final long zero_count;
+
+		/**
+		 * Constructs the instance.
+		 *
+		 * @param counts The count of each bucket.
+		 * @param offset The index of the first bucket.
+		 * @param zero_count The number of observations which are not positive.
+		 */
+		public Snapshot(long[] counts, int offset, long zero_count) {
+			this.counts = counts;
+			this.offset = offset;
+			this.zero_count = zero_count;
+		}
+	}
+}
@@ -0,0 +1,690 @@
+package com.github.cpburnz.minecraft_prometheus_exporter;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.mojang.authlib.GameProfile;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundBuffer;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.ChannelPromise;
+import net.minecraft.network.protocol.Packet;
+import net.minecraft.server.level.ServerPlayer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import io.prometheus.client.Collector.MetricFamilySamples;
+import io.prometheus.client.CounterMetricFamily;
+import io.prometheus.client.GaugeMetricFamily;
+import io.prometheus.client.Histogram;
+
+/**
+ * The NetworkTracker class records the network I/O of the player connections
+ * with handlers installed in the Netty pipeline of each connection.
+ *
+ * <p>The packet handler sits next to the Minecraft packet handler, and counts
+ * the packets of each class in each direction. The frame handler sits next to
+ * the frame splitter, and counts the bytes of each frame (after compression,
+ * before encryption). Each frame is attributed to the packet class being
+ * encoded or decoded at the same time on the event loop.</p>
+ *
+ * <p>The handlers only run on the event loop of their connection, and only
+ * update striped counters and single-writer fields, so they never lock.</p>
+ */
+public class NetworkTracker {
+
+	/**
+	 * The logger to use.
+	 */
+	private static final Logger LOG = LogManager.getLogger();
+
+	/**
+	 * The histogram buckets to use for the flush times (in seconds).
+	 */
+	private static final double[] FLUSH_BUCKETS = new double[] {
+		0.00001,
+		0.00005,
+		0.0001,
+		0.0005,
+		0.001,
+		0.005,
+		0.01,
+		0.05,
+	};
+
+	/**
+	 * The name of the frame handler in the pipeline.
+	 */
+	private static final String FRAME_HANDLER = "prometheus_exporter_frames";
+
+	/**
+	 * The number of nanoseconds in a second.
+	 */
+	private static final double NANOSECONDS_PER_SECOND = 1e9;
+
+	/**
+	 * The name of the packet handler in the pipeline.
+	 */
+	private static final String PACKET_HANDLER = "prometheus_exporter_packets";
+
+	/**
+	 * The minimum interval to compute the connection rates over (in
+	 * nanoseconds).
+	 */
+	private static final long RATE_INTERVAL_NS = 1_000_000_000L;
+
+	/**
+	 * The label of the bytes which could not be attributed to a packet class.
+	 */
+	private static final String UNKNOWN_PACKET = "unknown";
+
+	/**
+	 * Maps each player UUID to its connection state.
+	 */
+	private final ConcurrentHashMap<UUID, ConnectionState> connections;
+
+	/**
+	 * Histogram metrics for the time to flush the connections.
+	 */
+	private final Histogram flush_seconds;
+
+	/**
+	 * The maximum number of connections to export the rates of.
+	 */
+	private final int max_connections;
+
+	/**
+	 * Maps each packet class to its stats.
+	 */
+	private final ConcurrentHashMap<Class<?>, PacketStats> packet_stats;
+
+	/**
+	 * Caches the stats of each packet class so that the handlers look them up
+	 * without hashing.
+	 */
+	private final ClassValue<PacketStats> packet_stats_cache;
+
+	/**
+	 * The stats of the bytes which could not be attributed to a packet class.
+	 */
+	private final PacketStats unknown_stats;
+
+	/**
+	 * Constructs the instance.
+	 *
+	 * @param max_connections The maximum number of connections to export the
+	 * rates of.
+	 */
+	public NetworkTracker(int max_connections) {
+		this.connections = new ConcurrentHashMap<>();
+		this.flush_seconds = Histogram.build()
+			.buckets(FLUSH_BUCKETS)
+			.name("mc_network_flush_seconds")
+			.help("Stats on the time to flush the player connections.")
+			.create();
+		this.max_connections = max_connections;
+		this.packet_stats = new ConcurrentHashMap<>();
+		this.packet_stats_cache = new ClassValue<>() {
+			@Override
+			protected PacketStats computeValue(Class<?> type) {
+				return NetworkTracker.this.packet_stats.computeIfAbsent(
+					type, k -> new PacketStats(k.getSimpleName())
+				);
+			}
+		};
+		this.unknown_stats = new PacketStats(UNKNOWN_PACKET);
+	}
+
+	/**
+	 * Install the handlers in the pipeline of the player connection.
+	 *
+	 * <p>This is called when a player logs in.</p>
+	 *
+	 * @param player The player.
+	 */
+	public void addPlayer(ServerPlayer player) {
+		Channel channel = player.connection.connection.channel();
+		if (channel == null) {
+			return;
+		}
+
+		ConnectionState state = new ConnectionState(player.getGameProfile(), channel);
+		this.connections.put(player.getGameProfile().getId(), state);
+
+		// Modify the pipeline on the event loop so it cannot race with the
+		// Minecraft connection setup.
+		channel.eventLoop().execute(() -> this.installHandlers(channel, state));
+	}
+
+	/**
+	 * Get the network metrics.
+	 *
+	 * @param metrics The metrics to add the network metrics to.
+	 */
+	public void collect(List<MetricFamilySamples> metrics) {
+		// Record packet metrics.
+		CounterMetricFamily packets = newPacketsMetric();
+		CounterMetricFamily bytes = newBytesMetric();
+		this.unknown_stats.addMetrics(packets, bytes);
+		for (PacketStats stats : this.packet_stats.values()) {
+			stats.addMetrics(packets, bytes);
+		}
+
+		// Record connection metrics.
+		long now_ns = System.nanoTime();
+		long pending_total = 0;
+		ArrayList<ConnectionState> states = new ArrayList<>(this.connections.values());
+		for (ConnectionState state : states) {
+			state.updateRates(now_ns);
+			pending_total += state.getPendingBytes();
+		}
+
+		GaugeMetricFamily connections = newConnectionsMetric();
+		connections.addMetric(List.of(), states.size());
+
+		GaugeMetricFamily pending = newPendingBytesMetric();
+		pending.addMetric(List.of(), pending_total);
+
+		// Record the busiest connections.
+		states.sort(Comparator.comparingDouble(ConnectionState::getTotalRate).reversed());
+		GaugeMetricFamily rates = newConnectionRateMetric();
+		GaugeMetricFamily conn_pending = newConnectionPendingBytesMetric();
+		for (int i = 0; i < Math.min(this.max_connections, states.size()); i++) {
+			ConnectionState state = states.get(i);
+			rates.addMetric(state.labels_in, state.in_rate);
+			rates.addMetric(state.labels_out, state.out_rate);
+			conn_pending.addMetric(state.labels, state.getPendingBytes());
+		}
+
+		metrics.add(packets);
+		metrics.add(bytes);
+		metrics.add(connections);
+		metrics.add(pending);
+		metrics.addAll(this.flush_seconds.collect());
+		metrics.add(rates);
+		metrics.add(conn_pending);
+	}
+
+	/**
+	 * Get the metric descriptions.
+	 *
+	 * @param descs The metric descriptions to add to.
+	 */
+	public void describe(List<MetricFamilySamples> descs) {
+		descs.add(newPacketsMetric());
+		descs.add(newBytesMetric());
+		descs.add(newConnectionsMetric());
+		descs.add(newPendingBytesMetric());
+		descs.addAll(this.flush_seconds.describe());
+		descs.add(newConnectionRateMetric());
+		descs.add(newConnectionPendingBytesMetric());
+	}
+
+	/**
+	 * Install the handlers in the pipeline. This must be called on the event
+	 * loop of the channel.
+	 *
+	 * @param channel The channel.
+	 * @param state The connection state.
+	 */
+	private void installHandlers(Channel channel, ConnectionState state) {
+		ChannelPipeline pipeline = channel.pipeline();
+		if (!channel.isOpen() || pipeline.get(PACKET_HANDLER) != null) {
+			return;
+		}
+
+		try {
+			if (pipeline.get("packet_handler") != null) {
+				pipeline.addBefore("packet_handler", PACKET_HANDLER, new PacketHandler(state));
+			} else {
+				pipeline.addLast(PACKET_HANDLER, new PacketHandler(state));
+			}
+
+			// Memory connections (e.g., single player) are not framed.
+			if (pipeline.get("splitter") != null) {
+				pipeline.addAfter("splitter", FRAME_HANDLER, new FrameHandler(state));
+			}
+		} catch (RuntimeException e) {
+			LOG.warn("Failed to install network handlers for {}.", state.labels.get(1), e);
+		}
+	}
+
+	/**
+	 * Create a new metric for the bytes by packet class.
+	 *
+	 * @return The bytes metric.
+	 */
+	private static CounterMetricFamily newBytesMetric() {
+		return new CounterMetricFamily(
+			"mc_network_bytes_total",
+			"The number of bytes sent and received by the player connections by "
+			+ "packet class.",
+			List.of("direction", "packet")
+		);
+	}
+
+	/**
+	 * Create a new metric for the pending outbound bytes of each connection.
+	 *
+	 * @return The connection pending bytes metric.
+	 */
+	private static GaugeMetricFamily newConnectionPendingBytesMetric() {
+		return new GaugeMetricFamily(
+			"mc_network_connection_pending_bytes",
+			"The number of outbound bytes waiting to be written to the busiest "
+			+ "player connections.",
+			List.of("id", "name")
+		);
+	}
+
+	/**
+	 * Create a new metric for the byte rate of each connection.
+	 *
+	 * @return The connection rate metric.
+	 */
+	private static GaugeMetricFamily newConnectionRateMetric() {
+		return new GaugeMetricFamily(
+			"mc_network_connection_bytes_per_second",
+			"The bytes per second sent and received by the busiest player "
+			+ "connections.",
+			List.of("id", "name", "direction")
+		);
+	}
+
+	/**
+	 * Create a new metric for the connections.
+	 *
+	 * @return The connections metric.
+	 */
+	private static GaugeMetricFamily newConnectionsMetric() {
+		return new GaugeMetricFamily(
+			"mc_network_connections",
+			"The number of tracked player connections.",
+			List.of()
+		);
+	}
+
+	/**
+	 * Create a new metric for the packets by packet class.
+	 *
+	 * @return The packets metric.
+	 */
+	private static CounterMetricFamily newPacketsMetric() {
+		return new CounterMetricFamily(
+			"mc_network_packets_total",
+			"The number of packets sent and received by the player connections by "
+			+ "packet class.",
+			List.of("direction", "packet")
+		);
+	}
+
+	/**
+	 * Create a new metric for the pending outbound bytes.
+	 *
+	 * @return The pending bytes metric.
+	 */
+	private static GaugeMetricFamily newPendingBytesMetric() {
+		return new GaugeMetricFamily(
+			"mc_network_pending_bytes",
+			"The number of outbound bytes waiting to be written to the player "
+			+ "connections.",
+			List.of()
+		);
+	}
+
+	/**
+	 * Forget the connection of a player when they log out.
+	 *
+	 * @param player The player.
+	 */
+	public void removePlayer(ServerPlayer player) {
+		this.connections.remove(player.getGameProfile().getId());
+	}
+
+	/**
+	 * The ConnectionState class holds the state of a player connection shared by
+	 * its handlers.
+	 */
+	private static class ConnectionState {
+
+		/**
+		 * The channel.
+		 */
+		public final Channel channel;
+
+		/**
+		 * The stats of the packet being encoded. This is only accessed on the event
+		 * loop.
+		 */
+		public PacketStats encoding;
+
+		/**
+		 * The number of bytes received. This is only written on the event loop.
+		 */
+		public volatile long in_bytes;
+
+		/**
+		 * The inbound bytes per second.
+		 */
+		public volatile double in_rate;
+
+		/**
+		 * The connection metric labels: id and name.
+		 */
+		public final List<String> labels;
+
+		/**
+		 * The connection metric labels: id, name and the inbound direction.
+		 */
+		public final List<String> labels_in;
+
+		/**
+		 * The connection metric labels: id, name and the outbound direction.
+		 */
+		public final List<String> labels_out;
+
+		/**
+		 * The number of bytes sent. This is only written on the event loop.
+		 */
+		public volatile long out_bytes;
+
+		/**
+		 * The outbound bytes per second.
+		 */
+		public volatile double out_rate;
+
+		/**
+		 * The bytes of the frame being decoded. This is only accessed on the event
+		 * loop.
+		 */
+		public int pending_in_bytes;
+
+		/**
+		 * The number of bytes received when the rates were last computed.
+		 */
+		private long rate_in_bytes;
+
+		/**
+		 * When the rates were last computed (in nanoseconds).
+		 */
+		private long rate_ns;
+
+		/**
+		 * The number of bytes sent when the rates were last computed.
+		 */
+		private long rate_out_bytes;
+
+		/**
+		 * Constructs the instance.
+		 *
+		 * @param profile The player profile.
+		 * @param channel The channel.
+		 */
+		public ConnectionState(GameProfile profile, Channel channel) {
+			String id_str = profile.getId().toString();
+			String name = profile.getName();
+			this.channel = channel;
+			this.labels = List.of(id_str, name);
+			this.labels_in = List.of(id_str, name, "in");
+			this.labels_out = List.of(id_str, name, "out");
+			this.rate_ns = System.nanoTime();
+		}
+
+		/**
+		 * @return The number of outbound bytes waiting to be written.
+		 */
+		public long getPendingBytes() {
+			ChannelOutboundBuffer buffer = this.channel.unsafe().outboundBuffer();
+			return buffer != null ? buffer.totalPendingWriteBytes() : 0;
+		}
+
+		/**
+		 * @return The bytes per second sent and received.
+		 */
+		public double getTotalRate() {
+			return this.in_rate + this.out_rate;
+		}
+
+		/**
+		 * Update the rates once the interval has passed.
+		 *
+		 * @param now_ns The current time (in nanoseconds).
+		 */
+		public synchronized void updateRates(long now_ns) {
+			long elapsed_ns = now_ns - this.rate_ns;
+			if (elapsed_ns < RATE_INTERVAL_NS) {
+				return;
+			}
+
+			long in_bytes = this.in_bytes;
+			long out_bytes = this.out_bytes;
+			double elapsed = elapsed_ns / NANOSECONDS_PER_SECOND;
+			this.in_rate = (in_bytes - this.rate_in_bytes) / elapsed;
+			this.out_rate = (out_bytes - this.rate_out_bytes) / elapsed;
+			this.rate_in_bytes = in_bytes;
+			this.rate_ns = now_ns;
+			this.rate_out_bytes = out_bytes;
+		}
+	}
+
+	/**
+	 * The FrameHandler class counts the bytes of each frame sent and received.
+	 */
+	private class FrameHandler extends ChannelDuplexHandler {
+
+		/**
+		 * The connection state.
+		 */
+		private final ConnectionState state;
+
+		/**
+		 * Constructs the instance.
+		 *
+		 * @param state The connection state.
+		 */
+		public FrameHandler(ConnectionState state) {
+			this.state = state;
+		}
+
+		/**
+		 * Count a frame received.
+		 *
+		 * @param ctx The handler context.
+		 * @param msg The frame.
+		 * @throws Exception When the next handler fails.
+		 */
+		@Override
+		public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+			if (msg instanceof ByteBuf buf) {
+				int bytes = buf.readableBytes();
+				this.state.in_bytes += bytes;
+				this.state.pending_in_bytes = bytes;
+			}
+			ctx.fireChannelRead(msg);
+		}
+
+		/**
+		 * Time the flush of the connection.
+		 *
+		 * @param ctx The handler context.
+		 * @throws Exception When the next handler fails.
+		 */
+		@Override
+		public void flush(ChannelHandlerContext ctx) throws Exception {
+			long start_ns = System.nanoTime();
+			ctx.flush();
+			NetworkTracker.this.flush_seconds.observe(
+				(System.nanoTime() - start_ns) / NANOSECONDS_PER_SECOND
+			);
+		}
+
+		/**
+		 * Count a frame sent.
+		 *
+		 * @param ctx The handler context.
+		 * @param msg The frame.
+		 * @param promise The write promise.
+		 * @throws Exception When the next handler fails.
+		 */
+		@Override
+		public void write(
+			ChannelHandlerContext ctx, Object msg, ChannelPromise promise
+		) throws Exception {
+			if (msg instanceof ByteBuf buf) {
+				int bytes = buf.readableBytes();
+				this.state.out_bytes += bytes;
+				PacketStats stats = this.state.encoding;
+				if (stats == null) {
+					stats = NetworkTracker.this.unknown_stats;
+				}
+				stats.out_bytes.add(bytes);
+			}
+			ctx.write(msg, promise);
+		}
+	}
+
+	/**
+	 * The PacketHandler class counts the packets of each class sent and
+	 * received.
+	 */
+	private class PacketHandler extends ChannelDuplexHandler {
+
+		/**
+		 * The connection state.
+		 */
+		private final ConnectionState state;
+
+		/**
+		 * Constructs the instance.
+		 *
+		 * @param state The connection state.
+		 */
+		public PacketHandler(ConnectionState state) {
+			this.state = state;
+		}
+
+		/**
+		 * Count a packet received.
+		 *
+		 * @param ctx The handler context.
+		 * @param msg The packet.
+		 * @throws Exception When the next handler fails.
+		 */
+		@Override
+		public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+			if (msg instanceof Packet<?>) {
+				PacketStats stats = NetworkTracker.this.packet_stats_cache.get(msg.getClass());
+				stats.in_packets.increment();
+				stats.in_bytes.add(this.state.pending_in_bytes);
+				this.state.pending_in_bytes = 0;
+			}
+			ctx.fireChannelRead(msg);
+		}
+
+		/**
+		 * Count a packet sent. The frame handler attributes the bytes encoded
+		 * while the packet is written to its class.
+		 *
+		 * @param ctx The handler context.
+		 * @param msg The packet.
+		 * @param promise The write promise.
+		 * @throws Exception When the next handler fails.
+		 */
+		@Override
+		public void write(
+			ChannelHandlerContext ctx, Object msg, ChannelPromise promise
+		) throws Exception {
+			if (!(msg instanceof Packet<?>)) {
+				ctx.write(msg, promise);
+				return;
+			}
+
+			PacketStats stats = NetworkTracker.this.packet_stats_cache.get(msg.getClass());
+			stats.out_packets.increment();
+			this.state.encoding = stats;
+			try {
+				ctx.write(msg, promise);
+			} finally {
+				this.state.encoding = null;
+			}
+		}
+	}
+
+	/**
+	 * The PacketStats class holds the counts of a packet class.
+	 */
+	private static class PacketStats {
+
+		/**
+		 * The number of bytes received.
+		 */
+		public final LongAdder in_bytes;
+
+		/**
+		 * The metric labels for the inbound direction.
+		 */
+		public final List<String> in_labels;
+
+		/**
+		 * The number of packets received.
+		 */
+		public final LongAdder in_packets;
+
+		/**
+		 * The number of bytes sent.
+		 */
+		public final LongAdder out_bytes;
+
+		/**
+		 * The metric labels for the outbound direction.
+		 */
+		public final List<String> out_labels;
+
+		/**
+		 * The number of packets sent.
+		 */
+		public final LongAdder out_packets;
+
+		/**
+		 * Constructs the instance.
+		 *
+		 * @param packet The packet class name.
+		 */
+		public PacketStats(String packet) {
+			this.in_bytes = new LongAdder();
+			this.in_labels = List.of("in", packet);
+			this.in_packets = new LongAdder();
+			this.out_bytes = new LongAdder();
+			this.out_labels = List.of("out", packet);
+			this.out_packets = new LongAdder();
+		}
+
+		/**
+		 * Add the counts to the metrics.
+		 *
+		 * @param packets The packets metric.
+		 * @param bytes The bytes metric.
+		 */
+		public void addMetrics(CounterMetricFamily packets, CounterMetricFamily bytes) {
+			long in_packets = this.in_packets.sum();
+			long out_packets = this.out_packets.sum();
+			long in_bytes = this.in_bytes.sum();
+			long out_bytes = this.out_bytes.sum();
+			if (in_packets > 0 || in_bytes > 0) {
+				packets.addMetric(this.in_labels, in_packets);
+				bytes.addMetric(this.in_labels, in_bytes);
+			}
+			if (out_packets > 0 || out_bytes > 0) {
+				packets.addMetric(this.out_labels, out_packets);
+				bytes.addMetric(this.out_labels, out_bytes);
+			}
+		}
+	}
+}
@@ -0,0 +1,580 @@
+package com.github.cpburnz.minecraft_prometheus_exporter;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.mojang.authlib.GameProfile;
+import net.minecraft.resources.ResourceKey;
+import net.minecraft.server.level.ChunkTrackingView;
+import net.minecraft.server.level.ServerPlayer;
+import net.minecraft.world.level.ChunkPos;
+import net.minecraft.world.level.Level;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.Collector.MetricFamilySamples;
+import io.prometheus.client.GaugeMetricFamily;
+
+/**
+ * The PlayerTracker class collects the metrics about the players connected to
+ * the server in one of the {@link ServerConfig.PlayerMode}s.
+ *
+ * <p>The metric labels of each player are built once per session rather than
+ * on every scrape. In the PLAYER mode only the players who joined first are
+ * exported to bound the number of series, so the exported players only change
+ * when one of them leaves. In the AGGREGATE mode no per-player series are
+ * exported at all.</p>
+ */
+public class PlayerTracker {
+
+	/**
+	 * The number of milliseconds in a second.
+	 */
+	private static final double MILLISECONDS_PER_SECOND = 1e3;
+
+	/**
+	 * The histogram buckets to use for the player ping (in seconds).
+	 */
+	private static final double[] PING_BUCKETS = new double[] {
+		0.025,
+		0.05,
+		0.1,
+		0.15,
+		0.2,
+		0.3,
+		0.5,
+		1.0,
+		2.5,
+	};
+
+	/**
+	 * The labels of the ping histogram buckets.
+	 */
+	private static final List<List<String>> PING_BUCKET_LABELS = getBucketLabels();
+
+	/**
+	 * The largest view distance to cache the chunks in view of.
+	 */
+	private static final int VIEW_DISTANCE_MAX = 64;
+
+	/**
+	 * Maps each dimension to its metric labels: id and name.
+	 */
+	private final ConcurrentHashMap<ResourceKey<Level>, List<String>> dim_labels;
+
+	/**
+	 * The join order of the next player to get labels.
+	 */
+	private final AtomicLong join_order;
+
+	/**
+	 * The maximum number of players to export per-player metrics for.
+	 */
+	private final int max_players;
+
+	/**
+	 * How to export the metrics about the players.
+	 */
+	private final ServerConfig.PlayerMode mode;
+
+	/**
+	 * Maps each connected player UUID to its metric labels.
+	 */
+	private final ConcurrentHashMap<UUID, PlayerLabels> player_labels;
+
+	/**
+	 * The number of chunks in view indexed by view distance, or 0 when not yet
+	 * computed. Concurrent scrapes may both compute a count, which is harmless
+	 * since they are equal.
+	 */
+	private final int[] view_chunks;
+
+	/**
+	 * Constructs the instance.
+	 *
+	 * @param mode How to export the metrics about the players.
+	 * @param max_players The maximum number of players to export per-player
+	 * metrics for.
+	 */
+	public PlayerTracker(ServerConfig.PlayerMode mode, int max_players) {
+		this.dim_labels = new ConcurrentHashMap<>(3);
+		this.join_order = new AtomicLong();
+		this.max_players = max_players;
+		this.mode = mode;
+		this.player_labels = new ConcurrentHashMap<>();
+		this.view_chunks = new int[VIEW_DISTANCE_MAX + 1];
+	}
+
+	/**
+	 * Get the player metrics.
+	 *
+	 * @param metrics The metrics to add the player metrics to.
+	 * @param players The connected players.
+	 */
+	public void collect(List<MetricFamilySamples> metrics, List<ServerPlayer> players) {
+		switch (this.mode) {
+			case LIST -> metrics.add(this.collectPlayerList(players));
+			case PLAYER -> this.collectPlayers(metrics, players);
+			case AGGREGATE -> this.collectAggregate(metrics, players);
+		}
+		this.prunePlayers(players);
+	}
+
+	/**
+	 * Get the players per dimension and the ping histogram.
+	 *
+	 * @param metrics The metrics to add the player metrics to.
+	 * @param players The connected players.
+	 */
+	private void collectAggregate(
+		List<MetricFamilySamples> metrics, List<ServerPlayer> players
+	) {
+		HashMap<ResourceKey<Level>, int[]> dim_players = new HashMap<>();
+		long[] ping_counts = new long[PING_BUCKETS.length + 1];
+		double ping_sum = 0;
+		for (ServerPlayer player : players) {
+			dim_players.computeIfAbsent(player.level().dimension(), k -> new int[1])[0]++;
+
+			double ping = getPing(player) / MILLISECONDS_PER_SECOND;
+			int index = 0;
+			while (index < PING_BUCKETS.length && ping > PING_BUCKETS[index]) {
+				index++;
+			}
+			ping_counts[index]++;
+			ping_sum += ping;
+		}
+
+		// Record metrics.
+		GaugeMetricFamily online = newOnlineMetric();
+		online.addMetric(List.of(), players.size());
+
+		GaugeMetricFamily dims = newDimensionPlayersMetric();
+		for (Map.Entry<ResourceKey<Level>, int[]> entry : dim_players.entrySet()) {
+			dims.addMetric(this.getDimensionLabels(entry.getKey()), entry.getValue()[0]);
+		}
+
+		ArrayList<MetricFamilySamples.Sample> ping_samples = new ArrayList<>(
+			PING_BUCKETS.length + 3
+		);
+		long cumulative = 0;
+		for (int i = 0; i < ping_counts.length; i++) {
+			cumulative += ping_counts[i];
+			ping_samples.add(new MetricFamilySamples.Sample(
+				"mc_players_ping_seconds_bucket",
+				List.of("le"),
+				PING_BUCKET_LABELS.get(i),
+				cumulative
+			));
+		}
+		ping_samples.add(new MetricFamilySamples.Sample(
+			"mc_players_ping_seconds_gcount", List.of(), List.of(), cumulative
+		));
+		ping_samples.add(new MetricFamilySamples.Sample(
+			"mc_players_ping_seconds_gsum", List.of(), List.of(), ping_sum
+		));
+
+		metrics.add(online);
+		metrics.add(dims);
+		metrics.add(newPingMetric(ping_samples));
+	}
+
+	/**
+	 * Get the active players.
+	 *
+	 * @param players The connected players.
+	 * @return The player list metric.
+	 */
+	private GaugeMetricFamily collectPlayerList(List<ServerPlayer> players) {
+		GaugeMetricFamily metric = newPlayerListMetric();
+		for (ServerPlayer player : players) {
+			metric.addMetric(this.getPlayerLabels(player).labels, 1);
+		}
+		return metric;
+	}
+
+	/**
+	 * Get the per-player metrics of the players who joined first.
+	 *
+	 * @param metrics The metrics to add the player metrics to.
+	 * @param players The connected players.
+	 */
+	private void collectPlayers(
+		List<MetricFamilySamples> metrics, List<ServerPlayer> players
+	) {
+		// NOTICE: The players are chosen by join order rather than by a changing
+		// value such as the ping, so their series do not come and go between
+		// scrapes.
+		ArrayList<PlayerSample> samples = new ArrayList<>(players.size());
+		for (ServerPlayer player : players) {
+			samples.add(new PlayerSample(player, this.getPlayerLabels(player)));
+		}
+		if (samples.size() > this.max_players) {
+			samples.sort(Comparator.comparingLong(sample -> sample.labels().join_order));
+			samples.subList(this.max_players, samples.size()).clear();
+		}
+
+		// Record metrics.
+		GaugeMetricFamily online = newOnlineMetric();
+		online.addMetric(List.of(), players.size());
+
+		GaugeMetricFamily list = newPlayerListMetric();
+		GaugeMetricFamily ping = newPlayerPingMetric();
+		GaugeMetricFamily dim = newPlayerDimensionMetric();
+		GaugeMetricFamily chunks = newPlayerChunksMetric();
+		for (PlayerSample sample : samples) {
+			PlayerLabels labels = sample.labels();
+			list.addMetric(labels.labels, 1);
+			ping.addMetric(labels.labels, getPing(sample.player()) / MILLISECONDS_PER_SECOND);
+			dim.addMetric(
+				this.getPlayerDimensionLabels(labels, sample.player().level().dimension()),
+				1
+			);
+			chunks.addMetric(labels.labels, this.getChunksInView(sample.player()));
+		}
+
+		metrics.add(online);
+		metrics.add(list);
+		metrics.add(ping);
+		metrics.add(dim);
+		metrics.add(chunks);
+	}
+
+	/**
+	 * Count the chunks in view around the center of the view.
+	 *
+	 * @param view The chunk view.
+	 * @return The number of chunks in view.
+	 */
+	private static int countChunksInView(ChunkTrackingView.Positioned view) {
+		ChunkPos center = view.center();
+		int radius = view.viewDistance() + 1;
+		int count = 0;
+		for (int x = center.x - radius; x <= center.x + radius; x++) {
+			for (int z = center.z - radius; z <= center.z + radius; z++) {
+				if (view.contains(x, z)) {
+					count++;
+				}
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Get the player metric descriptions.
+	 *
+	 * @param descs The metric descriptions to add to.
+	 */
+	public void describe(List<MetricFamilySamples> descs) {
+		switch (this.mode) {
+			case LIST -> descs.add(newPlayerListMetric());
+			case PLAYER -> {
+				descs.add(newOnlineMetric());
+				descs.add(newPlayerListMetric());
+				descs.add(newPlayerPingMetric());
+				descs.add(newPlayerDimensionMetric());
+				descs.add(newPlayerChunksMetric());
+			}
+			case AGGREGATE -> {
+				descs.add(newOnlineMetric());
+				descs.add(newDimensionPlayersMetric());
+				descs.add(newPingMetric(List.of()));
+			}
+		}
+	}
+
+	/**
+	 * @return The labels of the ping histogram buckets.
+	 */
+	private static List<List<String>> getBucketLabels() {
+		ArrayList<List<String>> labels = new ArrayList<>(PING_BUCKETS.length + 1);
+		for (double bucket : PING_BUCKETS) {
+			labels.add(List.of(Collector.doubleToGoString(bucket)));
+		}
+		labels.add(List.of("+Inf"));
+		return List.copyOf(labels);
+	}
+
+	/**
+	 * Get the number of chunks in view of the player.
+	 *
+	 * @param player The player.
+	 * @return The number of chunks in view.
+	 */
+	private int getChunksInView(ServerPlayer player) {
+		if (!(player.getChunkTrackingView() instanceof ChunkTrackingView.Positioned view)) {
+			return 0;
+		}
+
+		// The count only depends on the view distance.
+		int distance = view.viewDistance();
+		if (distance < 0 || distance > VIEW_DISTANCE_MAX) {
+			return countChunksInView(view);
+		}
+		int count = this.view_chunks[distance];
+		if (count == 0) {
+			count = countChunksInView(view);
+			this.view_chunks[distance] = count;
+		}
+		return count;
+	}
+
+	/**
+	 * Get the metric labels for the dimension.
+	 *
+	 * @param dim The dimension.
+	 * @return The metric labels: id and name.
+	 */
+	private List<String> getDimensionLabels(ResourceKey<Level> dim) {
+		List<String> labels = this.dim_labels.get(dim);
+		if (labels == null) {
+			labels = this.dim_labels.computeIfAbsent(dim, k -> List.of(
+				Integer.toString(MinecraftCollector.getDimensionId(k)),
+				k.location().getPath()
+			));
+		}
+		return labels;
+	}
+
+	/**
+	 * Get the ping of the player.
+	 *
+	 * @param player The player.
+	 * @return The ping (in milliseconds).
+	 */
+	private static int getPing(ServerPlayer player) {
+		// Fake players from mods may not have a connection.
+		return player.connection != null ? player.connection.latency() : 0;
+	}
+
+	/**
+	 * Get the metric labels for the player in the dimension. The labels are
+	 * only rebuilt when the player changes dimension.
+	 *
+	 * @param labels The player labels.
+	 * @param dim The dimension of the player.
+	 * @return The metric labels: id, name, dim and dim_id.
+	 */
+	private List<String> getPlayerDimensionLabels(
+		PlayerLabels labels, ResourceKey<Level> dim
+	) {
+		// NOTICE: Concurrent scrapes may both rebuild the labels, which is
+		// harmless since they are equal.
+		PlayerDimension dim_labels = labels.dim;
+		if (dim_labels == null || dim_labels.dim() != dim) {
+			List<String> dim_id_name = this.getDimensionLabels(dim);
+			dim_labels = new PlayerDimension(dim, List.of(
+				labels.labels.get(0),
+				labels.labels.get(1),
+				dim_id_name.get(1),
+				dim_id_name.get(0)
+			));
+			labels.dim = dim_labels;
+		}
+		return dim_labels.labels();
+	}
+
+	/**
+	 * Get the metric labels for the player, creating them if they do not exist.
+	 *
+	 * @param player The player.
+	 * @return The player labels.
+	 */
+	private PlayerLabels getPlayerLabels(ServerPlayer player) {
+		GameProfile profile = player.getGameProfile();
+		PlayerLabels labels = this.player_labels.get(profile.getId());
+		if (labels == null) {
+			labels = this.player_labels.computeIfAbsent(
+				profile.getId(),
+				k -> new PlayerLabels(profile, this.join_order.getAndIncrement())
+			);
+		}
+		return labels;
+	}
+
+	/**
+	 * Create a new metric for the players per dimension.
+	 *
+	 * @return The dimension players metric.
+	 */
+	private static GaugeMetricFamily newDimensionPlayersMetric() {
+		return new GaugeMetricFamily(
+			"mc_dimension_players",
+			"The number of players in each dimension.",
+			List.of("id", "name")
+		);
+	}
+
+	/**
+	 * Create a new metric for the players online.
+	 *
+	 * @return The players online metric.
+	 */
+	private static GaugeMetricFamily newOnlineMetric() {
+		return new GaugeMetricFamily(
+			"mc_players_online",
+			"The number of players connected to the server.",
+			List.of()
+		);
+	}
+
+	/**
+	 * Create a new metric for the ping histogram. This is a gauge histogram
+	 * since it counts the players connected now, so it can decrease.
+	 *
+	 * @param samples The histogram samples.
+	 * @return The players ping metric.
+	 */
+	private static MetricFamilySamples newPingMetric(
+		List<MetricFamilySamples.Sample> samples
+	) {
+		return new MetricFamilySamples(
+			"mc_players_ping_seconds",
+			Collector.Type.GAUGE_HISTOGRAM,
+			"The ping of the players connected to the server.",
+			samples
+		);
+	}
+
+	/**
+	 * Create a new metric for the chunks in view of each player.
+	 *
+	 * @return The player chunks in view metric.
+	 */
+	private static GaugeMetricFamily newPlayerChunksMetric() {
+		return new GaugeMetricFamily(
+			"mc_player_chunks_in_view",
+			"The number of chunks in view of the player.",
+			List.of("id", "name")
+		);
+	}
+
+	/**
+	 * Create a new metric for the dimension of each player.
+	 *
+	 * @return The player dimension metric.
+	 */
+	private static GaugeMetricFamily newPlayerDimensionMetric() {
+		return new GaugeMetricFamily(
+			"mc_player_dimension",
+			"The dimension the player is in.",
+			List.of("id", "name", "dim", "dim_id")
+		);
+	}
+
+	/**
+	 * Create a new metric for the player list.
+	 *
+	 * @return The player list metric.
+	 */
+	private static GaugeMetricFamily newPlayerListMetric() {
+		return new GaugeMetricFamily(
+			"mc_player_list",
+			"The players connected to the server.",
+			List.of("id", "name")
+		);
+	}
+
+	/**
+	 * Create a new metric for the ping of each player.
+	 *
+	 * @return The player ping metric.
+	 */
+	private static GaugeMetricFamily newPlayerPingMetric() {
+		return new GaugeMetricFamily(
+			"mc_player_ping_seconds",
+			"The ping of the player.",
+			List.of("id", "name")
+		);
+	}
+
+	/**
+	 * Forget the labels of disconnected players. The labels are normally
+	 * removed when a player logs out, but a scrape racing with the log out may
+	 * have recreated them.
+	 *
+	 * @param players The connected players.
+	 */
+	private void prunePlayers(List<ServerPlayer> players) {
+		if (this.player_labels.size() <= players.size()) {
+			return;
+		}
+
+		HashSet<UUID> connected = new HashSet<>();
+		for (ServerPlayer player : players) {
+			connected.add(player.getGameProfile().getId());
+		}
+		this.player_labels.keySet().retainAll(connected);
+	}
+
+	/**
+	 * Forget the labels of a player when they log out.
+	 *
+	 * @param player The player.
+	 */
+	public void removePlayer(ServerPlayer player) {
+		this.player_labels.remove(player.getGameProfile().getId());
+	}
+
+	/**
+	 * The PlayerDimension record holds the metric labels of a player in a
+	 * dimension.
+	 *
+	 * @param dim The dimension.
+	 * @param labels The metric labels: id, name, dim and dim_id.
+	 */
+	private record PlayerDimension(ResourceKey<Level> dim, List<String> labels) {
+		// Empty.
+	}
+
+	/**
+	 * The PlayerLabels class holds the metric labels of a player for the
+	 * session.
+	 */
+	private static class PlayerLabels {
+
+		/**
+		 * The labels of the dimension the player was last seen in.
+		 */
+		public volatile PlayerDimension dim;
+
+		/**
+		 * The order the player joined in.
+		 */
+		public final long join_order;
+
+		/**
+		 * The player metric labels: id and name.
+		 */
+		public final List<String> labels;
+
+		/**
+		 * Constructs the instance.
+		 *
+		 * @param profile The player profile.
+		 * @param join_order The order the player joined in.
+		 */
+		public PlayerLabels(GameProfile profile, long join_order) {
+			this.join_order = join_order;
+
+			// NOTICE: Both "id" and "name" are required to be non-null, unlike in
+			// Minecraft 1.19 and earlier.
+			this.labels = List.of(profile.getId().toString(), profile.getName());
+		}
+	}
+
+	/**
+	 * The PlayerSample record holds a player and their labels during a scrape.
+	 *
+	 * @param player The player.
+	 * @param labels The player labels.
+	 */
+	private record PlayerSample(ServerPlayer player, PlayerLabels labels) {
+		// Empty.
+	}
+}
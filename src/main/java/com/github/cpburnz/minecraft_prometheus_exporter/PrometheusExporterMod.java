@@ -1,15 +1,32 @@
 package com.github.cpburnz.minecraft_prometheus_exporter;
 
+import java.io.Closeable;
 import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.util.List;
 
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
 import net.minecraft.resources.ResourceKey;
 import net.minecraft.server.MinecraftServer;
+import net.minecraft.server.level.ServerLevel;
+import net.minecraft.server.level.ServerPlayer;
 import net.minecraft.world.level.Level;
+import net.minecraft.world.level.chunk.LevelChunk;
 import net.minecraftforge.common.MinecraftForge;
 import net.minecraftforge.event.TickEvent;
+import net.minecraftforge.event.entity.EntityJoinLevelEvent;
+import net.minecraftforge.event.entity.EntityLeaveLevelEvent;
+import net.minecraftforge.event.entity.player.PlayerEvent;
+import net.minecraftforge.event.level.ChunkDataEvent;
+import net.minecraftforge.event.level.ChunkEvent;
+import net.minecraftforge.event.level.LevelEvent;
 import net.minecraftforge.event.server.ServerAboutToStartEvent;
 import net.minecraftforge.event.server.ServerStartedEvent;
 import net.minecraftforge.event.server.ServerStoppedEvent;
+import net.minecraftforge.eventbus.api.EventPriority;
 import net.minecraftforge.eventbus.api.SubscribeEvent;
 import net.minecraftforge.fml.LogicalSide;
 import net.minecraftforge.fml.common.Mod;
@@ -37,21 +54,33 @@ public class PrometheusExporterMod {
 	 */
 	public static final String MOD_ID = "prometheus_exporter";
 
+	/**
+	 * The exporter overhead stats. This is only set when collecting metrics
+	 * about the exporter is enabled.
+	 */
+	private ExporterStats exporter_stats;
+
 	/**
 	 * The HTTP server.
 	 */
-	private HTTPServer http_server;
+	private Closeable http_server;
 
 	/**
-	 * The Minecraft metrics collector.
+	 * The Minecraft metrics collector. This is also read by the HTTP server
+	 * threads to serve the tick history.
 	 */
-	private MinecraftCollector mc_collector;
+	private volatile MinecraftCollector mc_collector;
 
 	/**
 	 * The Minecraft server.
 	 */
 	private MinecraftServer mc_server;
 
+	/**
+	 * The remote write pusher.
+	 */
+	private RemoteWriter remote_writer;
+
 	/**
 	 * The server configuration.
 	 */
@@ -75,6 +104,13 @@ public class PrometheusExporterMod {
 	private void closeCollectors() {
 		// Unregister all collectors.
 		CollectorRegistry.defaultRegistry.clear();
+		this.exporter_stats = null;
+
+		// Stop the collector threads.
+		if (this.mc_collector != null) {
+			this.mc_collector.close();
+			this.mc_collector = null;
+		}
 	}
 
 	/**
@@ -85,13 +121,48 @@ public class PrometheusExporterMod {
 		// client will crash because the TCP port will already be in use when trying
 		// to load a second saved world.
 		if (this.http_server != null) {
-			this.http_server.close();
+			try {
+				this.http_server.close();
+			} catch (IOException e) {
+				LOG.warn("Failed to close http_server.", e);
+			}
 			this.http_server = null;
 		} else {
 			LOG.warn("Cannot close http_server=null.");
 		}
 	}
 
+	/**
+	 * Stop pushing the metrics.
+	 */
+	private void closeRemoteWriter() {
+		if (this.remote_writer != null) {
+			CollectorRegistry.defaultRegistry.unregister(this.remote_writer);
+			this.remote_writer.close();
+			this.remote_writer = null;
+		}
+	}
+
+	/**
+	 * Handle a tick history request.
+	 *
+	 * @param exchange The HTTP exchange.
+	 * @throws IOException When the response cannot be sent.
+	 */
+	private void handleHistory(HttpExchange exchange) throws IOException {
+		MinecraftCollector mc_collector = this.mc_collector;
+		TickHistory history = mc_collector != null ? mc_collector.getTickHistory() : null;
+		if (history == null) {
+			try {
+				exchange.sendResponseHeaders(404, -1);
+			} finally {
+				exchange.close();
+			}
+			return;
+		}
+		history.handle(exchange);
+	}
+
 	/**
 	 * Initialize the metrics collectors.
 	 */
@@ -103,11 +174,24 @@ public class PrometheusExporterMod {
 
 		// Collect Minecraft stats.
 		if (this.config.collector_mc) {
-			this.mc_collector = new MinecraftCollector(this.config, this.mc_server);
+			this.mc_collector = new MinecraftCollector(
+				this.config, this.mc_server, this.exporter_stats
+			);
 			this.mc_collector.register();
 		}
 	}
 
+	/**
+	 * Initialize the exporter overhead stats. This must be called before the
+	 * HTTP server and collectors are initialized so they can record into it.
+	 */
+	private void initExporterStats() {
+		if (this.config.collector_exporter) {
+			this.exporter_stats = new ExporterStats();
+			this.exporter_stats.register();
+		}
+	}
+
 	/**
 	 * Initialize the HTTP server.
 	 */
@@ -116,10 +200,128 @@ public class PrometheusExporterMod {
 		// Minecraft server process will not properly terminate.
 		String address = this.config.web_listen_address;
 		int port = this.config.web_listen_port;
-		this.http_server = new HTTPServer(address, port, true);
+		int cache_ttl_ms = this.config.web_cache_ttl_ms;
+		HttpHandler history_handler = this::handleHistory;
+		if (this.config.web_server == ServerConfig.WebServerMode.STREAMING) {
+			this.http_server = new StreamingHttpServer(
+				address, port, CollectorRegistry.defaultRegistry,
+				this.config.web_max_scrapes, this.exporter_stats, history_handler
+			);
+		} else if (cache_ttl_ms > 0) {
+			this.http_server = new ExporterHttpServer(
+				address, port, CollectorRegistry.defaultRegistry, cache_ttl_ms,
+				this.exporter_stats, history_handler
+			);
+		} else {
+			// Create the JDK HTTP server to add the tick history to it.
+			HttpServer server = HttpServer.create(new InetSocketAddress(address, port), 3);
+			server.createContext("/history", history_handler);
+			this.http_server = new HTTPServer.Builder()
+				.withHttpServer(server)
+				.withDaemonThreads(true)
+				.build();
+
+			// Replace the metrics handler of the Prometheus HTTPServer to record
+			// the scrapes.
+			// - NOTICE: The HTTPServer adds its contexts when it is built, so they
+			//   can only be replaced afterward.
+			if (this.exporter_stats != null) {
+				HttpHandler metrics_handler = this.exporter_stats.recordScrapes(
+					new HTTPServer.HTTPMetricHandler(CollectorRegistry.defaultRegistry)
+				);
+				for (String path : List.of("/", "/metrics")) {
+					server.removeContext(path);
+					server.createContext(path, metrics_handler);
+				}
+			}
+		}
 		LOG.info("Listening on {}:{}", address, port);
 	}
 
+	/**
+	 * Start pushing the metrics with remote write.
+	 */
+	private void initRemoteWriter() {
+		if (!this.config.push_enabled) {
+			return;
+		}
+		if (this.config.push_url.isEmpty()) {
+			LOG.warn("push.enabled is set without push.url, not pushing metrics.");
+			return;
+		}
+
+		// NOTICE: A failure to push should not prevent the server from starting.
+		Path dir = this.mc_server.getServerDirectory()
+			.resolve(MOD_ID)
+			.resolve("remote_write");
+		try {
+			this.remote_writer = new RemoteWriter(
+				this.config, dir, CollectorRegistry.defaultRegistry
+			);
+			this.remote_writer.register();
+			LOG.info("Pushing metrics to {}", this.config.push_url);
+		} catch (IOException | IllegalArgumentException e) {
+			LOG.error("Failed to start pushing metrics to {}.", this.config.push_url, e);
+		}
+	}
+
+	/**
+	 * Called when a chunk is read from disk.
+	 *
+	 * @param event The event.
+	 */
+	@SubscribeEvent
+	public void onChunkDataLoad(ChunkDataEvent.Load event) {
+		if (this.mc_collector != null && event.getLevel() instanceof ServerLevel world) {
+			this.mc_collector.onChunkRead(world, event.getChunk().getPos());
+		}
+	}
+
+	/**
+	 * Called when a chunk is saved to disk.
+	 *
+	 * @param event The event.
+	 */
+	@SubscribeEvent
+	public void onChunkDataSave(ChunkDataEvent.Save event) {
+		if (this.mc_collector != null && event.getLevel() instanceof ServerLevel world) {
+			this.mc_collector.onChunkSave(world);
+		}
+	}
+
+	/**
+	 * Called when a chunk is loaded.
+	 *
+	 * @param event The event.
+	 */
+	@SubscribeEvent
+	public void onChunkLoad(ChunkEvent.Load event) {
+		// Only count chunks which reached FULL status.
+		if (
+			this.mc_collector != null
+			&& event.getLevel() instanceof ServerLevel world
+			&& event.getChunk() instanceof LevelChunk chunk
+		) {
+			this.mc_collector.onChunkLoad(world, chunk.getPos(), event.isNewChunk());
+		}
+	}
+
+	/**
+	 * Called when a chunk is unloaded.
+	 *
+	 * @param event The event.
+	 */
+	@SubscribeEvent
+	public void onChunkUnload(ChunkEvent.Unload event) {
+		if (
+			this.mc_collector != null
+			&& event.getLevel() instanceof ServerLevel world
+			&& event.getChunk() instanceof LevelChunk
+		) {
+			this.mc_collector.onChunkUnload(world);
+		}
+	}
+
 	/**
 	 * Called on a dimension tick.
 	 *
@@ -129,12 +331,92 @@ public class PrometheusExporterMod {
 	public void onDimensionTick(TickEvent.LevelTickEvent event) {
 		// Record dimension tick.
 		if (this.mc_collector != null && event.side == LogicalSide.SERVER) {
+			ExporterStats stats = this.exporter_stats;
+			long start_ns = stats != null ? System.nanoTime() : 0;
 			ResourceKey<Level> dim = event.level.dimension();
 			if (event.phase == TickEvent.Phase.START) {
 				this.mc_collector.startDimensionTick(dim);
 			} else if (event.phase == TickEvent.Phase.END) {
 				this.mc_collector.stopDimensionTick(dim);
 			}
+			if (stats != null) {
+				stats.recordDimensionHook(System.nanoTime() - start_ns);
+			}
+		}
+	}
+
+	/**
+	 * Called when a dimension is loaded.
+	 *
+	 * @param event The event.
+	 */
+	@SubscribeEvent
+	public void onDimensionLoad(LevelEvent.Load event) {
+		if (this.mc_collector != null && event.getLevel() instanceof ServerLevel world) {
+			this.mc_collector.onDimensionLoad(world);
+		}
+	}
+
+	/**
+	 * Called when a dimension is unloaded.
+	 *
+	 * @param event The event.
+	 */
+	@SubscribeEvent
+	public void onDimensionUnload(LevelEvent.Unload event) {
+		if (this.mc_collector != null && event.getLevel() instanceof ServerLevel world) {
+			this.mc_collector.onDimensionUnload(world);
+		}
+	}
+
+	/**
+	 * Called when an entity joins a dimension.
+	 *
+	 * <p>This is run at the lowest priority so that the entity is only counted
+	 * if no other mod cancels the event.</p>
+	 *
+	 * @param event The event.
+	 */
+	@SubscribeEvent(priority = EventPriority.LOWEST)
+	public void onEntityJoinLevel(EntityJoinLevelEvent event) {
+		if (this.mc_collector != null && event.getLevel() instanceof ServerLevel world) {
+			this.mc_collector.onEntityJoin(world, event.getEntity());
+		}
+	}
+
+	/**
+	 * Called when an entity leaves a dimension.
+	 *
+	 * @param event The event.
+	 */
+	@SubscribeEvent
+	public void onEntityLeaveLevel(EntityLeaveLevelEvent event) {
+		if (this.mc_collector != null && event.getLevel() instanceof ServerLevel world) {
+			this.mc_collector.onEntityLeave(world, event.getEntity());
+		}
+	}
+
+	/**
+	 * Called when a player logs in.
+	 *
+	 * @param event The event.
+	 */
+	@SubscribeEvent
+	public void onPlayerLoggedIn(PlayerEvent.PlayerLoggedInEvent event) {
+		if (this.mc_collector != null && event.getEntity() instanceof ServerPlayer player) {
+			this.mc_collector.onPlayerLogin(player);
+		}
+	}
+
+	/**
+	 * Called when a player logs out.
+	 *
+	 * @param event The event.
+	 */
+	@SubscribeEvent
+	public void onPlayerLoggedOut(PlayerEvent.PlayerLoggedOutEvent event) {
+		if (this.mc_collector != null && event.getEntity() instanceof ServerPlayer player) {
+			this.mc_collector.onPlayerLogout(player);
 		}
 	}
 
@@ -161,11 +443,17 @@ public class PrometheusExporterMod {
 		// Record the Minecraft server.
 		this.mc_server = event.getServer();
 
+		// Initialize exporter stats.
+		this.initExporterStats();
+
 		// Initialize HTTP server.
 		this.initHttpServer();
 
 		// Initialize collectors.
 		this.initCollectors();
+
+		// Initialize remote write.
+		this.initRemoteWriter();
 	}
 
 	/**
@@ -175,6 +463,9 @@ public class PrometheusExporterMod {
 	 */
 	@SubscribeEvent
 	public void onServerStopped(ServerStoppedEvent event) {
+		// Stop remote write.
+		this.closeRemoteWriter();
+
 		// Unregister collectors.
 		this.closeCollectors();
 
@@ -191,11 +482,16 @@ public class PrometheusExporterMod {
 	public void onServerTick(TickEvent.ServerTickEvent event) {
 		// Record server tick.
 		if (this.mc_collector != null && event.side == LogicalSide.SERVER) {
+			ExporterStats stats = this.exporter_stats;
+			long start_ns = stats != null ? System.nanoTime() : 0;
 			if (event.phase == TickEvent.Phase.START) {
 				this.mc_collector.startServerTick();
 			} else if (event.phase == TickEvent.Phase.END) {
 				this.mc_collector.stopServerTick();
 			}
+			if (stats != null) {
+				stats.recordServerHook(System.nanoTime() - start_ns);
+			}
 		}
 	}
 }
@@ -0,0 +1,666 @@
+package com.github.cpburnz.minecraft_prometheus_exporter;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.List;
+import javax.annotation.Nullable;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.Collector.MetricFamilySamples;
+import io.prometheus.client.exporter.common.TextFormat;
+
+/**
+ * The ProtobufFormat class chooses the exposition format of a scrape, and
+ * writes the Prometheus protobuf format (delimited "io.prometheus.client.
+ * MetricFamily" messages) without a protobuf dependency.
+ *
+ * <p>The encoder writes the fields straight from the collected samples into
+ * one reusable buffer per message nesting level. No message objects are built.
+ * Histograms with native buckets (see {@link NativeHistogram.Samples}) are
+ * written with both their classic and native buckets.</p>
+ *
+ * <p>The samples of a series must be adjacent, which is how the Prometheus
+ * client and the collectors of this mod emit them.</p>
+ */
+public class ProtobufFormat {
+
+	/**
+	 * The content type of the protobuf format.
+	 */
+	public static final String CONTENT_TYPE_PROTOBUF = (
+		"application/vnd.google.protobuf; proto=io.prometheus.client.MetricFamily; "
+		+ "encoding=delimited"
+	);
+
+	/**
+	 * The protobuf counter metric type.
+	 */
+	private static final int TYPE_COUNTER = 0;
+
+	/**
+	 * The protobuf gauge metric type.
+	 */
+	private static final int TYPE_GAUGE = 1;
+
+	/**
+	 * The protobuf gauge histogram metric type.
+	 */
+	private static final int TYPE_GAUGE_HISTOGRAM = 5;
+
+	/**
+	 * The protobuf histogram metric type.
+	 */
+	private static final int TYPE_HISTOGRAM = 4;
+
+	/**
+	 * The protobuf summary metric type.
+	 */
+	private static final int TYPE_SUMMARY = 2;
+
+	/**
+	 * The protobuf untyped metric type.
+	 */
+	private static final int TYPE_UNTYPED = 3;
+
+	/**
+	 * The protobuf 64-bit wire type.
+	 */
+	private static final int WIRE_FIXED64 = 1;
+
+	/**
+	 * The protobuf length delimited wire type.
+	 */
+	private static final int WIRE_LENGTH = 2;
+
+	/**
+	 * The protobuf varint wire type.
+	 */
+	private static final int WIRE_VARINT = 0;
+
+	/**
+	 * The buffer of the message being written: MetricFamily.
+	 */
+	private final ProtoBuffer family;
+
+	/**
+	 * The buffer of the message being written: the LabelPair, Bucket,
+	 * BucketSpan, Quantile or Timestamp within a value, and the packed deltas.
+	 */
+	private final ProtoBuffer item;
+
+	/**
+	 * The buffer of the message being written: Metric.
+	 */
+	private final ProtoBuffer metric;
+
+	/**
+	 * The output stream.
+	 */
+	private final OutputStream output;
+
+	/**
+	 * The buffer of the message being written: the Counter, Gauge, Histogram,
+	 * Summary or Untyped of the metric.
+	 */
+	private final ProtoBuffer value;
+
+	/**
+	 * Constructs the instance.
+	 *
+	 * @param output The output stream.
+	 */
+	private ProtobufFormat(OutputStream output) {
+		this.family = new ProtoBuffer(1 << 14);
+		this.item = new ProtoBuffer(1 << 8);
+		this.metric = new ProtoBuffer(1 << 10);
+		this.output = output;
+		this.value = new ProtoBuffer(1 << 10);
+	}
+
+	/**
+	 * Choose the content type from the Accept header. The protobuf format is
+	 * chosen when accepted, otherwise OpenMetrics or the text format are chosen
+	 * by the Prometheus client.
+	 *
+	 * @param accept_header The Accept header.
+	 * @return The content type.
+	 */
+	public static String chooseContentType(@Nullable String accept_header) {
+		if (
+			accept_header != null
+			&& accept_header.contains("application/vnd.google.protobuf")
+			&& accept_header.contains("proto=io.prometheus.client.MetricFamily")
+			&& accept_header.contains("encoding=delimited")
+		) {
+			return CONTENT_TYPE_PROTOBUF;
+		}
+		return TextFormat.chooseContentType(accept_header);
+	}
+
+	/**
+	 * Get the name of the family in the protobuf format. Like the text format,
+	 * counters and info metrics are named after their samples.
+	 *
+	 * @param family The metric.
+	 * @return The name.
+	 */
+	private static String getName(MetricFamilySamples family) {
+		return switch (family.type) {
+			case COUNTER -> family.name + "_total";
+			case INFO -> family.name + "_info";
+			default -> family.name;
+		};
+	}
+
+	/**
+	 * Get the protobuf type of the family.
+	 *
+	 * @param type The metric type.
+	 * @return The protobuf type.
+	 */
+	private static int getType(Collector.Type type) {
+		return switch (type) {
+			case COUNTER -> TYPE_COUNTER;
+			case GAUGE, INFO, STATE_SET -> TYPE_GAUGE;
+			case GAUGE_HISTOGRAM -> TYPE_GAUGE_HISTOGRAM;
+			case HISTOGRAM -> TYPE_HISTOGRAM;
+			case SUMMARY -> TYPE_SUMMARY;
+			default -> TYPE_UNTYPED;
+		};
+	}
+
+	/**
+	 * Get whether the label identifies a sample within a series rather than the
+	 * series.
+	 *
+	 * @param label The label name.
+	 * @return Whether the label is a bucket or quantile label.
+	 */
+	private static boolean isSampleLabel(String label) {
+		return label.equals("le") || label.equals("quantile");
+	}
+
+	/**
+	 * Get whether two samples belong to the same series.
+	 *
+	 * @param a The first sample.
+	 * @param b The second sample.
+	 * @return Whether the samples belong to the same series.
+	 */
+	private static boolean isSameSeries(
+		MetricFamilySamples.Sample a, MetricFamilySamples.Sample b
+	) {
+		int a_size = a.labelNames.size();
+		int b_size = b.labelNames.size();
+		int i = 0;
+		int j = 0;
+		while (true) {
+			while (i < a_size && isSampleLabel(a.labelNames.get(i))) {
+				i++;
+			}
+			while (j < b_size && isSampleLabel(b.labelNames.get(j))) {
+				j++;
+			}
+			if (i == a_size || j == b_size) {
+				return i == a_size && j == b_size;
+			}
+			if (
+				!a.labelNames.get(i).equals(b.labelNames.get(j))
+				|| !a.labelValues.get(i).equals(b.labelValues.get(j))
+			) {
+				return false;
+			}
+			i++;
+			j++;
+		}
+	}
+
+	/**
+	 * Write the metric family.
+	 *
+	 * @param family The metric.
+	 * @throws IOException When the output cannot be written.
+	 */
+	private void writeFamily(MetricFamilySamples family) throws IOException {
+		if (family.samples.isEmpty()) {
+			return;
+		}
+
+		this.family.reset();
+		this.family.writeString(1, getName(family));
+		this.family.writeString(2, family.help);
+		this.family.writeVarint(3, getType(family.type));
+		if (family.unit != null && !family.unit.isEmpty()) {
+			this.family.writeString(5, family.unit);
+		}
+
+		// Write each series as a metric.
+		MetricFamilySamples.Sample first = null;
+		for (MetricFamilySamples.Sample sample : family.samples) {
+			if (first != null && !isSameSeries(first, sample)) {
+				this.writeMetric(family, first);
+				first = null;
+			}
+			if (first == null) {
+				first = sample;
+				this.metric.reset();
+				this.value.reset();
+				this.writeLabels(sample);
+			}
+			this.writeSample(family, sample);
+		}
+		this.writeMetric(family, first);
+
+		// Write the length delimited message.
+		ProtoBuffer length = this.item;
+		length.reset();
+		length.writeRawVarint(this.family.length);
+		length.writeTo(this.output);
+		this.family.writeTo(this.output);
+	}
+
+	/**
+	 * Write the metrics in the content type.
+	 *
+	 * @param content_type The content type.
+	 * @param output The output stream.
+	 * @param mfs The metrics.
+	 * @throws IOException When the output cannot be written.
+	 */
+	public static void writeFormat(
+		String content_type, OutputStream output, Enumeration<MetricFamilySamples> mfs
+	) throws IOException {
+		if (content_type.equals(CONTENT_TYPE_PROTOBUF)) {
+			ProtobufFormat format = new ProtobufFormat(output);
+			while (mfs.hasMoreElements()) {
+				format.writeFamily(mfs.nextElement());
+			}
+			output.flush();
+		} else {
+			Writer writer = new OutputStreamWriter(output, StandardCharsets.UTF_8);
+			TextFormat.writeFormat(content_type, writer, mfs);
+			writer.flush();
+		}
+	}
+
+	/**
+	 * Write the labels of the series to the metric.
+	 *
+	 * @param sample The first sample of the series.
+	 */
+	private void writeLabels(MetricFamilySamples.Sample sample) {
+		for (int i = 0; i < sample.labelNames.size(); i++) {
+			String name = sample.labelNames.get(i);
+			if (!isSampleLabel(name)) {
+				this.item.reset();
+				this.item.writeString(1, name);
+				this.item.writeString(2, sample.labelValues.get(i));
+				this.metric.writeMessage(1, this.item);
+			}
+		}
+	}
+
+	/**
+	 * Write the finished series to the family.
+	 *
+	 * @param family The metric.
+	 * @param first The first sample of the series.
+	 */
+	private void writeMetric(MetricFamilySamples family, MetricFamilySamples.Sample first) {
+		int field = switch (family.type) {
+			case COUNTER -> 3;
+			case GAUGE, INFO, STATE_SET -> 2;
+			case GAUGE_HISTOGRAM, HISTOGRAM -> 7;
+			case SUMMARY -> 4;
+			default -> 5;
+		};
+
+		if (family instanceof NativeHistogram.Samples natives) {
+			List<String> values = first.labelValues;
+			int size = first.labelNames.size();
+			if (size > 0 && first.labelNames.get(size - 1).equals("le")) {
+				values = values.subList(0, size - 1);
+			}
+			NativeHistogram.Snapshot snapshot = natives.getNative(values);
+			if (snapshot != null) {
+				this.writeNative(snapshot);
+			}
+		}
+
+		this.metric.writeMessage(field, this.value);
+		this.family.writeMessage(4, this.metric);
+	}
+
+	/**
+	 * Write the native buckets to the histogram.
+	 *
+	 * @param snapshot The native buckets.
+	 */
+	private void writeNative(NativeHistogram.Snapshot snapshot) {
+		this.value.writeSint(5, NativeHistogram.SCHEMA);
+		this.value.writeDouble(6, 0.0);
+		this.value.writeVarint(7, snapshot.zero_count);
+
+		// Write the spans of the buckets in use.
+		long[] counts = snapshot.counts;
+		int prev_end = 0;
+		boolean has_span = false;
+		int i = 0;
+		while (i < counts.length) {
+			if (counts[i] == 0) {
+				i++;
+				continue;
+			}
+
+			int start = i;
+			while (i < counts.length && counts[i] != 0) {
+				i++;
+			}
+			int index = snapshot.offset + start;
+			this.item.reset();
+			this.item.writeSint(1, has_span ? index - prev_end : index);
+			this.item.writeVarint(2, i - start);
+			this.value.writeMessage(12, this.item);
+			prev_end = snapshot.offset + i;
+			has_span = true;
+		}
+
+		// A native histogram without observations still needs a span to be
+		// recognized as native.
+		if (!has_span) {
+			this.item.reset();
+			this.item.writeSint(1, 0);
+			this.item.writeVarint(2, 0);
+			this.value.writeMessage(12, this.item);
+			return;
+		}
+
+		// Write the packed deltas of the buckets in use.
+		this.item.reset();
+		long prev_count = 0;
+		for (long count : counts) {
+			if (count != 0) {
+				this.item.writeRawVarint(zigzag(count - prev_count));
+				prev_count = count;
+			}
+		}
+		this.value.writeMessage(13, this.item);
+	}
+
+	/**
+	 * Write the sample to the value of the series.
+	 *
+	 * @param family The metric.
+	 * @param sample The sample.
+	 */
+	private void writeSample(MetricFamilySamples family, MetricFamilySamples.Sample sample) {
+		String name = sample.name;
+		switch (family.type) {
+			case COUNTER -> {
+				if (name.endsWith("_created")) {
+					this.writeTimestamp(3, sample.value);
+				} else {
+					this.value.writeDouble(1, sample.value);
+				}
+			}
+			case GAUGE_HISTOGRAM, HISTOGRAM -> {
+				if (name.endsWith("_bucket")) {
+					String le = null;
+					for (int i = 0; i < sample.labelNames.size(); i++) {
+						if (sample.labelNames.get(i).equals("le")) {
+							le = sample.labelValues.get(i);
+						}
+					}
+					// The +Inf bucket is the sample count.
+					if (le != null && !le.equals("+Inf")) {
+						this.item.reset();
+						this.item.writeVarint(1, (long)sample.value);
+						this.item.writeDouble(2, Double.parseDouble(le));
+						this.value.writeMessage(3, this.item);
+					}
+				} else if (name.endsWith("_count") || name.endsWith("_gcount")) {
+					this.value.writeVarint(1, (long)sample.value);
+				} else if (name.endsWith("_sum") || name.endsWith("_gsum")) {
+					this.value.writeDouble(2, sample.value);
+				} else if (name.endsWith("_created")) {
+					this.writeTimestamp(15, sample.value);
+				}
+			}
+			case SUMMARY -> {
+				int index = sample.labelNames.indexOf("quantile");
+				if (index != -1) {
+					this.item.reset();
+					this.item.writeDouble(1, Double.parseDouble(sample.labelValues.get(index)));
+					this.item.writeDouble(2, sample.value);
+					this.value.writeMessage(3, this.item);
+				} else if (name.endsWith("_count")) {
+					this.value.writeVarint(1, (long)sample.value);
+				} else if (name.endsWith("_sum")) {
+					this.value.writeDouble(2, sample.value);
+				} else if (name.endsWith("_created")) {
+					this.writeTimestamp(4, sample.value);
+				}
+			}
+			default -> this.value.writeDouble(1, sample.value);
+		}
+	}
+
+	/**
+	 * Write a created timestamp to the value of the series.
+	 *
+	 * @param field The field number.
+	 * @param seconds The time since the epoch (in seconds).
+	 */
+	private void writeTimestamp(int field, double seconds) {
+		long whole = (long)Math.floor(seconds);
+		this.item.reset();
+		this.item.writeVarint(1, whole);
+		this.item.writeVarint(2, Math.round((seconds - whole) * 1e9));
+		this.value.writeMessage(field, this.item);
+	}
+
+	/**
+	 * Encode a signed integer with zigzag encoding.
+	 *
+	 * @param value The value.
+	 * @return The encoded value.
+	 */
+	private static long zigzag(long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+
+	/**
+	 * The ProtoBuffer class is a growable buffer to encode a protobuf message.
+	 * This is also used to encode remote write requests.
+	 */
+	static class ProtoBuffer {
+
+		/**
+		 * The encoded bytes.
+		 */
+		private byte[] bytes;
+
+		/**
+		 * The number of encoded bytes.
+		 */
+		public int length;
+
+		/**
+		 * Constructs the instance.
+		 *
+		 * @param capacity The initial capacity.
+		 */
+		public ProtoBuffer(int capacity) {
+			this.bytes = new byte[capacity];
+		}
+
+		/**
+		 * Make room for more bytes.
+		 *
+		 * @param extra The number of bytes to make room for.
+		 */
+		private void ensure(int extra) {
+			if (this.length + extra > this.bytes.length) {
+				this.bytes = Arrays.copyOf(
+					this.bytes, Math.max(this.bytes.length * 2, this.length + extra)
+				);
+			}
+		}
+
+		/**
+		 * Get the backing array. Only the first {@link #length} bytes are encoded.
+		 *
+		 * @return The backing array.
+		 */
+		public byte[] getBytes() {
+			return this.bytes;
+		}
+
+		/**
+		 * Clear the buffer.
+		 */
+		public void reset() {
+			this.length = 0;
+		}
+
+		/**
+		 * Write a double field.
+		 *
+		 * @param field The field number.
+		 * @param value The value.
+		 */
+		public void writeDouble(int field, double value) {
+			this.writeTag(field, WIRE_FIXED64);
+			long bits = Double.doubleToRawLongBits(value);
+			this.ensure(8);
+			for (int i = 0; i < 8; i++) {
+				this.bytes[this.length++] = (byte)(bits >>> (i * 8));
+			}
+		}
+
+		/**
+		 * Write an embedded message field.
+		 *
+		 * @param field The field number.
+		 * @param message The encoded message.
+		 */
+		public void writeMessage(int field, ProtoBuffer message) {
+			this.writeTag(field, WIRE_LENGTH);
+			this.writeRawVarint(message.length);
+			this.ensure(message.length);
+			System.arraycopy(message.bytes, 0, this.bytes, this.length, message.length);
+			this.length += message.length;
+		}
+
+		/**
+		 * Write a varint without a tag.
+		 *
+		 * @param value The value.
+		 */
+		public void writeRawVarint(long value) {
+			this.ensure(10);
+			while ((value & ~0x7FL) != 0) {
+				this.bytes[this.length++] = (byte)((value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+			this.bytes[this.length++] = (byte)value;
+		}
+
+		/**
+		 * Write a signed integer field with zigzag encoding.
+		 *
+		 * @param field The field number.
+		 * @param value The value.
+		 */
+		public void writeSint(int field, long value) {
+			this.writeVarint(field, zigzag(value));
+		}
+
+		/**
+		 * Write a string field. The string is encoded as UTF-8 without an
+		 * intermediate byte array.
+		 *
+		 * @param field The field number.
+		 * @param value The value.
+		 */
+		public void writeString(int field, String value) {
+			this.writeTag(field, WIRE_LENGTH);
+			int size = 0;
+			int count = value.length();
+			for (int i = 0; i < count; i++) {
+				char c = value.charAt(i);
+				if (c < 0x80) {
+					size += 1;
+				} else if (c < 0x800) {
+					size += 2;
+				} else if (Character.isHighSurrogate(c) && i + 1 < count) {
+					size += 4;
+					i++;
+				} else {
+					size += 3;
+				}
+			}
+			this.writeRawVarint(size);
+			this.ensure(size);
+
+			byte[] bytes = this.bytes;
+			int pos = this.length;
+			for (int i = 0; i < count; i++) {
+				char c = value.charAt(i);
+				if (c < 0x80) {
+					bytes[pos++] = (byte)c;
+				} else if (c < 0x800) {
+					bytes[pos++] = (byte)(0xC0 | (c >> 6));
+					bytes[pos++] = (byte)(0x80 | (c & 0x3F));
+				} else if (Character.isHighSurrogate(c) && i + 1 < count) {
+					int cp = Character.toCodePoint(c, value.charAt(++i));
+					bytes[pos++] = (byte)(0xF0 | (cp >> 18));
+					bytes[pos++] = (byte)(0x80 | ((cp >> 12) & 0x3F));
+					bytes[pos++] = (byte)(0x80 | ((cp >> 6) & 0x3F));
+					bytes[pos++] = (byte)(0x80 | (cp & 0x3F));
+				} else {
+					bytes[pos++] = (byte)(0xE0 | (c >> 12));
+					bytes[pos++] = (byte)(0x80 | ((c >> 6) & 0x3F));
+					bytes[pos++] = (byte)(0x80 | (c & 0x3F));
+				}
+			}
+			this.length = pos;
+		}
+
+		/**
+		 * Write a field tag.
+		 *
+		 * @param field The field number.
+		 * @param wire_type The wire type.
+		 */
+		private void writeTag(int field, int wire_type) {
+			this.writeRawVarint((field << 3) | wire_type);
+		}
+
+		/**
+		 * Copy the encoded bytes to the output.
+		 *
+		 * @param output The output stream.
+		 * @throws IOException When the output cannot be written.
+		 */
+		public void writeTo(OutputStream output) throws IOException {
+			output.write(this.bytes, 0, this.length);
+		}
+
+		/**
+		 * Write a varint field.
+		 *
+		 * @param field The field number.
+		 * @param value The value.
+		 */
+		public void writeVarint(int field, long value) {
+			this.writeTag(field, WIRE_VARINT);
+			this.writeRawVarint(value);
+		}
+	}
+}
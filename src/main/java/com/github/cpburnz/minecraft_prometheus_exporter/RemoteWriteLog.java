@@ -0,0 +1,536 @@
+package com.github.cpburnz.minecraft_prometheus_exporter;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.zip.CRC32;
+import javax.annotation.Nullable;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * The RemoteWriteLog class buffers the pending remote write batches in a log of
+ * memory-mapped segment files, so that a receiver outage neither loses the
+ * batches nor grows the heap.
+ *
+ * <p>Each segment is a fixed-size file with a header holding its write and read
+ * positions, followed by the records: the length, the CRC32 and the bytes of a
+ * batch. Batches are appended to the newest segment, and read from the oldest.
+ * Segments are deleted once read. When the log is full, the oldest segment is
+ * dropped. The positions are stored in the mapped segments, so the pending
+ * batches survive a restart.</p>
+ */
+public class RemoteWriteLog implements Closeable {
+
+	/**
+	 * The logger to use.
+	 */
+	private static final Logger LOG = LogManager.getLogger();
+
+	/**
+	 * The size of the segment header: the magic number, the write position and
+	 * the read position.
+	 */
+	private static final int HEADER_SIZE = 12;
+
+	/**
+	 * The segment magic number.
+	 */
+	private static final int MAGIC = 0x50455257;
+
+	/**
+	 * The offset of the read position in the segment header.
+	 */
+	private static final int READ_POS = 8;
+
+	/**
+	 * The size of the record header: the length and the CRC32.
+	 */
+	private static final int RECORD_HEADER_SIZE = 8;
+
+	/**
+	 * The size of each segment file.
+	 */
+	public static final int SEGMENT_SIZE = 4 << 20;
+
+	/**
+	 * The file name suffix of the segments.
+	 */
+	private static final String SUFFIX = ".seg";
+
+	/**
+	 * The offset of the write position in the segment header.
+	 */
+	private static final int WRITE_POS = 4;
+
+	/**
+	 * The directory of the segments.
+	 */
+	private final Path dir;
+
+	/**
+	 * The number of batches dropped because the log was full or corrupt.
+	 */
+	private long dropped;
+
+	/**
+	 * The maximum number of segments.
+	 */
+	private final int max_segments;
+
+	/**
+	 * The sequence number of the next segment.
+	 */
+	private long next_seq;
+
+	/**
+	 * The segments from oldest to newest.
+	 */
+	private final ArrayDeque<Segment> segments;
+
+	/**
+	 * Constructs the instance, and opens the existing segments.
+	 *
+	 * @param dir The directory of the segments.
+	 * @param max_bytes The maximum size of the log (in bytes).
+	 * @throws IOException When the directory cannot be read.
+	 */
+	public RemoteWriteLog(Path dir, long max_bytes) throws IOException {
+		this.dir = dir;
+		this.max_segments = (int)Math.max(2, max_bytes / SEGMENT_SIZE);
+		this.segments = new ArrayDeque<>();
+
+		// Open the existing segments in order.
+		Files.createDirectories(dir);
+		ArrayList<Path> paths = new ArrayList<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*" + SUFFIX)) {
+			stream.forEach(paths::add);
+		}
+		paths.sort(null);
+		for (Path path : paths) {
+			String name = path.getFileName().toString();
+			long seq;
+			try {
+				seq = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+			} catch (NumberFormatException e) {
+				continue;
+			}
+
+			Segment segment = Segment.open(path, seq);
+			if (segment == null) {
+				LOG.warn("Discarding invalid remote write segment {}.", path);
+				deleteFile(path);
+			} else if (segment.isRead()) {
+				deleteFile(path);
+			} else {
+				this.segments.add(segment);
+			}
+			this.next_seq = Math.max(this.next_seq, seq + 1);
+		}
+	}
+
+	/**
+	 * Advance past a batch once it was sent (or given up on). This does nothing
+	 * if the batch is no longer the oldest, because its segment was dropped while
+	 * the batch was being sent.
+	 *
+	 * @param batch The batch from {@link #peek()}.
+	 */
+	public synchronized void advance(Batch batch) {
+		Segment segment = this.segments.peekFirst();
+		if (
+			segment == null
+			|| segment.seq != batch.seq
+			|| segment.getReadPos() != batch.read_pos
+		) {
+			return;
+		}
+
+		segment.setReadPos(batch.read_pos + RECORD_HEADER_SIZE + batch.bytes.length);
+		this.pruneRead();
+	}
+
+	/**
+	 * Append a batch.
+	 *
+	 * @param batch The batch.
+	 * @return Whether the batch was appended. Batches larger than a segment are
+	 * not.
+	 * @throws IOException When a new segment cannot be created.
+	 */
+	public synchronized boolean append(byte[] batch) throws IOException {
+		int size = RECORD_HEADER_SIZE + batch.length;
+		if (HEADER_SIZE + size > SEGMENT_SIZE) {
+			this.dropped++;
+			return false;
+		}
+
+		Segment segment = this.segments.peekLast();
+		if (segment == null || segment.getWritePos() + size > SEGMENT_SIZE) {
+			// Drop the oldest segment when full.
+			if (this.segments.size() >= this.max_segments) {
+				Segment oldest = this.segments.removeFirst();
+				this.dropped += oldest.countUnread();
+				deleteFile(oldest.path);
+			}
+
+			Path path = this.dir.resolve(String.format("%016d%s", this.next_seq, SUFFIX));
+			segment = Segment.create(path, this.next_seq);
+			this.next_seq++;
+			this.segments.addLast(segment);
+		}
+
+		CRC32 crc = new CRC32();
+		crc.update(batch);
+		int write_pos = segment.getWritePos();
+		segment.buffer.putInt(write_pos, batch.length);
+		segment.buffer.putInt(write_pos + 4, (int)crc.getValue());
+		segment.buffer.put(write_pos + RECORD_HEADER_SIZE, batch);
+
+		// Publish the record after it is written.
+		segment.setWritePos(write_pos + size);
+		return true;
+	}
+
+	/**
+	 * Stop using the segments. The mapped segments are written back by the OS.
+	 */
+	@Override
+	public synchronized void close() {
+		for (Segment segment : this.segments) {
+			segment.buffer.force();
+		}
+		this.segments.clear();
+	}
+
+	/**
+	 * Delete a segment file. A segment may not be deletable while it is mapped on
+	 * some platforms, in which case it is deleted on the next start since it was
+	 * read.
+	 *
+	 * @param path The segment file.
+	 */
+	private static void deleteFile(Path path) {
+		try {
+			Files.deleteIfExists(path);
+		} catch (IOException e) {
+			LOG.debug("Failed to delete remote write segment {}.", path, e);
+		}
+	}
+
+	/**
+	 * @return The number of batches dropped because the log was full or corrupt.
+	 */
+	public synchronized long getDropped() {
+		return this.dropped;
+	}
+
+	/**
+	 * @return The number of bytes pending.
+	 */
+	public synchronized long getPendingBytes() {
+		long pending = 0;
+		for (Segment segment : this.segments) {
+			pending += segment.getWritePos() - segment.getReadPos();
+		}
+		return pending;
+	}
+
+	/**
+	 * Get the oldest batch without advancing past it.
+	 *
+	 * @return The batch, or {@code null} when none is pending.
+	 */
+	@Nullable
+	public synchronized Batch peek() {
+		while (true) {
+			Segment segment = this.segments.peekFirst();
+			if (segment == null) {
+				return null;
+			}
+
+			int read_pos = segment.getReadPos();
+			if (read_pos >= segment.getWritePos()) {
+				if (!this.pruneRead()) {
+					return null;
+				}
+				continue;
+			}
+
+			// Drop the rest of the segment if the record is corrupt.
+			int record_end = segment.getRecordEnd(read_pos, segment.getWritePos());
+			if (record_end == -1) {
+				this.dropped++;
+				segment.truncate(read_pos);
+				continue;
+			}
+
+			int length = record_end - read_pos - RECORD_HEADER_SIZE;
+			byte[] batch = new byte[length];
+			segment.buffer.get(read_pos + RECORD_HEADER_SIZE, batch);
+			CRC32 crc = new CRC32();
+			crc.update(batch);
+			if ((int)crc.getValue() != segment.buffer.getInt(read_pos + 4)) {
+				LOG.warn("Discarding corrupt remote write batch in {}.", segment.path);
+				this.dropped++;
+				segment.setReadPos(record_end);
+				continue;
+			}
+			return new Batch(batch, segment.seq, read_pos);
+		}
+	}
+
+	/**
+	 * Delete the oldest segment if it was read, and is not the segment being
+	 * written.
+	 *
+	 * @return Whether a segment was deleted.
+	 */
+	private boolean pruneRead() {
+		Segment segment = this.segments.peekFirst();
+		if (
+			segment != null
+			&& segment.isRead()
+			&& this.segments.size() > 1
+		) {
+			this.segments.removeFirst();
+			deleteFile(segment.path);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * The Batch class holds a batch read from the log, and where it was read
+	 * from.
+	 */
+	public static class Batch {
+
+		/**
+		 * The batch.
+		 */
+		public final byte[] bytes;
+
+		/**
+		 * The position of the batch record in its segment.
+		 */
+		private final int read_pos;
+
+		/**
+		 * The sequence number of the segment of the batch.
+		 */
+		private final long seq;
+
+		/**
+		 * Constructs the instance.
+		 *
+		 * @param bytes The batch.
+		 * @param seq The sequence number of the segment of the batch.
+		 * @param read_pos The position of the batch record in its segment.
+		 */
+		private Batch(byte[] bytes, long seq, int read_pos) {
+			this.bytes = bytes;
+			this.read_pos = read_pos;
+			this.seq = seq;
+		}
+	}
+
+	/**
+	 * The Segment class holds a mapped segment file.
+	 */
+	private static class Segment {
+
+		/**
+		 * The mapped file.
+		 */
+		public final MappedByteBuffer buffer;
+
+		/**
+		 * The segment file.
+		 */
+		public final Path path;
+
+		/**
+		 * The sequence number of the segment.
+		 */
+		public final long seq;
+
+		/**
+		 * Constructs the instance.
+		 *
+		 * @param path The segment file.
+		 * @param seq The sequence number of the segment.
+		 * @param buffer The mapped file.
+		 */
+		private Segment(Path path, long seq, MappedByteBuffer buffer) {
+			this.buffer = buffer;
+			this.path = path;
+			this.seq = seq;
+		}
+
+		/**
+		 * Count the unread records. The segment is truncated at the first corrupt
+		 * record.
+		 *
+		 * @return The number of unread records.
+		 */
+		public int countUnread() {
+			int count = 0;
+			int pos = this.getReadPos();
+			int end = this.getWritePos();
+			while (pos < end) {
+				int next = this.getRecordEnd(pos, end);
+				if (next == -1) {
+					this.truncate(pos);
+					break;
+				}
+				pos = next;
+				count++;
+			}
+			return count;
+		}
+
+		/**
+		 * Create a new segment.
+		 *
+		 * @param path The segment file.
+		 * @param seq The sequence number of the segment.
+		 * @return The segment.
+		 * @throws IOException When the file cannot be created.
+		 */
+		public static Segment create(Path path, long seq) throws IOException {
+			Segment segment = new Segment(path, seq, map(path));
+			segment.buffer.putInt(0, MAGIC);
+			segment.setReadPos(HEADER_SIZE);
+			segment.setWritePos(HEADER_SIZE);
+			return segment;
+		}
+
+		/**
+		 * @return The read position.
+		 */
+		public int getReadPos() {
+			return this.buffer.getInt(READ_POS);
+		}
+
+		/**
+		 * Get the end of a record. A record is corrupt when its length (e.g., from
+		 * a torn page after a crash) is negative or runs past the written records.
+		 *
+		 * @param pos The position of the record.
+		 * @param end The write position.
+		 * @return The position after the record, or -1 if it is corrupt.
+		 */
+		public int getRecordEnd(int pos, int end) {
+			if (end - pos < RECORD_HEADER_SIZE) {
+				return -1;
+			}
+			int length = this.buffer.getInt(pos);
+			if (length < 0 || length > end - pos - RECORD_HEADER_SIZE) {
+				return -1;
+			}
+			return pos + RECORD_HEADER_SIZE + length;
+		}
+
+		/**
+		 * @return The write position.
+		 */
+		public int getWritePos() {
+			return this.buffer.getInt(WRITE_POS);
+		}
+
+		/**
+		 * @return Whether all records were read.
+		 */
+		public boolean isRead() {
+			return this.getReadPos() >= this.getWritePos();
+		}
+
+		/**
+		 * Map a segment file.
+		 *
+		 * @param path The segment file.
+		 * @return The mapped file.
+		 * @throws IOException When the file cannot be mapped.
+		 */
+		private static MappedByteBuffer map(Path path) throws IOException {
+			try (FileChannel channel = FileChannel.open(
+				path,
+				StandardOpenOption.CREATE,
+				StandardOpenOption.READ,
+				StandardOpenOption.WRITE
+			)) {
+				// The mapping stays valid after the channel is closed.
+				return channel.map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE);
+			}
+		}
+
+		/**
+		 * Open an existing segment.
+		 *
+		 * @param path The segment file.
+		 * @param seq The sequence number of the segment.
+		 * @return The segment, or {@code null} if it is invalid.
+		 * @throws IOException When the file cannot be mapped.
+		 */
+		@Nullable
+		public static Segment open(Path path, long seq) throws IOException {
+			if (Files.size(path) != SEGMENT_SIZE) {
+				return null;
+			}
+
+			Segment segment = new Segment(path, seq, map(path));
+			int read_pos = segment.getReadPos();
+			int write_pos = segment.getWritePos();
+			if (
+				segment.buffer.getInt(0) != MAGIC
+				|| read_pos < HEADER_SIZE
+				|| write_pos > SEGMENT_SIZE
+				|| read_pos > write_pos
+			) {
+				return null;
+			}
+
+			// Check the unread records before trusting their lengths.
+			segment.countUnread();
+			return segment;
+		}
+
+		/**
+		 * Set the read position.
+		 *
+		 * @param pos The read position.
+		 */
+		public void setReadPos(int pos) {
+			this.buffer.putInt(READ_POS, pos);
+		}
+
+		/**
+		 * Set the write position.
+		 *
+		 * @param pos The write position.
+		 */
+		public void setWritePos(int pos) {
+			this.buffer.putInt(WRITE_POS, pos);
+		}
+
+		/**
+		 * Truncate the segment at a corrupt record, dropping it and the records
+		 * after it.
+		 *
+		 * @param pos The position of the corrupt record.
+		 */
+		public void truncate(int pos) {
+			LOG.warn("Truncating corrupt remote write segment {} at {}.", this.path, pos);
+			this.setWritePos(pos);
+		}
+	}
+}
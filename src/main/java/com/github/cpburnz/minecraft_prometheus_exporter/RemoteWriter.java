@@ -0,0 +1,505 @@
+package com.github.cpburnz.minecraft_prometheus_exporter;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.CounterMetricFamily;
+import io.prometheus.client.GaugeMetricFamily;
+
+/**
+ * The RemoteWriter class pushes the metrics to a Prometheus remote write
+ * endpoint.
+ *
+ * <p>At each interval, the registry is collected on the push thread, and
+ * encoded into snappy-compressed WriteRequest batches with one sample per
+ * series. The batches are appended to the {@link RemoteWriteLog} on disk, and
+ * a second thread sends them in order. When the endpoint is unavailable, the
+ * sender backs off exponentially while the batches accumulate on disk.</p>
+ */
+public class RemoteWriter extends Collector implements Collector.Describable, Closeable {
+
+	/**
+	 * The logger to use.
+	 */
+	private static final Logger LOG = LogManager.getLogger();
+
+	/**
+	 * The maximum retry delay (in milliseconds).
+	 */
+	private static final long BACKOFF_MAX_MS = 60_000;
+
+	/**
+	 * The initial retry delay (in milliseconds).
+	 */
+	private static final long BACKOFF_MIN_MS = 1_000;
+
+	/**
+	 * The uncompressed size to split the batches at (in bytes).
+	 */
+	private static final int BATCH_BYTES = 1 << 20;
+
+	/**
+	 * How often to check for batches to send (in milliseconds).
+	 */
+	private static final long DRAIN_INTERVAL_MS = 1_000;
+
+	/**
+	 * The timeout of each request.
+	 */
+	private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(30);
+
+	/**
+	 * The remote write protocol version.
+	 */
+	private static final String REMOTE_WRITE_VERSION = "0.1.0";
+
+	/**
+	 * The metric types whose "_created" samples are dropped. These are not
+	 * useful as series, and the stock exporters do not push them either.
+	 */
+	private static final List<Type> TYPES_WITH_CREATED = List.of(
+		Type.COUNTER, Type.HISTOGRAM, Type.SUMMARY
+	);
+
+	/**
+	 * The current retry delay (in milliseconds). Only accessed by the send thread.
+	 */
+	private long backoff_ms;
+
+	/**
+	 * The number of batches rejected by the endpoint.
+	 */
+	private final LongAdder batches_rejected;
+
+	/**
+	 * The number of failed sends which will be retried.
+	 */
+	private final LongAdder batches_retried;
+
+	/**
+	 * The number of batches sent.
+	 */
+	private final LongAdder batches_sent;
+
+	/**
+	 * The HTTP client.
+	 */
+	private final HttpClient client;
+
+	/**
+	 * The endpoint URI.
+	 */
+	private final URI endpoint;
+
+	/**
+	 * The threads taking snapshots and sending batches.
+	 */
+	private final ScheduledExecutorService executor;
+
+	/**
+	 * The "instance" label.
+	 */
+	private final String instance;
+
+	/**
+	 * The "job" label.
+	 */
+	private final String job;
+
+	/**
+	 * The buffer for each encoded Label. Only accessed by the snapshot thread.
+	 */
+	private final ProtobufFormat.ProtoBuffer label_buffer;
+
+	/**
+	 * The time of the last successful send (in milliseconds since the epoch).
+	 */
+	private volatile long last_sent_ms;
+
+	/**
+	 * The buffered batches.
+	 */
+	private final RemoteWriteLog log;
+
+	/**
+	 * The registry to push.
+	 */
+	private final CollectorRegistry registry;
+
+	/**
+	 * The buffer for the encoded WriteRequest. Only accessed by the snapshot
+	 * thread.
+	 */
+	private final ProtobufFormat.ProtoBuffer request_buffer;
+
+	/**
+	 * The time to retry sending at (in milliseconds since the epoch). Only
+	 * accessed by the send thread.
+	 */
+	private long retry_at_ms;
+
+	/**
+	 * The buffer for each encoded TimeSeries. Only accessed by the snapshot
+	 * thread.
+	 */
+	private final ProtobufFormat.ProtoBuffer series_buffer;
+
+	/**
+	 * Constructs the instance, and starts pushing.
+	 *
+	 * @param config The mod configuration.
+	 * @param dir The directory to buffer the batches in.
+	 * @param registry The registry to push.
+	 * @throws IOException When the buffer cannot be opened.
+	 */
+	public RemoteWriter(
+		ServerConfig config, Path dir, CollectorRegistry registry
+	) throws IOException {
+		this.batches_rejected = new LongAdder();
+		this.batches_retried = new LongAdder();
+		this.batches_sent = new LongAdder();
+		this.endpoint = URI.create(config.push_url);
+		this.instance = config.push_instance.isEmpty() ? getHostName() : config.push_instance;
+		this.job = config.push_job;
+		this.label_buffer = new ProtobufFormat.ProtoBuffer(256);
+		this.log = new RemoteWriteLog(dir, (long)config.push_buffer_mb << 20);
+		this.registry = registry;
+		this.request_buffer = new ProtobufFormat.ProtoBuffer(BATCH_BYTES + (BATCH_BYTES >> 2));
+		this.series_buffer = new ProtobufFormat.ProtoBuffer(1024);
+
+		this.client = HttpClient.newBuilder()
+			.connectTimeout(REQUEST_TIMEOUT)
+			.version(HttpClient.Version.HTTP_1_1)
+			.build();
+
+		AtomicInteger thread_count = new AtomicInteger();
+		this.executor = Executors.newScheduledThreadPool(2, (runnable) -> {
+			Thread thread = new Thread(
+				runnable, "prometheus-exporter-push-" + thread_count.getAndIncrement()
+			);
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.executor.scheduleAtFixedRate(
+			this::snapshot, config.push_interval_s, config.push_interval_s, TimeUnit.SECONDS
+		);
+		this.executor.scheduleWithFixedDelay(
+			this::drain, DRAIN_INTERVAL_MS, DRAIN_INTERVAL_MS, TimeUnit.MILLISECONDS
+		);
+	}
+
+	/**
+	 * Stop pushing. The unsent batches stay on disk, and are sent after the next
+	 * start.
+	 */
+	@Override
+	public void close() {
+		this.executor.shutdownNow();
+		try {
+			if (!this.executor.awaitTermination(5, TimeUnit.SECONDS)) {
+				LOG.warn("Timed out waiting for the remote write threads to stop.");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		this.log.close();
+	}
+
+	/**
+	 * Return the remote write metrics.
+	 *
+	 * @return The metrics.
+	 */
+	@Override
+	public List<MetricFamilySamples> collect() {
+		CounterMetricFamily batches = newBatchesMetric();
+		batches.addMetric(List.of("dropped"), this.log.getDropped());
+		batches.addMetric(List.of("rejected"), this.batches_rejected.sum());
+		batches.addMetric(List.of("retried"), this.batches_retried.sum());
+		batches.addMetric(List.of("sent"), this.batches_sent.sum());
+
+		GaugeMetricFamily pending = newPendingBytesMetric();
+		pending.addMetric(List.of(), this.log.getPendingBytes());
+
+		GaugeMetricFamily last_sent = newLastSentMetric();
+		last_sent.addMetric(List.of(), this.last_sent_ms / 1000.0);
+
+		return List.of(batches, pending, last_sent);
+	}
+
+	/**
+	 * Return the remote write metric descriptions.
+	 *
+	 * @return The metric descriptions.
+	 */
+	@Override
+	public List<MetricFamilySamples> describe() {
+		return List.of(newBatchesMetric(), newPendingBytesMetric(), newLastSentMetric());
+	}
+
+	/**
+	 * Send the buffered batches in order until one fails.
+	 */
+	private void drain() {
+		if (System.currentTimeMillis() < this.retry_at_ms) {
+			return;
+		}
+
+		try {
+			// NOTICE: The log is not locked while a batch is sent, so the batch is
+			// only advanced past if it is still the oldest.
+			RemoteWriteLog.Batch batch;
+			while ((batch = this.log.peek()) != null) {
+				if (!this.send(batch)) {
+					return;
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (Exception e) {
+			LOG.error("Failed to send remote write batches.", e);
+		}
+	}
+
+	/**
+	 * Encode a sample as a TimeSeries into the request. The labels are sorted by
+	 * name as required by the protocol.
+	 *
+	 * @param sample The sample.
+	 * @param timestamp_ms The timestamp to use when the sample has none.
+	 */
+	private void encodeSeries(MetricFamilySamples.Sample sample, long timestamp_ms) {
+		int count = sample.labelNames.size();
+		ArrayList<String[]> labels = new ArrayList<>(count + 3);
+		labels.add(new String[] {"__name__", sample.name});
+		boolean has_instance = false;
+		boolean has_job = false;
+		for (int i = 0; i < count; i++) {
+			String name = sample.labelNames.get(i);
+			has_instance |= name.equals("instance");
+			has_job |= name.equals("job");
+			labels.add(new String[] {name, sample.labelValues.get(i)});
+		}
+		if (!has_instance) {
+			labels.add(new String[] {"instance", this.instance});
+		}
+		if (!has_job) {
+			labels.add(new String[] {"job", this.job});
+		}
+		labels.sort((a, b) -> a[0].compareTo(b[0]));
+
+		// TimeSeries: labels = 1, samples = 2.
+		ProtobufFormat.ProtoBuffer series = this.series_buffer;
+		ProtobufFormat.ProtoBuffer item = this.label_buffer;
+		series.reset();
+		for (String[] label : labels) {
+			// Label: name = 1, value = 2.
+			item.reset();
+			item.writeString(1, label[0]);
+			item.writeString(2, label[1]);
+			series.writeMessage(1, item);
+		}
+
+		// Sample: value = 1, timestamp = 2.
+		item.reset();
+		item.writeDouble(1, sample.value);
+		item.writeVarint(2, sample.timestampMs != null ? sample.timestampMs : timestamp_ms);
+		series.writeMessage(2, item);
+
+		// WriteRequest: timeseries = 1.
+		this.request_buffer.writeMessage(1, series);
+	}
+
+	/**
+	 * Compress the request, and append it to the buffer.
+	 *
+	 * @throws IOException When the buffer cannot be written.
+	 */
+	private void flushRequest() throws IOException {
+		ProtobufFormat.ProtoBuffer request = this.request_buffer;
+		if (request.length == 0) {
+			return;
+		}
+
+		byte[] batch = Snappy.compress(request.getBytes(), request.length);
+		request.reset();
+		if (!this.log.append(batch)) {
+			LOG.warn("Dropped a remote write batch of {} bytes.", batch.length);
+		}
+	}
+
+	/**
+	 * Get the host name to use as the "instance" label.
+	 *
+	 * @return The host name.
+	 */
+	private static String getHostName() {
+		try {
+			return InetAddress.getLocalHost().getHostName();
+		} catch (IOException e) {
+			LOG.warn("Failed to get the host name.", e);
+			return "localhost";
+		}
+	}
+
+	/**
+	 * Create a new metric for the batches.
+	 *
+	 * @return The batches metric.
+	 */
+	private static CounterMetricFamily newBatchesMetric() {
+		return new CounterMetricFamily(
+			"mc_exporter_remote_write_batches_total",
+			"The number of remote write batches by result.",
+			List.of("result")
+		);
+	}
+
+	/**
+	 * Create a new metric for the time of the last successful send.
+	 *
+	 * @return The last sent metric.
+	 */
+	private static GaugeMetricFamily newLastSentMetric() {
+		return new GaugeMetricFamily(
+			"mc_exporter_remote_write_last_sent_timestamp_seconds",
+			"The time of the last successful remote write (in seconds since the "
+			+ "epoch).",
+			List.of()
+		);
+	}
+
+	/**
+	 * Create a new metric for the pending bytes.
+	 *
+	 * @return The pending bytes metric.
+	 */
+	private static GaugeMetricFamily newPendingBytesMetric() {
+		return new GaugeMetricFamily(
+			"mc_exporter_remote_write_pending_bytes",
+			"The number of compressed bytes buffered on disk waiting to be sent.",
+			List.of()
+		);
+	}
+
+	/**
+	 * Send a batch.
+	 *
+	 * @param batch The compressed batch.
+	 * @return Whether to send the next batch.
+	 * @throws InterruptedException When the thread is interrupted.
+	 */
+	private boolean send(RemoteWriteLog.Batch batch) throws InterruptedException {
+		HttpRequest request = HttpRequest.newBuilder(this.endpoint)
+			.timeout(REQUEST_TIMEOUT)
+			.header("Content-Encoding", "snappy")
+			.header("Content-Type", "application/x-protobuf")
+			.header("User-Agent", PrometheusExporterMod.MOD_ID)
+			.header("X-Prometheus-Remote-Write-Version", REMOTE_WRITE_VERSION)
+			.POST(HttpRequest.BodyPublishers.ofByteArray(batch.bytes))
+			.build();
+
+		int status;
+		String body;
+		try {
+			HttpResponse<String> response = this.client.send(
+				request, HttpResponse.BodyHandlers.ofString()
+			);
+			status = response.statusCode();
+			body = response.body();
+		} catch (IOException e) {
+			this.sendFailed(e.toString());
+			return false;
+		}
+
+		if (status / 100 == 2) {
+			if (this.backoff_ms > 0) {
+				LOG.info("Remote write to {} recovered.", this.endpoint);
+			}
+			this.backoff_ms = 0;
+			this.batches_sent.increment();
+			this.last_sent_ms = System.currentTimeMillis();
+			this.log.advance(batch);
+			return true;
+
+		} else if (status == 429 || status / 100 == 5) {
+			this.sendFailed("HTTP " + status + ": " + body);
+			return false;
+		}
+
+		// The endpoint will never accept the batch, so drop it.
+		LOG.warn("Remote write batch rejected with HTTP {}: {}", status, body);
+		this.batches_rejected.increment();
+		this.log.advance(batch);
+		return true;
+	}
+
+	/**
+	 * Back off after a failed send.
+	 *
+	 * @param reason The reason of the failure.
+	 */
+	private void sendFailed(String reason) {
+		if (this.backoff_ms == 0) {
+			LOG.warn("Remote write to {} failed, retrying: {}", this.endpoint, reason);
+			this.backoff_ms = BACKOFF_MIN_MS;
+		} else {
+			LOG.debug("Remote write to {} failed, retrying: {}", this.endpoint, reason);
+			this.backoff_ms = Math.min(this.backoff_ms * 2, BACKOFF_MAX_MS);
+		}
+		this.batches_retried.increment();
+
+		// Add up to 25% jitter so restarted receivers are not hit all at once.
+		long jitter_ms = ThreadLocalRandom.current().nextLong(this.backoff_ms / 4 + 1);
+		this.retry_at_ms = System.currentTimeMillis() + this.backoff_ms + jitter_ms;
+	}
+
+	/**
+	 * Collect the registry, and buffer it as remote write batches.
+	 */
+	private void snapshot() {
+		try {
+			long timestamp_ms = System.currentTimeMillis();
+			Enumeration<MetricFamilySamples> families = this.registry.metricFamilySamples();
+			while (families.hasMoreElements()) {
+				MetricFamilySamples family = families.nextElement();
+				boolean skip_created = TYPES_WITH_CREATED.contains(family.type);
+				for (MetricFamilySamples.Sample sample : family.samples) {
+					if (skip_created && sample.name.endsWith("_created")) {
+						continue;
+					}
+					this.encodeSeries(sample, timestamp_ms);
+					if (this.request_buffer.length >= BATCH_BYTES) {
+						this.flushRequest();
+					}
+				}
+			}
+			this.flushRequest();
+
+		} catch (Exception e) {
+			LOG.error("Failed to snapshot the metrics for remote write.", e);
+			this.request_buffer.reset();
+		}
+	}
+}
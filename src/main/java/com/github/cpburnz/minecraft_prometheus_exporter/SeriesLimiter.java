@@ -0,0 +1,697 @@
+package com.github.cpburnz.minecraft_prometheus_exporter;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import io.prometheus.client.Collector.MetricFamilySamples;
+import io.prometheus.client.Collector.Type;
+import io.prometheus.client.CounterMetricFamily;
+
+/**
+ * The SeriesLimiter class caps the number of series of each metric. Past the
+ * cap only the top series by value are kept. The rest of the series of a
+ * counter or histogram are folded into a single series with each label set to
+ * "__other__". The rest of the series of a gauge which counts things (e.g.,
+ * entities) are summed into that series on each scrape. The rest of the series
+ * of any other metric are dropped, since maxima, means, ratios and quantiles
+ * cannot be summed.
+ *
+ * <p>The top series are tracked across scrapes with a space-saving sketch per
+ * metric whose counts decay on each scrape. This keeps the exported series
+ * stable when values are close, rather than swapping series in and out on
+ * every scrape, while still following changes over time.</p>
+ *
+ * <p>The folded series only adds the increase of each series while it is
+ * folded, and keeps that increase once the series leaves it. This way it never
+ * decreases as series move in and out of the top series, which would look like
+ * a counter reset.</p>
+ */
+public class SeriesLimiter {
+
+	/**
+	 * The factor the sketch counts are multiplied by on each scrape.
+	 */
+	private static final double DECAY = 0.5;
+
+	/**
+	 * The metric types whose series can be folded by summing them.
+	 */
+	private static final Set<Type> FOLDED_TYPES = Set.of(Type.COUNTER, Type.HISTOGRAM);
+
+	/**
+	 * The label value used for the folded series. This is not "other" so it
+	 * does not collide with the label values of the metrics themselves.
+	 */
+	private static final String OTHER = "__other__";
+
+	/**
+	 * The labels which are part of a series rather than identifying it. These
+	 * are kept when folding series.
+	 */
+	private static final Set<String> PRESERVED_LABELS = Set.of(
+		"le", "quantile", "window"
+	);
+
+	/**
+	 * The gauges which count things, so their series can be summed.
+	 */
+	private static final Set<String> SUMMED_GAUGES = Set.of(
+		"mc_block_entities_total",
+		"mc_dimension_chunk_tickets",
+		"mc_dimension_chunks_loaded",
+		"mc_dimension_pending_chunk_tasks",
+		"mc_dimension_players",
+		"mc_entities_total",
+		"mc_network_connection_bytes_per_second",
+		"mc_network_connection_pending_bytes",
+		"mc_network_connections",
+		"mc_player_chunks_in_view",
+		"mc_player_list"
+	);
+
+	/**
+	 * Maps each metric name to its number of evicted series.
+	 */
+	private final HashMap<String, Long> dropped;
+
+	/**
+	 * Maps each metric name with evicted series to their state.
+	 */
+	private final HashMap<String, Evicted> evicted;
+
+	/**
+	 * The maximum number of series per metric.
+	 */
+	private final int max_series;
+
+	/**
+	 * The number of times the metrics were limited.
+	 */
+	private long scrape;
+
+	/**
+	 * Maps each metric name past the cap to its sketch.
+	 */
+	private final HashMap<String, SpaceSaving> sketches;
+
+	/**
+	 * Constructs the instance.
+	 *
+	 * @param max_series The maximum number of series per metric.
+	 */
+	public SeriesLimiter(int max_series) {
+		this.dropped = new HashMap<>();
+		this.evicted = new HashMap<>();
+		this.max_series = max_series;
+		this.sketches = new HashMap<>();
+	}
+
+	/**
+	 * Get the dropped series metric.
+	 *
+	 * @param metrics The metrics to add the dropped series metric to.
+	 */
+	public synchronized void collect(List<MetricFamilySamples> metrics) {
+		CounterMetricFamily metric = newDroppedMetric();
+		for (Map.Entry<String, Long> entry : this.dropped.entrySet()) {
+			metric.addMetric(List.of(entry.getKey()), entry.getValue());
+		}
+		metrics.add(metric);
+	}
+
+	/**
+	 * Get the metric descriptions.
+	 *
+	 * @param descs The metric descriptions to add to.
+	 */
+	public static void describe(List<MetricFamilySamples> descs) {
+		descs.add(newDroppedMetric());
+	}
+
+	/**
+	 * Get the label values of the folded series for the sample.
+	 *
+	 * @param sample The sample.
+	 * @return The label values.
+	 */
+	private static List<String> getOtherLabelValues(MetricFamilySamples.Sample sample) {
+		ArrayList<String> values = new ArrayList<>(sample.labelValues.size());
+		for (int i = 0; i < sample.labelNames.size(); i++) {
+			if (PRESERVED_LABELS.contains(sample.labelNames.get(i))) {
+				values.add(sample.labelValues.get(i));
+			} else {
+				values.add(OTHER);
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * Get the key identifying the series of the sample: the values of the labels
+	 * which are not preserved.
+	 *
+	 * @param sample The sample.
+	 * @return The series key.
+	 */
+	private static List<String> getSeriesKey(MetricFamilySamples.Sample sample) {
+		ArrayList<String> key = new ArrayList<>(sample.labelValues.size());
+		for (int i = 0; i < sample.labelNames.size(); i++) {
+			if (!PRESERVED_LABELS.contains(sample.labelNames.get(i))) {
+				key.add(sample.labelValues.get(i));
+			}
+		}
+		return key;
+	}
+
+	/**
+	 * Get the weight of the series for ranking. This is the largest magnitude of
+	 * its samples, excluding creation times and sums. For a histogram this is
+	 * its count.
+	 *
+	 * @param samples The samples of the series.
+	 * @return The weight.
+	 */
+	private static double getWeight(List<MetricFamilySamples.Sample> samples) {
+		double weight = 0;
+		for (MetricFamilySamples.Sample sample : samples) {
+			String name = sample.name;
+			if (
+				!name.endsWith("_created") && !name.endsWith("_sum")
+				&& !name.endsWith("_gsum") && !Double.isNaN(sample.value)
+			) {
+				weight = Math.max(weight, Math.abs(sample.value));
+			}
+		}
+		return weight;
+	}
+
+	/**
+	 * Limit the series of each metric.
+	 *
+	 * @param metrics The metrics.
+	 * @return The limited metrics.
+	 */
+	public synchronized List<MetricFamilySamples> limit(List<MetricFamilySamples> metrics) {
+		this.scrape++;
+		ArrayList<MetricFamilySamples> limited = new ArrayList<>(metrics.size());
+		for (MetricFamilySamples family : metrics) {
+			limited.add(this.limitFamily(family));
+		}
+		return limited;
+	}
+
+	/**
+	 * Limit the series of the metric.
+	 *
+	 * @param family The metric.
+	 * @return The limited metric.
+	 */
+	private MetricFamilySamples limitFamily(MetricFamilySamples family) {
+		// Most metrics are well below the cap.
+		Evicted evicted = this.evicted.get(family.name);
+		if (evicted == null && family.samples.size() <= this.max_series) {
+			return family;
+		}
+
+		// Group the samples by series.
+		LinkedHashMap<List<String>, List<MetricFamilySamples.Sample>> series = new LinkedHashMap<>();
+		for (MetricFamilySamples.Sample sample : family.samples) {
+			series.computeIfAbsent(getSeriesKey(sample), k -> new ArrayList<>()).add(sample);
+		}
+
+		boolean is_folded = FOLDED_TYPES.contains(family.type);
+		boolean is_summed = family.type == Type.GAUGE && SUMMED_GAUGES.contains(family.name);
+		Set<List<String>> kept;
+		if (series.size() <= this.max_series) {
+			kept = series.keySet();
+		} else {
+			// Rank the series.
+			SpaceSaving sketch = this.sketches.computeIfAbsent(
+				family.name, k -> new SpaceSaving(this.max_series * 2)
+			);
+			sketch.decay();
+			for (Map.Entry<List<String>, List<MetricFamilySamples.Sample>> entry : series.entrySet()) {
+				sketch.offer(entry.getKey(), getWeight(entry.getValue()));
+			}
+
+			// Keep the top series which are present. A folded or summed metric
+			// keeps one slot for the "__other__" series.
+			kept = sketch.top(
+				series.keySet(),
+				is_folded || is_summed ? this.max_series - 1 : this.max_series
+			);
+		}
+
+		if (evicted == null) {
+			if (kept.size() == series.size()) {
+				return family;
+			}
+			evicted = new Evicted();
+			this.evicted.put(family.name, evicted);
+		}
+
+		// Track the evicted series. Each series is only counted as dropped when it
+		// is evicted, rather than on every scrape it stays evicted.
+		ArrayList<MetricFamilySamples.Sample> samples = new ArrayList<>(family.samples.size());
+		LinkedHashMap<List<String>, OtherSample> summed = new LinkedHashMap<>();
+		long newly_evicted = 0;
+		for (Map.Entry<List<String>, List<MetricFamilySamples.Sample>> entry : series.entrySet()) {
+			if (kept.contains(entry.getKey())) {
+				samples.addAll(entry.getValue());
+				continue;
+			}
+
+			EvictedSeries evicted_series = evicted.series.get(entry.getKey());
+			if (evicted_series == null) {
+				evicted_series = new EvictedSeries();
+				evicted.series.put(entry.getKey(), evicted_series);
+				newly_evicted++;
+			}
+			evicted_series.scrape = this.scrape;
+			if (is_folded) {
+				evicted_series.update(evicted, entry.getValue());
+			} else if (is_summed) {
+				sumSamples(summed, entry.getValue());
+			}
+		}
+		this.dropped.merge(family.name, newly_evicted, Long::sum);
+
+		// Release the series which were kept or are gone.
+		Iterator<EvictedSeries> iter = evicted.series.values().iterator();
+		while (iter.hasNext()) {
+			EvictedSeries evicted_series = iter.next();
+			if (evicted_series.scrape != this.scrape) {
+				evicted_series.release();
+				iter.remove();
+			}
+		}
+
+		if (is_folded) {
+			samples.addAll(evicted.getOtherSamples());
+		} else {
+			// A gauge is summed afresh on each scrape.
+			for (OtherSample other : summed.values()) {
+				samples.add(new MetricFamilySamples.Sample(
+					other.name, other.label_names, other.label_values, other.value
+				));
+			}
+			if (evicted.series.isEmpty()) {
+				this.evicted.remove(family.name);
+			}
+		}
+
+		MetricFamilySamples limited = new MetricFamilySamples(
+			family.name, family.unit, family.type, family.help, samples
+		);
+		if (family instanceof NativeHistogram.Samples natives) {
+			// Keep the native buckets of the kept series.
+			return natives.withClassic(limited);
+		}
+		return limited;
+	}
+
+	/**
+	 * Create a new metric for the dropped series.
+	 *
+	 * @return The dropped series metric.
+	 */
+	private static CounterMetricFamily newDroppedMetric() {
+		return new CounterMetricFamily(
+			"mc_exporter_series_dropped_total",
+			"The number of times a series was folded into the \"__other__\" series "
+			+ "or dropped by the series cap.",
+			List.of("metric")
+		);
+	}
+
+	/**
+	 * Sum the samples of an evicted gauge series into the "__other__" series.
+	 *
+	 * @param summed Maps the key of each summed sample (its name and label
+	 * values) to its sum.
+	 * @param samples The samples of the series.
+	 */
+	private static void sumSamples(
+		Map<List<String>, OtherSample> summed, List<MetricFamilySamples.Sample> samples
+	) {
+		for (MetricFamilySamples.Sample sample : samples) {
+			if (Double.isNaN(sample.value)) {
+				continue;
+			}
+
+			List<String> values = getOtherLabelValues(sample);
+			ArrayList<String> key = new ArrayList<>(values.size() + 1);
+			key.add(sample.name);
+			key.addAll(values);
+			summed.computeIfAbsent(
+				key, k -> new OtherSample(sample.name, sample.labelNames, values)
+			).value += sample.value;
+		}
+	}
+
+	/**
+	 * The SpaceSaving class implements the space-saving algorithm to track the
+	 * heaviest series of a metric with a fixed number of counters.
+	 */
+	private static class SpaceSaving {
+
+		/**
+		 * Orders the counters by count, and then by insertion.
+		 */
+		private static final Comparator<Counter> ORDER = Comparator
+			.comparingDouble((Counter counter) -> counter.count)
+			.thenComparingLong(counter -> counter.seq);
+
+		/**
+		 * The maximum number of counters.
+		 */
+		private final int capacity;
+
+		/**
+		 * Maps each tracked series to its counter.
+		 */
+		private final HashMap<List<String>, Counter> counters;
+
+		/**
+		 * The counters ordered from lightest to heaviest.
+		 */
+		private final TreeSet<Counter> order;
+
+		/**
+		 * The insertion sequence of the next counter.
+		 */
+		private long next_seq;
+
+		/**
+		 * Constructs the instance.
+		 *
+		 * @param capacity The maximum number of counters.
+		 */
+		public SpaceSaving(int capacity) {
+			this.capacity = capacity;
+			this.counters = new HashMap<>(capacity * 2);
+			this.order = new TreeSet<>(ORDER);
+		}
+
+		/**
+		 * Decay the counts.
+		 */
+		public void decay() {
+			// NOTICE: The counts order the set, so they cannot be changed while the
+			// counters are in it.
+			ArrayList<Counter> counters = new ArrayList<>(this.order);
+			this.order.clear();
+			for (Counter counter : counters) {
+				counter.count *= DECAY;
+			}
+			this.order.addAll(counters);
+		}
+
+		/**
+		 * Add the weight of a series.
+		 *
+		 * @param key The series key.
+		 * @param weight The weight.
+		 */
+		public void offer(List<String> key, double weight) {
+			Counter counter = this.counters.get(key);
+			if (counter != null) {
+				this.order.remove(counter);
+				counter.count += weight;
+				this.order.add(counter);
+				return;
+			}
+
+			// Replace the lightest counter once full. The new series inherits its
+			// count as the error bound.
+			double count = weight;
+			if (this.counters.size() >= this.capacity) {
+				Counter lightest = this.order.pollFirst();
+				this.counters.remove(lightest.key);
+				count += lightest.count;
+			}
+			counter = new Counter(key, count, this.next_seq++);
+			this.counters.put(key, counter);
+			this.order.add(counter);
+		}
+
+		/**
+		 * Get the heaviest present series.
+		 *
+		 * @param present The series present in the scrape.
+		 * @param limit The maximum number of series.
+		 * @return The heaviest series.
+		 */
+		public Set<List<String>> top(Set<List<String>> present, int limit) {
+			HashSet<List<String>> top = new HashSet<>();
+			Iterator<Counter> iter = this.order.descendingIterator();
+			while (top.size() < limit && iter.hasNext()) {
+				List<String> key = iter.next().key;
+				if (present.contains(key)) {
+					top.add(key);
+				}
+			}
+			return top;
+		}
+	}
+
+	/**
+	 * The Counter class holds the count of a series in the sketch.
+	 */
+	private static class Counter {
+
+		/**
+		 * The decayed weight of the series.
+		 */
+		public double count;
+
+		/**
+		 * The series key.
+		 */
+		public final List<String> key;
+
+		/**
+		 * The insertion sequence.
+		 */
+		public final long seq;
+
+		/**
+		 * Constructs the instance.
+		 *
+		 * @param key The series key.
+		 * @param count The weight of the series.
+		 * @param seq The insertion sequence.
+		 */
+		public Counter(List<String> key, double count, long seq) {
+			this.count = count;
+			this.key = key;
+			this.seq = seq;
+		}
+	}
+
+	/**
+	 * The Evicted class holds the evicted series of a metric.
+	 */
+	private static class Evicted {
+
+		/**
+		 * Maps the key of each folded sample (its name and label values) to its
+		 * state.
+		 */
+		public final LinkedHashMap<List<String>, OtherSample> other;
+
+		/**
+		 * Maps the key of each evicted series to its state.
+		 */
+		public final HashMap<List<String>, EvictedSeries> series;
+
+		/**
+		 * Constructs the instance.
+		 */
+		public Evicted() {
+			this.other = new LinkedHashMap<>();
+			this.series = new HashMap<>();
+		}
+
+		/**
+		 * Get the samples of the folded series.
+		 *
+		 * @return The folded samples.
+		 */
+		public List<MetricFamilySamples.Sample> getOtherSamples() {
+			for (OtherSample other : this.other.values()) {
+				other.value = other.base;
+			}
+			for (EvictedSeries evicted_series : this.series.values()) {
+				for (FoldedSample folded : evicted_series.samples.values()) {
+					folded.other.value += folded.last - folded.offset;
+				}
+			}
+
+			ArrayList<MetricFamilySamples.Sample> samples = new ArrayList<>(
+				this.other.size()
+			);
+			for (OtherSample other : this.other.values()) {
+				samples.add(new MetricFamilySamples.Sample(
+					other.name, other.label_names, other.label_values, other.value
+				));
+			}
+			return samples;
+		}
+	}
+
+	/**
+	 * The EvictedSeries class holds the state of an evicted series.
+	 */
+	private static class EvictedSeries {
+
+		/**
+		 * Maps the key of each folded sample to the state of the sample of this
+		 * series. This is empty when the series is dropped rather than folded.
+		 */
+		public final HashMap<List<String>, FoldedSample> samples;
+
+		/**
+		 * The last scrape the series was evicted in.
+		 */
+		public long scrape;
+
+		/**
+		 * Constructs the instance.
+		 */
+		public EvictedSeries() {
+			this.samples = new HashMap<>();
+		}
+
+		/**
+		 * Keep the increase of the series in the folded series when the series
+		 * is no longer folded.
+		 */
+		public void release() {
+			for (FoldedSample folded : this.samples.values()) {
+				folded.other.base += folded.last - folded.offset;
+			}
+		}
+
+		/**
+		 * Update the folded samples from the current samples of the series.
+		 *
+		 * @param evicted The evicted series of the metric.
+		 * @param samples The samples of the series.
+		 */
+		public void update(Evicted evicted, List<MetricFamilySamples.Sample> samples) {
+			for (MetricFamilySamples.Sample sample : samples) {
+				if (sample.name.endsWith("_created") || Double.isNaN(sample.value)) {
+					// Creation times cannot be summed.
+					continue;
+				}
+
+				List<String> values = getOtherLabelValues(sample);
+				ArrayList<String> key = new ArrayList<>(values.size() + 1);
+				key.add(sample.name);
+				key.addAll(values);
+
+				FoldedSample folded = this.samples.get(key);
+				if (folded == null) {
+					// Only the increase from when the series is evicted is folded.
+					OtherSample other = evicted.other.computeIfAbsent(
+						key, k -> new OtherSample(sample.name, sample.labelNames, values)
+					);
+					this.samples.put(key, new FoldedSample(other, sample.value));
+				} else if (sample.value < folded.last) {
+					// The series was reset, so keep its increase before the reset.
+					folded.other.base += folded.last - folded.offset;
+					folded.offset = 0;
+					folded.last = sample.value;
+				} else {
+					folded.last = sample.value;
+				}
+			}
+		}
+	}
+
+	/**
+	 * The FoldedSample class holds the state of a sample of an evicted series.
+	 */
+	private static class FoldedSample {
+
+		/**
+		 * The last value of the sample.
+		 */
+		public double last;
+
+		/**
+		 * The value of the sample when it was folded.
+		 */
+		public double offset;
+
+		/**
+		 * The folded sample it is summed into.
+		 */
+		public final OtherSample other;
+
+		/**
+		 * Constructs the instance.
+		 *
+		 * @param other The folded sample it is summed into.
+		 * @param value The value of the sample when it was folded.
+		 */
+		public FoldedSample(OtherSample other, double value) {
+			this.last = value;
+			this.offset = value;
+			this.other = other;
+		}
+	}
+
+	/**
+	 * The OtherSample class holds a sample of the folded series.
+	 */
+	private static class OtherSample {
+
+		/**
+		 * The increase of the series which are no longer folded.
+		 */
+		public double base;
+
+		/**
+		 * The label names.
+		 */
+		public final List<String> label_names;
+
+		/**
+		 * The label values.
+		 */
+		public final List<String> label_values;
+
+		/**
+		 * The sample name.
+		 */
+		public final String name;
+
+		/**
+		 * The value of the sample for the current scrape.
+		 */
+		public double value;
+
+		/**
+		 * Constructs the instance.
+		 *
+		 * @param name The sample name.
+		 * @param label_names The label names.
+		 * @param label_values The label values.
+		 */
+		public OtherSample(String name, List<String> label_names, List<String> label_values) {
+			this.label_names = label_names;
+			this.label_values = label_values;
+			this.name = name;
+		}
+	}
+}
@@ -1,5 +1,8 @@
 package com.github.cpburnz.minecraft_prometheus_exporter;
 
+import java.util.Arrays;
+import java.util.List;
+
 import net.minecraftforge.common.ForgeConfigSpec;
 import net.minecraftforge.fml.ModLoadingContext;
 import net.minecraftforge.fml.config.ModConfig;
@@ -18,6 +21,11 @@ public class ServerConfig {
 	 */
 	private static final Logger LOG = LogManager.getLogger();
 
+	/**
+	 * Whether collecting metrics about the exporter overhead is enabled.
+	 */
+	public boolean collector_exporter;
+
 	/**
 	 * Whether collecting metrics about the JVM process is enabled.
 	 */
@@ -28,6 +36,28 @@ public class ServerConfig {
 	 */
 	public boolean collector_mc;
 
+	/**
+	 * Whether the world census of block entities and crowded chunks is enabled.
+	 */
+	public boolean collector_mc_census;
+
+	/**
+	 * The time budget for the world census at the end of each server tick (in
+	 * microseconds).
+	 */
+	public int collector_mc_census_budget_us;
+
+	/**
+	 * The minimum time from the start of one world census pass to the start of
+	 * the next (in seconds).
+	 */
+	public int collector_mc_census_interval_s;
+
+	/**
+	 * Whether collecting metrics about the chunk lifecycle is enabled.
+	 */
+	public boolean collector_mc_chunks;
+
 	/**
 	 * How to handle dimension (world) tick event errors.
 	 */
@@ -39,6 +69,189 @@ public class ServerConfig {
 	 */
 	public boolean collector_mc_entities;
 
+	/**
+	 * How to group the entities in each dimension (world).
+	 */
+	public EntityCensusMode collector_mc_entities_census;
+
+	/**
+	 * Whether timing the listeners of the hot events on the Forge event bus is
+	 * enabled.
+	 */
+	public boolean collector_mc_event_listeners;
+
+	/**
+	 * Time one in every N calls of each event listener.
+	 */
+	public int collector_mc_event_listeners_interval;
+
+	/**
+	 * The maximum number of event listener calls to time per second.
+	 */
+	public int collector_mc_event_listeners_max_samples;
+
+	/**
+	 * The maximum number of event listeners to export the times of.
+	 */
+	public int collector_mc_event_listeners_top;
+
+	/**
+	 * Whether matching the GC pauses against the server ticks is enabled.
+	 */
+	public boolean collector_mc_gc_ticks;
+
+	/**
+	 * The minimum duration of a slow server tick to match against the GC pauses
+	 * (in milliseconds).
+	 */
+	public int collector_mc_gc_ticks_slow_ms;
+
+	/**
+	 * Whether the sampled attribution of entity and block entity tick times to
+	 * mods is enabled.
+	 */
+	public boolean collector_mc_mod_ticks;
+
+	/**
+	 * Time the entities and block entities on one in every N server ticks.
+	 */
+	public int collector_mc_mod_ticks_interval;
+
+	/**
+	 * The maximum number of entity and block entity types to export the tick
+	 * times of.
+	 */
+	public int collector_mc_mod_ticks_top;
+
+	/**
+	 * Whether collecting metrics about the network I/O of the player connections
+	 * is enabled.
+	 */
+	public boolean collector_mc_network;
+
+	/**
+	 * The maximum number of player connections to export the byte rates of.
+	 */
+	public int collector_mc_network_top;
+
+	/**
+	 * How to export the metrics about the players.
+	 */
+	public PlayerMode collector_mc_players;
+
+	/**
+	 * The maximum number of players to export per-player metrics for.
+	 */
+	public int collector_mc_players_max;
+
+	/**
+	 * The maximum number of series per Minecraft metric, or 0 for no cap.
+	 */
+	public int collector_mc_series_max;
+
+	/**
+	 * The time budget for reading the snapshots on the server thread at once (in
+	 * microseconds).
+	 */
+	public int collector_mc_snapshot_budget_us;
+
+	/**
+	 * How often to read the loaded chunks on the server thread (in seconds), or
+	 * 0 to read them on each scrape.
+	 */
+	public int collector_mc_snapshot_chunks_s;
+
+	/**
+	 * How often to read the entities on the server thread (in seconds), or 0 to
+	 * read them on each scrape.
+	 */
+	public int collector_mc_snapshot_entities_s;
+
+	/**
+	 * How often to read the players on the server thread (in seconds), or 0 to
+	 * read them on each scrape.
+	 */
+	public int collector_mc_snapshot_players_s;
+
+	/**
+	 * Whether sampling the task queues of the server and its executors is
+	 * enabled.
+	 */
+	public boolean collector_mc_task_queues;
+
+	/**
+	 * The histogram buckets to use for server and dimension (world) ticks (in
+	 * seconds).
+	 */
+	public double[] collector_mc_tick_buckets;
+
+	/**
+	 * Whether recording the per-tick history is enabled.
+	 */
+	public boolean collector_mc_tick_history;
+
+	/**
+	 * How many hours of ticks to keep in the tick history.
+	 */
+	public int collector_mc_tick_history_hours;
+
+	/**
+	 * Whether recording native histogram buckets for server and dimension
+	 * (world) ticks is enabled.
+	 */
+	public boolean collector_mc_tick_native_histograms;
+
+	/**
+	 * Whether recording high-resolution tick percentiles is enabled.
+	 */
+	public boolean collector_mc_tick_percentiles;
+
+	/**
+	 * The window to compute the tick percentiles over (in seconds).
+	 */
+	public int collector_mc_tick_percentiles_window;
+
+	/**
+	 * Whether timing the phases of the dimension (world) ticks is enabled.
+	 */
+	public boolean collector_mc_tick_phases;
+
+	/**
+	 * Whether recording the ticks per second and milliseconds per tick is
+	 * enabled.
+	 */
+	public boolean collector_mc_tick_rates;
+
+	/**
+	 * Whether recording the bytes allocated and CPU time per tick is enabled.
+	 */
+	public boolean collector_mc_tick_resources;
+
+	/**
+	 * The maximum number of lag spike files to keep.
+	 */
+	public int collector_mc_tick_spike_files;
+
+	/**
+	 * The maximum number of frames in the lag spike frame table.
+	 */
+	public int collector_mc_tick_spike_frames;
+
+	/**
+	 * The number of server thread stack samples per second during a lag spike.
+	 */
+	public int collector_mc_tick_spike_sample_rate;
+
+	/**
+	 * The threshold for a server tick to be a lag spike (in milliseconds).
+	 */
+	public int collector_mc_tick_spike_threshold_ms;
+
+	/**
+	 * Whether sampling the server thread during lag spikes is enabled.
+	 */
+	public boolean collector_mc_tick_spikes;
+
 	/**
 	 * The Forge config specification.
 	 */
@@ -54,6 +267,42 @@ public class ServerConfig {
 	 */
 	private boolean is_loaded;
 
+	/**
+	 * The maximum size of the push buffer on disk (in MiB).
+	 */
+	public int push_buffer_mb;
+
+	/**
+	 * Whether pushing the metrics with remote write is enabled.
+	 */
+	public boolean push_enabled;
+
+	/**
+	 * The "instance" label of the pushed metrics. Empty uses the host name.
+	 */
+	public String push_instance;
+
+	/**
+	 * How often to push the metrics (in seconds).
+	 */
+	public int push_interval_s;
+
+	/**
+	 * The "job" label of the pushed metrics.
+	 */
+	public String push_job;
+
+	/**
+	 * The remote write endpoint URL.
+	 */
+	public String push_url;
+
+	/**
+	 * How long to cache the scrape response (in milliseconds). Zero disables the
+	 * cache.
+	 */
+	public int web_cache_ttl_ms;
+
 	/**
 	 * The IP address to listen on.
 	 */
@@ -64,6 +313,16 @@ public class ServerConfig {
 	 */
 	public int web_listen_port;
 
+	/**
+	 * The maximum number of concurrent scrapes with the streaming web server.
+	 */
+	public int web_max_scrapes;
+
+	/**
+	 * Which web server to serve the metrics with.
+	 */
+	public WebServerMode web_server;
+
 	/**
 	 * Construct the instance.
 	 */
@@ -87,25 +346,161 @@ public class ServerConfig {
 	 */
 	public void loadValues() {
 		// Get config values.
+		this.collector_exporter = this.internal_spec.collector_exporter.get();
 		this.collector_jvm = this.internal_spec.collector_jvm.get();
 		this.collector_mc = this.internal_spec.collector_mc.get();
+		this.collector_mc_census = this.internal_spec.collector_mc_census.get();
+		this.collector_mc_census_budget_us = this.internal_spec.collector_mc_census_budget_us.get();
+		this.collector_mc_census_interval_s = this.internal_spec.collector_mc_census_interval_s.get();
+		this.collector_mc_chunks = this.internal_spec.collector_mc_chunks.get();
 		this.collector_mc_dimension_tick_errors = this.internal_spec.collector_mc_dimension_tick_errors.get();
 		this.collector_mc_entities = this.internal_spec.collector_mc_entities.get();
+		this.collector_mc_entities_census = this.internal_spec.collector_mc_entities_census.get();
+		this.collector_mc_event_listeners = this.internal_spec.collector_mc_event_listeners.get();
+		this.collector_mc_event_listeners_interval = this.internal_spec.collector_mc_event_listeners_interval.get();
+		this.collector_mc_event_listeners_max_samples = this.internal_spec.collector_mc_event_listeners_max_samples.get();
+		this.collector_mc_event_listeners_top = this.internal_spec.collector_mc_event_listeners_top.get();
+		this.collector_mc_gc_ticks = this.internal_spec.collector_mc_gc_ticks.get();
+		this.collector_mc_gc_ticks_slow_ms = this.internal_spec.collector_mc_gc_ticks_slow_ms.get();
+		this.collector_mc_mod_ticks = this.internal_spec.collector_mc_mod_ticks.get();
+		this.collector_mc_mod_ticks_interval = this.internal_spec.collector_mc_mod_ticks_interval.get();
+		this.collector_mc_mod_ticks_top = this.internal_spec.collector_mc_mod_ticks_top.get();
+		this.collector_mc_network = this.internal_spec.collector_mc_network.get();
+		this.collector_mc_network_top = this.internal_spec.collector_mc_network_top.get();
+		this.collector_mc_players = this.internal_spec.collector_mc_players.get();
+		this.collector_mc_players_max = this.internal_spec.collector_mc_players_max.get();
+		this.collector_mc_series_max = this.internal_spec.collector_mc_series_max.get();
+		this.collector_mc_snapshot_budget_us = this.internal_spec.collector_mc_snapshot_budget_us.get();
+		this.collector_mc_snapshot_chunks_s = this.internal_spec.collector_mc_snapshot_chunks_s.get();
+		this.collector_mc_snapshot_entities_s = this.internal_spec.collector_mc_snapshot_entities_s.get();
+		this.collector_mc_snapshot_players_s = this.internal_spec.collector_mc_snapshot_players_s.get();
+		this.collector_mc_task_queues = this.internal_spec.collector_mc_task_queues.get();
+		this.collector_mc_tick_buckets = this.internal_spec.collector_mc_tick_buckets.get()
+			.stream()
+			.mapToDouble(Number::doubleValue)
+			.sorted()
+			.distinct()
+			.toArray();
+		if (this.collector_mc_tick_buckets.length == 0) {
+			LOG.warn("collector.mc_tick_buckets is empty, using the default buckets.");
+			this.collector_mc_tick_buckets = InternalSpec.DEFAULT_TICK_BUCKETS
+				.stream()
+				.mapToDouble(Double::doubleValue)
+				.toArray();
+		}
+		this.collector_mc_tick_history = this.internal_spec.collector_mc_tick_history.get();
+		this.collector_mc_tick_history_hours = this.internal_spec.collector_mc_tick_history_hours.get();
+		this.collector_mc_tick_native_histograms = this.internal_spec.collector_mc_tick_native_histograms.get();
+		this.collector_mc_tick_percentiles = this.internal_spec.collector_mc_tick_percentiles.get();
+		this.collector_mc_tick_percentiles_window = this.internal_spec.collector_mc_tick_percentiles_window.get();
+		this.collector_mc_tick_phases = this.internal_spec.collector_mc_tick_phases.get();
+		this.collector_mc_tick_rates = this.internal_spec.collector_mc_tick_rates.get();
+		this.collector_mc_tick_resources = this.internal_spec.collector_mc_tick_resources.get();
+		this.collector_mc_tick_spike_files = this.internal_spec.collector_mc_tick_spike_files.get();
+		this.collector_mc_tick_spike_frames = this.internal_spec.collector_mc_tick_spike_frames.get();
+		this.collector_mc_tick_spike_sample_rate = this.internal_spec.collector_mc_tick_spike_sample_rate.get();
+		this.collector_mc_tick_spike_threshold_ms = this.internal_spec.collector_mc_tick_spike_threshold_ms.get();
+		this.collector_mc_tick_spikes = this.internal_spec.collector_mc_tick_spikes.get();
+		this.push_buffer_mb = this.internal_spec.push_buffer_mb.get();
+		this.push_enabled = this.internal_spec.push_enabled.get();
+		this.push_instance = this.internal_spec.push_instance.get();
+		this.push_interval_s = this.internal_spec.push_interval_s.get();
+		this.push_job = this.internal_spec.push_job.get();
+		this.push_url = this.internal_spec.push_url.get();
+		this.web_cache_ttl_ms = this.internal_spec.web_cache_ttl_ms.get();
 		this.web_listen_address = this.internal_spec.web_listen_address.get();
 		this.web_listen_port = this.internal_spec.web_listen_port.get();
+		this.web_max_scrapes = this.internal_spec.web_max_scrapes.get();
+		this.web_server = this.internal_spec.web_server.get();
 
 		// Record that the config is loaded.
 		this.is_loaded = true;
 
+		LOG.debug("collector.exporter: {}", this.collector_exporter);
 		LOG.debug("collector.jvm: {}", this.collector_jvm);
 		LOG.debug("collector.mc: {}", this.collector_mc);
+		LOG.debug("collector.mc_census: {}", this.collector_mc_census);
+		LOG.debug("collector.mc_census_budget_us: {}", this.collector_mc_census_budget_us);
+		LOG.debug("collector.mc_census_interval_s: {}", this.collector_mc_census_interval_s);
+		LOG.debug("collector.mc_chunks: {}", this.collector_mc_chunks);
 		LOG.debug(
 			"collector.mc_dimension_tick_errors: {}",
 			this.collector_mc_dimension_tick_errors
 		);
 		LOG.debug("collector.mc_entities: {}", this.collector_mc_entities);
+		LOG.debug(
+			"collector.mc_entities_census: {}", this.collector_mc_entities_census
+		);
+		LOG.debug("collector.mc_event_listeners: {}", this.collector_mc_event_listeners);
+		LOG.debug("collector.mc_event_listeners_interval: {}", this.collector_mc_event_listeners_interval);
+		LOG.debug("collector.mc_event_listeners_max_samples: {}", this.collector_mc_event_listeners_max_samples);
+		LOG.debug("collector.mc_event_listeners_top: {}", this.collector_mc_event_listeners_top);
+		LOG.debug("collector.mc_gc_ticks: {}", this.collector_mc_gc_ticks);
+		LOG.debug("collector.mc_gc_ticks_slow_ms: {}", this.collector_mc_gc_ticks_slow_ms);
+		LOG.debug("collector.mc_mod_ticks: {}", this.collector_mc_mod_ticks);
+		LOG.debug("collector.mc_mod_ticks_interval: {}", this.collector_mc_mod_ticks_interval);
+		LOG.debug("collector.mc_mod_ticks_top: {}", this.collector_mc_mod_ticks_top);
+		LOG.debug("collector.mc_network: {}", this.collector_mc_network);
+		LOG.debug("collector.mc_network_top: {}", this.collector_mc_network_top);
+		LOG.debug("collector.mc_players: {}", this.collector_mc_players);
+		LOG.debug("collector.mc_players_max: {}", this.collector_mc_players_max);
+		LOG.debug("collector.mc_series_max: {}", this.collector_mc_series_max);
+		LOG.debug("collector.mc_snapshot_budget_us: {}", this.collector_mc_snapshot_budget_us);
+		LOG.debug("collector.mc_snapshot_chunks_s: {}", this.collector_mc_snapshot_chunks_s);
+		LOG.debug("collector.mc_snapshot_entities_s: {}", this.collector_mc_snapshot_entities_s);
+		LOG.debug("collector.mc_snapshot_players_s: {}", this.collector_mc_snapshot_players_s);
+		LOG.debug("collector.mc_task_queues: {}", this.collector_mc_task_queues);
+		LOG.debug(
+			"collector.mc_tick_buckets: {}",
+			Arrays.toString(this.collector_mc_tick_buckets)
+		);
+		LOG.debug("collector.mc_tick_history: {}", this.collector_mc_tick_history);
+		LOG.debug(
+			"collector.mc_tick_history_hours: {}",
+			this.collector_mc_tick_history_hours
+		);
+		LOG.debug(
+			"collector.mc_tick_native_histograms: {}",
+			this.collector_mc_tick_native_histograms
+		);
+		LOG.debug(
+			"collector.mc_tick_percentiles: {}", this.collector_mc_tick_percentiles
+		);
+		LOG.debug(
+			"collector.mc_tick_percentiles_window: {}",
+			this.collector_mc_tick_percentiles_window
+		);
+		LOG.debug("collector.mc_tick_phases: {}", this.collector_mc_tick_phases);
+		LOG.debug("collector.mc_tick_rates: {}", this.collector_mc_tick_rates);
+		LOG.debug(
+			"collector.mc_tick_resources: {}", this.collector_mc_tick_resources
+		);
+		LOG.debug(
+			"collector.mc_tick_spike_files: {}", this.collector_mc_tick_spike_files
+		);
+		LOG.debug(
+			"collector.mc_tick_spike_frames: {}", this.collector_mc_tick_spike_frames
+		);
+		LOG.debug(
+			"collector.mc_tick_spike_sample_rate: {}",
+			this.collector_mc_tick_spike_sample_rate
+		);
+		LOG.debug(
+			"collector.mc_tick_spike_threshold_ms: {}",
+			this.collector_mc_tick_spike_threshold_ms
+		);
+		LOG.debug("collector.mc_tick_spikes: {}", this.collector_mc_tick_spikes);
+		LOG.debug("push.buffer_mb: {}", this.push_buffer_mb);
+		LOG.debug("push.enabled: {}", this.push_enabled);
+		LOG.debug("push.instance: {}", this.push_instance);
+		LOG.debug("push.interval_s: {}", this.push_interval_s);
+		LOG.debug("push.job: {}", this.push_job);
+		LOG.debug("push.url: {}", this.push_url);
+		LOG.debug("web.cache_ttl_ms: {}", this.web_cache_ttl_ms);
 		LOG.debug("web.listen_address: {}", this.web_listen_address);
 		LOG.debug("web.listen_port: {}", this.web_listen_port);
+		LOG.debug("web.max_scrapes: {}", this.web_max_scrapes);
+		LOG.debug("web.server: {}", this.web_server);
 	}
 
 	/**
@@ -127,6 +522,24 @@ public class ServerConfig {
 		 */
 		private static final String DEFAULT_ADDRESS = "0.0.0.0";
 
+		/**
+		 * The default histogram buckets to use for ticks (in seconds).
+		 */
+		private static final List<Double> DEFAULT_TICK_BUCKETS = List.of(
+			0.01,
+			0.025,
+			0.05,
+			0.10,
+			0.25,
+			0.5,
+			1.0
+		);
+
+		/**
+		 * The default window to compute the tick percentiles over (in seconds).
+		 */
+		private static final int DEFAULT_TICK_PERCENTILES_WINDOW = 60;
+
 		/**
 		 * The default TCP port ot use. This is completely arbitrary. It was derived
 		 * from the Minecraft port (25565) and the Prometheus exporter ports
@@ -134,6 +547,111 @@ public class ServerConfig {
 		 */
 		private static final int DEFAULT_PORT = 19565;
 
+		/**
+		 * The maximum scrape cache TTL (in milliseconds).
+		 */
+		private static final int CACHE_TTL_MAX = 60_000;
+
+		/**
+		 * The maximum time budget for the world census per tick (in
+		 * microseconds).
+		 */
+		private static final int CENSUS_BUDGET_US_MAX = 50_000;
+
+		/**
+		 * The minimum time budget for the world census per tick (in
+		 * microseconds).
+		 */
+		private static final int CENSUS_BUDGET_US_MIN = 50;
+
+		/**
+		 * The maximum world census interval (in seconds).
+		 */
+		private static final int CENSUS_INTERVAL_MAX = 3600;
+
+		/**
+		 * The maximum event listener sampling interval (in calls).
+		 */
+		private static final int EVENT_LISTENERS_INTERVAL_MAX = 1000;
+
+		/**
+		 * The maximum number of event listener calls to time per second.
+		 */
+		private static final int EVENT_LISTENERS_SAMPLES_MAX = 1_000_000;
+
+		/**
+		 * The maximum number of event listeners to export the times of.
+		 */
+		private static final int EVENT_LISTENERS_TOP_MAX = 1000;
+
+		/**
+		 * The maximum slow tick threshold for the GC pauses (in milliseconds).
+		 */
+		private static final int GC_TICKS_SLOW_MS_MAX = 60_000;
+
+		/**
+		 * The maximum number of hours of tick history.
+		 */
+		private static final int HISTORY_HOURS_MAX = 24;
+
+		/**
+		 * The maximum number of concurrent scrapes.
+		 */
+		private static final int MAX_SCRAPES_MAX = 64;
+
+		/**
+		 * The maximum mod tick sampling interval (in server ticks).
+		 */
+		private static final int MOD_TICKS_INTERVAL_MAX = 1200;
+
+		/**
+		 * The maximum number of entity and block entity types to export the tick
+		 * times of.
+		 */
+		private static final int MOD_TICKS_TOP_MAX = 1000;
+
+		/**
+		 * The maximum number of player connections to export the byte rates of.
+		 */
+		private static final int NETWORK_TOP_MAX = 1000;
+
+		/**
+		 * The maximum number of players to export per-player metrics for.
+		 */
+		private static final int PLAYERS_MAX = 10000;
+
+		/**
+		 * The maximum size of the push buffer (in MiB).
+		 */
+		private static final int PUSH_BUFFER_MB_MAX = 4096;
+
+		/**
+		 * The maximum push interval (in seconds).
+		 */
+		private static final int PUSH_INTERVAL_S_MAX = 3600;
+
+		/**
+		 * The maximum number of series per Minecraft metric.
+		 */
+		private static final int SERIES_MAX = 1_000_000;
+
+		/**
+		 * The maximum time budget for reading the snapshots at once (in
+		 * microseconds).
+		 */
+		private static final int SNAPSHOT_BUDGET_US_MAX = 50_000;
+
+		/**
+		 * The minimum time budget for reading the snapshots at once (in
+		 * microseconds).
+		 */
+		private static final int SNAPSHOT_BUDGET_US_MIN = 100;
+
+		/**
+		 * The maximum snapshot interval (in seconds).
+		 */
+		private static final int SNAPSHOT_INTERVAL_MAX = 3600;
+
 		/**
 		 * The maximum TCP port.
 		 */
@@ -144,12 +662,90 @@ public class ServerConfig {
 		 */
 		private static final int TCP_PORT_MIN = 0;
 
+		/**
+		 * The maximum window to compute the tick percentiles over (in seconds).
+		 */
+		private static final int TICK_PERCENTILES_WINDOW_MAX = 3600;
+
+		/**
+		 * The minimum window to compute the tick percentiles over (in seconds).
+		 */
+		private static final int TICK_PERCENTILES_WINDOW_MIN = 6;
+
+		/**
+		 * The maximum number of lag spike files to keep.
+		 */
+		private static final int TICK_SPIKE_FILES_MAX = 1000;
+
+		/**
+		 * The maximum number of lag spike frames to export.
+		 */
+		private static final int TICK_SPIKE_FRAMES_MAX = 10_000;
+
+		/**
+		 * The maximum number of lag spike stack samples per second.
+		 */
+		private static final int TICK_SPIKE_SAMPLE_RATE_MAX = 1000;
+
+		/**
+		 * The maximum lag spike threshold (in milliseconds).
+		 */
+		private static final int TICK_SPIKE_THRESHOLD_MS_MAX = 60_000;
+
+		public final ForgeConfigSpec.BooleanValue collector_exporter;
 		public final ForgeConfigSpec.BooleanValue collector_jvm;
 		public final ForgeConfigSpec.BooleanValue collector_mc;
+		public final ForgeConfigSpec.BooleanValue collector_mc_census;
+		public final ForgeConfigSpec.IntValue collector_mc_census_budget_us;
+		public final ForgeConfigSpec.IntValue collector_mc_census_interval_s;
+		public final ForgeConfigSpec.BooleanValue collector_mc_chunks;
 		public final ForgeConfigSpec.EnumValue<TickErrorPolicy> collector_mc_dimension_tick_errors;
 		public final ForgeConfigSpec.BooleanValue collector_mc_entities;
+		public final ForgeConfigSpec.EnumValue<EntityCensusMode> collector_mc_entities_census;
+		public final ForgeConfigSpec.BooleanValue collector_mc_event_listeners;
+		public final ForgeConfigSpec.IntValue collector_mc_event_listeners_interval;
+		public final ForgeConfigSpec.IntValue collector_mc_event_listeners_max_samples;
+		public final ForgeConfigSpec.IntValue collector_mc_event_listeners_top;
+		public final ForgeConfigSpec.BooleanValue collector_mc_gc_ticks;
+		public final ForgeConfigSpec.IntValue collector_mc_gc_ticks_slow_ms;
+		public final ForgeConfigSpec.BooleanValue collector_mc_mod_ticks;
+		public final ForgeConfigSpec.IntValue collector_mc_mod_ticks_interval;
+		public final ForgeConfigSpec.IntValue collector_mc_mod_ticks_top;
+		public final ForgeConfigSpec.BooleanValue collector_mc_network;
+		public final ForgeConfigSpec.IntValue collector_mc_network_top;
+		public final ForgeConfigSpec.EnumValue<PlayerMode> collector_mc_players;
+		public final ForgeConfigSpec.IntValue collector_mc_players_max;
+		public final ForgeConfigSpec.IntValue collector_mc_series_max;
+		public final ForgeConfigSpec.IntValue collector_mc_snapshot_budget_us;
+		public final ForgeConfigSpec.IntValue collector_mc_snapshot_chunks_s;
+		public final ForgeConfigSpec.IntValue collector_mc_snapshot_entities_s;
+		public final ForgeConfigSpec.IntValue collector_mc_snapshot_players_s;
+		public final ForgeConfigSpec.BooleanValue collector_mc_task_queues;
+		public final ForgeConfigSpec.ConfigValue<List<? extends Number>> collector_mc_tick_buckets;
+		public final ForgeConfigSpec.BooleanValue collector_mc_tick_history;
+		public final ForgeConfigSpec.IntValue collector_mc_tick_history_hours;
+		public final ForgeConfigSpec.BooleanValue collector_mc_tick_native_histograms;
+		public final ForgeConfigSpec.BooleanValue collector_mc_tick_percentiles;
+		public final ForgeConfigSpec.IntValue collector_mc_tick_percentiles_window;
+		public final ForgeConfigSpec.BooleanValue collector_mc_tick_phases;
+		public final ForgeConfigSpec.BooleanValue collector_mc_tick_rates;
+		public final ForgeConfigSpec.BooleanValue collector_mc_tick_resources;
+		public final ForgeConfigSpec.IntValue collector_mc_tick_spike_files;
+		public final ForgeConfigSpec.IntValue collector_mc_tick_spike_frames;
+		public final ForgeConfigSpec.IntValue collector_mc_tick_spike_sample_rate;
+		public final ForgeConfigSpec.IntValue collector_mc_tick_spike_threshold_ms;
+		public final ForgeConfigSpec.BooleanValue collector_mc_tick_spikes;
+		public final ForgeConfigSpec.IntValue push_buffer_mb;
+		public final ForgeConfigSpec.BooleanValue push_enabled;
+		public final ForgeConfigSpec.ConfigValue<String> push_instance;
+		public final ForgeConfigSpec.IntValue push_interval_s;
+		public final ForgeConfigSpec.ConfigValue<String> push_job;
+		public final ForgeConfigSpec.ConfigValue<String> push_url;
+		public final ForgeConfigSpec.IntValue web_cache_ttl_ms;
 		public final ForgeConfigSpec.ConfigValue<String> web_listen_address;
 		public final ForgeConfigSpec.IntValue web_listen_port;
+		public final ForgeConfigSpec.IntValue web_max_scrapes;
+		public final ForgeConfigSpec.EnumValue<WebServerMode> web_server;
 
 		/**
 		 * Construct the instance.
@@ -161,6 +757,17 @@ public class ServerConfig {
 				.comment("Collector settings.")
 				.push("collector");
 
+			this.collector_exporter = builder
+				.comment(
+					"Enable collecting metrics about the overhead of the exporter "
+					+ "itself: the time spent collecting each group of metrics, the "
+					+ "series per metric, and the time spent in the tick hooks. The "
+					+ "duration, allocations, response size and concurrency of the "
+					+ "scrapes are only recorded with \"web.cache_ttl_ms\" set or "
+					+ "\"web.server\" set to \"STREAMING\"."
+				)
+				.define("exporter", true);
+
 			this.collector_jvm = builder
 				.comment("Enable collecting metrics about the JVM process.")
 				.define("jvm", true);
@@ -169,6 +776,42 @@ public class ServerConfig {
 				.comment("Enable collecting metrics about the Minecraft server.")
 				.define("mc", true);
 
+			this.collector_mc_census = builder
+				.comment(
+					"Enable the world census: walking the loaded chunks of each "
+					+ "dimension (world) to count the block entities by type, and the "
+					+ "entities in the most crowded chunk. A pass is spread across "
+					+ "many server ticks within \"mc_census_budget_us\", and its "
+					+ "result is published once the pass finishes."
+				)
+				.define("mc_census", false);
+
+			this.collector_mc_census_budget_us = builder
+				.comment(
+					"The time budget for walking chunks for the world census at the "
+					+ "end of each server tick (in microseconds)."
+				)
+				.defineInRange(
+					"mc_census_budget_us", 500, CENSUS_BUDGET_US_MIN, CENSUS_BUDGET_US_MAX
+				);
+
+			this.collector_mc_census_interval_s = builder
+				.comment(
+					"The minimum time from the start of one world census pass to the "
+					+ "start of the next (in seconds). Set to 0 to start the next pass "
+					+ "as soon as one finishes."
+				)
+				.defineInRange("mc_census_interval_s", 60, 0, CENSUS_INTERVAL_MAX);
+
+			this.collector_mc_chunks = builder
+				.comment(
+					"Enable collecting metrics about the chunk lifecycle: chunks loaded, "
+					+ "unloaded, generated, read and saved per dimension (world), the "
+					+ "time from reading a chunk to it reaching FULL status, and the "
+					+ "chunks by ticket type."
+				)
+				.define("mc_chunks", false);
+
 			this.collector_mc_dimension_tick_errors = builder
 				.comment(
 					(
@@ -200,11 +843,396 @@ public class ServerConfig {
 				)
 				.define("mc_entities", true);
 
+			this.collector_mc_entities_census = builder
+				.comment(
+					"Configure how to group the entities in each dimension (world).",
+					(
+						"  NAME: Group entities by the display name of their type. This "
+						+ "is the original behavior."
+					),
+					(
+						"  TYPE: Group entities by their type registry id. The mod "
+						+ "namespace is exported in the \"mod\" label, and the registry "
+						+ "path in the \"type\" label."
+					)
+				)
+				.defineEnum("mc_entities_census", EntityCensusMode.NAME);
+
+			this.collector_mc_event_listeners = builder
+				.comment(
+					"Enable timing the listeners of the hot events on the Forge event "
+					+ "bus (ticks, entities joining and leaving levels, living entity "
+					+ "ticks, and chunk loads and unloads) by the mods which registered "
+					+ "them. The listeners registered when the server starts are "
+					+ "wrapped, and one in every \"mc_event_listeners_interval\" calls "
+					+ "of each is timed on average."
+				)
+				.define("mc_event_listeners", false);
+
+			this.collector_mc_event_listeners_interval = builder
+				.comment(
+					"Time one in every N calls of each event listener on average with "
+					+ "\"mc_event_listeners\" enabled. The gap between the timed calls is "
+					+ "random, and each timed call is scaled up by the calls since the "
+					+ "last one to estimate the total."
+				)
+				.defineInRange(
+					"mc_event_listeners_interval", 10, 1, EVENT_LISTENERS_INTERVAL_MAX
+				);
+
+			this.collector_mc_event_listeners_max_samples = builder
+				.comment(
+					"The maximum number of event listener calls to time per second with "
+					+ "\"mc_event_listeners\" enabled. This caps the overhead of timing. "
+					+ "Past the cap, the calls which are not timed are carried to the "
+					+ "next timed call of their listener."
+				)
+				.defineInRange(
+					"mc_event_listeners_max_samples", 2000, 1, EVENT_LISTENERS_SAMPLES_MAX
+				);
+
+			this.collector_mc_event_listeners_top = builder
+				.comment(
+					"The maximum number of event listeners to export the times of with "
+					+ "\"mc_event_listeners\" enabled, slowest first."
+				)
+				.defineInRange("mc_event_listeners_top", 10, 0, EVENT_LISTENERS_TOP_MAX);
+
+			this.collector_mc_gc_ticks = builder
+				.comment(
+					"Enable matching the garbage collection (GC) pauses of the JVM "
+					+ "against the server ticks, to export the GC time within the "
+					+ "ticks, and the fraction of slow ticks which overlapped a GC "
+					+ "pause."
+				)
+				.define("mc_gc_ticks", false);
+
+			this.collector_mc_gc_ticks_slow_ms = builder
+				.comment(
+					"The minimum duration of a slow server tick (in milliseconds) with "
+					+ "\"mc_gc_ticks\" enabled."
+				)
+				.defineInRange("mc_gc_ticks_slow_ms", 100, 1, GC_TICKS_SLOW_MS_MAX);
+
+			this.collector_mc_mod_ticks = builder
+				.comment(
+					"Enable attributing the tick times of entities and block entities "
+					+ "to the mods which register their types. The entities and block "
+					+ "entities are only timed on one in every \"mc_mod_ticks_interval\" "
+					+ "server ticks on average, and the sections pushed to the server "
+					+ "profiler are used to find them."
+				)
+				.define("mc_mod_ticks", false);
+
+			this.collector_mc_mod_ticks_interval = builder
+				.comment(
+					"Time the entities and block entities on one in every N server "
+					+ "ticks on average with \"mc_mod_ticks\" enabled. The gap between "
+					+ "the timed ticks is random. The exported times are scaled up by N "
+					+ "to estimate the total."
+				)
+				.defineInRange("mc_mod_ticks_interval", 20, 1, MOD_TICKS_INTERVAL_MAX);
+
+			this.collector_mc_mod_ticks_top = builder
+				.comment(
+					"The maximum number of entity and block entity types to export "
+					+ "the tick times of with \"mc_mod_ticks\" enabled, slowest first."
+				)
+				.defineInRange("mc_mod_ticks_top", 10, 0, MOD_TICKS_TOP_MAX);
+
+			this.collector_mc_network = builder
+				.comment(
+					"Enable collecting metrics about the network I/O of the player "
+					+ "connections: packets and bytes by packet class, pending "
+					+ "outbound bytes, flush times, and the byte rates of the busiest "
+					+ "connections. This installs a handler in the network pipeline of "
+					+ "each player connection."
+				)
+				.define("mc_network", false);
+
+			this.collector_mc_network_top = builder
+				.comment(
+					"The maximum number of player connections to export the byte "
+					+ "rates of with \"mc_network\" enabled."
+				)
+				.defineInRange("mc_network_top", 10, 0, NETWORK_TOP_MAX);
+
+			this.collector_mc_players = builder
+				.comment(
+					"Configure how to export the metrics about the players.",
+					(
+						"  LIST: Export \"mc_player_list\" for every player. This is the "
+						+ "original behavior."
+					),
+					(
+						"  PLAYER: Export \"mc_player_list\", and the ping, dimension and "
+						+ "chunks in view of each player. Only the first players to join "
+						+ "up to \"mc_players_max\" are exported."
+					),
+					(
+						"  AGGREGATE: Export the players per dimension (world) and a "
+						+ "histogram of their ping without any per-player series."
+					)
+				)
+				.defineEnum("mc_players", PlayerMode.LIST);
+
+			this.collector_mc_players_max = builder
+				.comment(
+					"The maximum number of players to export per-player metrics for "
+					+ "with \"mc_players\" set to \"PLAYER\"."
+				)
+				.defineInRange("mc_players_max", 50, 0, PLAYERS_MAX);
+
+			this.collector_mc_series_max = builder
+				.comment(
+					"The maximum number of series per Minecraft metric. Past this, "
+					+ "only the series with the largest values are kept. The rest of "
+					+ "the series of counters, histograms and gauges which count things "
+					+ "(e.g., entities) are summed into a series with each label set to "
+					+ "\"__other__\", and the rest of the series of other metrics are "
+					+ "dropped. Set to 0 to disable the cap."
+				)
+				.defineInRange("mc_series_max", 0, 0, SERIES_MAX);
+
+			this.collector_mc_snapshot_budget_us = builder
+				.comment(
+					"The time budget for reading the snapshots on the server thread "
+					+ "between ticks (in microseconds). The snapshots left once the "
+					+ "budget is spent are read when the server next has time."
+				)
+				.defineInRange(
+					"mc_snapshot_budget_us",
+					1000,
+					SNAPSHOT_BUDGET_US_MIN,
+					SNAPSHOT_BUDGET_US_MAX
+				);
+
+			this.collector_mc_snapshot_chunks_s = builder
+				.comment(
+					"How often to read the loaded chunks of each dimension (world) on "
+					+ "the server thread (in seconds). A scrape returns the latest "
+					+ "snapshot. Set to 0 to read them on each scrape on the scrape "
+					+ "thread, which is the original behavior."
+				)
+				.defineInRange("mc_snapshot_chunks_s", 5, 0, SNAPSHOT_INTERVAL_MAX);
+
+			this.collector_mc_snapshot_entities_s = builder
+				.comment(
+					"How often to read the entities on the server thread (in seconds) "
+					+ "with \"mc_entities\" enabled. A scrape returns the latest "
+					+ "snapshot. Set to 0 to read them on each scrape on the scrape "
+					+ "thread, which is the original behavior."
+				)
+				.defineInRange("mc_snapshot_entities_s", 5, 0, SNAPSHOT_INTERVAL_MAX);
+
+			this.collector_mc_snapshot_players_s = builder
+				.comment(
+					"How often to read the players on the server thread (in seconds). "
+					+ "A scrape returns the latest snapshot. Set to 0 to read them on "
+					+ "each scrape on the scrape thread, which is the original "
+					+ "behavior."
+				)
+				.defineInRange("mc_snapshot_players_s", 5, 0, SNAPSHOT_INTERVAL_MAX);
+
+			this.collector_mc_task_queues = builder
+				.comment(
+					"Enable sampling the backlog of the server once per second: the "
+					+ "tasks queued on the server thread, the chunk tasks queued for "
+					+ "each dimension (world), and the queues and threads of the "
+					+ "background and IO executors."
+				)
+				.define("mc_task_queues", false);
+
+			this.collector_mc_tick_buckets = builder
+				.comment(
+					"The histogram buckets to use for the \"mc_server_tick_seconds\" "
+					+ "and \"mc_dimension_tick_seconds\" metrics (in seconds). A "
+					+ "finer layout around the 50 ms tick budget can be used to see "
+					+ "drift in tick times, e.g., [0.01, 0.02, 0.03, 0.035, 0.04, "
+					+ "0.045, 0.05, 0.06, 0.08, 0.1, 0.25, 0.5, 1.0]."
+				)
+				.defineList(
+					"mc_tick_buckets",
+					DEFAULT_TICK_BUCKETS,
+					value -> value instanceof Number bucket && bucket.doubleValue() > 0
+				);
+
+			this.collector_mc_tick_history = builder
+				.comment(
+					"Enable recording every server tick to a ring file for "
+					+ "\"mc_tick_history_hours\". Each tick records the server and "
+					+ "dimension tick times, the players, and the entities and loaded "
+					+ "chunks of each dimension. The history is kept in "
+					+ "\"prometheus_exporter/tick_history.bin\" in the server "
+					+ "directory, and served at \"/history\"."
+				)
+				.define("mc_tick_history", false);
+
+			this.collector_mc_tick_history_hours = builder
+				.comment(
+					"How many hours of ticks to keep in the tick history at 20 TPS. "
+					+ "Each hour takes about 15 MB of disk space."
+				)
+				.defineInRange("mc_tick_history_hours", 1, 1, HISTORY_HOURS_MAX);
+
+			this.collector_mc_tick_native_histograms = builder
+				.comment(
+					"Enable recording server and dimension (world) ticks with native "
+					+ "(sparse) histogram buckets. These are exported alongside the "
+					+ "classic buckets of \"mc_server_tick_seconds\" and "
+					+ "\"mc_dimension_tick_seconds\" when Prometheus scrapes the "
+					+ "protobuf format."
+				)
+				.define("mc_tick_native_histograms", false);
+
+			this.collector_mc_tick_percentiles = builder
+				.comment(
+					"Enable recording server and dimension (world) ticks with a "
+					+ "high-resolution histogram, and exporting the p50, p90, p99, "
+					+ "p999 and max tick times within a rolling window."
+				)
+				.define("mc_tick_percentiles", false);
+
+			this.collector_mc_tick_percentiles_window = builder
+				.comment("The window to compute the tick percentiles over (in seconds).")
+				.defineInRange(
+					"mc_tick_percentiles_window",
+					DEFAULT_TICK_PERCENTILES_WINDOW,
+					TICK_PERCENTILES_WINDOW_MIN,
+					TICK_PERCENTILES_WINDOW_MAX
+				);
+
+			this.collector_mc_tick_phases = builder
+				.comment(
+					"Enable timing the phases of the dimension (world) ticks: "
+					+ "scheduled ticks, raids, the chunk source, random ticks, block "
+					+ "events, entities, block entities and entity management. The "
+					+ "phases are found from the sections pushed to the server "
+					+ "profiler, which adds a small cost to every profiler section."
+				)
+				.define("mc_tick_phases", false);
+
+			this.collector_mc_tick_rates = builder
+				.comment(
+					"Enable recording the server and dimension (world) ticks per "
+					+ "second (TPS) and milliseconds per tick (MSPT) over the last 5 "
+					+ "seconds, 1 minute, 5 minutes and 15 minutes."
+				)
+				.define("mc_tick_rates", true);
+
+			this.collector_mc_tick_resources = builder
+				.comment(
+					"Enable recording the heap bytes allocated and the CPU time of the "
+					+ "thread running each server and dimension (world) tick. The ratio "
+					+ "of CPU time to wall time shows whether a tick was busy or "
+					+ "blocked. This requires a HotSpot based JVM."
+				)
+				.define("mc_tick_resources", false);
+
+			this.collector_mc_tick_spike_files = builder
+				.comment(
+					"The maximum number of lag spike files to keep in "
+					+ "\"logs/tick-spikes/\". Each lag spike is written in the folded "
+					+ "stack format which can be turned into a flame graph. Set to 0 to "
+					+ "not write lag spike files."
+				)
+				.defineInRange("mc_tick_spike_files", 20, 0, TICK_SPIKE_FILES_MAX);
+
+			this.collector_mc_tick_spike_frames = builder
+				.comment(
+					"The maximum number of frames exported by "
+					+ "\"mc_tick_spike_frames_total\", including \"other\". Once "
+					+ "reached, new frames are counted as \"other\"."
+				)
+				.defineInRange("mc_tick_spike_frames", 100, 1, TICK_SPIKE_FRAMES_MAX);
+
+			this.collector_mc_tick_spike_sample_rate = builder
+				.comment(
+					"The number of server thread stack samples per second during a "
+					+ "lag spike."
+				)
+				.defineInRange(
+					"mc_tick_spike_sample_rate", 100, 1, TICK_SPIKE_SAMPLE_RATE_MAX
+				);
+
+			this.collector_mc_tick_spike_threshold_ms = builder
+				.comment(
+					"The threshold for a server tick to be a lag spike (in "
+					+ "milliseconds)."
+				)
+				.defineInRange(
+					"mc_tick_spike_threshold_ms", 100, 1, TICK_SPIKE_THRESHOLD_MS_MAX
+				);
+
+			this.collector_mc_tick_spikes = builder
+				.comment(
+					"Enable sampling the server thread stack when a server tick runs "
+					+ "past \"mc_tick_spike_threshold_ms\". This runs a watchdog "
+					+ "thread which does not add any work to normal ticks."
+				)
+				.define("mc_tick_spikes", false);
+
+			builder.pop();
+			builder
+				.comment(
+					"Push settings. The metrics can be pushed to a Prometheus remote "
+					+ "write endpoint in addition to being scraped."
+				)
+				.push("push");
+
+			this.push_buffer_mb = builder
+				.comment(
+					"The maximum size of the buffer of unsent batches on disk (in "
+					+ "MiB). The buffer is kept in \"prometheus_exporter/remote_write\" "
+					+ "in the server directory. When the endpoint is unreachable for "
+					+ "long enough to fill the buffer, the oldest batches are dropped. "
+					+ "The buffer is made of 4 MiB segments."
+				)
+				.defineInRange("buffer_mb", 64, 8, PUSH_BUFFER_MB_MAX);
+
+			this.push_enabled = builder
+				.comment(
+					"Enable pushing the metrics to \"url\" with the Prometheus remote "
+					+ "write protocol."
+				)
+				.define("enabled", false);
+
+			this.push_instance = builder
+				.comment(
+					"The \"instance\" label added to the pushed metrics. Leave empty to "
+					+ "use the host name."
+				)
+				.define("instance", "");
+
+			this.push_interval_s = builder
+				.comment("How often to push the metrics (in seconds).")
+				.defineInRange("interval_s", 15, 1, PUSH_INTERVAL_S_MAX);
+
+			this.push_job = builder
+				.comment("The \"job\" label added to the pushed metrics.")
+				.define("job", "minecraft");
+
+			this.push_url = builder
+				.comment(
+					"The remote write endpoint URL. E.g., "
+					+ "\"http://localhost:9090/api/v1/write\"."
+				)
+				.define("url", "");
+
 			builder.pop();
 			builder
 				.comment("Web server settings.")
 				.push("web");
 
+			this.web_cache_ttl_ms = builder
+				.comment(
+					"How long to cache the scrape response (in milliseconds). When "
+					+ "multiple Prometheus servers scrape the exporter, scrapes within "
+					+ "this time share the same response, and concurrent scrapes wait "
+					+ "for a single collection. Set to 0 to disable the cache."
+				)
+				.defineInRange("cache_ttl_ms", 0, 0, CACHE_TTL_MAX);
+
 			this.web_listen_address = builder
 				.comment(
 					"The IP address to listen on. To only allow connections from the "
@@ -220,10 +1248,73 @@ public class ServerConfig {
 				)
 				.defineInRange("listen_port", DEFAULT_PORT, TCP_PORT_MIN, TCP_PORT_MAX);
 
+			this.web_max_scrapes = builder
+				.comment(
+					"The maximum number of concurrent scrapes with \"server\" set to "
+					+ "\"STREAMING\". Scrapes past this are rejected with a 503 "
+					+ "response."
+				)
+				.defineInRange("max_scrapes", 4, 1, MAX_SCRAPES_MAX);
+
+			this.web_server = builder
+				.comment(
+					"Configure which web server to serve the metrics with.",
+					(
+						"  PROMETHEUS: Use the Prometheus web server, or the caching web "
+						+ "server when \"cache_ttl_ms\" is set. Each response is buffered "
+						+ "in memory before it is sent. This is the original behavior."
+					),
+					(
+						"  STREAMING: Handle each scrape on a virtual thread, and stream "
+						+ "the response to the connection without buffering it. Responses "
+						+ "are compressed with pooled gzip buffers. \"cache_ttl_ms\" is "
+						+ "ignored."
+					)
+				)
+				.defineEnum("server", WebServerMode.PROMETHEUS);
+
 			builder.pop();
 		}
 	}
 
+	/**
+	 * The EntityCensusMode enum defines how to group the entities in each
+	 * dimension (world).
+	 */
+	public enum EntityCensusMode {
+		/**
+		 * Group entities by the display name of their type.
+		 */
+		NAME,
+
+		/**
+		 * Group entities by their type registry id, and label them with the mod
+		 * namespace.
+		 */
+		TYPE
+	}
+
+	/**
+	 * The PlayerMode enum defines how to export the metrics about the players.
+	 */
+	public enum PlayerMode {
+		/**
+		 * Export the player list for every player.
+		 */
+		LIST,
+
+		/**
+		 * Export the player list and per-player metrics for a capped number of
+		 * players.
+		 */
+		PLAYER,
+
+		/**
+		 * Export the players per dimension and a ping histogram.
+		 */
+		AGGREGATE
+	}
+
 	/**
 	 * The TickErrorPolicy enum defines how to handle dimension (world) tick event
 	 * errors.
@@ -244,4 +1335,20 @@ public class ServerConfig {
 		 */
 		STRICT
 	}
+
+	/**
+	 * The WebServerMode enum defines which web server to serve the metrics with.
+	 */
+	public enum WebServerMode {
+		/**
+		 * Use the Prometheus web server, or the caching web server when the scrape
+		 * cache is enabled.
+		 */
+		PROMETHEUS,
+
+		/**
+		 * Use the streaming web server on virtual threads.
+		 */
+		STREAMING
+	}
 }
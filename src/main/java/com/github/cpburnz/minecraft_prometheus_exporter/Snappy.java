@@ -0,0 +1,298 @@
+package com.github.cpburnz.minecraft_prometheus_exporter;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * The Snappy class implements the Snappy block format used by the Prometheus
+ * remote write protocol. This avoids bundling a native compression library
+ * with the mod.
+ *
+ * <p>The compressor is a simple greedy matcher over 64 KiB blocks with a hash
+ * table of 4-byte sequences. It does not compress as well as the reference
+ * implementation, but the exposition compresses well regardless because of its
+ * repeated metric and label names.</p>
+ */
+public final class Snappy {
+
+	/**
+	 * The size of the blocks to find matches in.
+	 */
+	private static final int BLOCK_SIZE = 1 << 16;
+
+	/**
+	 * The number of bits of the hash table index.
+	 */
+	private static final int HASH_BITS = 14;
+
+	/**
+	 * The shortest input worth looking for matches in.
+	 */
+	private static final int MIN_BLOCK = 15;
+
+	/**
+	 * The tag type of a copy with a 1-byte offset.
+	 */
+	private static final int TAG_COPY_1 = 1;
+
+	/**
+	 * The tag type of a copy with a 2-byte offset.
+	 */
+	private static final int TAG_COPY_2 = 2;
+
+	/**
+	 * The tag type of a literal.
+	 */
+	private static final int TAG_LITERAL = 0;
+
+	/**
+	 * This class cannot be instantiated.
+	 */
+	private Snappy() {}
+
+	/**
+	 * Compress the bytes.
+	 *
+	 * @param src The bytes.
+	 * @param length The number of bytes to compress.
+	 * @return The compressed bytes.
+	 */
+	public static byte[] compress(byte[] src, int length) {
+		byte[] dst = new byte[32 + length + length / 6];
+		int pos = writeVarint(dst, 0, length);
+
+		int[] table = new int[1 << HASH_BITS];
+		for (int start = 0; start < length; start += BLOCK_SIZE) {
+			int end = Math.min(start + BLOCK_SIZE, length);
+			pos = compressBlock(src, start, end, dst, pos, table);
+		}
+		return Arrays.copyOf(dst, pos);
+	}
+
+	/**
+	 * Compress a block.
+	 *
+	 * @param src The bytes.
+	 * @param start The start of the block.
+	 * @param end The end of the block.
+	 * @param dst The compressed bytes.
+	 * @param pos The position in the compressed bytes.
+	 * @param table The hash table of positions.
+	 * @return The new position in the compressed bytes.
+	 */
+	private static int compressBlock(
+		byte[] src, int start, int end, byte[] dst, int pos, int[] table
+	) {
+		int next_emit = start;
+		if (end - start >= MIN_BLOCK) {
+			Arrays.fill(table, -1);
+			int ip = start;
+			int limit = end - 4;
+			while (ip <= limit) {
+				int bytes = load32(src, ip);
+				int hash = (bytes * 0x1e35a7bd) >>> (32 - HASH_BITS);
+				int candidate = table[hash];
+				table[hash] = ip;
+				if (candidate < 0 || load32(src, candidate) != bytes) {
+					ip++;
+					continue;
+				}
+
+				// Extend the match.
+				int length = 4;
+				while (ip + length < end && src[candidate + length] == src[ip + length]) {
+					length++;
+				}
+				pos = emitLiteral(src, next_emit, ip - next_emit, dst, pos);
+				pos = emitCopy(ip - candidate, length, dst, pos);
+				ip += length;
+				next_emit = ip;
+			}
+		}
+		return emitLiteral(src, next_emit, end - next_emit, dst, pos);
+	}
+
+	/**
+	 * Write copy elements.
+	 *
+	 * @param offset The distance back to copy from.
+	 * @param length The number of bytes to copy.
+	 * @param dst The compressed bytes.
+	 * @param pos The position in the compressed bytes.
+	 * @return The new position in the compressed bytes.
+	 */
+	private static int emitCopy(int offset, int length, byte[] dst, int pos) {
+		// A copy element copies at most 64 bytes. Leave at least 4 bytes for the
+		// last one.
+		while (length >= 68) {
+			pos = emitCopy2(offset, 64, dst, pos);
+			length -= 64;
+		}
+		if (length > 64) {
+			pos = emitCopy2(offset, 60, dst, pos);
+			length -= 60;
+		}
+
+		if (length < 12 && offset < 2048) {
+			dst[pos++] = (byte)(TAG_COPY_1 | ((length - 4) << 2) | ((offset >>> 8) << 5));
+			dst[pos++] = (byte)offset;
+			return pos;
+		}
+		return emitCopy2(offset, length, dst, pos);
+	}
+
+	/**
+	 * Write a copy element with a 2-byte offset.
+	 *
+	 * @param offset The distance back to copy from.
+	 * @param length The number of bytes to copy (1 to 64).
+	 * @param dst The compressed bytes.
+	 * @param pos The position in the compressed bytes.
+	 * @return The new position in the compressed bytes.
+	 */
+	private static int emitCopy2(int offset, int length, byte[] dst, int pos) {
+		dst[pos++] = (byte)(TAG_COPY_2 | ((length - 1) << 2));
+		dst[pos++] = (byte)offset;
+		dst[pos++] = (byte)(offset >>> 8);
+		return pos;
+	}
+
+	/**
+	 * Write a literal element.
+	 *
+	 * @param src The bytes.
+	 * @param start The start of the literal.
+	 * @param length The length of the literal.
+	 * @param dst The compressed bytes.
+	 * @param pos The position in the compressed bytes.
+	 * @return The new position in the compressed bytes.
+	 */
+	private static int emitLiteral(byte[] src, int start, int length, byte[] dst, int pos) {
+		if (length == 0) {
+			return pos;
+		}
+
+		int n = length - 1;
+		if (n < 60) {
+			dst[pos++] = (byte)(TAG_LITERAL | (n << 2));
+		} else if (n < 1 << 8) {
+			dst[pos++] = (byte)(TAG_LITERAL | (60 << 2));
+			dst[pos++] = (byte)n;
+		} else {
+			dst[pos++] = (byte)(TAG_LITERAL | (61 << 2));
+			dst[pos++] = (byte)n;
+			dst[pos++] = (byte)(n >>> 8);
+		}
+		System.arraycopy(src, start, dst, pos, length);
+		return pos + length;
+	}
+
+	/**
+	 * Read 4 bytes as a little-endian integer.
+	 *
+	 * @param src The bytes.
+	 * @param pos The position.
+	 * @return The integer.
+	 */
+	private static int load32(byte[] src, int pos) {
+		return (
+			(src[pos] & 0xFF)
+			| (src[pos + 1] & 0xFF) << 8
+			| (src[pos + 2] & 0xFF) << 16
+			| (src[pos + 3] & 0xFF) << 24
+		);
+	}
+
+	/**
+	 * Uncompress the bytes.
+	 *
+	 * @param src The compressed bytes.
+	 * @return The bytes.
+	 * @throws IOException When the compressed bytes are invalid.
+	 */
+	public static byte[] uncompress(byte[] src) throws IOException {
+		try {
+			// Read the uncompressed length.
+			int pos = 0;
+			int length = 0;
+			for (int shift = 0; ; shift += 7) {
+				int b = src[pos++];
+				length |= (b & 0x7F) << shift;
+				if (b >= 0) {
+					break;
+				}
+			}
+
+			byte[] dst = new byte[length];
+			int out = 0;
+			while (pos < src.length) {
+				int tag = src[pos++] & 0xFF;
+				int type = tag & 3;
+				if (type == TAG_LITERAL) {
+					int n = tag >>> 2;
+					if (n >= 60) {
+						int bytes = n - 59;
+						n = 0;
+						for (int i = 0; i < bytes; i++) {
+							n |= (src[pos++] & 0xFF) << (i * 8);
+						}
+					}
+					System.arraycopy(src, pos, dst, out, n + 1);
+					pos += n + 1;
+					out += n + 1;
+					continue;
+				}
+
+				int copy_length;
+				int offset;
+				if (type == TAG_COPY_1) {
+					copy_length = 4 + ((tag >>> 2) & 7);
+					offset = ((tag >>> 5) << 8) | (src[pos++] & 0xFF);
+				} else if (type == TAG_COPY_2) {
+					copy_length = (tag >>> 2) + 1;
+					offset = (src[pos] & 0xFF) | (src[pos + 1] & 0xFF) << 8;
+					pos += 2;
+				} else {
+					// Copy with a 4-byte offset.
+					copy_length = (tag >>> 2) + 1;
+					offset = load32(src, pos);
+					pos += 4;
+				}
+				if (offset <= 0 || offset > out) {
+					throw new IOException("Invalid snappy copy offset " + offset + ".");
+				}
+
+				// Copies may overlap their output.
+				for (int i = 0; i < copy_length; i++) {
+					dst[out] = dst[out - offset];
+					out++;
+				}
+			}
+
+			if (out != length) {
+				throw new IOException("Snappy length " + out + " is not " + length + ".");
+			}
+			return dst;
+
+		} catch (ArrayIndexOutOfBoundsException e) {
+			throw new IOException("Truncated snappy data.", e);
+		}
+	}
+
+	/**
+	 * Write a varint.
+	 *
+	 * @param dst The bytes.
+	 * @param pos The position.
+	 * @param value The value.
+	 * @return The new position.
+	 */
+	private static int writeVarint(byte[] dst, int pos, int value) {
+		while ((value & ~0x7F) != 0) {
+			dst[pos++] = (byte)((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		dst[pos++] = (byte)value;
+		return pos;
+	}
+}
@@ -0,0 +1,338 @@
+package com.github.cpburnz.minecraft_prometheus_exporter;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.server.TickTask;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import io.prometheus.client.Collector.MetricFamilySamples;
+import io.prometheus.client.GaugeMetricFamily;
+
+/**
+ * The SnapshotScheduler class reads the metrics which depend on live world
+ * state on the server thread at a fixed interval, instead of on the scrape
+ * thread. A scrape only returns the latest snapshot of each source, so the
+ * scrape latency does not depend on the size of the world, and the world state
+ * is only read by the thread which owns it.
+ *
+ * <p>The scheduler thread only decides when each source is due. The reads are
+ * queued on the server with {@link MinecraftServer#tell(Runnable)}, which runs
+ * them between ticks. The due sources are read one after the other until the
+ * time budget is spent, and the rest are queued again behind the tasks of the
+ * server to be read when it next has time. A single source is never split, so
+ * a source slower than the budget still runs whole. Nothing is read once the
+ * server is no longer running.</p>
+ */
+public class SnapshotScheduler implements Closeable {
+
+	/**
+	 * The logger to use.
+	 */
+	private static final Logger LOG = LogManager.getLogger();
+
+	/**
+	 * The number of nanoseconds in a second.
+	 */
+	private static final double NANOSECONDS_PER_SECOND = 1e9;
+
+	/**
+	 * The time budget for reading the sources at once (in nanoseconds).
+	 */
+	private final long budget_ns;
+
+	/**
+	 * The sources due to be read.
+	 */
+	private final ConcurrentLinkedQueue<Source> due;
+
+	/**
+	 * The thread scheduling the sources.
+	 */
+	private final ScheduledExecutorService scheduler;
+
+	/**
+	 * The Minecraft server.
+	 */
+	private final MinecraftServer server;
+
+	/**
+	 * The sources read on a schedule.
+	 */
+	private final List<Source> sources;
+
+	/**
+	 * Constructs the instance.
+	 *
+	 * @param server The Minecraft server.
+	 * @param budget_us The time budget for reading the sources at once (in
+	 * microseconds).
+	 */
+	public SnapshotScheduler(MinecraftServer server, int budget_us) {
+		this.budget_ns = budget_us * 1000L;
+		this.due = new ConcurrentLinkedQueue<>();
+		this.server = server;
+		this.sources = new ArrayList<>();
+
+		// NOTICE: The thread is only started when the first source is scheduled.
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "prometheus-exporter-snapshots");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Add a source of metrics.
+	 *
+	 * @param name The source name for the "collector" label.
+	 * @param interval_s How often to read the source (in seconds). Zero reads it
+	 * on each scrape on the scrape thread.
+	 * @param reader Reads the metrics of the source into the list.
+	 * @return The source.
+	 */
+	public Source add(
+		String name, int interval_s, Consumer<List<MetricFamilySamples>> reader
+	) {
+		Source source = new Source(name, interval_s, reader);
+		if (interval_s > 0) {
+			this.sources.add(source);
+			this.scheduler.scheduleAtFixedRate(
+				() -> this.request(source), 0, interval_s, TimeUnit.SECONDS
+			);
+		}
+		return source;
+	}
+
+	/**
+	 * Stop scheduling the sources.
+	 */
+	@Override
+	public void close() {
+		this.scheduler.shutdownNow();
+	}
+
+	/**
+	 * Get the snapshot metrics.
+	 *
+	 * @param metrics The metrics to add the snapshot metrics to.
+	 */
+	public void collect(List<MetricFamilySamples> metrics) {
+		if (this.sources.isEmpty()) {
+			return;
+		}
+
+		GaugeMetricFamily age = newAgeMetric();
+		GaugeMetricFamily read = newReadMetric();
+		long now_ns = System.nanoTime();
+		for (Source source : this.sources) {
+			List<String> labels = List.of(source.name);
+			long updated_ns = source.updated_ns;
+			if (updated_ns != 0) {
+				age.addMetric(labels, (now_ns - updated_ns) / NANOSECONDS_PER_SECOND);
+			}
+			read.addMetric(labels, source.read_ns / NANOSECONDS_PER_SECOND);
+		}
+		metrics.add(age);
+		metrics.add(read);
+	}
+
+	/**
+	 * Get the snapshot metric descriptions.
+	 *
+	 * @param descs The metric descriptions to add to.
+	 */
+	public void describe(List<MetricFamilySamples> descs) {
+		if (!this.sources.isEmpty()) {
+			descs.add(newAgeMetric());
+			descs.add(newReadMetric());
+		}
+	}
+
+	/**
+	 * Read the due sources until the time budget is spent. This is run on the
+	 * server thread.
+	 */
+	private void drain() {
+		long start_ns = System.nanoTime();
+		Source source;
+		while ((source = this.due.poll()) != null) {
+			if (!this.server.isRunning()) {
+				source.pending.set(false);
+				continue;
+			}
+
+			source.read();
+			long elapsed_ns = System.nanoTime() - start_ns;
+			if (elapsed_ns >= this.budget_ns && !this.due.isEmpty()) {
+				// Let the server tick before reading the rest.
+				this.post();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Create a new metric for the snapshot ages.
+	 *
+	 * @return The age metric.
+	 */
+	private static GaugeMetricFamily newAgeMetric() {
+		return new GaugeMetricFamily(
+			"mc_exporter_snapshot_age_seconds",
+			"How long ago the snapshot of each collector was taken (in seconds).",
+			List.of("collector")
+		);
+	}
+
+	/**
+	 * Create a new metric for the snapshot read times.
+	 *
+	 * @return The read metric.
+	 */
+	private static GaugeMetricFamily newReadMetric() {
+		return new GaugeMetricFamily(
+			"mc_exporter_snapshot_read_seconds",
+			"How long the last snapshot of each collector took to read on the "
+			+ "server thread (in seconds).",
+			List.of("collector")
+		);
+	}
+
+	/**
+	 * Queue a drain on the server thread.
+	 */
+	private void post() {
+		// NOTICE: The task is always queued. The executor of the server would run
+		// it inline when called from the server thread, or once the server has
+		// stopped. The task is stamped with the next tick, so the server only runs
+		// it when it has time between ticks or once it is a few ticks overdue.
+		this.server.tell(new TickTask(this.server.getTickCount() + 1, this::drain));
+	}
+
+	/**
+	 * Hand a source to the server thread to be read. A source is only queued
+	 * once until it is read.
+	 *
+	 * @param source The source.
+	 */
+	private void request(Source source) {
+		if (!this.server.isRunning()) {
+			return;
+		}
+		if (!source.pending.compareAndSet(false, true)) {
+			return;
+		}
+
+		// NOTICE: A drain is posted for each source rather than only when the
+		// queue was empty, since a running drain may have just found the queue
+		// empty. A drain with nothing left to read returns immediately.
+		this.due.add(source);
+		try {
+			this.post();
+		} catch (RuntimeException e) {
+			// The server may be shutting down.
+			LOG.debug("Failed to schedule snapshot {}.", source.name, e);
+			if (this.due.remove(source)) {
+				source.pending.set(false);
+			}
+		}
+	}
+
+	/**
+	 * The Source class holds a source of metrics and its latest snapshot.
+	 */
+	public static class Source {
+
+		/**
+		 * The source name.
+		 */
+		public final String name;
+
+		/**
+		 * Whether the source is queued to be read.
+		 */
+		private final AtomicBoolean pending;
+
+		/**
+		 * How long the last read took (in nanoseconds).
+		 */
+		private volatile long read_ns;
+
+		/**
+		 * Reads the metrics of the source into the list.
+		 */
+		private final Consumer<List<MetricFamilySamples>> reader;
+
+		/**
+		 * The latest snapshot, or {@code null} when read on each scrape.
+		 */
+		private volatile List<MetricFamilySamples> snapshot;
+
+		/**
+		 * When the latest snapshot was taken (in nanoseconds), or 0 before the
+		 * first snapshot.
+		 */
+		private volatile long updated_ns;
+
+		/**
+		 * Constructs the instance.
+		 *
+		 * @param name The source name.
+		 * @param interval_s How often to read the source (in seconds).
+		 * @param reader Reads the metrics of the source into the list.
+		 */
+		private Source(
+			String name, int interval_s, Consumer<List<MetricFamilySamples>> reader
+		) {
+			this.name = name;
+			this.pending = new AtomicBoolean();
+			this.reader = reader;
+			this.snapshot = interval_s > 0 ? List.of() : null;
+		}
+
+		/**
+		 * Get the metrics of the source: the latest snapshot, or a fresh read when
+		 * the source is read on each scrape.
+		 *
+		 * @param metrics The metrics to add the source metrics to.
+		 */
+		public void collect(List<MetricFamilySamples> metrics) {
+			List<MetricFamilySamples> snapshot = this.snapshot;
+			if (snapshot != null) {
+				metrics.addAll(snapshot);
+			} else {
+				this.reader.accept(metrics);
+			}
+		}
+
+		/**
+		 * Read the source, and publish the snapshot. This is run on the server
+		 * thread.
+		 */
+		private void read() {
+			long start_ns = System.nanoTime();
+			try {
+				ArrayList<MetricFamilySamples> metrics = new ArrayList<>();
+				this.reader.accept(metrics);
+				this.snapshot = List.copyOf(metrics);
+				long now_ns = System.nanoTime();
+				this.read_ns = now_ns - start_ns;
+				this.updated_ns = now_ns;
+			} catch (Exception e) {
+				LOG.error("Failed to read snapshot {}.", this.name, e);
+			} finally {
+				this.pending.set(false);
+			}
+		}
+	}
+}
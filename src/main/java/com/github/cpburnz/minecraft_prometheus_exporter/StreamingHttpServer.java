@@ -0,0 +1,469 @@
+package com.github.cpburnz.minecraft_prometheus_exporter;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import javax.annotation.Nullable;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import io.prometheus.client.CollectorRegistry;
+
+/**
+ * The StreamingHttpServer class serves the metrics over HTTP without buffering
+ * the response. This is used instead of the Prometheus HTTPServer when the
+ * streaming web server is enabled.
+ *
+ * <p>Each request is handled on its own virtual thread. The exposition is
+ * written straight to the connection using chunked encoding, and is
+ * compressed through a pooled gzip stream whose deflater and buffer are reused
+ * across scrapes. The JDK HTTP server keeps connections alive between
+ * scrapes. Scrapes past the concurrent scrape limit are rejected with a 503
+ * rather than queued.</p>
+ */
+public class StreamingHttpServer implements Closeable {
+
+	/**
+	 * The logger to use.
+	 */
+	private static final Logger LOG = LogManager.getLogger();
+
+	/**
+	 * The size of the gzip stream buffer.
+	 */
+	private static final int GZIP_BUFFER_SIZE = 1 << 14;
+
+	/**
+	 * The executor handling requests.
+	 */
+	private final ExecutorService executor;
+
+	/**
+	 * The idle gzip streams. The number of streams is bounded by the concurrent
+	 * scrape limit.
+	 */
+	private final ArrayBlockingQueue<GzipStream> gzip_pool;
+
+	/**
+	 * The JDK HTTP server.
+	 */
+	private final HttpServer http_server;
+
+	/**
+	 * The registry to export.
+	 */
+	private final CollectorRegistry registry;
+
+	/**
+	 * The permits for concurrent scrapes.
+	 */
+	private final Semaphore scrapes;
+
+	/**
+	 * The exporter overhead stats. This is only set when collecting metrics
+	 * about the exporter is enabled.
+	 */
+	@Nullable
+	private final ExporterStats stats;
+
+	/**
+	 * Constructs the instance, and starts the HTTP server.
+	 *
+	 * @param address The IP address to listen on.
+	 * @param port The TCP port to listen on.
+	 * @param registry The registry to export.
+	 * @param max_scrapes The maximum number of concurrent scrapes.
+	 * @param stats The exporter overhead stats to record the scrapes in.
+	 * @param history_handler The handler for the tick history.
+	 * @throws IOException When the HTTP server cannot be bound.
+	 */
+	public StreamingHttpServer(
+		String address,
+		int port,
+		CollectorRegistry registry,
+		int max_scrapes,
+		@Nullable ExporterStats stats,
+		HttpHandler history_handler
+	) throws IOException {
+		this.gzip_pool = new ArrayBlockingQueue<>(max_scrapes);
+		this.registry = registry;
+		this.scrapes = new Semaphore(max_scrapes);
+		this.stats = stats;
+
+		// NOTICE: Virtual threads are always daemon threads, so they will not keep
+		// the Minecraft server process alive.
+		this.executor = Executors.newThreadPerTaskExecutor(
+			Thread.ofVirtual().name("prometheus-exporter-http-", 0).factory()
+		);
+
+		this.http_server = HttpServer.create(new InetSocketAddress(address, port), 3);
+		HttpHandler metrics_handler = this::handleMetrics;
+		this.http_server.createContext("/", metrics_handler);
+		this.http_server.createContext("/metrics", metrics_handler);
+		this.http_server.createContext("/-/healthy", this::handleHealthy);
+		this.http_server.createContext("/history", history_handler);
+		this.http_server.setExecutor(this.executor);
+		this.http_server.start();
+	}
+
+	/**
+	 * Stop the HTTP server.
+	 */
+	@Override
+	public void close() {
+		this.http_server.stop(0);
+		this.executor.shutdownNow();
+
+		GzipStream gzip;
+		while ((gzip = this.gzip_pool.poll()) != null) {
+			gzip.close();
+		}
+	}
+
+	/**
+	 * Handle a health check request.
+	 *
+	 * @param exchange The HTTP exchange.
+	 * @throws IOException When the response cannot be sent.
+	 */
+	private void handleHealthy(HttpExchange exchange) throws IOException {
+		try {
+			byte[] body = "Exporter is Healthy.".getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+			exchange.sendResponseHeaders(200, body.length);
+			exchange.getResponseBody().write(body);
+		} finally {
+			exchange.close();
+		}
+	}
+
+	/**
+	 * Handle a metrics request.
+	 *
+	 * @param exchange The HTTP exchange.
+	 * @throws IOException When the response cannot be sent.
+	 */
+	private void handleMetrics(HttpExchange exchange) throws IOException {
+		if (!this.scrapes.tryAcquire()) {
+			try {
+				exchange.getResponseHeaders().set("Retry-After", "1");
+				exchange.sendResponseHeaders(503, -1);
+			} finally {
+				exchange.close();
+			}
+			return;
+		}
+
+		ExporterStats.Scrape scrape = this.stats != null ? this.stats.startScrape() : null;
+		CountingStream counter = null;
+		boolean is_aborted = false;
+		boolean is_sent = false;
+		try {
+			String content_type = ProtobufFormat.chooseContentType(
+				exchange.getRequestHeaders().getFirst("Accept")
+			);
+			boolean use_gzip = ExporterHttpServer.acceptsGzip(exchange);
+			List<String> names = ExporterHttpServer.parseNames(
+				exchange.getRequestURI().getRawQuery()
+			);
+
+			exchange.getResponseHeaders().set("Content-Type", content_type);
+			if (use_gzip) {
+				exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+			}
+
+			if (exchange.getRequestMethod().equals("HEAD")) {
+				exchange.sendResponseHeaders(200, -1);
+				return;
+			}
+
+			// Stream the response with chunked encoding.
+			exchange.sendResponseHeaders(200, 0);
+			is_sent = true;
+			OutputStream body = exchange.getResponseBody();
+			if (scrape != null) {
+				counter = new CountingStream(body);
+				body = counter;
+			}
+			if (use_gzip) {
+				GzipStream gzip = this.gzip_pool.poll();
+				if (gzip == null) {
+					gzip = new GzipStream();
+				}
+				try {
+					gzip.reset(body);
+					this.writeMetrics(gzip, content_type, names);
+					gzip.finish();
+				} finally {
+					if (!this.gzip_pool.offer(gzip)) {
+						gzip.close();
+					}
+				}
+			} else {
+				this.writeMetrics(body, content_type, names);
+			}
+			body.flush();
+
+		} catch (Exception e) {
+			LOG.error("Failed to serve metrics.", e);
+			if (is_sent) {
+				// Once the headers are sent, the only way to signal the error is to
+				// abort the connection.
+				// - NOTICE: Closing the exchange would write the last chunk, which
+				//   makes a partial response look complete. Instead the exception is
+				//   rethrown, and the server closes the connection without it.
+				is_aborted = true;
+				throw e instanceof IOException io ? io : new IOException(e);
+			}
+			exchange.sendResponseHeaders(500, -1);
+		} finally {
+			if (scrape != null) {
+				scrape.finish(counter != null ? counter.count : 0);
+			}
+			this.scrapes.release();
+			if (!is_aborted) {
+				exchange.close();
+			}
+		}
+	}
+
+	/**
+	 * Serialize the registry to the output.
+	 *
+	 * @param output The output stream.
+	 * @param content_type The content type to serialize.
+	 * @param names The metric names to include, or an empty list for all.
+	 * @throws IOException When the metrics cannot be written.
+	 */
+	private void writeMetrics(
+		OutputStream output, String content_type, List<String> names
+	) throws IOException {
+		if (names.isEmpty()) {
+			ProtobufFormat.writeFormat(
+				content_type, output, this.registry.metricFamilySamples()
+			);
+		} else {
+			ProtobufFormat.writeFormat(
+				content_type,
+				output,
+				this.registry.filteredMetricFamilySamples(Set.copyOf(names))
+			);
+		}
+	}
+
+	/**
+	 * The CountingStream class counts the bytes written to the response.
+	 */
+	private static class CountingStream extends OutputStream {
+
+		/**
+		 * The number of bytes written.
+		 */
+		public long count;
+
+		/**
+		 * The output to write to.
+		 */
+		private final OutputStream output;
+
+		/**
+		 * Constructs the instance.
+		 *
+		 * @param output The output to write to.
+		 */
+		public CountingStream(OutputStream output) {
+			this.output = output;
+		}
+
+		/**
+		 * Flush the output.
+		 *
+		 * @throws IOException When the data cannot be written.
+		 */
+		@Override
+		public void flush() throws IOException {
+			this.output.flush();
+		}
+
+		/**
+		 * Write a byte.
+		 *
+		 * @param b The byte.
+		 * @throws IOException When the data cannot be written.
+		 */
+		@Override
+		public void write(int b) throws IOException {
+			this.output.write(b);
+			this.count++;
+		}
+
+		/**
+		 * Write the bytes.
+		 *
+		 * @param b The bytes.
+		 * @param off The start offset.
+		 * @param len The number of bytes.
+		 * @throws IOException When the data cannot be written.
+		 */
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			this.output.write(b, off, len);
+			this.count += len;
+		}
+	}
+
+	/**
+	 * The GzipStream class compresses to gzip format with a reusable deflater and
+	 * buffer. Unlike GZIPOutputStream, it can be reset to write to a new output
+	 * without allocating.
+	 */
+	private static class GzipStream extends OutputStream {
+
+		/**
+		 * The gzip header: magic number, deflate method, no flags, no time, no
+		 * extra flags, and unknown OS.
+		 */
+		private static final byte[] HEADER = new byte[] {
+			(byte)0x1f, (byte)0x8b, 8, 0, 0, 0, 0, 0, 0, (byte)0xff,
+		};
+
+		/**
+		 * The compressed output buffer.
+		 */
+		private final byte[] buffer;
+
+		/**
+		 * The checksum of the uncompressed data.
+		 */
+		private final CRC32 crc;
+
+		/**
+		 * The deflater. This writes raw deflate data because the gzip header and
+		 * trailer are written separately.
+		 */
+		private final Deflater deflater;
+
+		/**
+		 * The output to write the compressed data to.
+		 */
+		private OutputStream output;
+
+		/**
+		 * Constructs the instance.
+		 */
+		public GzipStream() {
+			this.buffer = new byte[GZIP_BUFFER_SIZE];
+			this.crc = new CRC32();
+			this.deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		}
+
+		/**
+		 * Release the deflater. This does not close the output.
+		 */
+		@Override
+		public void close() {
+			this.deflater.end();
+		}
+
+		/**
+		 * Write the compressed data available from the deflater.
+		 *
+		 * @param flush The deflater flush mode.
+		 * @throws IOException When the data cannot be written.
+		 */
+		private void deflate(int flush) throws IOException {
+			int length;
+			while ((length = this.deflater.deflate(this.buffer, 0, this.buffer.length, flush)) > 0) {
+				this.output.write(this.buffer, 0, length);
+			}
+		}
+
+		/**
+		 * Finish the compressed data, and write the gzip trailer. This does not
+		 * close the output.
+		 *
+		 * @throws IOException When the data cannot be written.
+		 */
+		public void finish() throws IOException {
+			this.deflater.finish();
+			while (!this.deflater.finished()) {
+				int length = this.deflater.deflate(this.buffer);
+				this.output.write(this.buffer, 0, length);
+			}
+
+			int crc = (int)this.crc.getValue();
+			int size = (int)this.deflater.getBytesRead();
+			byte[] trailer = new byte[] {
+				(byte)crc, (byte)(crc >> 8), (byte)(crc >> 16), (byte)(crc >> 24),
+				(byte)size, (byte)(size >> 8), (byte)(size >> 16), (byte)(size >> 24),
+			};
+			this.output.write(trailer);
+		}
+
+		/**
+		 * Flush the compressed data written so far to the output.
+		 *
+		 * @throws IOException When the data cannot be written.
+		 */
+		@Override
+		public void flush() throws IOException {
+			this.deflate(Deflater.SYNC_FLUSH);
+			this.output.flush();
+		}
+
+		/**
+		 * Start a new gzip stream.
+		 *
+		 * @param output The output to write the compressed data to.
+		 * @throws IOException When the header cannot be written.
+		 */
+		public void reset(OutputStream output) throws IOException {
+			this.crc.reset();
+			this.deflater.reset();
+			this.output = output;
+			this.output.write(HEADER);
+		}
+
+		/**
+		 * Compress a byte.
+		 *
+		 * @param b The byte.
+		 * @throws IOException When the data cannot be written.
+		 */
+		@Override
+		public void write(int b) throws IOException {
+			this.write(new byte[] {(byte)b}, 0, 1);
+		}
+
+		/**
+		 * Compress the bytes.
+		 *
+		 * @param b The bytes.
+		 * @param off The start offset.
+		 * @param len The number of bytes.
+		 * @throws IOException When the data cannot be written.
+		 */
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			this.crc.update(b, off, len);
+			this.deflater.setInput(b, off, len);
+			while (!this.deflater.needsInput()) {
+				this.deflate(Deflater.NO_FLUSH);
+			}
+		}
+	}
+}
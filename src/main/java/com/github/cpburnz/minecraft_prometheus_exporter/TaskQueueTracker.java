@@ -0,0 +1,380 @@
+package com.github.cpburnz.minecraft_prometheus_exporter;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import net.minecraft.Util;
+import net.minecraft.resources.ResourceKey;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.server.level.ServerLevel;
+import net.minecraft.world.level.Level;
+
+import io.prometheus.client.Collector.MetricFamilySamples;
+import io.prometheus.client.CounterMetricFamily;
+import io.prometheus.client.GaugeMetricFamily;
+
+/**
+ * The TaskQueueTracker class samples the backlog of the server: the tasks
+ * queued to run on the server thread, the chunk tasks queued to run on the
+ * server thread for each dimension (world), and the queues and threads of the
+ * background (world generation) and IO executors.
+ *
+ * <p>The queues are sampled at the end of a server tick once the interval has
+ * passed, and published as one immutable sample, so a scrape only reads a
+ * volatile reference. Counting the queues walks them, which is why they are
+ * not sampled on every tick.</p>
+ */
+public class TaskQueueTracker {
+
+	/**
+	 * The executor label of the background executor.
+	 */
+	private static final String EXECUTOR_BACKGROUND = "background";
+
+	/**
+	 * The executor label of the IO executor.
+	 */
+	private static final String EXECUTOR_IO = "io";
+
+	/**
+	 * The minimum interval between samples (in nanoseconds).
+	 */
+	private static final long SAMPLE_INTERVAL_NS = TimeUnit.SECONDS.toNanos(1);
+
+	/**
+	 * Maps each dimension to its metric labels: id and name. This is only used
+	 * on the server thread.
+	 */
+	private final HashMap<ResourceKey<Level>, List<String>> dim_labels;
+
+	/**
+	 * The last sample, or {@code null} before the first sample.
+	 */
+	@Nullable
+	private volatile Sample last;
+
+	/**
+	 * When the last sample was taken (in nanoseconds).
+	 */
+	private long sample_ns;
+
+	/**
+	 * Constructs the instance.
+	 */
+	public TaskQueueTracker() {
+		this.dim_labels = new HashMap<>();
+		this.sample_ns = System.nanoTime() - SAMPLE_INTERVAL_NS;
+	}
+
+	/**
+	 * Get the task queue metrics.
+	 *
+	 * @param metrics The metrics to add the task queue metrics to.
+	 */
+	public void collect(List<MetricFamilySamples> metrics) {
+		GaugeMetricFamily server_pending = newServerPendingMetric();
+		GaugeMetricFamily chunk_pending = newDimensionPendingMetric();
+		GaugeMetricFamily queued = newExecutorQueuedMetric();
+		GaugeMetricFamily active = newExecutorActiveMetric();
+		GaugeMetricFamily threads = newExecutorThreadsMetric();
+		CounterMetricFamily completed = newExecutorCompletedMetric();
+
+		Sample last = this.last;
+		if (last != null) {
+			server_pending.addMetric(List.of(), last.server_pending);
+			for (int i = 0; i < last.dim_labels.size(); i++) {
+				chunk_pending.addMetric(last.dim_labels.get(i), last.dim_pending[i]);
+			}
+			for (ExecutorSample executor : last.executors) {
+				List<String> labels = List.of(executor.name);
+				queued.addMetric(labels, executor.queued);
+				active.addMetric(labels, executor.active);
+				threads.addMetric(labels, executor.threads);
+				if (executor.completed >= 0) {
+					completed.addMetric(labels, executor.completed);
+				}
+			}
+		}
+
+		metrics.add(server_pending);
+		metrics.add(chunk_pending);
+		metrics.add(queued);
+		metrics.add(active);
+		metrics.add(threads);
+		metrics.add(completed);
+	}
+
+	/**
+	 * Get the task queue metric descriptions.
+	 *
+	 * @param descs The metric descriptions to add to.
+	 */
+	public void describe(List<MetricFamilySamples> descs) {
+		descs.add(newServerPendingMetric());
+		descs.add(newDimensionPendingMetric());
+		descs.add(newExecutorQueuedMetric());
+		descs.add(newExecutorActiveMetric());
+		descs.add(newExecutorThreadsMetric());
+		descs.add(newExecutorCompletedMetric());
+	}
+
+	/**
+	 * Create a new metric for the chunk tasks queued per dimension.
+	 *
+	 * @return The dimension pending metric.
+	 */
+	private static GaugeMetricFamily newDimensionPendingMetric() {
+		return new GaugeMetricFamily(
+			"mc_dimension_pending_chunk_tasks",
+			"The number of chunk tasks queued to run on the server thread for each "
+			+ "dimension.",
+			List.of("id", "name")
+		);
+	}
+
+	/**
+	 * Create a new metric for the active threads of the executors.
+	 *
+	 * @return The executor active metric.
+	 */
+	private static GaugeMetricFamily newExecutorActiveMetric() {
+		return new GaugeMetricFamily(
+			"mc_executor_active_threads",
+			"The number of threads running tasks in each executor.",
+			List.of("executor")
+		);
+	}
+
+	/**
+	 * Create a new metric for the tasks completed by the executors.
+	 *
+	 * @return The executor completed metric.
+	 */
+	private static CounterMetricFamily newExecutorCompletedMetric() {
+		return new CounterMetricFamily(
+			"mc_executor_completed_tasks_total",
+			"The number of tasks completed by each executor which counts them.",
+			List.of("executor")
+		);
+	}
+
+	/**
+	 * Create a new metric for the tasks queued in the executors.
+	 *
+	 * @return The executor queued metric.
+	 */
+	private static GaugeMetricFamily newExecutorQueuedMetric() {
+		return new GaugeMetricFamily(
+			"mc_executor_queued_tasks",
+			"The number of tasks waiting for a thread in each executor.",
+			List.of("executor")
+		);
+	}
+
+	/**
+	 * Create a new metric for the threads of the executors.
+	 *
+	 * @return The executor threads metric.
+	 */
+	private static GaugeMetricFamily newExecutorThreadsMetric() {
+		return new GaugeMetricFamily(
+			"mc_executor_threads",
+			"The number of threads in each executor.",
+			List.of("executor")
+		);
+	}
+
+	/**
+	 * Create a new metric for the tasks queued on the server thread.
+	 *
+	 * @return The server pending metric.
+	 */
+	private static GaugeMetricFamily newServerPendingMetric() {
+		return new GaugeMetricFamily(
+			"mc_server_pending_tasks",
+			"The number of tasks queued to run on the server thread between ticks.",
+			List.of()
+		);
+	}
+
+	/**
+	 * Sample the task queues once the interval has passed. This must be called
+	 * on the server thread.
+	 *
+	 * @param server The Minecraft server.
+	 * @param now_ns The current time (in nanoseconds).
+	 */
+	public void sample(MinecraftServer server, long now_ns) {
+		if (now_ns - this.sample_ns < SAMPLE_INTERVAL_NS) {
+			return;
+		}
+		this.sample_ns = now_ns;
+
+		ArrayList<List<String>> dim_labels = new ArrayList<>();
+		IntArrayList dim_pending = new IntArrayList();
+		for (ServerLevel world : server.getAllLevels()) {
+			dim_labels.add(this.dim_labels.computeIfAbsent(world.dimension(), dim -> List.of(
+				Integer.toString(MinecraftCollector.getDimensionId(dim)),
+				dim.location().getPath()
+			)));
+			dim_pending.add(world.getChunkSource().mainThreadProcessor.getPendingTasksCount());
+		}
+
+		ArrayList<ExecutorSample> executors = new ArrayList<>(2);
+		ExecutorSample background = sampleExecutor(
+			EXECUTOR_BACKGROUND, Util.backgroundExecutor()
+		);
+		if (background != null) {
+			executors.add(background);
+		}
+		ExecutorSample io = sampleExecutor(EXECUTOR_IO, Util.ioPool());
+		if (io != null) {
+			executors.add(io);
+		}
+
+		this.last = new Sample(
+			server.getPendingTasksCount(),
+			dim_labels,
+			dim_pending.toIntArray(),
+			executors
+		);
+	}
+
+	/**
+	 * Sample the queue and threads of an executor.
+	 *
+	 * @param name The executor label.
+	 * @param executor The executor.
+	 * @return The executor sample, or {@code null} when the executor is not a
+	 * thread pool.
+	 */
+	@Nullable
+	private static ExecutorSample sampleExecutor(String name, ExecutorService executor) {
+		// NOTICE: The background executor is a direct executor when there is only
+		// one processor.
+		if (executor instanceof ForkJoinPool pool) {
+			// A fork-join pool does not count its completed tasks.
+			return new ExecutorSample(
+				name,
+				pool.getQueuedSubmissionCount() + pool.getQueuedTaskCount(),
+				pool.getActiveThreadCount(),
+				pool.getPoolSize(),
+				-1
+			);
+		} else if (executor instanceof ThreadPoolExecutor pool) {
+			return new ExecutorSample(
+				name,
+				pool.getQueue().size(),
+				pool.getActiveCount(),
+				pool.getPoolSize(),
+				pool.getCompletedTaskCount()
+			);
+		}
+		return null;
+	}
+
+	/**
+	 * The ExecutorSample class holds the sampled queue and threads of an
+	 * executor.
+	 */
+	private static class ExecutorSample {
+
+		/**
+		 * The number of threads running tasks.
+		 */
+		public final int active;
+
+		/**
+		 * The number of tasks completed, or -1 when not counted.
+		 */
+		public final long completed;
+
+		/**
+		 * The executor label.
+		 */
+		public final String name;
+
+		/**
+		 * The number of tasks waiting for a thread.
+		 */
+		public final long queued;
+
+		/**
+		 * The number of threads.
+		 */
+		public final int threads;
+
+		/**
+		 * Constructs the instance.
+		 *
+		 * @param name The executor label.
+		 * @param queued The number of tasks waiting for a thread.
+		 * @param active The number of threads running tasks.
+		 * @param threads The number of threads.
+		 * @param completed The number of tasks completed, or -1 when not counted.
+		 */
+		public ExecutorSample(
+			String name, long queued, int active, int threads, long completed
+		) {
+			this.active = active;
+			this.completed = completed;
+			this.name = name;
+			this.queued = queued;
+			this.threads = threads;
+		}
+	}
+
+	/**
+	 * The Sample class holds an immutable sample of the task queues.
+	 */
+	private static class Sample {
+
+		/**
+		 * The metric labels of each dimension: id and name.
+		 */
+		public final List<List<String>> dim_labels;
+
+		/**
+		 * The chunk tasks queued for each dimension indexed the same as the
+		 * labels.
+		 */
+		public final int[] dim_pending;
+
+		/**
+		 * The sampled executors.
+		 */
+		public final List<ExecutorSample> executors;
+
+		/**
+		 * The number of tasks queued on the server thread.
+		 */
+		public final int server_pending;
+
+		/**
+		 * Constructs the instance.
+		 *
+		 * @param server_pending The number of tasks queued on the server thread.
+		 * @param dim_labels The metric labels of each dimension.
+		 * @param dim_pending The chunk tasks queued for each dimension.
+		 * @param executors The sampled executors.
+		 */
+		public Sample(
+			int server_pending,
+			List<List<String>> dim_labels,
+			int[] dim_pending,
+			List<ExecutorSample> executors
+		) {
+			this.dim_labels = dim_labels;
+			this.dim_pending = dim_pending;
+			this.executors = executors;
+			this.server_pending = server_pending;
+		}
+	}
+}
@@ -0,0 +1,522 @@
+package com.github.cpburnz.minecraft_prometheus_exporter;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import com.sun.net.httpserver.HttpExchange;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * The TickHistory class keeps a record of every server tick for the last few
+ * hours in a memory-mapped ring file. This allows lag to be investigated at
+ * tick resolution after the fact, which the scraped metrics blur over the
+ * scrape interval.
+ *
+ * <p>Each record holds the time, the server tick duration, the player count,
+ * and the tick duration, entity count and loaded chunk count of up to
+ * {@link #MAX_DIMENSIONS} dimensions. Records are written by the tick hooks
+ * with absolute puts into the mapping, so recording does not allocate. The
+ * file is kept across restarts, so the history leading up to a crash can be
+ * read after the server is started again.</p>
+ *
+ * <p>The history is served at "/history" as CSV or as the raw records. See
+ * {@link #handle(HttpExchange)}.</p>
+ */
+public class TickHistory implements Closeable {
+
+	/**
+	 * The logger to use.
+	 */
+	private static final Logger LOG = LogManager.getLogger();
+
+	/**
+	 * The default time range to serve (in milliseconds).
+	 */
+	private static final long DEFAULT_RANGE_MS = 5 * 60_000;
+
+	/**
+	 * The offset of the dimension names in the header.
+	 */
+	private static final int DIM_NAMES_POS = 64;
+
+	/**
+	 * The size of the start of a dimension name kept in the header.
+	 */
+	private static final int DIM_NAME_PREFIX = 56;
+
+	/**
+	 * The size of each dimension name in the header: the length and the hash
+	 * code of the whole name, and up to {@link #DIM_NAME_PREFIX} bytes of its
+	 * UTF-8. Long names are only stored in part, so they are matched by their
+	 * length and hash code.
+	 */
+	private static final int DIM_NAME_SIZE = 8 + DIM_NAME_PREFIX;
+
+	/**
+	 * The size of the file header.
+	 */
+	private static final int HEADER_SIZE = (
+		DIM_NAMES_POS + TickHistory.MAX_DIMENSIONS * DIM_NAME_SIZE
+	);
+
+	/**
+	 * The file magic number.
+	 */
+	private static final int MAGIC = 0x4D434832;
+
+	/**
+	 * The maximum number of dimensions recorded.
+	 */
+	public static final int MAX_DIMENSIONS = 16;
+
+	/**
+	 * The offset of the index of the next record in the header.
+	 */
+	private static final int NEXT_INDEX_POS = 16;
+
+	/**
+	 * The size of the per-dimension fields of a record: the tick duration,
+	 * entity count and chunk count.
+	 */
+	private static final int RECORD_DIM_SIZE = 12;
+
+	/**
+	 * The size of each record: the time, the server tick duration, the player
+	 * count, and the dimension fields.
+	 */
+	public static final int RECORD_SIZE = 16 + MAX_DIMENSIONS * RECORD_DIM_SIZE;
+
+	/**
+	 * The number of records at the start of the ring to skip when serving,
+	 * because they may be overwritten while being read. This is a minute of
+	 * ticks.
+	 */
+	private static final int SAFETY_RECORDS = 20 * 60;
+
+	/**
+	 * The number of ticks per hour at 20 TPS.
+	 */
+	private static final int TICKS_PER_HOUR = 20 * 60 * 60;
+
+	/**
+	 * The mapped file.
+	 */
+	private final MappedByteBuffer buffer;
+
+	/**
+	 * The number of records in the ring.
+	 */
+	private final int capacity;
+
+	/**
+	 * The number of dimensions assigned an index.
+	 */
+	private int dim_count;
+
+	/**
+	 * The hash code of each dimension name indexed by dimension index.
+	 */
+	private final int[] dim_hashes;
+
+	/**
+	 * The UTF-8 length of each dimension name indexed by dimension index.
+	 */
+	private final int[] dim_lengths;
+
+	/**
+	 * The dimension names indexed by dimension index. A long name read back from
+	 * the header is only its start until the dimension is added again.
+	 */
+	private final String[] dim_names;
+
+	/**
+	 * The duration of the current tick of each dimension (in nanoseconds), or
+	 * -1 when it did not tick.
+	 */
+	private final long[] dim_tick_ns;
+
+	/**
+	 * The index of the next record. This is published after each record is
+	 * written so that readers only see whole records.
+	 */
+	private volatile long next_index;
+
+	/**
+	 * Constructs the instance, and opens the history file. The existing records
+	 * are kept if the file has the same layout.
+	 *
+	 * @param path The history file.
+	 * @param hours How many hours of ticks to keep at 20 TPS.
+	 * @throws IOException When the file cannot be mapped.
+	 */
+	public TickHistory(Path path, int hours) throws IOException {
+		this.capacity = hours * TICKS_PER_HOUR;
+		this.dim_hashes = new int[MAX_DIMENSIONS];
+		this.dim_lengths = new int[MAX_DIMENSIONS];
+		this.dim_names = new String[MAX_DIMENSIONS];
+		this.dim_tick_ns = new long[MAX_DIMENSIONS];
+		Arrays.fill(this.dim_tick_ns, -1);
+
+		long size = HEADER_SIZE + (long)this.capacity * RECORD_SIZE;
+		Files.createDirectories(path.getParent());
+		boolean is_valid = Files.exists(path) && Files.size(path) == size;
+		try (FileChannel channel = FileChannel.open(
+			path,
+			StandardOpenOption.CREATE,
+			StandardOpenOption.READ,
+			StandardOpenOption.WRITE
+		)) {
+			if (!is_valid) {
+				channel.truncate(0);
+			}
+			// The mapping stays valid after the channel is closed.
+			this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+		}
+
+		if (
+			is_valid
+			&& this.buffer.getInt(0) == MAGIC
+			&& this.buffer.getInt(4) == RECORD_SIZE
+			&& this.buffer.getInt(8) == this.capacity
+		) {
+			// Keep the existing records and dimension indices.
+			this.next_index = this.buffer.getLong(NEXT_INDEX_POS);
+			for (int i = 0; i < MAX_DIMENSIONS; i++) {
+				if (!this.readDimensionName(i)) {
+					break;
+				}
+				this.dim_count = i + 1;
+			}
+		} else {
+			this.buffer.putInt(0, MAGIC);
+			this.buffer.putInt(4, RECORD_SIZE);
+			this.buffer.putInt(8, this.capacity);
+			this.buffer.putLong(NEXT_INDEX_POS, 0);
+			for (int i = 0; i < MAX_DIMENSIONS; i++) {
+				this.buffer.putInt(DIM_NAMES_POS + i * DIM_NAME_SIZE, 0);
+			}
+			this.next_index = 0;
+		}
+	}
+
+	/**
+	 * Get the index of a dimension, assigning one if it has none. Dimensions keep
+	 * their index across restarts.
+	 *
+	 * @param name The dimension name.
+	 * @return The dimension index, or -1 when too many dimensions are recorded.
+	 */
+	public synchronized int addDimension(String name) {
+		byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+		int hash = name.hashCode();
+		for (int i = 0; i < this.dim_count; i++) {
+			if (this.dim_lengths[i] == bytes.length && this.dim_hashes[i] == hash) {
+				// Restore the whole name of a long name read back from the header.
+				this.dim_names[i] = name;
+				return i;
+			}
+		}
+		if (this.dim_count >= MAX_DIMENSIONS) {
+			LOG.warn("Not recording the tick history of dimension {}.", name);
+			return -1;
+		}
+
+		int index = this.dim_count;
+		int pos = DIM_NAMES_POS + index * DIM_NAME_SIZE;
+		this.buffer.put(pos + 8, bytes, 0, Math.min(bytes.length, DIM_NAME_PREFIX));
+		this.buffer.putInt(pos + 4, hash);
+		this.buffer.putInt(pos, bytes.length);
+		this.dim_hashes[index] = hash;
+		this.dim_lengths[index] = bytes.length;
+		this.dim_names[index] = name;
+		this.dim_count++;
+		return index;
+	}
+
+	/**
+	 * Flush the records to disk.
+	 */
+	@Override
+	public void close() {
+		this.buffer.force();
+	}
+
+	/**
+	 * Find the index of the first record at or after the time.
+	 *
+	 * @param first The index of the oldest readable record.
+	 * @param end The index past the newest record.
+	 * @param time_ms The time (in milliseconds since the epoch).
+	 * @return The index.
+	 */
+	private long findIndex(long first, long end, long time_ms) {
+		// The records are in time order unless the clock jumped back, in which
+		// case the search lands on one side of the jump.
+		long low = first;
+		long high = end;
+		while (low < high) {
+			long mid = (low + high) >>> 1;
+			if (this.buffer.getLong(this.getRecordPos(mid)) < time_ms) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * Get the names of the dimensions assigned an index.
+	 *
+	 * @return The dimension names indexed by dimension index.
+	 */
+	private synchronized String[] getDimensionNames() {
+		return Arrays.copyOf(this.dim_names, this.dim_count);
+	}
+
+	/**
+	 * Get the position of a record in the file.
+	 *
+	 * @param index The record index.
+	 * @return The position.
+	 */
+	private int getRecordPos(long index) {
+		return HEADER_SIZE + (int)(index % this.capacity) * RECORD_SIZE;
+	}
+
+	/**
+	 * Serve a time range of the history. The query parameters are:
+	 *
+	 * <ul>
+	 * <li>"from": The start time (in milliseconds since the epoch). This
+	 * defaults to 5 minutes before "to".</li>
+	 * <li>"to": The end time (in milliseconds since the epoch). This defaults to
+	 * now.</li>
+	 * <li>"format": "csv" (the default) for one line per tick with durations in
+	 * milliseconds, or "binary" for the raw records.</li>
+	 * </ul>
+	 *
+	 * <p>The binary format is the record size, the dimension count and the
+	 * dimension names (each a 4-byte length followed by UTF-8), followed by the
+	 * raw records. All numbers are big-endian. Each record is the time (8
+	 * bytes), the server tick duration in microseconds and the player count (4
+	 * bytes each), and for each of {@link #MAX_DIMENSIONS} dimensions the tick
+	 * duration in microseconds (-1 when it did not tick), the entity count (-1
+	 * when not counted) and the loaded chunk count (4 bytes each).</p>
+	 *
+	 * @param exchange The HTTP exchange.
+	 * @throws IOException When the response cannot be sent.
+	 */
+	public void handle(HttpExchange exchange) throws IOException {
+		try {
+			String format = "csv";
+			long to_ms = System.currentTimeMillis();
+			long from_ms = -1;
+			String query = exchange.getRequestURI().getRawQuery();
+			if (query != null) {
+				for (String param : query.split("&")) {
+					int sep = param.indexOf('=');
+					if (sep < 0) {
+						continue;
+					}
+					String key = param.substring(0, sep);
+					String value = URLDecoder.decode(param.substring(sep + 1), StandardCharsets.UTF_8);
+					switch (key) {
+						case "format" -> format = value;
+						case "from" -> from_ms = Long.parseLong(value);
+						case "to" -> to_ms = Long.parseLong(value);
+					}
+				}
+			}
+			if (from_ms < 0) {
+				from_ms = to_ms - DEFAULT_RANGE_MS;
+			}
+			if (!format.equals("csv") && !format.equals("binary")) {
+				exchange.sendResponseHeaders(400, -1);
+				return;
+			}
+
+			// Find the records in range.
+			long end = this.next_index;
+			long first = Math.max(0, end - this.capacity + SAFETY_RECORDS);
+			long start = this.findIndex(first, end, from_ms);
+			long stop = this.findIndex(start, end, to_ms + 1);
+
+			boolean is_csv = format.equals("csv");
+			exchange.getResponseHeaders().set(
+				"Content-Type",
+				is_csv ? "text/csv; charset=utf-8" : "application/octet-stream"
+			);
+			exchange.sendResponseHeaders(200, 0);
+			try (OutputStream body = new BufferedOutputStream(exchange.getResponseBody(), 1 << 16)) {
+				if (is_csv) {
+					this.writeCsv(body, start, stop);
+				} else {
+					this.writeBinary(body, start, stop);
+				}
+			}
+
+		} catch (NumberFormatException e) {
+			exchange.sendResponseHeaders(400, -1);
+		} finally {
+			exchange.close();
+		}
+	}
+
+	/**
+	 * Read a dimension name from the header.
+	 *
+	 * @param index The dimension index.
+	 * @return Whether a dimension name is assigned.
+	 */
+	private boolean readDimensionName(int index) {
+		int pos = DIM_NAMES_POS + index * DIM_NAME_SIZE;
+		int length = this.buffer.getInt(pos);
+		if (length <= 0) {
+			return false;
+		}
+		byte[] bytes = new byte[Math.min(length, DIM_NAME_PREFIX)];
+		this.buffer.get(pos + 8, bytes);
+		this.dim_hashes[index] = this.buffer.getInt(pos + 4);
+		this.dim_lengths[index] = length;
+		this.dim_names[index] = new String(bytes, StandardCharsets.UTF_8);
+		return true;
+	}
+
+	/**
+	 * Record a server tick, along with the dimension ticks within it. This must
+	 * be called on the server thread.
+	 *
+	 * @param time_ms The time (in milliseconds since the epoch).
+	 * @param tick_ns The server tick duration (in nanoseconds).
+	 * @param players The number of players.
+	 * @param entities The entity count indexed by dimension index, or -1 when not
+	 * counted.
+	 * @param chunks The loaded chunk count indexed by dimension index.
+	 */
+	public void record(long time_ms, long tick_ns, int players, int[] entities, int[] chunks) {
+		long index = this.next_index;
+		int pos = this.getRecordPos(index);
+		ByteBuffer buffer = this.buffer;
+		buffer.putLong(pos, time_ms);
+		buffer.putInt(pos + 8, (int)(tick_ns / 1000));
+		buffer.putInt(pos + 12, players);
+		pos += 16;
+		for (int i = 0; i < MAX_DIMENSIONS; i++) {
+			long dim_ns = this.dim_tick_ns[i];
+			this.dim_tick_ns[i] = -1;
+			buffer.putInt(pos, dim_ns < 0 ? -1 : (int)(dim_ns / 1000));
+			buffer.putInt(pos + 4, entities[i]);
+			buffer.putInt(pos + 8, chunks[i]);
+			pos += RECORD_DIM_SIZE;
+		}
+
+		// Publish the record.
+		buffer.putLong(NEXT_INDEX_POS, index + 1);
+		this.next_index = index + 1;
+	}
+
+	/**
+	 * Record a dimension tick. This is added to the next server tick record.
+	 *
+	 * @param dim_index The dimension index.
+	 * @param tick_ns The dimension tick duration (in nanoseconds).
+	 */
+	public void recordDimension(int dim_index, long tick_ns) {
+		long prev_ns = this.dim_tick_ns[dim_index];
+		this.dim_tick_ns[dim_index] = prev_ns < 0 ? tick_ns : prev_ns + tick_ns;
+	}
+
+	/**
+	 * Write the records as raw binary.
+	 *
+	 * @param output The output.
+	 * @param start The index of the first record.
+	 * @param stop The index past the last record.
+	 * @throws IOException When the output cannot be written.
+	 */
+	private void writeBinary(OutputStream output, long start, long stop) throws IOException {
+		String[] names = this.getDimensionNames();
+		byte[][] name_bytes = new byte[names.length][];
+		int size = 8;
+		for (int i = 0; i < names.length; i++) {
+			name_bytes[i] = names[i].getBytes(StandardCharsets.UTF_8);
+			size += 4 + name_bytes[i].length;
+		}
+
+		ByteBuffer header = ByteBuffer.allocate(size);
+		header.putInt(RECORD_SIZE);
+		header.putInt(names.length);
+		for (byte[] bytes : name_bytes) {
+			header.putInt(bytes.length);
+			header.put(bytes);
+		}
+		output.write(header.array(), 0, header.position());
+
+		byte[] record = new byte[RECORD_SIZE];
+		for (long index = start; index < stop; index++) {
+			this.buffer.get(this.getRecordPos(index), record);
+			output.write(record);
+		}
+	}
+
+	/**
+	 * Write the records as CSV.
+	 *
+	 * @param output The output.
+	 * @param start The index of the first record.
+	 * @param stop The index past the last record.
+	 * @throws IOException When the output cannot be written.
+	 */
+	private void writeCsv(OutputStream output, long start, long stop) throws IOException {
+		Writer writer = new OutputStreamWriter(output, StandardCharsets.UTF_8);
+		String[] names = this.getDimensionNames();
+		StringBuilder line = new StringBuilder(256);
+		line.append("timestamp_ms,server_tick_ms,players");
+		for (String name : names) {
+			line.append(',').append(name).append("_tick_ms");
+			line.append(',').append(name).append("_entities");
+			line.append(',').append(name).append("_chunks");
+		}
+		writer.write(line.append('\n').toString());
+
+		for (long index = start; index < stop; index++) {
+			int pos = this.getRecordPos(index);
+			line.setLength(0);
+			line.append(this.buffer.getLong(pos));
+			line.append(',').append(this.buffer.getInt(pos + 8) / 1000.0);
+			line.append(',').append(this.buffer.getInt(pos + 12));
+			pos += 16;
+			for (int i = 0; i < names.length; i++) {
+				int tick_us = this.buffer.getInt(pos);
+				int entities = this.buffer.getInt(pos + 4);
+				line.append(',');
+				if (tick_us >= 0) {
+					line.append(tick_us / 1000.0);
+				}
+				line.append(',');
+				if (entities >= 0) {
+					line.append(entities);
+				}
+				line.append(',').append(this.buffer.getInt(pos + 8));
+				pos += RECORD_DIM_SIZE;
+			}
+			writer.write(line.append('\n').toString());
+		}
+		writer.flush();
+	}
+}
@@ -0,0 +1,714 @@
+package com.github.cpburnz.minecraft_prometheus_exporter;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.List;
+import java.util.function.Supplier;
+import javax.annotation.Nullable;
+
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.util.profiling.ProfilerFiller;
+import net.minecraft.util.profiling.metrics.MetricCategory;
+import net.minecraft.world.entity.Entity;
+import net.minecraft.world.level.chunk.LevelChunk;
+
+import io.prometheus.client.Collector.MetricFamilySamples;
+import io.prometheus.client.Histogram;
+
+/**
+ * The TickPhaseProfiler class times the phases of each dimension (world) tick:
+ * scheduled ticks, raids, the chunk source, random ticks, block events,
+ * entities, block entities and entity management.
+ *
+ * <p>The phases are found from the sections which {@code ServerLevel.tick}
+ * pushes to the server profiler. This is installed as the server profiler for
+ * the duration of each server tick, and passes every call on to the profiler
+ * it replaced, so the vanilla profiler and "/debug" keep working. Only the
+ * section names pushed as strings are compared to find the phases.</p>
+ *
+ * <p>Random ticks run within the chunk source phase, and are subtracted from
+ * it. Only dimensions ticked on the server thread are timed, since the
+ * profiler is shared by every dimension.</p>
+ *
+ * <p>On the ticks sampled by the {@link ModTickSampler}, the lazy sections
+ * pushed per entity and block entity are resolved to their type, and each is
+ * timed. The entity or block entity is read from the lazy section name, which
+ * captures it, so the type is resolved by identity without building its name.
+ * Only when the section name does not capture one is it built and resolved by
+ * name. When the phases are not timed, this is only installed on the sampled
+ * ticks.</p>
+ */
+public class TickPhaseProfiler implements ProfilerFiller {
+
+	/**
+	 * Maps each class of lazy section names to its field holding the captured
+	 * entity or block entity ticker, or {@code null} when it has none.
+	 */
+	private static final ClassValue<Field> CAPTURED_FIELDS = new ClassValue<>() {
+		@Override
+		@Nullable
+		protected Field computeValue(Class<?> type) {
+			return findCapturedField(type);
+		}
+	};
+
+	/**
+	 * The number of nanoseconds in a second.
+	 */
+	private static final double NANOSECONDS_PER_SECOND = 1e9;
+
+	/**
+	 * The histogram buckets to use for the phase times (in seconds).
+	 */
+	private static final double[] PHASE_BUCKETS = new double[] {
+		0.0001,
+		0.0005,
+		0.001,
+		0.0025,
+		0.005,
+		0.01,
+		0.025,
+		0.05,
+		0.1,
+		0.25,
+	};
+
+	/**
+	 * The phase for ticking block entities.
+	 */
+	private static final int PHASE_BLOCK_ENTITIES = 0;
+
+	/**
+	 * The phase for running block events (e.g., pistons and note blocks).
+	 */
+	private static final int PHASE_BLOCK_EVENTS = 1;
+
+	/**
+	 * The phase for ticking the chunk source: chunk loading, spawning and
+	 * sending chunk updates, excluding random ticks.
+	 */
+	private static final int PHASE_CHUNK_SOURCE = 2;
+
+	/**
+	 * The phase for ticking entities.
+	 */
+	private static final int PHASE_ENTITIES = 3;
+
+	/**
+	 * The phase for loading and unloading entity sections.
+	 */
+	private static final int PHASE_ENTITY_MANAGEMENT = 4;
+
+	/**
+	 * The phase for ticking raids.
+	 */
+	private static final int PHASE_RAIDS = 5;
+
+	/**
+	 * The phase for random block ticks (e.g., crop growth).
+	 */
+	private static final int PHASE_RANDOM_TICKS = 6;
+
+	/**
+	 * The phase for scheduled block and fluid ticks.
+	 */
+	private static final int PHASE_SCHEDULED_TICKS = 7;
+
+	/**
+	 * The phase labels indexed by phase.
+	 */
+	private static final String[] PHASE_LABELS = new String[] {
+		"block_entities",
+		"block_events",
+		"chunk_source",
+		"entities",
+		"entity_management",
+		"raids",
+		"random_ticks",
+		"scheduled_ticks",
+	};
+
+	/**
+	 * The number of phases.
+	 */
+	private static final int PHASE_COUNT = PHASE_LABELS.length;
+
+	/**
+	 * The profiler section which is pushed first in a dimension tick. Its depth
+	 * is the depth of the phases.
+	 */
+	private static final String SECTION_FIRST = "world border";
+
+	/**
+	 * The profiler section of the random ticks of a chunk.
+	 */
+	private static final String SECTION_RANDOM_TICKS = "tickBlocks";
+
+	/**
+	 * The profiler section within the entities phase which ticks the entities.
+	 */
+	private static final String SECTION_TICK_ENTITIES = "tick";
+
+	/**
+	 * Whether this is installed for the server tick.
+	 */
+	private boolean active;
+
+	/**
+	 * The profiler the server used before this was installed.
+	 */
+	private ProfilerFiller delegate;
+
+	/**
+	 * The depth of the profiler sections since the dimension tick started.
+	 */
+	private int depth;
+
+	/**
+	 * The sampler of the entity and block entity tick times, or {@code null}
+	 * when disabled.
+	 */
+	@Nullable
+	private final ModTickSampler mod_ticks;
+
+	/**
+	 * The phase in progress, or -1 when none.
+	 */
+	private int phase;
+
+	/**
+	 * The depth of the phase sections, or -1 until found.
+	 */
+	private int phase_depth;
+
+	/**
+	 * When the phase in progress started (in nanoseconds).
+	 */
+	private long phase_start_ns;
+
+	/**
+	 * Histogram metrics for the dimension tick phase times, or {@code null} when
+	 * the phases are not timed.
+	 */
+	@Nullable
+	private final Histogram phase_seconds;
+
+	/**
+	 * The depth of the random ticks section in progress, or -1 when none.
+	 */
+	private int random_depth;
+
+	/**
+	 * When the random ticks section in progress started (in nanoseconds).
+	 */
+	private long random_start_ns;
+
+	/**
+	 * When the entity or block entity tick in progress started (in nanoseconds).
+	 */
+	private long sample_start_ns;
+
+	/**
+	 * The type of the entity or block entity tick in progress, or {@code null}
+	 * when none.
+	 */
+	@Nullable
+	private ModTickSampler.TypeTicks sample_type;
+
+	/**
+	 * Whether the entity and block entity ticks are timed on this server tick.
+	 */
+	private boolean sampling;
+
+	/**
+	 * The server thread.
+	 */
+	private final Thread server_thread;
+
+	/**
+	 * The slot of the dimension being ticked, or {@code null} between dimension
+	 * ticks.
+	 */
+	@Nullable
+	private Slot slot;
+
+	/**
+	 * The depth of the sections pushed per entity or block entity, or -1 when
+	 * not in a phase which ticks them.
+	 */
+	private int ticker_depth;
+
+	/**
+	 * Constructs the instance. This must be called on the server thread.
+	 *
+	 * @param time_phases Whether to time the phases.
+	 * @param mod_ticks The sampler of the entity and block entity tick times, or
+	 * {@code null} when disabled.
+	 */
+	public TickPhaseProfiler(
+		boolean time_phases, @Nullable ModTickSampler mod_ticks
+	) {
+		this.mod_ticks = mod_ticks;
+		this.phase = -1;
+		this.phase_depth = -1;
+		this.phase_seconds = time_phases ? Histogram.build()
+			.buckets(PHASE_BUCKETS)
+			.name("mc_dimension_tick_phase_seconds")
+			.labelNames("id", "name", "phase")
+			.help("Stats on the time spent in each phase of the dimension ticks.")
+			.create() : null;
+		this.random_depth = -1;
+		this.server_thread = Thread.currentThread();
+		this.ticker_depth = -1;
+	}
+
+	/**
+	 * Get the metrics.
+	 *
+	 * @param metrics The metrics to add the phase metrics to.
+	 */
+	public void collect(List<MetricFamilySamples> metrics) {
+		if (this.phase_seconds != null) {
+			metrics.addAll(this.phase_seconds.collect());
+		}
+	}
+
+	/**
+	 * Get the metric descriptions.
+	 *
+	 * @param descs The metric descriptions to add to.
+	 */
+	public void describe(List<MetricFamilySamples> descs) {
+		if (this.phase_seconds != null) {
+			descs.addAll(this.phase_seconds.describe());
+		}
+	}
+
+	/**
+	 * Pass the end of a profiled tick on.
+	 */
+	@Override
+	public void endTick() {
+		this.delegate.endTick();
+	}
+
+	/**
+	 * Find the field of a lazy section name class which holds the captured
+	 * entity or block entity ticker.
+	 *
+	 * @param type The lazy section name class.
+	 * @return The field, or {@code null} when it has none or it cannot be read.
+	 */
+	@Nullable
+	private static Field findCapturedField(Class<?> type) {
+		// NOTICE: The lazy section names are lambdas, whose captured values are
+		// held in synthetic fields.
+		if (!type.isSynthetic()) {
+			return null;
+		}
+		for (Field field : type.getDeclaredFields()) {
+			Class<?> field_type = field.getType();
+			if (
+				!Modifier.isStatic(field.getModifiers())
+				&& (
+					Entity.class.isAssignableFrom(field_type)
+					|| field_type == LevelChunk.BoundTickingBlockEntity.class
+				)
+			) {
+				try {
+					return field.trySetAccessible() ? field : null;
+				} catch (SecurityException e) {
+					return null;
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Pass a counter on.
+	 *
+	 * @param name The counter name.
+	 * @param count The amount to add.
+	 */
+	@Override
+	public void incrementCounter(String name, int count) {
+		this.delegate.incrementCounter(name, count);
+	}
+
+	/**
+	 * Pass a counter on.
+	 *
+	 * @param name The lazy counter name.
+	 * @param count The amount to add.
+	 */
+	@Override
+	public void incrementCounter(Supplier<String> name, int count) {
+		this.delegate.incrementCounter(name, count);
+	}
+
+	/**
+	 * Replace the server profiler for the server tick. This must be called on
+	 * the server thread when the server tick starts.
+	 *
+	 * @param server The Minecraft server.
+	 */
+	public void install(MinecraftServer server) {
+		this.sampling = this.mod_ticks != null && this.mod_ticks.nextTick();
+		this.active = this.phase_seconds != null || this.sampling;
+		if (!this.active) {
+			return;
+		}
+
+		// NOTICE: The server replaces its profiler before each tick, so this is
+		// installed again on each tick.
+		ProfilerFiller current = server.profiler;
+		if (current != this) {
+			this.delegate = current;
+			server.profiler = this;
+		}
+	}
+
+	/**
+	 * Pass a chart marker on.
+	 *
+	 * @param category The metric category.
+	 */
+	@Override
+	public void markForCharting(MetricCategory category) {
+		this.delegate.markForCharting(category);
+	}
+
+	/**
+	 * Create a new slot used to time the phases of a dimension.
+	 *
+	 * @param id_str The dimension id.
+	 * @param name The dimension name.
+	 * @return The dimension slot.
+	 */
+	public Slot newDimensionSlot(String id_str, String name) {
+		Histogram.Child[] children = null;
+		if (this.phase_seconds != null) {
+			children = new Histogram.Child[PHASE_COUNT];
+			for (int phase = 0; phase < PHASE_COUNT; phase++) {
+				children[phase] = this.phase_seconds.labels(id_str, name, PHASE_LABELS[phase]);
+			}
+		}
+		return new Slot(children);
+	}
+
+	/**
+	 * Pop a profiler section.
+	 */
+	@Override
+	public void pop() {
+		this.delegate.pop();
+		if (this.slot != null && Thread.currentThread() == this.server_thread) {
+			this.onPop();
+		}
+	}
+
+	/**
+	 * Pop a profiler section, and push the next.
+	 *
+	 * @param name The section name.
+	 */
+	@Override
+	public void popPush(String name) {
+		this.delegate.popPush(name);
+		if (this.slot != null && Thread.currentThread() == this.server_thread) {
+			this.onPop();
+			this.onPush(name);
+		}
+	}
+
+	/**
+	 * Pop a profiler section, and push the next.
+	 *
+	 * @param name The lazy section name.
+	 */
+	@Override
+	public void popPush(Supplier<String> name) {
+		this.delegate.popPush(name);
+		if (this.slot != null && Thread.currentThread() == this.server_thread) {
+			this.onPop();
+			this.onPushLazy(name);
+		}
+	}
+
+	/**
+	 * Push a profiler section.
+	 *
+	 * @param name The section name.
+	 */
+	@Override
+	public void push(String name) {
+		this.delegate.push(name);
+		if (this.slot != null && Thread.currentThread() == this.server_thread) {
+			this.onPush(name);
+		}
+	}
+
+	/**
+	 * Push a profiler section.
+	 *
+	 * @param name The lazy section name.
+	 */
+	@Override
+	public void push(Supplier<String> name) {
+		this.delegate.push(name);
+		if (this.slot != null && Thread.currentThread() == this.server_thread) {
+			this.onPushLazy(name);
+		}
+	}
+
+	/**
+	 * Record when a profiler section is popped within a dimension tick.
+	 */
+	private void onPop() {
+		int depth = this.depth;
+		if (depth == this.ticker_depth) {
+			if (this.sample_type != null) {
+				this.sample_type.add(System.nanoTime() - this.sample_start_ns);
+				this.sample_type = null;
+			}
+		} else if (depth == this.ticker_depth - 1) {
+			this.ticker_depth = -1;
+		}
+
+		if (depth == this.random_depth) {
+			this.slot.addPhase(PHASE_RANDOM_TICKS, System.nanoTime() - this.random_start_ns);
+			this.random_depth = -1;
+		} else if (depth == this.phase_depth && this.phase != -1) {
+			this.slot.addPhase(this.phase, System.nanoTime() - this.phase_start_ns);
+			this.phase = -1;
+		}
+		this.depth = depth - 1;
+	}
+
+	/**
+	 * Record when a profiler section is pushed within a dimension tick.
+	 *
+	 * @param name The section name.
+	 */
+	private void onPush(String name) {
+		int depth = ++this.depth;
+		if (this.phase_depth == -1) {
+			if (name.equals(SECTION_FIRST)) {
+				this.phase_depth = depth;
+			}
+			return;
+		}
+
+		if (depth == this.phase_depth) {
+			int phase = switch (name) {
+				case "blockEntities" -> PHASE_BLOCK_ENTITIES;
+				case "blockEvents" -> PHASE_BLOCK_EVENTS;
+				case "chunkSource" -> PHASE_CHUNK_SOURCE;
+				case "entities" -> PHASE_ENTITIES;
+				case "entityManagement" -> PHASE_ENTITY_MANAGEMENT;
+				case "raid" -> PHASE_RAIDS;
+				case "tickPending" -> PHASE_SCHEDULED_TICKS;
+				default -> -1;
+			};
+			if (phase != -1) {
+				this.phase = phase;
+				this.phase_start_ns = System.nanoTime();
+				if (phase == PHASE_BLOCK_ENTITIES && this.sampling) {
+					this.ticker_depth = depth + 1;
+				}
+			}
+		} else if (
+			this.phase == PHASE_ENTITIES
+			&& this.sampling
+			&& depth == this.phase_depth + 1
+			&& name.equals(SECTION_TICK_ENTITIES)
+		) {
+			this.ticker_depth = depth + 1;
+		} else if (
+			this.phase == PHASE_CHUNK_SOURCE
+			&& this.random_depth == -1
+			&& name.equals(SECTION_RANDOM_TICKS)
+		) {
+			this.random_depth = depth;
+			this.random_start_ns = System.nanoTime();
+		}
+	}
+
+	/**
+	 * Record when a lazy profiler section is pushed within a dimension tick.
+	 *
+	 * @param name The lazy section name.
+	 */
+	private void onPushLazy(Supplier<String> name) {
+		int depth = ++this.depth;
+		if (depth == this.ticker_depth && this.sample_type == null) {
+			// Resolve the type before starting the clock.
+			this.sample_type = this.resolveType(name);
+			this.sample_start_ns = System.nanoTime();
+		}
+	}
+
+	/**
+	 * Resolve the type of the entity or block entity a lazy section is pushed
+	 * for.
+	 *
+	 * @param name The lazy section name.
+	 * @return The type counters.
+	 */
+	private ModTickSampler.TypeTicks resolveType(Supplier<String> name) {
+		Field field = CAPTURED_FIELDS.get(name.getClass());
+		if (field != null) {
+			Object captured;
+			try {
+				captured = field.get(name);
+			} catch (IllegalAccessException e) {
+				captured = null;
+			}
+			if (captured instanceof Entity entity) {
+				return this.mod_ticks.getEntityType(entity.getType());
+			} else if (captured instanceof LevelChunk.BoundTickingBlockEntity<?> ticker) {
+				return this.mod_ticks.getBlockEntityType(ticker.blockEntity.getType());
+			}
+		}
+
+		// The section is named after the registry id of the entity or block
+		// entity type.
+		String key = name.get();
+		return this.phase == PHASE_ENTITIES
+			? this.mod_ticks.getEntityType(key)
+			: this.mod_ticks.getBlockEntityType(key);
+	}
+
+	/**
+	 * Start timing the phases of a dimension tick.
+	 *
+	 * @param slot The dimension slot.
+	 */
+	public void start(Slot slot) {
+		if (!this.active || Thread.currentThread() != this.server_thread) {
+			return;
+		}
+		slot.reset();
+		this.depth = 0;
+		this.phase = -1;
+		this.phase_depth = -1;
+		this.random_depth = -1;
+		this.sample_type = null;
+		this.slot = slot;
+		this.ticker_depth = -1;
+	}
+
+	/**
+	 * Pass the start of a profiled tick on.
+	 */
+	@Override
+	public void startTick() {
+		this.delegate.startTick();
+	}
+
+	/**
+	 * Stop timing the phases of a dimension tick, and record them.
+	 *
+	 * @param slot The dimension slot.
+	 */
+	public void stop(Slot slot) {
+		if (this.slot != slot) {
+			return;
+		}
+		this.slot = null;
+		slot.record();
+	}
+
+	/**
+	 * Restore the server profiler. This must be called on the server thread when
+	 * the server tick stops.
+	 *
+	 * @param server The Minecraft server.
+	 */
+	public void uninstall(MinecraftServer server) {
+		this.active = false;
+		this.slot = null;
+		if (server.profiler == this) {
+			server.profiler = this.delegate;
+		}
+	}
+
+	/**
+	 * The Slot class holds the phase times of a dimension tick. It is created
+	 * once per dimension so that timing the phases does not allocate.
+	 */
+	public static class Slot {
+
+		/**
+		 * The histogram children for the phase times indexed by phase, or
+		 * {@code null} when the phases are not timed.
+		 */
+		@Nullable
+		private final Histogram.Child[] children;
+
+		/**
+		 * The time spent in each phase of the dimension tick indexed by phase (in
+		 * nanoseconds).
+		 */
+		private final long[] phase_ns;
+
+		/**
+		 * The phases which ran in the dimension tick as a bit mask.
+		 */
+		private int phases;
+
+		/**
+		 * Constructs the instance.
+		 *
+		 * @param children The histogram children indexed by phase, or
+		 * {@code null} when the phases are not timed.
+		 */
+		private Slot(@Nullable Histogram.Child[] children) {
+			this.children = children;
+			this.phase_ns = new long[PHASE_COUNT];
+		}
+
+		/**
+		 * Add time to a phase.
+		 *
+		 * @param phase The phase.
+		 * @param duration_ns The duration (in nanoseconds).
+		 */
+		private void addPhase(int phase, long duration_ns) {
+			this.phase_ns[phase] += duration_ns;
+			this.phases |= 1 << phase;
+		}
+
+		/**
+		 * Record the phases which ran.
+		 */
+		private void record() {
+			if (this.children == null) {
+				return;
+			}
+
+			// Random ticks are nested in the chunk source.
+			if ((this.phases & (1 << PHASE_RANDOM_TICKS)) != 0) {
+				this.phase_ns[PHASE_CHUNK_SOURCE] -= this.phase_ns[PHASE_RANDOM_TICKS];
+			}
+
+			for (int phase = 0; phase < PHASE_COUNT; phase++) {
+				if ((this.phases & (1 << phase)) != 0) {
+					double seconds = Math.max(this.phase_ns[phase], 0) / NANOSECONDS_PER_SECOND;
+					this.children[phase].observe(seconds);
+				}
+			}
+		}
+
+		/**
+		 * Clear the phase times for a new dimension tick.
+		 */
+		private void reset() {
+			for (int phase = 0; phase < PHASE_COUNT; phase++) {
+				this.phase_ns[phase] = 0;
+			}
+			this.phases = 0;
+		}
+	}
+}
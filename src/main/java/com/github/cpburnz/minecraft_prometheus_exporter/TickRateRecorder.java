@@ -0,0 +1,186 @@
+package com.github.cpburnz.minecraft_prometheus_exporter;
+
+import java.util.Arrays;
+
+/**
+ * The TickRateRecorder class records ticks into a ring buffer of one second
+ * buckets, from which the ticks per second (TPS) and milliseconds per tick
+ * (MSPT) are computed over rolling windows of up to 15 minutes.
+ *
+ * <p>Each bucket holds the number of ticks which finished during that second,
+ * their total duration and the longest duration in primitive arrays. Each
+ * recorder must only be written by a single thread (the thread doing the
+ * ticking), and can be read by any number of threads without locking. Only
+ * complete seconds are read, so a read cannot see a bucket being written.</p>
+ */
+public class TickRateRecorder {
+
+	/**
+	 * The number of one second buckets. This holds the longest window, the
+	 * current second, and a spare second for the reader.
+	 */
+	private static final int BUCKET_COUNT = 15 * 60 + 2;
+
+	/**
+	 * The number of nanoseconds in a millisecond.
+	 */
+	private static final double NANOSECONDS_PER_MILLISECOND = 1e6;
+
+	/**
+	 * The number of nanoseconds in a second.
+	 */
+	private static final long NANOSECONDS_PER_SECOND = 1_000_000_000L;
+
+	/**
+	 * The windows to compute the tick rates over (in seconds).
+	 */
+	public static final int[] WINDOWS = new int[] {5, 60, 5 * 60, 15 * 60};
+
+	/**
+	 * The labels of the windows.
+	 */
+	public static final String[] WINDOW_LABELS = new String[] {
+		"5s", "1m", "5m", "15m"
+	};
+
+	/**
+	 * The number of ticks of each bucket.
+	 */
+	private final int[] counts;
+
+	/**
+	 * The second when the first tick was recorded, or {@link Long#MIN_VALUE}
+	 * when no ticks have been recorded.
+	 */
+	private volatile long first_second;
+
+	/**
+	 * The second of the latest tick. This is written last when recording a
+	 * tick, so a reader which reads it first sees the buckets up to it.
+	 */
+	private volatile long last_second;
+
+	/**
+	 * The longest tick of each bucket (in nanoseconds).
+	 */
+	private final long[] max_ns;
+
+	/**
+	 * The second each bucket is recording.
+	 */
+	private final long[] seconds;
+
+	/**
+	 * The total duration of the ticks of each bucket (in nanoseconds).
+	 */
+	private final long[] sum_ns;
+
+	/**
+	 * Constructs the instance.
+	 */
+	public TickRateRecorder() {
+		this.counts = new int[BUCKET_COUNT];
+		this.first_second = Long.MIN_VALUE;
+		this.last_second = Long.MIN_VALUE;
+		this.max_ns = new long[BUCKET_COUNT];
+		this.seconds = new long[BUCKET_COUNT];
+		this.sum_ns = new long[BUCKET_COUNT];
+		Arrays.fill(this.seconds, Long.MIN_VALUE);
+	}
+
+	/**
+	 * Record a tick.
+	 *
+	 * <p>This must only be called by the thread doing the ticking.</p>
+	 *
+	 * @param now_ns When the tick finished (in nanoseconds).
+	 * @param duration_ns The duration of the tick (in nanoseconds).
+	 */
+	public void record(long now_ns, long duration_ns) {
+		long second = Math.floorDiv(now_ns, NANOSECONDS_PER_SECOND);
+		int index = (int)Math.floorMod(second, (long)BUCKET_COUNT);
+		if (this.seconds[index] != second) {
+			this.counts[index] = 0;
+			this.max_ns[index] = 0;
+			this.sum_ns[index] = 0;
+			this.seconds[index] = second;
+		}
+
+		this.counts[index]++;
+		this.sum_ns[index] += duration_ns;
+		if (duration_ns > this.max_ns[index]) {
+			this.max_ns[index] = duration_ns;
+		}
+
+		if (this.first_second == Long.MIN_VALUE) {
+			this.first_second = second;
+		}
+		this.last_second = second;
+	}
+
+	/**
+	 * Compute the tick rates over each of the {@link #WINDOWS}.
+	 *
+	 * @return The tick rates of each window.
+	 */
+	public Rates[] snapshot() {
+		// Read the latest second first to see the buckets written before it.
+		long last_second = this.last_second;
+		long first_second = this.first_second;
+		long now_second = Math.floorDiv(System.nanoTime(), NANOSECONDS_PER_SECOND);
+
+		Rates[] rates = new Rates[WINDOWS.length];
+		if (last_second == Long.MIN_VALUE) {
+			for (int i = 0; i < WINDOWS.length; i++) {
+				rates[i] = new Rates(0, Double.NaN, Double.NaN);
+			}
+			return rates;
+		}
+
+		// Only read complete seconds. The windows are nested, so walk back from
+		// the most recent complete second accumulating each window in turn.
+		long end_second = now_second - 1;
+		int ticks = 0;
+		long sum_ns = 0;
+		long max_ns = 0;
+		int window_index = 0;
+		for (int age = 0; window_index < WINDOWS.length; age++) {
+			long second = end_second - age;
+			int index = (int)Math.floorMod(second, (long)BUCKET_COUNT);
+			if (second <= last_second && this.seconds[index] == second) {
+				ticks += this.counts[index];
+				sum_ns += this.sum_ns[index];
+				max_ns = Math.max(max_ns, this.max_ns[index]);
+			}
+
+			while (window_index < WINDOWS.length && age + 1 == WINDOWS[window_index]) {
+				// Do not count the seconds before the first tick, so the tick rate is
+				// correct right after the server starts.
+				long elapsed = Math.min(
+					WINDOWS[window_index], end_second - first_second + 1
+				);
+				double tps = elapsed > 0 ? (double)ticks / elapsed : 0;
+				double mean_mspt = Double.NaN;
+				double max_mspt = Double.NaN;
+				if (ticks > 0) {
+					mean_mspt = sum_ns / NANOSECONDS_PER_MILLISECOND / ticks;
+					max_mspt = max_ns / NANOSECONDS_PER_MILLISECOND;
+				}
+				rates[window_index] = new Rates(tps, mean_mspt, max_mspt);
+				window_index++;
+			}
+		}
+		return rates;
+	}
+
+	/**
+	 * The Rates record holds the tick rates over a window.
+	 *
+	 * @param tps The ticks per second.
+	 * @param mean_mspt The mean milliseconds per tick, or NaN without ticks.
+	 * @param max_mspt The longest milliseconds per tick, or NaN without ticks.
+	 */
+	public record Rates(double tps, double mean_mspt, double max_mspt) {
+		// Empty.
+	}
+}
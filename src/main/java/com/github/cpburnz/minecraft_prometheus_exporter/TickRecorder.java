@@ -0,0 +1,283 @@
+package com.github.cpburnz.minecraft_prometheus_exporter;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The TickRecorder class records tick durations into a high-resolution
+ * histogram over a rolling time window, from which percentiles are computed.
+ *
+ * <p>Durations are recorded in microseconds into log-linear buckets: each
+ * power of two is split into 32 sub-buckets, which bounds the relative error of
+ * a percentile to about 3%. The window is split into slots which are reused as
+ * time passes, so recording never allocates.</p>
+ *
+ * <p>Each recorder must only be written by a single thread (the thread doing
+ * the ticking), and can be read by any number of threads without locking. A
+ * read which races with the writer rotating a slot may be off by the ticks of
+ * that slot, which is acceptable for monitoring.</p>
+ */
+public class TickRecorder {
+
+	/**
+	 * The largest power of two recorded (in microseconds). Longer durations are
+	 * recorded in the last bucket. This is about 16.8 seconds.
+	 */
+	private static final int MAX_EXPONENT = 23;
+
+	/**
+	 * The number of microseconds in a second.
+	 */
+	private static final double MICROSECONDS_PER_SECOND = 1e6;
+
+	/**
+	 * The number of slots the window is split into.
+	 */
+	private static final int SLOT_COUNT = 6;
+
+	/**
+	 * The number of bits of sub-bucket precision.
+	 */
+	private static final int SUB_BUCKET_BITS = 5;
+
+	/**
+	 * The number of sub-buckets per power of two.
+	 */
+	private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+	/**
+	 * The number of buckets.
+	 */
+	private static final int BUCKET_COUNT = (
+		(MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKET_COUNT
+	);
+
+	/**
+	 * The duration of each slot (in nanoseconds).
+	 */
+	private final long slot_ns;
+
+	/**
+	 * The slots of the window.
+	 */
+	private final Slot[] slots;
+
+	/**
+	 * Constructs the instance.
+	 *
+	 * @param window_seconds The duration of the window (in seconds).
+	 */
+	public TickRecorder(int window_seconds) {
+		this.slot_ns = Math.max(1L, window_seconds * 1_000_000_000L / SLOT_COUNT);
+		this.slots = new Slot[SLOT_COUNT];
+		for (int i = 0; i < SLOT_COUNT; i++) {
+			this.slots[i] = new Slot();
+		}
+	}
+
+	/**
+	 * Get the bucket index for the duration.
+	 *
+	 * @param micros The duration (in microseconds).
+	 * @return The bucket index.
+	 */
+	private static int getBucketIndex(long micros) {
+		if (micros < SUB_BUCKET_COUNT) {
+			return (int)Math.max(0, micros);
+		}
+
+		int exponent = 63 - Long.numberOfLeadingZeros(micros);
+		if (exponent > MAX_EXPONENT) {
+			return BUCKET_COUNT - 1;
+		}
+
+		int mantissa = (int)(micros >>> (exponent - SUB_BUCKET_BITS));
+		return (
+			(exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT
+			+ mantissa - SUB_BUCKET_COUNT
+		);
+	}
+
+	/**
+	 * Get the largest duration recorded in the bucket.
+	 *
+	 * @param index The bucket index.
+	 * @return The duration (in microseconds).
+	 */
+	private static long getBucketUpperBound(int index) {
+		if (index < 2 * SUB_BUCKET_COUNT) {
+			return index;
+		}
+
+		int exponent = index / SUB_BUCKET_COUNT + SUB_BUCKET_BITS - 1;
+		long mantissa = index % SUB_BUCKET_COUNT + SUB_BUCKET_COUNT;
+		int shift = exponent - SUB_BUCKET_BITS;
+		return ((mantissa + 1) << shift) - 1;
+	}
+
+	/**
+	 * Record a tick.
+	 *
+	 * <p>This must only be called by the thread doing the ticking.</p>
+	 *
+	 * @param now_ns When the tick finished (in nanoseconds).
+	 * @param duration_ns The duration of the tick (in nanoseconds).
+	 */
+	public void record(long now_ns, long duration_ns) {
+		long epoch = now_ns / this.slot_ns;
+		Slot slot = this.slots[(int)Math.floorMod(epoch, (long)SLOT_COUNT)];
+		if (slot.epoch != epoch) {
+			slot.reset(epoch);
+		}
+
+		long micros = duration_ns / 1000;
+		int index = getBucketIndex(micros);
+		slot.counts.setRelease(index, slot.counts.getPlain(index) + 1);
+		if (micros > slot.max_micros) {
+			slot.max_micros = micros;
+		}
+	}
+
+	/**
+	 * Take a snapshot of the window.
+	 *
+	 * @return The snapshot.
+	 */
+	public Snapshot snapshot() {
+		long epoch = System.nanoTime() / this.slot_ns;
+		long[] counts = new long[BUCKET_COUNT];
+		long max_micros = 0;
+		long total = 0;
+		for (Slot slot : this.slots) {
+			long slot_epoch = slot.epoch;
+			if (slot_epoch <= epoch - SLOT_COUNT || slot_epoch > epoch) {
+				// The slot is outside of the window.
+				continue;
+			}
+
+			for (int i = 0; i < BUCKET_COUNT; i++) {
+				long count = slot.counts.getAcquire(i);
+				counts[i] += count;
+				total += count;
+			}
+			max_micros = Math.max(max_micros, slot.max_micros);
+		}
+		return new Snapshot(counts, max_micros, total);
+	}
+
+	/**
+	 * The Slot class holds the ticks recorded during one part of the window.
+	 */
+	private static class Slot {
+
+		/**
+		 * The tick count of each bucket.
+		 */
+		public final AtomicLongArray counts;
+
+		/**
+		 * The slot number since the epoch of the nanosecond clock this slot is
+		 * recording, or {@link Long#MIN_VALUE} when unused.
+		 */
+		public volatile long epoch;
+
+		/**
+		 * The longest tick (in microseconds).
+		 */
+		public volatile long max_micros;
+
+		/**
+		 * Constructs the instance.
+		 */
+		public Slot() {
+			this.counts = new AtomicLongArray(BUCKET_COUNT);
+			this.epoch = Long.MIN_VALUE;
+		}
+
+		/**
+		 * Reset the slot to record a new part of the window.
+		 *
+		 * @param epoch The slot number to record.
+		 */
+		public void reset(long epoch) {
+			// Mark the slot unused while it is cleared.
+			this.epoch = Long.MIN_VALUE;
+			for (int i = 0; i < BUCKET_COUNT; i++) {
+				this.counts.setRelease(i, 0);
+			}
+			this.max_micros = 0;
+			this.epoch = epoch;
+		}
+	}
+
+	/**
+	 * The Snapshot class holds the ticks recorded over the window.
+	 */
+	public static class Snapshot {
+
+		/**
+		 * The tick count of each bucket.
+		 */
+		private final long[] counts;
+
+		/**
+		 * The longest tick (in microseconds).
+		 */
+		private final long max_micros;
+
+		/**
+		 * The number of ticks.
+		 */
+		private final long total;
+
+		/**
+		 * Constructs the instance.
+		 *
+		 * @param counts The tick count of each bucket.
+		 * @param max_micros The longest tick (in microseconds).
+		 * @param total The number of ticks.
+		 */
+		private Snapshot(long[] counts, long max_micros, long total) {
+			this.counts = counts;
+			this.max_micros = max_micros;
+			this.total = total;
+		}
+
+		/**
+		 * @return The longest tick (in seconds).
+		 */
+		public double getMaxSeconds() {
+			return this.max_micros / MICROSECONDS_PER_SECOND;
+		}
+
+		/**
+		 * Get the tick duration at the quantile.
+		 *
+		 * @param quantile The quantile between 0 and 1.
+		 * @return The tick duration (in seconds), or NaN if no ticks were
+		 * recorded.
+		 */
+		public double getQuantileSeconds(double quantile) {
+			if (this.total == 0) {
+				return Double.NaN;
+			}
+
+			long rank = Math.max(1, (long)Math.ceil(quantile * this.total));
+			long seen = 0;
+			for (int i = 0; i < this.counts.length; i++) {
+				seen += this.counts[i];
+				if (seen >= rank) {
+					long micros = Math.min(getBucketUpperBound(i), this.max_micros);
+					return micros / MICROSECONDS_PER_SECOND;
+				}
+			}
+			return this.getMaxSeconds();
+		}
+
+		/**
+		 * @return The number of ticks.
+		 */
+		public long getTotal() {
+			return this.total;
+		}
+	}
+}
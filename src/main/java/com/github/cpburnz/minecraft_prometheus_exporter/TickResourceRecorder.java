@@ -0,0 +1,329 @@
+package com.github.cpburnz.minecraft_prometheus_exporter;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import io.prometheus.client.Collector.MetricFamilySamples;
+import io.prometheus.client.Histogram;
+
+/**
+ * The TickResourceRecorder class records the heap bytes allocated and the CPU
+ * time used by the thread running each server and dimension (world) tick.
+ *
+ * <p>This uses the HotSpot extension of the thread MX bean, which reads the
+ * allocation counter and CPU time of the current thread without allocating.
+ * The ratio of CPU time to wall time shows whether a tick was busy or blocked
+ * (e.g., waiting on chunk loading, locks or I/O).</p>
+ */
+public class TickResourceRecorder {
+
+	/**
+	 * The logger to use.
+	 */
+	private static final Logger LOG = LogManager.getLogger();
+
+	/**
+	 * The histogram buckets to use for the bytes allocated per tick: 256 KiB to
+	 * 4 GiB.
+	 */
+	private static final double[] ALLOCATED_BUCKETS = new double[] {
+		1 << 18,
+		1 << 20,
+		1 << 22,
+		1 << 24,
+		1 << 26,
+		1 << 28,
+		1 << 30,
+		1L << 32,
+	};
+
+	/**
+	 * The histogram buckets to use for the ratio of CPU time to wall time per
+	 * tick.
+	 */
+	private static final double[] CPU_RATIO_BUCKETS = new double[] {
+		0.1,
+		0.25,
+		0.5,
+		0.75,
+		0.9,
+		0.95,
+		1.0,
+	};
+
+	/**
+	 * The number of nanoseconds in a second.
+	 */
+	private static final double NANOSECONDS_PER_SECOND = 1e9;
+
+	/**
+	 * The HotSpot thread MX bean.
+	 */
+	private static final com.sun.management.ThreadMXBean THREAD_MX_BEAN = getThreadMXBean();
+
+	/**
+	 * Histogram metrics for the bytes allocated per dimension tick.
+	 */
+	private final Histogram dim_allocated_bytes;
+
+	/**
+	 * Histogram metrics for the ratio of CPU time to wall time per dimension
+	 * tick.
+	 */
+	private final Histogram dim_cpu_ratio;
+
+	/**
+	 * Histogram metrics for the CPU time per dimension tick.
+	 */
+	private final Histogram dim_cpu_seconds;
+
+	/**
+	 * Histogram metrics for the bytes allocated per server tick.
+	 */
+	private final Histogram server_allocated_bytes;
+
+	/**
+	 * Histogram metrics for the ratio of CPU time to wall time per server tick.
+	 */
+	private final Histogram server_cpu_ratio;
+
+	/**
+	 * Histogram metrics for the CPU time per server tick.
+	 */
+	private final Histogram server_cpu_seconds;
+
+	/**
+	 * The slot used to record server ticks.
+	 */
+	private final Slot server_slot;
+
+	/**
+	 * Constructs the instance.
+	 *
+	 * @param tick_buckets The histogram buckets to use for the CPU time per tick
+	 * (in seconds).
+	 */
+	public TickResourceRecorder(double[] tick_buckets) {
+		this.server_allocated_bytes = Histogram.build()
+			.buckets(ALLOCATED_BUCKETS)
+			.name("mc_server_tick_allocated_bytes")
+			.help("Stats on the heap bytes allocated by the server thread per server tick.")
+			.create();
+
+		this.server_cpu_ratio = Histogram.build()
+			.buckets(CPU_RATIO_BUCKETS)
+			.name("mc_server_tick_cpu_ratio")
+			.help("Stats on the ratio of CPU time to wall time per server tick.")
+			.create();
+
+		this.server_cpu_seconds = Histogram.build()
+			.buckets(tick_buckets)
+			.name("mc_server_tick_cpu_seconds")
+			.help("Stats on the CPU time of the server thread per server tick.")
+			.create();
+
+		this.dim_allocated_bytes = Histogram.build()
+			.buckets(ALLOCATED_BUCKETS)
+			.name("mc_dimension_tick_allocated_bytes")
+			.labelNames("id", "name")
+			.help("Stats on the heap bytes allocated per dimension tick.")
+			.create();
+
+		this.dim_cpu_ratio = Histogram.build()
+			.buckets(CPU_RATIO_BUCKETS)
+			.name("mc_dimension_tick_cpu_ratio")
+			.labelNames("id", "name")
+			.help("Stats on the ratio of CPU time to wall time per dimension tick.")
+			.create();
+
+		this.dim_cpu_seconds = Histogram.build()
+			.buckets(tick_buckets)
+			.name("mc_dimension_tick_cpu_seconds")
+			.labelNames("id", "name")
+			.help("Stats on the CPU time per dimension tick.")
+			.create();
+
+		this.server_slot = new Slot(
+			this.server_allocated_bytes.labels(),
+			this.server_cpu_ratio.labels(),
+			this.server_cpu_seconds.labels()
+		);
+	}
+
+	/**
+	 * Get the metrics.
+	 *
+	 * @param metrics The metrics to add the tick resource metrics to.
+	 */
+	public void collect(List<MetricFamilySamples> metrics) {
+		metrics.addAll(this.server_allocated_bytes.collect());
+		metrics.addAll(this.server_cpu_ratio.collect());
+		metrics.addAll(this.server_cpu_seconds.collect());
+		metrics.addAll(this.dim_allocated_bytes.collect());
+		metrics.addAll(this.dim_cpu_ratio.collect());
+		metrics.addAll(this.dim_cpu_seconds.collect());
+	}
+
+	/**
+	 * Get the metric descriptions.
+	 *
+	 * @param descs The metric descriptions to add to.
+	 */
+	public void describe(List<MetricFamilySamples> descs) {
+		descs.addAll(this.server_allocated_bytes.describe());
+		descs.addAll(this.server_cpu_ratio.describe());
+		descs.addAll(this.server_cpu_seconds.describe());
+		descs.addAll(this.dim_allocated_bytes.describe());
+		descs.addAll(this.dim_cpu_ratio.describe());
+		descs.addAll(this.dim_cpu_seconds.describe());
+	}
+
+	/**
+	 * @return The slot used to record server ticks.
+	 */
+	public Slot getServerSlot() {
+		return this.server_slot;
+	}
+
+	/**
+	 * Get the heap bytes allocated by the current thread.
+	 *
+	 * @return The bytes allocated, or -1 if the JVM does not support the
+	 * measurement.
+	 */
+	static long getCurrentThreadAllocatedBytes() {
+		return THREAD_MX_BEAN != null ? THREAD_MX_BEAN.getCurrentThreadAllocatedBytes() : -1;
+	}
+
+	/**
+	 * Get the HotSpot thread MX bean, and enable the measurements.
+	 *
+	 * @return The HotSpot thread MX bean, or {@code null} if the JVM does not
+	 * support the measurements.
+	 */
+	private static com.sun.management.ThreadMXBean getThreadMXBean() {
+		if (!(
+			ManagementFactory.getThreadMXBean()
+			instanceof com.sun.management.ThreadMXBean bean
+		)) {
+			return null;
+		}
+
+		try {
+			if (
+				!bean.isThreadAllocatedMemorySupported()
+				|| !bean.isCurrentThreadCpuTimeSupported()
+			) {
+				return null;
+			}
+			bean.setThreadAllocatedMemoryEnabled(true);
+			bean.setThreadCpuTimeEnabled(true);
+		} catch (UnsupportedOperationException | SecurityException e) {
+			LOG.warn("Failed to enable thread allocation and CPU time.", e);
+			return null;
+		}
+		return bean;
+	}
+
+	/**
+	 * @return Whether the JVM supports measuring thread allocations and CPU time.
+	 */
+	public static boolean isSupported() {
+		return THREAD_MX_BEAN != null;
+	}
+
+	/**
+	 * Create a new slot used to record the ticks of a dimension.
+	 *
+	 * @param id_str The dimension id.
+	 * @param name The dimension name.
+	 * @return The dimension slot.
+	 */
+	public Slot newDimensionSlot(String id_str, String name) {
+		return new Slot(
+			this.dim_allocated_bytes.labels(id_str, name),
+			this.dim_cpu_ratio.labels(id_str, name),
+			this.dim_cpu_seconds.labels(id_str, name)
+		);
+	}
+
+	/**
+	 * The Slot class holds the state used to record the ticks of the server or a
+	 * dimension. It must only be used by the thread doing the ticking.
+	 */
+	public static class Slot {
+
+		/**
+		 * The histogram child for the bytes allocated per tick.
+		 */
+		private final Histogram.Child allocated_bytes;
+
+		/**
+		 * The histogram child for the ratio of CPU time to wall time per tick.
+		 */
+		private final Histogram.Child cpu_ratio;
+
+		/**
+		 * The histogram child for the CPU time per tick.
+		 */
+		private final Histogram.Child cpu_seconds;
+
+		/**
+		 * The bytes allocated by the thread when the tick started.
+		 */
+		private long start_allocated_bytes;
+
+		/**
+		 * The CPU time of the thread when the tick started (in nanoseconds).
+		 */
+		private long start_cpu_ns;
+
+		/**
+		 * Constructs the instance.
+		 *
+		 * @param allocated_bytes The histogram child for the bytes allocated.
+		 * @param cpu_ratio The histogram child for the ratio of CPU time to wall
+		 * time.
+		 * @param cpu_seconds The histogram child for the CPU time.
+		 */
+		private Slot(
+			Histogram.Child allocated_bytes,
+			Histogram.Child cpu_ratio,
+			Histogram.Child cpu_seconds
+		) {
+			this.allocated_bytes = allocated_bytes;
+			this.cpu_ratio = cpu_ratio;
+			this.cpu_seconds = cpu_seconds;
+		}
+
+		/**
+		 * Record when a tick begins.
+		 */
+		public void start() {
+			this.start_allocated_bytes = THREAD_MX_BEAN.getCurrentThreadAllocatedBytes();
+			this.start_cpu_ns = THREAD_MX_BEAN.getCurrentThreadCpuTime();
+		}
+
+		/**
+		 * Record when a tick finishes.
+		 *
+		 * @param wall_ns The wall time of the tick (in nanoseconds).
+		 */
+		public void stop(long wall_ns) {
+			long cpu_ns = THREAD_MX_BEAN.getCurrentThreadCpuTime() - this.start_cpu_ns;
+			long allocated = (
+				THREAD_MX_BEAN.getCurrentThreadAllocatedBytes() - this.start_allocated_bytes
+			);
+
+			this.allocated_bytes.observe(allocated);
+			this.cpu_seconds.observe(cpu_ns / NANOSECONDS_PER_SECOND);
+			if (wall_ns > 0) {
+				// The CPU time is measured with a coarser clock, so cap the ratio.
+				this.cpu_ratio.observe(Math.min(1.0, (double)cpu_ns / wall_ns));
+			}
+		}
+	}
+}
@@ -0,0 +1,398 @@
+package com.github.cpburnz.minecraft_prometheus_exporter;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Stream;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import io.prometheus.client.Collector.MetricFamilySamples;
+import io.prometheus.client.CounterMetricFamily;
+
+/**
+ * The TickWatchdog class samples the stack of the server thread while a server
+ * tick runs past a threshold (a lag spike).
+ *
+ * <p>The tick hooks only arm and disarm the watchdog with a few volatile
+ * writes, so normal ticks cost nothing else. The watchdog thread polls the
+ * armed tick, and once it passes the threshold it samples the server thread
+ * stack at the configured rate until the tick finishes. The leaf frames of the
+ * samples are aggregated into a bounded table, and each spike is written to a
+ * folded stack file which can be turned into a flame graph.</p>
+ */
+public class TickWatchdog implements Closeable {
+
+	/**
+	 * The logger to use.
+	 */
+	private static final Logger LOG = LogManager.getLogger();
+
+	/**
+	 * The date format used for the spike file names.
+	 */
+	private static final DateTimeFormatter FILE_DATE_FORMAT = DateTimeFormatter.ofPattern(
+		"yyyyMMdd-HHmmss-SSS"
+	);
+
+	/**
+	 * The prefix of the spike file names.
+	 */
+	private static final String FILE_PREFIX = "tick-spike-";
+
+	/**
+	 * The suffix of the spike file names.
+	 */
+	private static final String FILE_SUFFIX = ".folded";
+
+	/**
+	 * The frame label used once the frame table is full.
+	 */
+	private static final String OTHER_FRAME = "other";
+
+	/**
+	 * The directory to write the spike files to.
+	 */
+	private final Path dir;
+
+	/**
+	 * The sample count of each leaf frame.
+	 */
+	private final ConcurrentHashMap<String, LongAdder> frame_samples;
+
+	/**
+	 * The maximum number of spike files to keep. No spike files are written when
+	 * this is 0.
+	 */
+	private final int max_files;
+
+	/**
+	 * The maximum number of frames in the frame table, including the other
+	 * frame.
+	 */
+	private final int max_frames;
+
+	/**
+	 * The interval to poll the armed tick at (in nanoseconds).
+	 */
+	private final long poll_ns;
+
+	/**
+	 * The interval to sample the server thread at (in nanoseconds).
+	 */
+	private final long sample_ns;
+
+	/**
+	 * The server thread.
+	 */
+	private final Thread server_thread;
+
+	/**
+	 * The number of lag spikes.
+	 */
+	private final LongAdder spikes;
+
+	/**
+	 * The threshold for a tick to be a lag spike (in nanoseconds).
+	 */
+	private final long threshold_ns;
+
+	/**
+	 * When the armed tick started (in nanoseconds), or -1 when disarmed.
+	 */
+	private volatile long tick_start_ns;
+
+	/**
+	 * The watchdog thread.
+	 */
+	private final Thread thread;
+
+	/**
+	 * Constructs the instance, and starts the watchdog thread.
+	 *
+	 * @param server_thread The server thread.
+	 * @param dir The directory to write the spike files to.
+	 * @param threshold_ms The threshold for a tick to be a lag spike (in
+	 * milliseconds).
+	 * @param sample_rate The number of samples per second during a lag spike.
+	 * @param max_frames The maximum number of frames in the frame table.
+	 * @param max_files The maximum number of spike files to keep.
+	 */
+	public TickWatchdog(
+		Thread server_thread,
+		Path dir,
+		int threshold_ms,
+		int sample_rate,
+		int max_frames,
+		int max_files
+	) {
+		this.dir = dir;
+		this.frame_samples = new ConcurrentHashMap<>();
+		this.max_files = max_files;
+		this.max_frames = max_frames;
+		this.sample_ns = TimeUnit.SECONDS.toNanos(1) / sample_rate;
+		this.server_thread = server_thread;
+		this.spikes = new LongAdder();
+		this.threshold_ns = TimeUnit.MILLISECONDS.toNanos(threshold_ms);
+		this.poll_ns = Math.max(
+			TimeUnit.MILLISECONDS.toNanos(1), this.threshold_ns / 4
+		);
+		this.tick_start_ns = -1;
+
+		this.thread = new Thread(this::run, "prometheus-exporter-watchdog");
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	/**
+	 * Add the sample to the frame table.
+	 *
+	 * @param stack The stack sample.
+	 */
+	private void addFrameSample(StackTraceElement[] stack) {
+		String frame = formatFrame(stack[0]);
+		LongAdder samples = this.frame_samples.get(frame);
+		if (samples == null) {
+			// NOTICE: One slot of the table is reserved for the other frame.
+			if (this.frame_samples.size() >= this.max_frames - 1) {
+				frame = OTHER_FRAME;
+			}
+			samples = this.frame_samples.computeIfAbsent(frame, k -> new LongAdder());
+		}
+		samples.increment();
+	}
+
+	/**
+	 * Record when a server tick begins.
+	 *
+	 * @param now_ns When the tick started (in nanoseconds).
+	 */
+	public void arm(long now_ns) {
+		this.tick_start_ns = now_ns;
+	}
+
+	/**
+	 * Stop the watchdog thread.
+	 */
+	@Override
+	public void close() {
+		this.thread.interrupt();
+	}
+
+	/**
+	 * Get the lag spike metrics.
+	 *
+	 * @param metrics The metrics to add the lag spike metrics to.
+	 */
+	public void collect(List<MetricFamilySamples> metrics) {
+		CounterMetricFamily spikes = newSpikesMetric();
+		spikes.addMetric(List.of(), this.spikes.sum());
+
+		CounterMetricFamily frames = newSpikeFramesMetric();
+		for (Map.Entry<String, LongAdder> entry : this.frame_samples.entrySet()) {
+			frames.addMetric(List.of(entry.getKey()), entry.getValue().sum());
+		}
+
+		metrics.add(spikes);
+		metrics.add(frames);
+	}
+
+	/**
+	 * Get the lag spike metric descriptions.
+	 *
+	 * @param descs The metric descriptions to add to.
+	 */
+	public static void describe(List<MetricFamilySamples> descs) {
+		descs.add(newSpikesMetric());
+		descs.add(newSpikeFramesMetric());
+	}
+
+	/**
+	 * Record when a server tick finishes.
+	 */
+	public void disarm() {
+		this.tick_start_ns = -1;
+	}
+
+	/**
+	 * Fold the stack sample into the folded stack format: the frames from the
+	 * root to the leaf separated by semicolons.
+	 *
+	 * @param stack The stack sample.
+	 * @return The folded stack.
+	 */
+	private static String foldStack(StackTraceElement[] stack) {
+		StringBuilder builder = new StringBuilder(stack.length * 48);
+		for (int i = stack.length - 1; i >= 0; i--) {
+			builder.append(formatFrame(stack[i]));
+			if (i > 0) {
+				builder.append(';');
+			}
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * Format the stack frame as it is exported.
+	 *
+	 * @param frame The stack frame.
+	 * @return The formatted frame.
+	 */
+	private static String formatFrame(StackTraceElement frame) {
+		return frame.getClassName() + "." + frame.getMethodName();
+	}
+
+	/**
+	 * Create a new metric for the lag spike frames.
+	 *
+	 * @return The lag spike frames metric.
+	 */
+	private static CounterMetricFamily newSpikeFramesMetric() {
+		return new CounterMetricFamily(
+			"mc_tick_spike_frames_total",
+			"The number of server thread stack samples during lag spikes by the "
+			+ "sampled frame.",
+			List.of("frame")
+		);
+	}
+
+	/**
+	 * Create a new metric for the lag spikes.
+	 *
+	 * @return The lag spikes metric.
+	 */
+	private static CounterMetricFamily newSpikesMetric() {
+		return new CounterMetricFamily(
+			"mc_tick_spikes_total",
+			"The number of server ticks which ran past the lag spike threshold.",
+			List.of()
+		);
+	}
+
+	/**
+	 * Delete the oldest spike files beyond the maximum.
+	 *
+	 * @throws IOException When the spike files cannot be listed.
+	 */
+	private void rotateFiles() throws IOException {
+		List<Path> files;
+		try (Stream<Path> stream = Files.list(this.dir)) {
+			files = stream
+				.filter(path -> {
+					String name = path.getFileName().toString();
+					return name.startsWith(FILE_PREFIX) && name.endsWith(FILE_SUFFIX);
+				})
+				.sorted()
+				.toList();
+		}
+
+		for (int i = 0; i < files.size() - this.max_files; i++) {
+			Files.deleteIfExists(files.get(i));
+		}
+	}
+
+	/**
+	 * Run the watchdog thread.
+	 */
+	private void run() {
+		while (!Thread.currentThread().isInterrupted()) {
+			long start_ns = this.tick_start_ns;
+			if (start_ns == -1 || System.nanoTime() - start_ns < this.threshold_ns) {
+				LockSupport.parkNanos(this.poll_ns);
+				continue;
+			}
+
+			try {
+				this.sampleSpike(start_ns);
+			} catch (RuntimeException e) {
+				LOG.error("Failed to sample lag spike.", e);
+			}
+		}
+	}
+
+	/**
+	 * Sample the server thread until the lag spike tick finishes.
+	 *
+	 * @param start_ns When the lag spike tick started (in nanoseconds).
+	 */
+	private void sampleSpike(long start_ns) {
+		this.spikes.increment();
+		HashMap<String, Integer> folded_stacks = new HashMap<>();
+		int sample_count = 0;
+		while (
+			this.tick_start_ns == start_ns && !Thread.currentThread().isInterrupted()
+		) {
+			StackTraceElement[] stack = this.server_thread.getStackTrace();
+
+			// The tick may have finished while the stack was sampled.
+			if (this.tick_start_ns != start_ns) {
+				break;
+			}
+
+			if (stack.length > 0) {
+				this.addFrameSample(stack);
+				folded_stacks.merge(foldStack(stack), 1, Integer::sum);
+				sample_count++;
+			}
+
+			LockSupport.parkNanos(this.sample_ns);
+		}
+
+		long duration_ms = TimeUnit.NANOSECONDS.toMillis(
+			System.nanoTime() - start_ns
+		);
+		LOG.debug(
+			"Server tick lag spike of at least {} ms with {} samples.",
+			duration_ms,
+			sample_count
+		);
+		if (this.max_files > 0 && !folded_stacks.isEmpty()) {
+			this.writeSpikeFile(folded_stacks);
+		}
+	}
+
+	/**
+	 * Write the folded stacks of a lag spike to a new spike file, and delete the
+	 * oldest spike files.
+	 *
+	 * @param folded_stacks The sample count of each folded stack.
+	 */
+	private void writeSpikeFile(Map<String, Integer> folded_stacks) {
+		String date = LocalDateTime.now().format(FILE_DATE_FORMAT);
+		Path path = this.dir.resolve(FILE_PREFIX + date + FILE_SUFFIX);
+		try {
+			Files.createDirectories(this.dir);
+			try (
+				BufferedWriter writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8)
+			) {
+				ArrayList<Map.Entry<String, Integer>> entries = new ArrayList<>(
+					folded_stacks.entrySet()
+				);
+				entries.sort(Map.Entry.comparingByKey());
+				for (Map.Entry<String, Integer> entry : entries) {
+					writer.write(entry.getKey());
+					writer.write(' ');
+					writer.write(Integer.toString(entry.getValue()));
+					writer.newLine();
+				}
+			}
+			this.rotateFiles();
+		} catch (IOException e) {
+			LOG.warn("Failed to write lag spike file {}.", path, e);
+		}
+	}
+}
@@ -0,0 +1,511 @@
+package com.github.cpburnz.minecraft_prometheus_exporter;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import net.minecraft.core.registries.BuiltInRegistries;
+import net.minecraft.resources.ResourceKey;
+import net.minecraft.resources.ResourceLocation;
+import net.minecraft.server.level.ChunkHolder;
+import net.minecraft.server.level.ServerLevel;
+import net.minecraft.world.entity.Entity;
+import net.minecraft.world.entity.EntityType;
+import net.minecraft.world.level.ChunkPos;
+import net.minecraft.world.level.Level;
+import net.minecraft.world.level.block.entity.BlockEntity;
+import net.minecraft.world.level.block.entity.BlockEntityType;
+import net.minecraft.world.level.chunk.LevelChunk;
+import net.minecraft.world.phys.AABB;
+
+import io.prometheus.client.Collector.MetricFamilySamples;
+import io.prometheus.client.GaugeMetricFamily;
+
+/**
+ * The WorldCensus class walks the loaded chunks of every dimension (world) to
+ * count the block entities by type, and the entities in the most crowded
+ * chunk. Walking every chunk at once causes a tick spike on large worlds, so a
+ * pass is spread across many server ticks with only a bounded slice of chunks
+ * walked at the end of each tick.
+ *
+ * <p>The counts of a pass are only published once the pass finishes, so a
+ * scrape always sees the complete result of the last pass rather than a mix
+ * of two passes. The chunks of a dimension are listed one at a time as they
+ * are walked, from the chunk map as it was when the pass reached the
+ * dimension. Chunks unloaded before they are walked are skipped, and chunks
+ * loaded after are left for the next pass.</p>
+ */
+public class WorldCensus {
+
+	/**
+	 * The number of nanoseconds in a second.
+	 */
+	private static final double NANOSECONDS_PER_SECOND = 1e9;
+
+	/**
+	 * The time budget for walking chunks at the end of each tick (in
+	 * nanoseconds).
+	 */
+	private final long budget_ns;
+
+	/**
+	 * The minimum time from the start of one pass to the start of the next (in
+	 * nanoseconds).
+	 */
+	private final long interval_ns;
+
+	/**
+	 * The last complete pass, or {@code null} before the first pass finishes.
+	 */
+	private volatile Result last;
+
+	/**
+	 * The pass in progress, or {@code null} between passes.
+	 */
+	private Pass pass;
+
+	/**
+	 * When the last pass started (in nanoseconds).
+	 */
+	private long pass_start_ns;
+
+	/**
+	 * The number of registered block entity types. The block entity type
+	 * registry is frozen once the server starts so this cannot change.
+	 */
+	private final int type_count;
+
+	/**
+	 * The metric labels of each block entity type indexed by block entity type
+	 * registry id: mod and type.
+	 */
+	private final String[][] type_labels;
+
+	/**
+	 * Constructs the instance.
+	 *
+	 * @param budget_us The time budget for walking chunks at the end of each tick
+	 * (in microseconds).
+	 * @param interval_s The minimum time from the start of one pass to the start
+	 * of the next (in seconds).
+	 */
+	public WorldCensus(int budget_us, int interval_s) {
+		this.budget_ns = budget_us * 1000L;
+		this.interval_ns = interval_s * 1_000_000_000L;
+		this.type_count = BuiltInRegistries.BLOCK_ENTITY_TYPE.size();
+		this.type_labels = new String[this.type_count][];
+		for (int type_id = 0; type_id < this.type_count; type_id++) {
+			BlockEntityType<?> type = BuiltInRegistries.BLOCK_ENTITY_TYPE.byId(type_id);
+			ResourceLocation key = BuiltInRegistries.BLOCK_ENTITY_TYPE.getKey(type);
+			this.type_labels[type_id] = new String[] {
+				key.getNamespace().intern(), key.getPath().intern()
+			};
+		}
+		this.pass_start_ns = System.nanoTime() - this.interval_ns;
+	}
+
+	/**
+	 * Get the census metrics.
+	 *
+	 * @param metrics The metrics to add the census metrics to.
+	 */
+	public void collect(List<MetricFamilySamples> metrics) {
+		GaugeMetricFamily block_entities = newBlockEntitiesMetric();
+		GaugeMetricFamily chunk_entities = newChunkEntitiesMaxMetric();
+		GaugeMetricFamily age = newAgeMetric();
+		GaugeMetricFamily pass_seconds = newPassSecondsMetric();
+		GaugeMetricFamily pass_ticks = newPassTicksMetric();
+		GaugeMetricFamily work_seconds = newWorkSecondsMetric();
+
+		Result last = this.last;
+		if (last != null) {
+			for (DimensionResult dim : last.dims) {
+				for (int type_id = 0; type_id < this.type_count; type_id++) {
+					int count = dim.block_entities[type_id];
+					if (count > 0) {
+						String[] type_labels = this.type_labels[type_id];
+						block_entities.addMetric(
+							List.of(dim.dim, dim.dim_id_str, type_labels[0], type_labels[1]),
+							count
+						);
+					}
+				}
+				chunk_entities.addMetric(dim.labels, dim.chunk_entities_max);
+			}
+
+			age.addMetric(
+				List.of(), (System.nanoTime() - last.end_ns) / NANOSECONDS_PER_SECOND
+			);
+			pass_seconds.addMetric(
+				List.of(), (last.end_ns - last.start_ns) / NANOSECONDS_PER_SECOND
+			);
+			pass_ticks.addMetric(List.of(), last.ticks);
+			work_seconds.addMetric(List.of(), last.work_ns / NANOSECONDS_PER_SECOND);
+		}
+
+		metrics.add(block_entities);
+		metrics.add(chunk_entities);
+		metrics.add(age);
+		metrics.add(pass_seconds);
+		metrics.add(pass_ticks);
+		metrics.add(work_seconds);
+	}
+
+	/**
+	 * Get the census metric descriptions.
+	 *
+	 * @param descs The metric descriptions to add to.
+	 */
+	public static void describe(List<MetricFamilySamples> descs) {
+		descs.add(newBlockEntitiesMetric());
+		descs.add(newChunkEntitiesMaxMetric());
+		descs.add(newAgeMetric());
+		descs.add(newPassSecondsMetric());
+		descs.add(newPassTicksMetric());
+		descs.add(newWorkSecondsMetric());
+	}
+
+	/**
+	 * Create a new metric for how long ago the last pass finished.
+	 *
+	 * @return The age metric.
+	 */
+	private static GaugeMetricFamily newAgeMetric() {
+		return new GaugeMetricFamily(
+			"mc_exporter_census_age_seconds",
+			"How long ago the last world census pass finished (in seconds).",
+			List.of()
+		);
+	}
+
+	/**
+	 * Create a new metric for the block entities by type.
+	 *
+	 * @return The block entities metric.
+	 */
+	private static GaugeMetricFamily newBlockEntitiesMetric() {
+		return new GaugeMetricFamily(
+			"mc_block_entities_total",
+			"The number of block entities in the loaded chunks of each dimension by "
+			+ "type as of the last world census pass.",
+			List.of("dim", "dim_id", "mod", "type")
+		);
+	}
+
+	/**
+	 * Create a new metric for the entities in the most crowded chunk.
+	 *
+	 * @return The chunk entities metric.
+	 */
+	private static GaugeMetricFamily newChunkEntitiesMaxMetric() {
+		return new GaugeMetricFamily(
+			"mc_dimension_chunk_entities_max",
+			"The most entities in a single loaded chunk of each dimension as of the "
+			+ "last world census pass.",
+			List.of("id", "name")
+		);
+	}
+
+	/**
+	 * Create a new metric for the duration of the last pass.
+	 *
+	 * @return The pass duration metric.
+	 */
+	private static GaugeMetricFamily newPassSecondsMetric() {
+		return new GaugeMetricFamily(
+			"mc_exporter_census_pass_seconds",
+			"The wall time from the start to the end of the last world census pass "
+			+ "(in seconds).",
+			List.of()
+		);
+	}
+
+	/**
+	 * Create a new metric for the ticks spanned by the last pass.
+	 *
+	 * @return The pass ticks metric.
+	 */
+	private static GaugeMetricFamily newPassTicksMetric() {
+		return new GaugeMetricFamily(
+			"mc_exporter_census_pass_ticks",
+			"The number of server ticks the last world census pass was spread "
+			+ "across.",
+			List.of()
+		);
+	}
+
+	/**
+	 * Create a new metric for the server thread time spent on the last pass.
+	 *
+	 * @return The work time metric.
+	 */
+	private static GaugeMetricFamily newWorkSecondsMetric() {
+		return new GaugeMetricFamily(
+			"mc_exporter_census_work_seconds",
+			"The time the server thread spent walking chunks for the last world "
+			+ "census pass (in seconds).",
+			List.of()
+		);
+	}
+
+	/**
+	 * Walk the next slice of chunks. This must be called on the server thread at
+	 * the end of each server tick.
+	 *
+	 * @param worlds The dimensions.
+	 * @param now_ns The current time (in nanoseconds).
+	 */
+	public void tick(Iterable<ServerLevel> worlds, long now_ns) {
+		Pass pass = this.pass;
+		if (pass == null) {
+			if (now_ns - this.pass_start_ns < this.interval_ns) {
+				return;
+			}
+
+			ArrayList<ServerLevel> pass_worlds = new ArrayList<>();
+			worlds.forEach(pass_worlds::add);
+			pass = new Pass(pass_worlds, now_ns);
+			this.pass = pass;
+			this.pass_start_ns = now_ns;
+		}
+
+		pass.ticks++;
+		long deadline_ns = now_ns + this.budget_ns;
+		long time_ns = now_ns;
+		while (time_ns < deadline_ns) {
+			if (!this.walkNextChunk(pass)) {
+				time_ns = System.nanoTime();
+				pass.work_ns += time_ns - now_ns;
+				this.last = new Result(pass, time_ns);
+				this.pass = null;
+				return;
+			}
+			time_ns = System.nanoTime();
+		}
+		pass.work_ns += time_ns - now_ns;
+	}
+
+	/**
+	 * Walk the next chunk of the pass.
+	 *
+	 * @param pass The pass.
+	 * @return Whether a chunk was walked, or {@code false} when the pass is done.
+	 */
+	private boolean walkNextChunk(Pass pass) {
+		// Find the next chunk.
+		while (pass.dim == null || !pass.chunks.hasNext()) {
+			if (pass.dim_index >= pass.worlds.size()) {
+				return false;
+			}
+			ServerLevel world = pass.worlds.get(pass.dim_index++);
+			pass.dim = new DimensionResult(world.dimension(), this.type_count);
+			pass.dims.add(pass.dim);
+			pass.world = world;
+
+			// NOTICE: The chunks are listed one at a time so that listing a large
+			// dimension is spread across ticks within the time budget instead of
+			// done all at once.
+			// - NOTICE: The chunk map iterates the visible chunk holders, which are
+			//   never modified in place. They are replaced by a copy when chunks
+			//   load or unload so the iterator stays valid across ticks.
+			pass.chunks = world.getChunkSource().chunkMap.getChunks().iterator();
+		}
+
+		ChunkPos pos = pass.chunks.next().getPos();
+		int chunk_x = pos.x;
+		int chunk_z = pos.z;
+		ServerLevel world = pass.world;
+		LevelChunk chunk = world.getChunkSource().getChunkNow(chunk_x, chunk_z);
+		if (chunk == null) {
+			// The chunk is not fully loaded, or unloaded since it was listed.
+			return true;
+		}
+
+		// Count the block entities.
+		DimensionResult dim = pass.dim;
+		for (BlockEntity block_entity : chunk.getBlockEntities().values()) {
+			int type_id = BuiltInRegistries.BLOCK_ENTITY_TYPE.getId(block_entity.getType());
+			if (type_id >= 0 && type_id < this.type_count) {
+				dim.block_entities[type_id]++;
+			}
+		}
+
+		// Count the entities within the chunk. Players are exported separately.
+		int min_x = chunk_x << 4;
+		int min_z = chunk_z << 4;
+		AABB bounds = new AABB(
+			min_x,
+			world.getMinBuildHeight(),
+			min_z,
+			min_x + 16,
+			world.getMaxBuildHeight(),
+			min_z + 16
+		);
+		int entities = world.getEntities(
+			(Entity)null,
+			bounds,
+			entity -> entity.getType() != EntityType.PLAYER
+				&& entity.getBlockX() >> 4 == chunk_x
+				&& entity.getBlockZ() >> 4 == chunk_z
+		).size();
+		if (entities > dim.chunk_entities_max) {
+			dim.chunk_entities_max = entities;
+		}
+		return true;
+	}
+
+	/**
+	 * The DimensionResult class holds the counts of a dimension from a pass.
+	 */
+	private static class DimensionResult {
+
+		/**
+		 * The block entity counts indexed by block entity type registry id.
+		 */
+		public final int[] block_entities;
+
+		/**
+		 * The most entities in a single chunk.
+		 */
+		public int chunk_entities_max;
+
+		/**
+		 * The dimension name.
+		 */
+		public final String dim;
+
+		/**
+		 * The dimension id.
+		 */
+		public final String dim_id_str;
+
+		/**
+		 * The dimension metric labels: id and name.
+		 */
+		public final List<String> labels;
+
+		/**
+		 * Constructs the instance.
+		 *
+		 * @param dim The dimension.
+		 * @param type_count The number of registered block entity types.
+		 */
+		public DimensionResult(ResourceKey<Level> dim, int type_count) {
+			this.block_entities = new int[type_count];
+			this.dim = dim.location().getPath();
+			this.dim_id_str = Integer.toString(MinecraftCollector.getDimensionId(dim));
+			this.labels = List.of(this.dim_id_str, this.dim);
+		}
+	}
+
+	/**
+	 * The Pass class holds the state of a pass in progress. It is only used on
+	 * the server thread.
+	 */
+	private static class Pass {
+
+		/**
+		 * The chunk holders of the current dimension left to walk, or
+		 * {@code null} before the first dimension.
+		 */
+		public Iterator<ChunkHolder> chunks;
+
+		/**
+		 * The counts of the current dimension, or {@code null} before the first
+		 * dimension.
+		 */
+		public DimensionResult dim;
+
+		/**
+		 * The index of the next dimension.
+		 */
+		public int dim_index;
+
+		/**
+		 * The counts of each dimension walked so far.
+		 */
+		public final ArrayList<DimensionResult> dims;
+
+		/**
+		 * When the pass started (in nanoseconds).
+		 */
+		public final long start_ns;
+
+		/**
+		 * The number of ticks the pass was spread across.
+		 */
+		public int ticks;
+
+		/**
+		 * The server thread time spent on the pass (in nanoseconds).
+		 */
+		public long work_ns;
+
+		/**
+		 * The current dimension.
+		 */
+		public ServerLevel world;
+
+		/**
+		 * The dimensions to walk.
+		 */
+		public final List<ServerLevel> worlds;
+
+		/**
+		 * Constructs the instance.
+		 *
+		 * @param worlds The dimensions to walk.
+		 * @param start_ns When the pass started (in nanoseconds).
+		 */
+		public Pass(List<ServerLevel> worlds, long start_ns) {
+			this.dims = new ArrayList<>(worlds.size());
+			this.start_ns = start_ns;
+			this.worlds = worlds;
+		}
+	}
+
+	/**
+	 * The Result class holds the immutable result of a complete pass.
+	 */
+	private static class Result {
+
+		/**
+		 * The counts of each dimension.
+		 */
+		public final List<DimensionResult> dims;
+
+		/**
+		 * When the pass finished (in nanoseconds).
+		 */
+		public final long end_ns;
+
+		/**
+		 * When the pass started (in nanoseconds).
+		 */
+		public final long start_ns;
+
+		/**
+		 * The number of ticks the pass was spread across.
+		 */
+		public final int ticks;
+
+		/**
+		 * The server thread time spent on the pass (in nanoseconds).
+		 */
+		public final long work_ns;
+
+		/**
+		 * Constructs the instance.
+		 *
+		 * @param pass The finished pass.
+		 * @param end_ns When the pass finished (in nanoseconds).
+		 */
+		public Result(Pass pass, long end_ns) {
+			this.dims = List.copyOf(pass.dims);
+			this.end_ns = end_ns;
+			this.start_ns = pass.start_ns;
+			this.ticks = pass.ticks;
+			this.work_ns = pass.work_ns;
+		}
+	}
+}
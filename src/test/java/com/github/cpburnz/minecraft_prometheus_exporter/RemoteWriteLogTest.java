@@ -0,0 +1,192 @@
+package com.github.cpburnz.minecraft_prometheus_exporter;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * The RemoteWriteLogTest class tests the {@link RemoteWriteLog} segments.
+ */
+public class RemoteWriteLogTest {
+
+	/**
+	 * The size of a batch which fills a third of a segment.
+	 */
+	private static final int LARGE_BATCH = RemoteWriteLog.SEGMENT_SIZE / 3 - 16;
+
+	/**
+	 * The directory of the segments.
+	 */
+	@TempDir
+	public Path dir;
+
+	/**
+	 * Create a batch filled with a byte.
+	 *
+	 * @param size The size of the batch.
+	 * @param fill The byte to fill the batch with.
+	 * @return The batch.
+	 */
+	private static byte[] newBatch(int size, int fill) {
+		byte[] batch = new byte[size];
+		Arrays.fill(batch, (byte)fill);
+		return batch;
+	}
+
+	/**
+	 * Read the oldest batch and advance past it.
+	 *
+	 * @param log The log.
+	 * @return The batch.
+	 */
+	private static byte[] poll(RemoteWriteLog log) {
+		RemoteWriteLog.Batch batch = log.peek();
+		assertNotNull(batch);
+		log.advance(batch);
+		return batch.bytes;
+	}
+
+	/**
+	 * Test advancing past a batch whose segment was dropped while it was being
+	 * sent does not skip the next batch.
+	 */
+	@Test
+	public void testAdvanceDroppedSegment() throws IOException {
+		// Two segments of three batches each.
+		try (RemoteWriteLog log = new RemoteWriteLog(this.dir, 0)) {
+			for (int i = 0; i < 6; i++) {
+				log.append(newBatch(LARGE_BATCH, i));
+			}
+
+			RemoteWriteLog.Batch in_flight = log.peek();
+			assertNotNull(in_flight);
+			assertEquals(0, in_flight.bytes[0]);
+
+			// The seventh batch drops the oldest segment.
+			log.append(newBatch(LARGE_BATCH, 6));
+			assertEquals(3, log.getDropped());
+
+			log.advance(in_flight);
+			assertEquals(3, poll(log)[0]);
+			assertEquals(4, poll(log)[0]);
+			assertEquals(5, poll(log)[0]);
+			assertEquals(6, poll(log)[0]);
+			assertNull(log.peek());
+		}
+	}
+
+	/**
+	 * Test advancing past the same batch twice only advances once.
+	 */
+	@Test
+	public void testAdvanceTwice() throws IOException {
+		try (RemoteWriteLog log = new RemoteWriteLog(this.dir, 0)) {
+			log.append(new byte[] {1});
+			log.append(new byte[] {2});
+
+			RemoteWriteLog.Batch batch = log.peek();
+			assertNotNull(batch);
+			log.advance(batch);
+			log.advance(batch);
+			assertArrayEquals(new byte[] {2}, poll(log));
+		}
+	}
+
+	/**
+	 * Test a batch larger than a segment is not appended.
+	 */
+	@Test
+	public void testAppendTooLarge() throws IOException {
+		try (RemoteWriteLog log = new RemoteWriteLog(this.dir, 0)) {
+			assertFalse(log.append(new byte[RemoteWriteLog.SEGMENT_SIZE]));
+			assertEquals(1, log.getDropped());
+			assertNull(log.peek());
+		}
+	}
+
+	/**
+	 * Test the batches are read in order across segments.
+	 */
+	@Test
+	public void testOrder() throws IOException {
+		try (RemoteWriteLog log = new RemoteWriteLog(this.dir, 4L * RemoteWriteLog.SEGMENT_SIZE)) {
+			for (int i = 0; i < 8; i++) {
+				log.append(newBatch(LARGE_BATCH, i));
+			}
+			for (int i = 0; i < 8; i++) {
+				byte[] batch = poll(log);
+				assertEquals(LARGE_BATCH, batch.length);
+				assertEquals(i, batch[0]);
+			}
+			assertNull(log.peek());
+			assertEquals(0, log.getDropped());
+			assertEquals(0, log.getPendingBytes());
+		}
+	}
+
+	/**
+	 * Test the pending batches survive reopening the log.
+	 */
+	@Test
+	public void testReopen() throws IOException {
+		try (RemoteWriteLog log = new RemoteWriteLog(this.dir, 0)) {
+			log.append(new byte[] {1, 2, 3});
+			log.append(new byte[] {4, 5});
+			log.append(new byte[] {6});
+			assertArrayEquals(new byte[] {1, 2, 3}, poll(log));
+		}
+
+		try (RemoteWriteLog log = new RemoteWriteLog(this.dir, 0)) {
+			assertArrayEquals(new byte[] {4, 5}, poll(log));
+			log.append(new byte[] {7});
+			assertArrayEquals(new byte[] {6}, poll(log));
+			assertArrayEquals(new byte[] {7}, poll(log));
+			assertNull(log.peek());
+		}
+	}
+
+	/**
+	 * Test a record with a corrupt length is truncated when the log is opened,
+	 * rather than walked forever.
+	 */
+	@Test
+	public void testReopenCorrupt() throws IOException {
+		try (RemoteWriteLog log = new RemoteWriteLog(this.dir, 0)) {
+			log.append(new byte[] {1, 2, 3});
+			log.append(new byte[] {4, 5});
+			log.append(new byte[] {6});
+		}
+
+		// Corrupt the length of the second record: after the segment header (12
+		// bytes) and the first record (8 + 3 bytes).
+		Path path;
+		try (Stream<Path> paths = Files.list(this.dir)) {
+			path = paths.findFirst().orElseThrow();
+		}
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+			channel.write(ByteBuffer.allocate(4).putInt(0, -1), 23);
+		}
+
+		try (RemoteWriteLog log = new RemoteWriteLog(this.dir, 0)) {
+			assertEquals(11, log.getPendingBytes());
+			assertArrayEquals(new byte[] {1, 2, 3}, poll(log));
+			assertNull(log.peek());
+			log.append(new byte[] {7});
+			assertArrayEquals(new byte[] {7}, poll(log));
+		}
+	}
+}
@@ -0,0 +1,263 @@
+package com.github.cpburnz.minecraft_prometheus_exporter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * The RemoteWriteReceiver class is a local remote write endpoint to test
+ * pushing against. It decodes each batch, and prints the number of series and
+ * samples of each metric. It can fail a fraction of the requests with a 503 to
+ * exercise the retries and the disk buffer.
+ *
+ * <p>Usage: {@code RemoteWriteReceiver [port] [failure_rate] [-v]}. The endpoint
+ * is {@code http://localhost:<port>/api/v1/write}.</p>
+ */
+public class RemoteWriteReceiver {
+
+	/**
+	 * The default TCP port to listen on.
+	 */
+	private static final int DEFAULT_PORT = 9201;
+
+	/**
+	 * The fraction of the requests to fail.
+	 */
+	private final double failure_rate;
+
+	/**
+	 * Whether to print each metric of each batch.
+	 */
+	private final boolean verbose;
+
+	/**
+	 * Constructs the instance.
+	 *
+	 * @param failure_rate The fraction of the requests to fail.
+	 * @param verbose Whether to print each metric of each batch.
+	 */
+	public RemoteWriteReceiver(double failure_rate, boolean verbose) {
+		this.failure_rate = failure_rate;
+		this.verbose = verbose;
+	}
+
+	/**
+	 * Handle a remote write request.
+	 *
+	 * @param exchange The HTTP exchange.
+	 * @throws IOException When the response cannot be sent.
+	 */
+	private void handleWrite(HttpExchange exchange) throws IOException {
+		try {
+			if (ThreadLocalRandom.current().nextDouble() < this.failure_rate) {
+				System.out.println("Failing request.");
+				exchange.sendResponseHeaders(503, -1);
+				return;
+			}
+
+			byte[] compressed;
+			try (InputStream input = exchange.getRequestBody()) {
+				compressed = input.readAllBytes();
+			}
+
+			// TreeMap keeps the metrics sorted for printing.
+			TreeMap<String, Integer> series = new TreeMap<>();
+			int samples;
+			try {
+				samples = parseWriteRequest(Snappy.uncompress(compressed), series);
+			} catch (IOException | RuntimeException e) {
+				System.out.println("Invalid request: " + e);
+				exchange.sendResponseHeaders(400, -1);
+				return;
+			}
+
+			int total = series.values().stream().mapToInt(Integer::intValue).sum();
+			System.out.printf(
+				"Received %d bytes: %d metrics, %d series, %d samples.%n",
+				compressed.length, series.size(), total, samples
+			);
+			if (this.verbose) {
+				series.forEach((name, count) -> System.out.printf("  %s: %d%n", name, count));
+			}
+			exchange.sendResponseHeaders(204, -1);
+
+		} finally {
+			exchange.close();
+		}
+	}
+
+	/**
+	 * Run the receiver.
+	 *
+	 * @param args The port, the failure rate, and "-v" to print each metric.
+	 * @throws IOException When the HTTP server cannot be bound.
+	 */
+	public static void main(String[] args) throws IOException {
+		int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+		double failure_rate = args.length > 1 ? Double.parseDouble(args[1]) : 0.0;
+		boolean verbose = args.length > 2 && args[2].equals("-v");
+
+		RemoteWriteReceiver receiver = new RemoteWriteReceiver(failure_rate, verbose);
+		HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+		server.createContext("/api/v1/write", receiver::handleWrite);
+		server.start();
+		System.out.printf(
+			"Listening on http://localhost:%d/api/v1/write (failure rate %.2f).%n",
+			port, failure_rate
+		);
+	}
+
+	/**
+	 * Parse a WriteRequest.
+	 *
+	 * @param bytes The encoded WriteRequest.
+	 * @param series Counts the series of each metric.
+	 * @return The number of samples.
+	 */
+	private static int parseWriteRequest(byte[] bytes, TreeMap<String, Integer> series) {
+		int samples = 0;
+		ProtoReader request = new ProtoReader(bytes, 0, bytes.length);
+		while (request.hasMore()) {
+			int tag = (int)request.readVarint();
+			if (tag != (1 << 3 | 2)) {
+				request.skip(tag);
+				continue;
+			}
+
+			// TimeSeries: labels = 1, samples = 2.
+			ProtoReader time_series = request.readMessage();
+			String name = null;
+			while (time_series.hasMore()) {
+				int field_tag = (int)time_series.readVarint();
+				if (field_tag == (1 << 3 | 2)) {
+					// Label: name = 1, value = 2.
+					ProtoReader label = time_series.readMessage();
+					String label_name = null;
+					String label_value = null;
+					while (label.hasMore()) {
+						int label_tag = (int)label.readVarint();
+						if (label_tag == (1 << 3 | 2)) {
+							label_name = label.readString();
+						} else if (label_tag == (2 << 3 | 2)) {
+							label_value = label.readString();
+						} else {
+							label.skip(label_tag);
+						}
+					}
+					if ("__name__".equals(label_name)) {
+						name = label_value;
+					}
+				} else if (field_tag == (2 << 3 | 2)) {
+					time_series.readMessage();
+					samples++;
+				} else {
+					time_series.skip(field_tag);
+				}
+			}
+			series.merge(String.valueOf(name), 1, Integer::sum);
+		}
+		return samples;
+	}
+
+	/**
+	 * The ProtoReader class reads the fields of an encoded protobuf message.
+	 */
+	private static class ProtoReader {
+
+		/**
+		 * The encoded bytes.
+		 */
+		private final byte[] bytes;
+
+		/**
+		 * The end of the message.
+		 */
+		private final int end;
+
+		/**
+		 * The read position.
+		 */
+		private int pos;
+
+		/**
+		 * Constructs the instance.
+		 *
+		 * @param bytes The encoded bytes.
+		 * @param pos The start of the message.
+		 * @param end The end of the message.
+		 */
+		public ProtoReader(byte[] bytes, int pos, int end) {
+			this.bytes = bytes;
+			this.end = end;
+			this.pos = pos;
+		}
+
+		/**
+		 * @return Whether there are more fields.
+		 */
+		public boolean hasMore() {
+			return this.pos < this.end;
+		}
+
+		/**
+		 * Read a length-delimited field value as a message.
+		 *
+		 * @return The message reader.
+		 */
+		public ProtoReader readMessage() {
+			int length = (int)this.readVarint();
+			ProtoReader message = new ProtoReader(this.bytes, this.pos, this.pos + length);
+			this.pos += length;
+			return message;
+		}
+
+		/**
+		 * Read a length-delimited field value as a UTF-8 string.
+		 *
+		 * @return The string.
+		 */
+		public String readString() {
+			int length = (int)this.readVarint();
+			String value = new String(this.bytes, this.pos, length, StandardCharsets.UTF_8);
+			this.pos += length;
+			return value;
+		}
+
+		/**
+		 * Read a varint.
+		 *
+		 * @return The value.
+		 */
+		public long readVarint() {
+			long value = 0;
+			for (int shift = 0; ; shift += 7) {
+				byte b = this.bytes[this.pos++];
+				value |= (long)(b & 0x7F) << shift;
+				if (b >= 0) {
+					return value;
+				}
+			}
+		}
+
+		/**
+		 * Skip a field value.
+		 *
+		 * @param tag The field tag.
+		 */
+		public void skip(int tag) {
+			switch (tag & 7) {
+				case 0 -> this.readVarint();
+				case 1 -> this.pos += 8;
+				case 2 -> this.pos += (int)this.readVarint();
+				case 5 -> this.pos += 4;
+				default -> throw new IllegalArgumentException("Unsupported wire type " + (tag & 7) + ".");
+			}
+		}
+	}
+}
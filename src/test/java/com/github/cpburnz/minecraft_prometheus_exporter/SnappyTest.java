@@ -0,0 +1,120 @@
+package com.github.cpburnz.minecraft_prometheus_exporter;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * The SnappyTest class tests the {@link Snappy} block format.
+ */
+public class SnappyTest {
+
+	/**
+	 * Compress the bytes, and check they uncompress to the same bytes.
+	 *
+	 * @param bytes The bytes.
+	 * @return The compressed bytes.
+	 * @throws IOException When the compressed bytes are invalid.
+	 */
+	private static byte[] assertRoundTrip(byte[] bytes) throws IOException {
+		byte[] compressed = Snappy.compress(bytes, bytes.length);
+		assertArrayEquals(bytes, Snappy.uncompress(compressed));
+		return compressed;
+	}
+
+	/**
+	 * Test a length shorter than the bytes is honored.
+	 */
+	@Test
+	public void testCompressLength() throws IOException {
+		byte[] bytes = "hello hello hello hello".getBytes(StandardCharsets.UTF_8);
+		byte[] compressed = Snappy.compress(bytes, 11);
+		assertArrayEquals(Arrays.copyOf(bytes, 11), Snappy.uncompress(compressed));
+	}
+
+	/**
+	 * Test empty bytes.
+	 */
+	@Test
+	public void testEmpty() throws IOException {
+		assertRoundTrip(new byte[0]);
+	}
+
+	/**
+	 * Test an exposition, which spans several blocks and compresses well.
+	 */
+	@Test
+	public void testExposition() throws IOException {
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < 5000; i++) {
+			text.append("mc_entities_total{dim=\"overworld\",dim_id=\"0\",id=\"minecraft:zombie_")
+				.append(i)
+				.append("\"} ")
+				.append(i * 3)
+				.append('\n');
+		}
+		byte[] bytes = text.toString().getBytes(StandardCharsets.UTF_8);
+		byte[] compressed = assertRoundTrip(bytes);
+		assertTrue(compressed.length < bytes.length / 4);
+	}
+
+	/**
+	 * Test random bytes, which do not compress.
+	 */
+	@Test
+	public void testRandom() throws IOException {
+		Random random = new Random(42);
+		for (int length : new int[] {1, 14, 15, 16, 100, 65_535, 65_536, 65_537, 300_000}) {
+			byte[] bytes = new byte[length];
+			random.nextBytes(bytes);
+			assertRoundTrip(bytes);
+		}
+	}
+
+	/**
+	 * Test long runs, which are encoded as overlapping copies.
+	 */
+	@Test
+	public void testRuns() throws IOException {
+		byte[] bytes = new byte[200_000];
+		Arrays.fill(bytes, 0, 100_000, (byte)'a');
+		for (int i = 100_000; i < bytes.length; i++) {
+			bytes[i] = (byte)(i % 3);
+		}
+		assertRoundTrip(bytes);
+	}
+
+	/**
+	 * Test truncated bytes are rejected.
+	 */
+	@Test
+	public void testTruncated() throws IOException {
+		byte[] bytes = "a truncated snappy stream a truncated snappy stream"
+			.getBytes(StandardCharsets.UTF_8);
+		byte[] compressed = Snappy.compress(bytes, bytes.length);
+		assertThrows(
+			IOException.class,
+			() -> Snappy.uncompress(Arrays.copyOf(compressed, compressed.length - 2))
+		);
+	}
+
+	/**
+	 * Test a stream encoded by hand from the format description: a literal of
+	 * "abcd" followed by a copy of 8 bytes at offset 4.
+	 */
+	@Test
+	public void testUncompressReference() throws IOException {
+		byte[] compressed = new byte[] {0x0C, 0x0C, 'a', 'b', 'c', 'd', 0x11, 0x04};
+		assertArrayEquals(
+			"abcdabcdabcd".getBytes(StandardCharsets.UTF_8),
+			Snappy.uncompress(compressed)
+		);
+	}
+}